@@ -0,0 +1,369 @@
+package com.tom.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * Measures the error of the Barnes-Hut approximation against the exact forces, next to its cost, so
+ * that a theta can be chosen from numbers. For each distribution, tree configuration and theta it
+ * builds a {@link com.tom.quadtree.BarnesHutQuadTree} or {@link com.tom.octtree.BarnesHutOctTree},
+ * runs a parallel force pass over every body, and compares the forces on a sample of the bodies
+ * with their exact O(N^2) sums, which are computed once in parallel. The force is the inverse
+ * distance repulsion of the other benchmarks.
+ *
+ * <p>Each row reports the RMS and the largest relative error of the sampled forces, the average
+ * number of nodes that a traversal visited and of summaries and leaf forces that it added, from the
+ * {@code TraversalStats} of the tree, and the wall time of the force pass. Run it from the
+ * benchmark jar:
+ *
+ * <pre>
+ * java -cp barnes-hut-quadtree-benchmarks/target/benchmarks.jar com.tom.benchmarks.AccuracyHarness [n] [samples]
+ * </pre>
+ *
+ * @author Tom Nelson
+ */
+public class AccuracyHarness {
+
+  static final int DEFAULT_N = 20000;
+
+  static final int DEFAULT_SAMPLES = 500;
+
+  static final double[] THETAS = {0.2, 0.3, 0.5, 0.7, 0.9, 1.2};
+
+  /**
+   * the tree settings that are compared. FLOAT is the single precision {@link
+   * com.tom.quadtree.FloatBarnesHutQuadTree}, for the quad tree only, next to the MONOPOLE rows of
+   * the double precision tree
+   */
+  enum Configuration {
+    MONOPOLE(1, false),
+    LEAF_CAPACITY_8(8, false),
+    QUADRUPOLE(1, true),
+    FLOAT(1, false);
+
+    final int leafCapacity;
+    final boolean quadrupole;
+
+    Configuration(int leafCapacity, boolean quadrupole) {
+      this.leafCapacity = leafCapacity;
+      this.quadrupole = quadrupole;
+    }
+  }
+
+  /** one pass of a tree: the forces on every body, the cost and the visit counts */
+  static class Pass {
+    double[][] forces;
+    long nanos;
+    double nodesVisited;
+    double approximations;
+    double leafInteractions;
+  }
+
+  /** the inverse distance repulsion, with the quadrupole term of an inner node's summary */
+  static class QuadVisitor extends com.tom.quadtree.ForceObject<Integer> {
+    double fx;
+    double fy;
+
+    QuadVisitor(Integer element, com.tom.quadtree.Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected <S> void addForceFrom(com.tom.quadtree.ForceObject<Integer> other) {
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double distanceSquared = dx * dx + dy * dy;
+      if (distanceSquared > 0) {
+        double scale = other.getMass() / distanceSquared;
+        fx += dx * scale;
+        fy += dy * scale;
+      }
+    }
+
+    @Override
+    protected void addForceFrom(
+        com.tom.quadtree.ForceObject<Integer> other, double qxx, double qxy, double qyy) {
+      addForceFrom(other);
+      // the conjugate of Q / d^3, with Q = (qxx - qyy) + 2i qxy and d = p - other.p
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double distanceSquared = dx * dx + dy * dy;
+      if (distanceSquared > 0) {
+        double cubeRe = dx * dx * dx - 3 * dx * dy * dy;
+        double cubeIm = 3 * dx * dx * dy - dy * dy * dy;
+        double scale = 1 / (distanceSquared * distanceSquared * distanceSquared);
+        double a = qxx - qyy;
+        double b = 2 * qxy;
+        fx += (a * cubeRe + b * cubeIm) * scale;
+        fy += (a * cubeIm - b * cubeRe) * scale;
+      }
+    }
+  }
+
+  /** the inverse distance repulsion in 3 dimensions, with the quadrupole term of a summary */
+  static class OctVisitor extends com.tom.octtree.ForceObject<Integer> {
+    double fx;
+    double fy;
+    double fz;
+
+    OctVisitor(Integer element, com.tom.octtree.Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected void addForceFrom(com.tom.octtree.ForceObject<Integer> other) {
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double dz = p.z - other.p.z;
+      double distanceSquared = dx * dx + dy * dy + dz * dz;
+      if (distanceSquared > 0) {
+        double scale = other.getMass() / distanceSquared;
+        fx += dx * scale;
+        fy += dy * scale;
+        fz += dz * scale;
+      }
+    }
+
+    @Override
+    protected void addForceFrom(
+        com.tom.octtree.ForceObject<Integer> other,
+        double qxx,
+        double qxy,
+        double qxz,
+        double qyy,
+        double qyz,
+        double qzz) {
+      addForceFrom(other);
+      // (4 (d . Q d) d / |d|^2 - 2 Q d - trace(Q) d) / |d|^4, for d = p - other.p
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double dz = p.z - other.p.z;
+      double distanceSquared = dx * dx + dy * dy + dz * dz;
+      if (distanceSquared > 0) {
+        double qdx = qxx * dx + qxy * dy + qxz * dz;
+        double qdy = qxy * dx + qyy * dy + qyz * dz;
+        double qdz = qxz * dx + qyz * dy + qzz * dz;
+        double radial = 4 * (dx * qdx + dy * qdy + dz * qdz) / distanceSquared - (qxx + qyy + qzz);
+        double scale = 1 / (distanceSquared * distanceSquared);
+        fx += (radial * dx - 2 * qdx) * scale;
+        fy += (radial * dy - 2 * qdy) * scale;
+        fz += (radial * dz - 2 * qdz) * scale;
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N;
+    int samples = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SAMPLES;
+    System.out.println(
+        String.format(
+            Locale.ROOT,
+            "%-5s %-12s %-16s %5s %12s %12s %10s %10s %10s %10s",
+            "tree",
+            "distribution",
+            "configuration",
+            "theta",
+            "rms error",
+            "max error",
+            "visited",
+            "summaries",
+            "leaf",
+            "pass ms"));
+    for (int dimensions = 2; dimensions <= 3; dimensions++) {
+      for (Distribution distribution : Distribution.values()) {
+        double[][] coordinates =
+            distribution.coordinates(n, dimensions, QuadTreeRebuildBenchmark.SIZE);
+        int[] sample = sample(n, samples);
+        double[][] exact = exact(coordinates, sample);
+        for (Configuration configuration : Configuration.values()) {
+          if (configuration == Configuration.FLOAT && dimensions != 2) {
+            continue;
+          }
+          for (double theta : THETAS) {
+            Pass pass =
+                configuration == Configuration.FLOAT
+                    ? floatPass(coordinates, theta)
+                    : dimensions == 2
+                        ? quadPass(coordinates, configuration, theta)
+                        : octPass(coordinates, configuration, theta);
+            report(dimensions, distribution, configuration, theta, pass, sample, exact);
+          }
+        }
+      }
+    }
+  }
+
+  /** @return up to {@code samples} body indices spread evenly over {@code n} */
+  static int[] sample(int n, int samples) {
+    int stride = Math.max(1, n / Math.max(1, samples));
+    return IntStream.range(0, n).filter(i -> i % stride == 0).limit(samples).toArray();
+  }
+
+  /** @return the exact force on each sampled body, summed over every other body in parallel */
+  static double[][] exact(double[][] coordinates, int[] sample) {
+    int dimensions = coordinates.length;
+    int n = coordinates[0].length;
+    double[][] exact = new double[dimensions][sample.length];
+    IntStream.range(0, sample.length)
+        .parallel()
+        .forEach(
+            s -> {
+              int i = sample[s];
+              double[] d = new double[dimensions];
+              for (int j = 0; j < n; j++) {
+                double distanceSquared = 0;
+                for (int a = 0; a < dimensions; a++) {
+                  d[a] = coordinates[a][i] - coordinates[a][j];
+                  distanceSquared += d[a] * d[a];
+                }
+                // bodies at the same location add no force, as in the visitors
+                if (distanceSquared > 0) {
+                  for (int a = 0; a < dimensions; a++) {
+                    exact[a][s] += d[a] / distanceSquared;
+                  }
+                }
+              }
+            });
+    return exact;
+  }
+
+  static Pass quadPass(double[][] coordinates, Configuration configuration, double theta) {
+    int n = coordinates[0].length;
+    List<Integer> elements = new ArrayList<>(n);
+    com.tom.quadtree.Point[] locations = new com.tom.quadtree.Point[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] = com.tom.quadtree.Point.of(coordinates[0][i], coordinates[1][i]);
+    }
+    com.tom.quadtree.BarnesHutQuadTree<Integer> tree =
+        com.tom.quadtree.BarnesHutQuadTree.<Integer>builder()
+            .bounds(QuadTreeRebuildBenchmark.SIZE, QuadTreeRebuildBenchmark.SIZE)
+            .theta(theta)
+            .leafCapacity(configuration.leafCapacity)
+            .quadrupole(configuration.quadrupole)
+            .stats(true)
+            .build();
+    tree.rebuild(elements, i -> locations[i]);
+    // one pass to warm up, and one to measure
+    tree.applyForcesToAll(elements, i -> locations[i], QuadVisitor::new);
+    com.tom.quadtree.TraversalStats stats = tree.getStats();
+    stats.reset();
+    long start = System.nanoTime();
+    List<QuadVisitor> visitors =
+        tree.applyForcesToAll(elements, i -> locations[i], QuadVisitor::new);
+    Pass pass = new Pass();
+    pass.nanos = System.nanoTime() - start;
+    pass.nodesVisited = stats.getAverageNodesVisited();
+    pass.approximations = (double) stats.getApproximations() / stats.getTraversals();
+    pass.leafInteractions = (double) stats.getLeafInteractions() / stats.getTraversals();
+    pass.forces = new double[2][n];
+    for (int i = 0; i < n; i++) {
+      pass.forces[0][i] = visitors.get(i).fx;
+      pass.forces[1][i] = visitors.get(i).fy;
+    }
+    return pass;
+  }
+
+  /**
+   * the force pass of the single precision tree, with the repulsion as a kernel. The tree keeps no
+   * statistics, so the visit counts are not reported
+   */
+  static Pass floatPass(double[][] coordinates, double theta) {
+    int n = coordinates[0].length;
+    double size = QuadTreeRebuildBenchmark.SIZE;
+    com.tom.quadtree.FloatBarnesHutQuadTree tree =
+        com.tom.quadtree.FloatBarnesHutQuadTree.builder().bounds(size, size).theta(theta).build();
+    tree.rebuild(coordinates[0], coordinates[1], n);
+    com.tom.quadtree.ForceKernel kernel = com.tom.quadtree.ForceKernel.repulsion(1);
+    Pass pass = new Pass();
+    pass.forces = new double[2][n];
+    tree.applyForces(kernel, pass.forces[0], pass.forces[1]);
+    long start = System.nanoTime();
+    tree.applyForces(kernel, pass.forces[0], pass.forces[1]);
+    pass.nanos = System.nanoTime() - start;
+    pass.nodesVisited = pass.approximations = pass.leafInteractions = Double.NaN;
+    return pass;
+  }
+
+  static Pass octPass(double[][] coordinates, Configuration configuration, double theta) {
+    int n = coordinates[0].length;
+    List<Integer> elements = new ArrayList<>(n);
+    com.tom.octtree.Point[] locations = new com.tom.octtree.Point[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] =
+          com.tom.octtree.Point.of(coordinates[0][i], coordinates[1][i], coordinates[2][i]);
+    }
+    double size = QuadTreeRebuildBenchmark.SIZE;
+    com.tom.octtree.BarnesHutOctTree<Integer> tree =
+        com.tom.octtree.BarnesHutOctTree.<Integer>builder()
+            .bounds(size, size, size)
+            .theta(theta)
+            .leafCapacity(configuration.leafCapacity)
+            .quadrupole(configuration.quadrupole)
+            .stats(true)
+            .build();
+    tree.rebuild(elements, i -> locations[i]);
+    tree.applyForcesToAll(elements, i -> locations[i], OctVisitor::new);
+    com.tom.octtree.TraversalStats stats = tree.getStats();
+    stats.reset();
+    long start = System.nanoTime();
+    List<OctVisitor> visitors = tree.applyForcesToAll(elements, i -> locations[i], OctVisitor::new);
+    Pass pass = new Pass();
+    pass.nanos = System.nanoTime() - start;
+    pass.nodesVisited = stats.getAverageNodesVisited();
+    pass.approximations = (double) stats.getApproximations() / stats.getTraversals();
+    pass.leafInteractions = (double) stats.getLeafInteractions() / stats.getTraversals();
+    pass.forces = new double[3][n];
+    for (int i = 0; i < n; i++) {
+      pass.forces[0][i] = visitors.get(i).fx;
+      pass.forces[1][i] = visitors.get(i).fy;
+      pass.forces[2][i] = visitors.get(i).fz;
+    }
+    return pass;
+  }
+
+  static void report(
+      int dimensions,
+      Distribution distribution,
+      Configuration configuration,
+      double theta,
+      Pass pass,
+      int[] sample,
+      double[][] exact) {
+    double sum = 0;
+    double max = 0;
+    int count = 0;
+    for (int s = 0; s < sample.length; s++) {
+      double error = 0;
+      double norm = 0;
+      for (int a = 0; a < dimensions; a++) {
+        double e = pass.forces[a][sample[s]] - exact[a][s];
+        error += e * e;
+        norm += exact[a][s] * exact[a][s];
+      }
+      if (norm > 0) {
+        double relative = Math.sqrt(error / norm);
+        sum += relative * relative;
+        max = Math.max(max, relative);
+        count++;
+      }
+    }
+    System.out.println(
+        String.format(
+            Locale.ROOT,
+            "%-5s %-12s %-16s %5.2f %12.3e %12.3e %10.1f %10.1f %10.1f %10.2f",
+            dimensions == 2 ? "quad" : "oct",
+            distribution,
+            configuration,
+            theta,
+            count > 0 ? Math.sqrt(sum / count) : 0,
+            max,
+            pass.nodesVisited,
+            pass.approximations,
+            pass.leafInteractions,
+            pass.nanos / 1e6));
+  }
+}
@@ -0,0 +1,77 @@
+package com.tom.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Spatial distributions of the bodies used by the benchmarks. Each one fills coordinate arrays in
+ * {@code [0, size)} from a fixed seed, so that runs are repeatable.
+ *
+ * @author Tom Nelson
+ */
+public enum Distribution {
+
+  /** bodies spread evenly over the whole space */
+  UNIFORM {
+    @Override
+    void fill(double[][] coordinates, double size, Random random) {
+      for (double[] axis : coordinates) {
+        for (int i = 0; i < axis.length; i++) {
+          axis[i] = random.nextDouble() * size;
+        }
+      }
+    }
+  },
+
+  /** bodies in a few dense gaussian clusters, like the communities of a graph */
+  CLUSTERED {
+    @Override
+    void fill(double[][] coordinates, double size, Random random) {
+      int clusters = 20;
+      double[][] centers = new double[coordinates.length][clusters];
+      for (double[] axis : centers) {
+        for (int c = 0; c < clusters; c++) {
+          axis[c] = size * (0.1 + 0.8 * random.nextDouble());
+        }
+      }
+      double spread = size * 0.02;
+      int n = coordinates[0].length;
+      for (int i = 0; i < n; i++) {
+        int c = random.nextInt(clusters);
+        for (int a = 0; a < coordinates.length; a++) {
+          double value = centers[a][c] + random.nextGaussian() * spread;
+          coordinates[a][i] = Math.min(Math.max(value, 0), Math.nextDown(size));
+        }
+      }
+    }
+  },
+
+  /** bodies stacked ten to a location, which the trees merge into one leaf */
+  COINCIDENT {
+    @Override
+    void fill(double[][] coordinates, double size, Random random) {
+      UNIFORM.fill(coordinates, size, random);
+      int n = coordinates[0].length;
+      for (double[] axis : coordinates) {
+        for (int i = 0; i < n; i++) {
+          axis[i] = axis[i - i % 10];
+        }
+      }
+    }
+  };
+
+  static final long SEED = 42;
+
+  abstract void fill(double[][] coordinates, double size, Random random);
+
+  /**
+   * @param n the number of bodies
+   * @param dimensions 2 for the quad tree, 3 for the oct tree
+   * @param size the extent of the space along each axis
+   * @return one array of coordinates per dimension
+   */
+  public double[][] coordinates(int n, int dimensions, double size) {
+    double[][] coordinates = new double[dimensions][n];
+    fill(coordinates, size, new Random(SEED));
+    return coordinates;
+  }
+}
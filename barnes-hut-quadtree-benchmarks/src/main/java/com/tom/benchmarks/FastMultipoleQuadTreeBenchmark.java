@@ -0,0 +1,72 @@
+package com.tom.benchmarks;
+
+import com.tom.quadtree.FastMultipoleQuadTree;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the rebuild and the force pass of {@link FastMultipoleQuadTree} with the same bodies as
+ * {@link FlatQuadTreeBenchmark}, so the multipole solver can be compared with Barnes-Hut.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FastMultipoleQuadTreeBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  @Param({"4", "8", "12"})
+  int order;
+
+  double[] xs;
+  double[] ys;
+  FastMultipoleQuadTree tree;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    double size = QuadTreeRebuildBenchmark.SIZE;
+    double[][] coordinates = distribution.coordinates(n, 2, size);
+    xs = coordinates[0];
+    ys = coordinates[1];
+    tree = FastMultipoleQuadTree.builder().bounds(size, size).order(order).build();
+    tree.rebuild(xs, ys, n);
+  }
+
+  /** the tree and the multipole expansions of its cells */
+  @Benchmark
+  public FastMultipoleQuadTree rebuild() {
+    tree.rebuild(xs, ys, n);
+    return tree;
+  }
+
+  /** the forces on every body */
+  @Benchmark
+  public void evaluate(Blackhole blackhole) {
+    tree.evaluate();
+    for (int i = 0; i < n; i++) {
+      blackhole.consume(tree.getForceX(i));
+      blackhole.consume(tree.getForceY(i));
+    }
+  }
+}
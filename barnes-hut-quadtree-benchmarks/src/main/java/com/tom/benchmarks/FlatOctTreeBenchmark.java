@@ -0,0 +1,171 @@
+package com.tom.benchmarks;
+
+import com.tom.octtree.BatchKernel;
+import com.tom.octtree.FlatBarnesHutOctTree;
+import com.tom.octtree.ForceKernel;
+import com.tom.octtree.OffHeapBarnesHutOctTree;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the rebuild and the force pass of {@link FlatBarnesHutOctTree} with the same bodies as
+ * {@link OctTreeRebuildBenchmark} and {@link OctTreeForceBenchmark}, so the two engines can be
+ * compared. The {@code OffHeap} methods measure {@link OffHeapBarnesHutOctTree}, which builds the
+ * same tree as the flat tree in direct buffers.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FlatOctTreeBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  @Param({"0.3", "0.5", "0.8"})
+  double theta;
+
+  double[] xs;
+  double[] ys;
+  double[] zs;
+  FlatBarnesHutOctTree tree;
+  OffHeapBarnesHutOctTree offHeapTree;
+  Visitor visitor = new Visitor();
+  ForceKernel kernel = ForceKernel.repulsion(1);
+  double[] fx;
+  double[] fy;
+  double[] fz;
+
+  /** accumulates a repulsive force that falls off with distance */
+  static class Visitor implements FlatBarnesHutOctTree.ForceVisitor {
+    double x;
+    double y;
+    double z;
+    double fx;
+    double fy;
+    double fz;
+
+    @Override
+    public void addForceFrom(double ox, double oy, double oz, double mass) {
+      double dx = x - ox;
+      double dy = y - oy;
+      double dz = z - oz;
+      double distanceSquared = dx * dx + dy * dy + dz * dz;
+      if (distanceSquared > 0) {
+        double scale = mass / distanceSquared;
+        fx += dx * scale;
+        fy += dy * scale;
+        fz += dz * scale;
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    double size = OctTreeRebuildBenchmark.SIZE;
+    double[][] coordinates = distribution.coordinates(n, 3, size);
+    xs = coordinates[0];
+    ys = coordinates[1];
+    zs = coordinates[2];
+    tree = FlatBarnesHutOctTree.builder().bounds(size, size, size).theta(theta).build();
+    tree.rebuild(xs, ys, zs, n);
+    offHeapTree = OffHeapBarnesHutOctTree.builder().bounds(size, size, size).theta(theta).build();
+    offHeapTree.rebuild(xs, ys, zs, n);
+    fx = new double[n];
+    fy = new double[n];
+    fz = new double[n];
+  }
+
+  @Benchmark
+  public FlatBarnesHutOctTree rebuild() {
+    tree.rebuild(xs, ys, zs, n);
+    return tree;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    offHeapTree.close();
+  }
+
+  @Benchmark
+  public OffHeapBarnesHutOctTree rebuildOffHeap() {
+    offHeapTree.rebuild(xs, ys, zs, n);
+    return offHeapTree;
+  }
+
+  @Benchmark
+  public void applyForcesToAll(Blackhole blackhole) {
+    for (int i = 0; i < n; i++) {
+      visitor.x = xs[i];
+      visitor.y = ys[i];
+      visitor.z = zs[i];
+      visitor.fx = 0;
+      visitor.fy = 0;
+      visitor.fz = 0;
+      tree.applyForcesTo(i, visitor);
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+      blackhole.consume(visitor.fz);
+    }
+  }
+
+  /** the same force pass with the repulsion of the visitor as a kernel fused into the traversal */
+  @Benchmark
+  public void applyForcesKernel(Blackhole blackhole) {
+    tree.applyForces(kernel, fx, fy, fz);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+    blackhole.consume(fz);
+  }
+
+  /** the fused kernel on the off-heap tree */
+  @Benchmark
+  public void applyForcesKernelOffHeap(Blackhole blackhole) {
+    offHeapTree.applyForces(kernel, fx, fy, fz);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+    blackhole.consume(fz);
+  }
+
+  /** the same kernel evaluated in a batch per body, in plain Java */
+  @Benchmark
+  public void applyForcesBatchScalar(Blackhole blackhole) {
+    tree.applyForces(kernel, BatchKernel.scalar(), fx, fy, fz);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+    blackhole.consume(fz);
+  }
+
+  /**
+   * the same kernel evaluated in a batch per body with the Vector API. Run with {@code
+   * -jvmArgsAppend --add-modules=jdk.incubator.vector} on Java 17 or later, otherwise this is the
+   * scalar batch
+   */
+  @Benchmark
+  public void applyForcesBatchPreferred(Blackhole blackhole) {
+    tree.applyForces(kernel, BatchKernel.preferred(), fx, fy, fz);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+    blackhole.consume(fz);
+  }
+}
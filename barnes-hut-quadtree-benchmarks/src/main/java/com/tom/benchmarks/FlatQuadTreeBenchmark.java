@@ -0,0 +1,176 @@
+package com.tom.benchmarks;
+
+import com.tom.quadtree.BatchKernel;
+import com.tom.quadtree.FlatBarnesHutQuadTree;
+import com.tom.quadtree.FloatBarnesHutQuadTree;
+import com.tom.quadtree.ForceKernel;
+import com.tom.quadtree.OffHeapBarnesHutQuadTree;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the rebuild and the force pass of {@link FlatBarnesHutQuadTree} with the same bodies as
+ * {@link QuadTreeRebuildBenchmark} and {@link QuadTreeForceBenchmark}, so the two engines can be
+ * compared. The {@code Float} methods measure the same work on {@link FloatBarnesHutQuadTree},
+ * whose storage is single precision; the difference grows with {@code n} as the double precision
+ * tree outgrows the caches. The {@code OffHeap} methods measure {@link OffHeapBarnesHutQuadTree},
+ * which builds the same tree as the flat tree in direct buffers.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FlatQuadTreeBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  @Param({"0.3", "0.5", "0.8"})
+  double theta;
+
+  double[] xs;
+  double[] ys;
+  FlatBarnesHutQuadTree tree;
+  FloatBarnesHutQuadTree floatTree;
+  OffHeapBarnesHutQuadTree offHeapTree;
+  Visitor visitor = new Visitor();
+  ForceKernel kernel = ForceKernel.repulsion(1);
+  double[] fx;
+  double[] fy;
+
+  /** accumulates a repulsive force that falls off with distance */
+  static class Visitor implements FlatBarnesHutQuadTree.ForceVisitor {
+    double x;
+    double y;
+    double fx;
+    double fy;
+
+    @Override
+    public void addForceFrom(double ox, double oy, double mass) {
+      double dx = x - ox;
+      double dy = y - oy;
+      double distanceSquared = dx * dx + dy * dy;
+      if (distanceSquared > 0) {
+        double scale = mass / distanceSquared;
+        fx += dx * scale;
+        fy += dy * scale;
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    double size = QuadTreeRebuildBenchmark.SIZE;
+    double[][] coordinates = distribution.coordinates(n, 2, size);
+    xs = coordinates[0];
+    ys = coordinates[1];
+    tree = FlatBarnesHutQuadTree.builder().bounds(size, size).theta(theta).build();
+    tree.rebuild(xs, ys, n);
+    floatTree = FloatBarnesHutQuadTree.builder().bounds(size, size).theta(theta).build();
+    floatTree.rebuild(xs, ys, n);
+    offHeapTree = OffHeapBarnesHutQuadTree.builder().bounds(size, size).theta(theta).build();
+    offHeapTree.rebuild(xs, ys, n);
+    fx = new double[n];
+    fy = new double[n];
+  }
+
+  @Benchmark
+  public FlatBarnesHutQuadTree rebuild() {
+    tree.rebuild(xs, ys, n);
+    return tree;
+  }
+
+  @Benchmark
+  public FloatBarnesHutQuadTree rebuildFloat() {
+    floatTree.rebuild(xs, ys, n);
+    return floatTree;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    offHeapTree.close();
+  }
+
+  @Benchmark
+  public OffHeapBarnesHutQuadTree rebuildOffHeap() {
+    offHeapTree.rebuild(xs, ys, n);
+    return offHeapTree;
+  }
+
+  @Benchmark
+  public void applyForcesToAll(Blackhole blackhole) {
+    for (int i = 0; i < n; i++) {
+      visitor.x = xs[i];
+      visitor.y = ys[i];
+      visitor.fx = 0;
+      visitor.fy = 0;
+      tree.applyForcesTo(i, visitor);
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+    }
+  }
+
+  /** the same force pass with the repulsion of the visitor as a kernel fused into the traversal */
+  @Benchmark
+  public void applyForcesKernel(Blackhole blackhole) {
+    tree.applyForces(kernel, fx, fy);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+  }
+
+  /** the fused kernel on the single precision tree */
+  @Benchmark
+  public void applyForcesKernelFloat(Blackhole blackhole) {
+    floatTree.applyForces(kernel, fx, fy);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+  }
+
+  /** the fused kernel on the off-heap tree */
+  @Benchmark
+  public void applyForcesKernelOffHeap(Blackhole blackhole) {
+    offHeapTree.applyForces(kernel, fx, fy);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+  }
+
+  /** the same kernel evaluated in a batch per body, in plain Java */
+  @Benchmark
+  public void applyForcesBatchScalar(Blackhole blackhole) {
+    tree.applyForces(kernel, BatchKernel.scalar(), fx, fy);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+  }
+
+  /**
+   * the same kernel evaluated in a batch per body with the Vector API. Run with {@code
+   * -jvmArgsAppend --add-modules=jdk.incubator.vector} on Java 17 or later, otherwise this is the
+   * scalar batch
+   */
+  @Benchmark
+  public void applyForcesBatchPreferred(Blackhole blackhole) {
+    tree.applyForces(kernel, BatchKernel.preferred(), fx, fy);
+    blackhole.consume(fx);
+    blackhole.consume(fy);
+  }
+}
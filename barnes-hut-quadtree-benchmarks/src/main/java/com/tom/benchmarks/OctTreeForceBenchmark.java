@@ -0,0 +1,146 @@
+package com.tom.benchmarks;
+
+import com.tom.octtree.BarnesHutOctTree;
+import com.tom.octtree.ForceObject;
+import com.tom.octtree.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures one force pass: {@link BarnesHutOctTree#applyForcesTo(ForceObject)} for every body of a
+ * tree built once in setup.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OctTreeForceBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  @Param({"0.3", "0.5", "0.8"})
+  double theta;
+
+  /** with TraversalStats, to measure what the counting costs */
+  @Param({"false", "true"})
+  boolean stats;
+
+  BarnesHutOctTree<Integer> tree;
+  Visitor[] visitors;
+  List<Visitor> visitorList;
+
+  /** accumulates a repulsive force that falls off with the square of the distance */
+  static class Visitor extends ForceObject<Integer> {
+    double fx;
+    double fy;
+    double fz;
+
+    Visitor(Integer element, Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected void addForceFrom(ForceObject<Integer> other) {
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double dz = p.z - other.p.z;
+      double distanceSquared = dx * dx + dy * dy + dz * dz;
+      if (distanceSquared > 0) {
+        double scale = other.getMass() / (distanceSquared * Math.sqrt(distanceSquared));
+        fx += dx * scale;
+        fy += dy * scale;
+        fz += dz * scale;
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    double size = OctTreeRebuildBenchmark.SIZE;
+    double[][] coordinates = distribution.coordinates(n, 3, size);
+    List<Integer> elements = new ArrayList<>(n);
+    Point[] locations = new Point[n];
+    visitors = new Visitor[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] = Point.of(coordinates[0][i], coordinates[1][i], coordinates[2][i]);
+      visitors[i] = new Visitor(i, locations[i]);
+    }
+    tree =
+        BarnesHutOctTree.<Integer>builder()
+            .bounds(size, size, size)
+            .theta(theta)
+            .stats(stats)
+            .build();
+    tree.rebuild(elements, i -> locations[i]);
+    visitorList = Arrays.asList(visitors);
+  }
+
+  @Benchmark
+  public void applyForcesToAll(Blackhole blackhole) {
+    for (Visitor visitor : visitors) {
+      visitor.fx = 0;
+      visitor.fy = 0;
+      visitor.fz = 0;
+      tree.applyForcesTo(visitor);
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+      blackhole.consume(visitor.fz);
+    }
+  }
+
+  /** the same force pass split across the common ForkJoinPool */
+  @Benchmark
+  public void applyForcesToAllParallel(Blackhole blackhole) {
+    for (Visitor visitor : visitors) {
+      visitor.fx = 0;
+      visitor.fy = 0;
+      visitor.fz = 0;
+    }
+    tree.applyForcesToAll(visitorList);
+    for (Visitor visitor : visitors) {
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+      blackhole.consume(visitor.fz);
+    }
+  }
+
+  /** the same force pass with one interaction list per group of nearby visitors */
+  @Benchmark
+  public void applyForcesToGroups(Blackhole blackhole) {
+    for (Visitor visitor : visitors) {
+      visitor.fx = 0;
+      visitor.fy = 0;
+      visitor.fz = 0;
+    }
+    tree.applyForcesToGroups(visitorList);
+    for (Visitor visitor : visitors) {
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+      blackhole.consume(visitor.fz);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.tom.benchmarks;
+
+import com.tom.octtree.BarnesHutOctTree;
+import com.tom.octtree.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures a rebuild and a force pass of {@link BarnesHutOctTree} across leaf capacities, to find
+ * the capacity that is fastest for a body count and distribution. {@code frame} is the sum that an
+ * animation pays per frame.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OctTreeLeafCapacityBenchmark {
+
+  static final double SIZE = OctTreeRebuildBenchmark.SIZE;
+
+  @Param({"10000", "100000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  @Param({"1", "2", "4", "8", "16", "32", "64"})
+  int leafCapacity;
+
+  List<Integer> elements;
+  Point[] locations;
+  OctTreeForceBenchmark.Visitor[] visitors;
+  BarnesHutOctTree<Integer> tree;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    double[][] coordinates = distribution.coordinates(n, 3, SIZE);
+    elements = new ArrayList<>(n);
+    locations = new Point[n];
+    visitors = new OctTreeForceBenchmark.Visitor[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] = Point.of(coordinates[0][i], coordinates[1][i], coordinates[2][i]);
+      visitors[i] = new OctTreeForceBenchmark.Visitor(i, locations[i]);
+    }
+    tree =
+        BarnesHutOctTree.<Integer>builder()
+            .bounds(SIZE, SIZE, SIZE)
+            .leafCapacity(leafCapacity)
+            .build();
+    tree.rebuild(elements, i -> locations[i]);
+  }
+
+  @Benchmark
+  public BarnesHutOctTree<Integer> rebuild() {
+    tree.rebuild(elements, i -> locations[i]);
+    return tree;
+  }
+
+  @Benchmark
+  public void applyForcesToAll(Blackhole blackhole) {
+    for (OctTreeForceBenchmark.Visitor visitor : visitors) {
+      visitor.fx = 0;
+      visitor.fy = 0;
+      visitor.fz = 0;
+      tree.applyForcesTo(visitor);
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+      blackhole.consume(visitor.fz);
+    }
+  }
+
+  @Benchmark
+  public void frame(Blackhole blackhole) {
+    rebuild();
+    applyForcesToAll(blackhole);
+  }
+}
@@ -0,0 +1,145 @@
+package com.tom.benchmarks;
+
+import com.tom.octtree.BarnesHutOctTree;
+import com.tom.octtree.NodeArena;
+import com.tom.octtree.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BarnesHutOctTree#rebuild(java.util.Collection, java.util.function.Function)},
+ * which runs once per animation frame.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OctTreeRebuildBenchmark {
+
+  static final double SIZE = 1000;
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  List<Integer> elements;
+  Point[] locations;
+  BarnesHutOctTree<Integer> tree;
+  BarnesHutOctTree<Integer> mortonTree;
+  BarnesHutOctTree<Integer> parallelMortonTree;
+  BarnesHutOctTree<Integer> deferredTree;
+  BarnesHutOctTree<Integer> arenaTree;
+  BarnesHutOctTree<Integer> editedTree;
+  BarnesHutOctTree<Integer> arrayTree;
+  double[][] coordinates;
+  int edits;
+
+  /** the number of elements that {@link #update()} moves */
+  static final int EDITS = 10;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    coordinates = distribution.coordinates(n, 3, SIZE);
+    elements = new ArrayList<>(n);
+    locations = new Point[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] = Point.of(coordinates[0][i], coordinates[1][i], coordinates[2][i]);
+    }
+    tree = BarnesHutOctTree.<Integer>builder().bounds(SIZE, SIZE, SIZE).build();
+    mortonTree =
+        BarnesHutOctTree.<Integer>builder().bounds(SIZE, SIZE, SIZE).mortonOrder(true).build();
+    parallelMortonTree =
+        BarnesHutOctTree.<Integer>builder()
+            .bounds(SIZE, SIZE, SIZE)
+            .mortonOrder(true)
+            .parallel(true)
+            .build();
+    deferredTree =
+        BarnesHutOctTree.<Integer>builder()
+            .bounds(SIZE, SIZE, SIZE)
+            .deferredAggregation(true)
+            .build();
+    arenaTree =
+        BarnesHutOctTree.<Integer>builder()
+            .bounds(SIZE, SIZE, SIZE)
+            .deferredAggregation(true)
+            .arena(NodeArena.<Integer>builder().build())
+            .build();
+    editedTree = BarnesHutOctTree.<Integer>builder().bounds(SIZE, SIZE, SIZE).build();
+    editedTree.rebuild(elements, i -> locations[i]);
+    arrayTree = BarnesHutOctTree.<Integer>builder().bounds(SIZE, SIZE, SIZE).build();
+  }
+
+  @Benchmark
+  public BarnesHutOctTree<Integer> rebuild() {
+    tree.rebuild(elements, i -> locations[i]);
+    return tree;
+  }
+
+  @Benchmark
+  public BarnesHutOctTree<Integer> rebuildMortonOrder() {
+    mortonTree.rebuild(elements, i -> locations[i]);
+    return mortonTree;
+  }
+
+  @Benchmark
+  public BarnesHutOctTree<Integer> rebuildMortonOrderParallel() {
+    parallelMortonTree.rebuild(elements, i -> locations[i]);
+    return parallelMortonTree;
+  }
+
+  @Benchmark
+  public BarnesHutOctTree<Integer> rebuildDeferredAggregation() {
+    deferredTree.rebuild(elements, i -> locations[i]);
+    return deferredTree;
+  }
+
+  /** deferred aggregation with the nodes reused from the previous rebuild */
+  @Benchmark
+  public BarnesHutOctTree<Integer> rebuildArena() {
+    arenaTree.rebuild(elements, i -> locations[i]);
+    return arenaTree;
+  }
+
+  /** the bodies from primitive arrays, with no object per body */
+  @Benchmark
+  public BarnesHutOctTree<Integer> rebuildFromArrays() {
+    arrayTree.rebuild(coordinates[0], coordinates[1], coordinates[2], n);
+    return arrayTree;
+  }
+
+  /**
+   * moves {@link #EDITS} elements to their mirrored locations and back without a rebuild, as when a
+   * few nodes are dragged
+   */
+  @Benchmark
+  public BarnesHutOctTree<Integer> update() {
+    for (int i = 0; i < EDITS; i++, edits++) {
+      int element = edits % n;
+      Point p = locations[element];
+      editedTree.update(
+          element, (edits / n) % 2 == 0 ? Point.of(SIZE - p.x, SIZE - p.y, SIZE - p.z) : p);
+    }
+    return editedTree;
+  }
+}
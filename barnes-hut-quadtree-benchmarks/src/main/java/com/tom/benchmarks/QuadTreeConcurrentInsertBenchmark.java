@@ -0,0 +1,94 @@
+package com.tom.benchmarks;
+
+import com.tom.quadtree.BarnesHutQuadTree;
+import com.tom.quadtree.ConcurrentBarnesHutQuadTree;
+import com.tom.quadtree.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures inserting every element from several producer threads at once, into a {@link
+ * BarnesHutQuadTree} whose inserts share one lock and into a {@link ConcurrentBarnesHutQuadTree}
+ * whose inserts do not. The concurrent tree includes the pass that sums its summaries.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuadTreeConcurrentInsertBenchmark {
+
+  static final double SIZE = QuadTreeRebuildBenchmark.SIZE;
+
+  @Param({"10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  @Param({"1", "2", "4", "8"})
+  int threads;
+
+  List<Integer> elements;
+  Point[] locations;
+  ForkJoinPool pool;
+  BarnesHutQuadTree<Integer> lockedTree;
+  ConcurrentBarnesHutQuadTree<Integer> concurrentTree;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    double[][] coordinates = distribution.coordinates(n, 2, SIZE);
+    elements = new ArrayList<>(n);
+    locations = new Point[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] = Point.of(coordinates[0][i], coordinates[1][i]);
+    }
+    pool = new ForkJoinPool(threads);
+    lockedTree = BarnesHutQuadTree.<Integer>builder().bounds(SIZE, SIZE).build();
+    concurrentTree =
+        ConcurrentBarnesHutQuadTree.<Integer>builder().bounds(SIZE, SIZE).pool(pool).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public BarnesHutQuadTree<Integer> insertLocked() {
+    lockedTree.clear();
+    pool.submit(
+            () ->
+                IntStream.range(0, n)
+                    .parallel()
+                    .forEach(i -> lockedTree.insert(elements.get(i), locations[i])))
+        .join();
+    return lockedTree;
+  }
+
+  @Benchmark
+  public ConcurrentBarnesHutQuadTree<Integer> insertConcurrent() {
+    concurrentTree.rebuild(elements, i -> locations[i]);
+    return concurrentTree;
+  }
+}
@@ -0,0 +1,136 @@
+package com.tom.benchmarks;
+
+import com.tom.quadtree.BarnesHutQuadTree;
+import com.tom.quadtree.ForceObject;
+import com.tom.quadtree.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures one force pass: {@link BarnesHutQuadTree#applyForcesTo(ForceObject)} for every body of a
+ * tree built once in setup.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuadTreeForceBenchmark {
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  @Param({"0.3", "0.5", "0.8"})
+  double theta;
+
+  /** with TraversalStats, to measure what the counting costs */
+  @Param({"false", "true"})
+  boolean stats;
+
+  BarnesHutQuadTree<Integer> tree;
+  Visitor[] visitors;
+  List<Visitor> visitorList;
+
+  /** accumulates a repulsive force that falls off with distance */
+  static class Visitor extends ForceObject<Integer> {
+    double fx;
+    double fy;
+
+    Visitor(Integer element, Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected <S> void addForceFrom(ForceObject<Integer> other) {
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double distanceSquared = dx * dx + dy * dy;
+      if (distanceSquared > 0) {
+        double scale = other.getMass() / distanceSquared;
+        fx += dx * scale;
+        fy += dy * scale;
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    double[][] coordinates = distribution.coordinates(n, 2, QuadTreeRebuildBenchmark.SIZE);
+    List<Integer> elements = new ArrayList<>(n);
+    Point[] locations = new Point[n];
+    visitors = new Visitor[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] = Point.of(coordinates[0][i], coordinates[1][i]);
+      visitors[i] = new Visitor(i, locations[i]);
+    }
+    tree =
+        BarnesHutQuadTree.<Integer>builder()
+            .bounds(QuadTreeRebuildBenchmark.SIZE, QuadTreeRebuildBenchmark.SIZE)
+            .theta(theta)
+            .stats(stats)
+            .build();
+    tree.rebuild(elements, i -> locations[i]);
+    visitorList = Arrays.asList(visitors);
+  }
+
+  @Benchmark
+  public void applyForcesToAll(Blackhole blackhole) {
+    for (Visitor visitor : visitors) {
+      visitor.fx = 0;
+      visitor.fy = 0;
+      tree.applyForcesTo(visitor);
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+    }
+  }
+
+  /** the same force pass split across the common ForkJoinPool */
+  @Benchmark
+  public void applyForcesToAllParallel(Blackhole blackhole) {
+    for (Visitor visitor : visitors) {
+      visitor.fx = 0;
+      visitor.fy = 0;
+    }
+    tree.applyForcesToAll(visitorList);
+    for (Visitor visitor : visitors) {
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+    }
+  }
+
+  /** the same force pass with one interaction list per group of nearby visitors */
+  @Benchmark
+  public void applyForcesToGroups(Blackhole blackhole) {
+    for (Visitor visitor : visitors) {
+      visitor.fx = 0;
+      visitor.fy = 0;
+    }
+    tree.applyForcesToGroups(visitorList);
+    for (Visitor visitor : visitors) {
+      blackhole.consume(visitor.fx);
+      blackhole.consume(visitor.fy);
+    }
+  }
+}
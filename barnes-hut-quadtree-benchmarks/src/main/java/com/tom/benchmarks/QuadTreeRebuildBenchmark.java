@@ -0,0 +1,140 @@
+package com.tom.benchmarks;
+
+import com.tom.quadtree.BarnesHutQuadTree;
+import com.tom.quadtree.NodeArena;
+import com.tom.quadtree.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BarnesHutQuadTree#rebuild(java.util.Collection, java.util.function.Function)},
+ * which runs once per animation frame.
+ *
+ * @author Tom Nelson
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuadTreeRebuildBenchmark {
+
+  static final double SIZE = 1000;
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  int n;
+
+  @Param({"UNIFORM", "CLUSTERED", "COINCIDENT"})
+  Distribution distribution;
+
+  List<Integer> elements;
+  Point[] locations;
+  BarnesHutQuadTree<Integer> tree;
+  BarnesHutQuadTree<Integer> mortonTree;
+  BarnesHutQuadTree<Integer> parallelMortonTree;
+  BarnesHutQuadTree<Integer> deferredTree;
+  BarnesHutQuadTree<Integer> arenaTree;
+  BarnesHutQuadTree<Integer> editedTree;
+  BarnesHutQuadTree<Integer> arrayTree;
+  double[][] coordinates;
+  int edits;
+
+  /** the number of elements that {@link #update()} moves */
+  static final int EDITS = 10;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    coordinates = distribution.coordinates(n, 2, SIZE);
+    elements = new ArrayList<>(n);
+    locations = new Point[n];
+    for (int i = 0; i < n; i++) {
+      elements.add(i);
+      locations[i] = Point.of(coordinates[0][i], coordinates[1][i]);
+    }
+    tree = BarnesHutQuadTree.<Integer>builder().bounds(SIZE, SIZE).build();
+    mortonTree = BarnesHutQuadTree.<Integer>builder().bounds(SIZE, SIZE).mortonOrder(true).build();
+    parallelMortonTree =
+        BarnesHutQuadTree.<Integer>builder()
+            .bounds(SIZE, SIZE)
+            .mortonOrder(true)
+            .parallel(true)
+            .build();
+    deferredTree =
+        BarnesHutQuadTree.<Integer>builder().bounds(SIZE, SIZE).deferredAggregation(true).build();
+    arenaTree =
+        BarnesHutQuadTree.<Integer>builder()
+            .bounds(SIZE, SIZE)
+            .deferredAggregation(true)
+            .arena(NodeArena.<Integer>builder().build())
+            .build();
+    editedTree = BarnesHutQuadTree.<Integer>builder().bounds(SIZE, SIZE).build();
+    editedTree.rebuild(elements, i -> locations[i]);
+    arrayTree = BarnesHutQuadTree.<Integer>builder().bounds(SIZE, SIZE).build();
+  }
+
+  @Benchmark
+  public BarnesHutQuadTree<Integer> rebuild() {
+    tree.rebuild(elements, i -> locations[i]);
+    return tree;
+  }
+
+  @Benchmark
+  public BarnesHutQuadTree<Integer> rebuildMortonOrder() {
+    mortonTree.rebuild(elements, i -> locations[i]);
+    return mortonTree;
+  }
+
+  @Benchmark
+  public BarnesHutQuadTree<Integer> rebuildMortonOrderParallel() {
+    parallelMortonTree.rebuild(elements, i -> locations[i]);
+    return parallelMortonTree;
+  }
+
+  @Benchmark
+  public BarnesHutQuadTree<Integer> rebuildDeferredAggregation() {
+    deferredTree.rebuild(elements, i -> locations[i]);
+    return deferredTree;
+  }
+
+  /** deferred aggregation with the nodes reused from the previous rebuild */
+  @Benchmark
+  public BarnesHutQuadTree<Integer> rebuildArena() {
+    arenaTree.rebuild(elements, i -> locations[i]);
+    return arenaTree;
+  }
+
+  /** the bodies from primitive arrays, with no object per body */
+  @Benchmark
+  public BarnesHutQuadTree<Integer> rebuildFromArrays() {
+    arrayTree.rebuild(coordinates[0], coordinates[1], n);
+    return arrayTree;
+  }
+
+  /**
+   * moves {@link #EDITS} elements to their mirrored locations and back without a rebuild, as when a
+   * few nodes are dragged
+   */
+  @Benchmark
+  public BarnesHutQuadTree<Integer> update() {
+    for (int i = 0; i < EDITS; i++, edits++) {
+      int element = edits % n;
+      Point p = locations[element];
+      editedTree.update(element, (edits / n) % 2 == 0 ? Point.of(SIZE - p.x, SIZE - p.y) : p);
+    }
+    return editedTree;
+  }
+}
@@ -133,13 +133,16 @@ public class BarnesHutVisualizer extends JPanel {
   }
 
   private String getNodeAt(Point2D p) {
-    for (String node : elements.keySet()) {
-      Point loc = elements.get(node);
-      if (loc.distanceSquared(p.getX(), p.getY()) < 20) {
-        return node;
-      }
-    }
-    return null;
+    String[] found = new String[1];
+    tree.nearest(
+        Point.of(p.getX(), p.getY()),
+        1,
+        (node, loc) -> {
+          if (loc.distanceSquared(p.getX(), p.getY()) < 20) {
+            found[0] = node;
+          }
+        });
+    return found[0];
   }
 
   private void draw(Graphics2D g, Node node) {
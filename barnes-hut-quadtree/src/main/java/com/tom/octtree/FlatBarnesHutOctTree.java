@@ -0,0 +1,653 @@
+package com.tom.octtree;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Barnes-Hut OctTree that keeps its cells in parallel primitive arrays instead of one {@link
+ * Node} object per cell. Bodies are identified by their integer index into the coordinate arrays
+ * passed to {@link #rebuild(double[], double[], double[], double[], int)}, so there is no {@link
+ * ForceObject} or {@link Point} per body or per cell, and the arrays are reused by the next
+ * rebuild.
+ *
+ * <p>The tree has the same shape and the same force semantics as {@link BarnesHutOctTree}: a cell
+ * splits into 8 octants when a second distinct location lands in it, bodies at the same location
+ * are merged into one leaf, and an inner cell is used as a summary when {@code s / d < theta}.
+ * Unlike {@link BarnesHutOctTree}, the root grows to hold bodies outside of the bounds.
+ *
+ * <p>Once the storage has grown to hold the bodies and cells of a rebuild, later rebuilds with as
+ * many or fewer of them, {@link #applyForcesTo(int, ForceVisitor)} and the fused force kernels of
+ * {@link #applyForces(ForceKernel, double[], double[], double[])}, allocate nothing. {@link
+ * #applyForces(ForceKernel, BatchKernel, double[], double[], double[])} evaluates the same kernels
+ * in batches, with a {@link BatchKernel} that may use the Vector API. Use {@link
+ * #ensureCapacity(int, int)} to grow the storage before the first rebuild.
+ *
+ * @author Tom Nelson
+ */
+public class FlatBarnesHutOctTree {
+
+  private static final Logger log = LoggerFactory.getLogger(FlatBarnesHutOctTree.class);
+
+  /** value of {@code firstChild} for a leaf cell and of {@code body} for an empty cell */
+  static final int NONE = -1;
+
+  /** index of the root cell */
+  static final int ROOT = 0;
+
+  /**
+   * accepts the mass summaries (single bodies or cells) that a body visits in {@link
+   * #applyForcesTo(int, ForceVisitor)}
+   */
+  @FunctionalInterface
+  public interface ForceVisitor {
+
+    /**
+     * @param x x coordinate of the center of mass
+     * @param y y coordinate of the center of mass
+     * @param z z coordinate of the center of mass
+     * @param mass the mass
+     */
+    void addForceFrom(double x, double y, double z, double mass);
+  }
+
+  public static class Builder {
+    protected double theta = Node.DEFAULT_THETA;
+    protected Box bounds;
+
+    public FlatBarnesHutOctTree.Builder bounds(Box bounds) {
+      this.bounds = bounds;
+      return this;
+    }
+
+    public FlatBarnesHutOctTree.Builder bounds(
+        double x, double y, double z, double width, double height, double depth) {
+      bounds(new Box(x, y, z, width, height, depth));
+      return this;
+    }
+
+    public FlatBarnesHutOctTree.Builder bounds(double width, double height, double depth) {
+      bounds(new Box(0, 0, 0, width, height, depth));
+      return this;
+    }
+
+    public FlatBarnesHutOctTree.Builder theta(double theta) {
+      this.theta = theta;
+      return this;
+    }
+
+    public FlatBarnesHutOctTree build() {
+      return new FlatBarnesHutOctTree(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  protected double theta;
+
+  /** the bounds requested at build time. The root cell grows to hold bodies outside of it */
+  private final Box initialBounds;
+
+  // cell storage, indexed by cell. The 8 children of a cell are contiguous, in FNW, FNE, FSW, FSE,
+  // BNW, BNE, BSW, BSE order
+  double[] cellX = new double[0];
+  double[] cellY = new double[0];
+  double[] cellZ = new double[0];
+  double[] cellWidth = new double[0];
+  double[] cellHeight = new double[0];
+  double[] cellDepth = new double[0];
+  double[] centerX = new double[0];
+  double[] centerY = new double[0];
+  double[] centerZ = new double[0];
+  double[] mass = new double[0];
+  int[] firstChild = new int[0];
+  // the first body in a leaf cell. further bodies at the same location follow in nextBody
+  int[] body = new int[0];
+
+  int cellCount;
+
+  // body storage, indexed by body
+  double[] bodyX = new double[0];
+  double[] bodyY = new double[0];
+  double[] bodyZ = new double[0];
+  double[] bodyMass = new double[0];
+  int[] nextBody = new int[0];
+
+  int bodyCount;
+
+  // the mass summaries that one body interacts with, gathered for a BatchKernel
+  double[] sourceX = new double[0];
+  double[] sourceY = new double[0];
+  double[] sourceZ = new double[0];
+  double[] sourceMass = new double[0];
+  int sourceCount;
+  private final double[] force = new double[3];
+
+  private FlatBarnesHutOctTree(Builder builder) {
+    this.theta = builder.theta;
+    this.initialBounds = builder.bounds;
+  }
+
+  /** @return the bounds of the root cell */
+  public Box getBounds() {
+    if (cellCount == 0) {
+      return initialBounds;
+    }
+    return new Box(
+        cellX[ROOT], cellY[ROOT], cellZ[ROOT], cellWidth[ROOT], cellHeight[ROOT], cellDepth[ROOT]);
+  }
+
+  /** @return the number of cells, inner and leaf, in the tree */
+  public int getCellCount() {
+    return cellCount;
+  }
+
+  /** @return the number of bodies passed to the last rebuild */
+  public int getBodyCount() {
+    return bodyCount;
+  }
+
+  public double getTheta() {
+    return theta;
+  }
+
+  /**
+   * change the opening threshold, for example from a {@link ThetaController} between frames
+   *
+   * @param theta the new threshold
+   */
+  public void setTheta(double theta) {
+    this.theta = theta;
+  }
+
+  /** remove all cells and bodies. The storage is kept for the next rebuild */
+  public void clear() {
+    cellCount = 0;
+    bodyCount = 0;
+  }
+
+  /**
+   * grow the storage to hold at least this many bodies and cells, so that rebuilds that fit do not
+   * allocate
+   *
+   * @param bodies the number of bodies
+   * @param cells the number of cells
+   */
+  public void ensureCapacity(int bodies, int cells) {
+    ensureBodyCapacity(bodies);
+    ensureCellCapacity(cells);
+  }
+
+  /**
+   * rebuild the tree with bodies of unit mass
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param zs z coordinates of the bodies
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, double[] zs, int count) {
+    rebuild(xs, ys, zs, null, count);
+  }
+
+  /**
+   * rebuild the tree. Body {@code i} is at {@code (xs[i], ys[i], zs[i])} with mass {@code
+   * masses[i]}. The values are copied, so the arrays may be changed after this method returns.
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param zs z coordinates of the bodies
+   * @param masses masses of the bodies, or null for unit masses
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, double[] zs, double[] masses, int count) {
+    clear();
+    ensureBodyCapacity(count);
+    double minX = initialBounds.x;
+    double minY = initialBounds.y;
+    double minZ = initialBounds.z;
+    double maxX = initialBounds.maxX;
+    double maxY = initialBounds.maxY;
+    double maxZ = initialBounds.maxZ;
+    for (int i = 0; i < count; i++) {
+      double x = xs[i];
+      double y = ys[i];
+      double z = zs[i];
+      bodyX[i] = x;
+      bodyY[i] = y;
+      bodyZ[i] = z;
+      bodyMass[i] = masses != null ? masses[i] : 1;
+      nextBody[i] = NONE;
+      // grow the root to hold every body. Bodies with no location are not inserted, and would
+      // make the root bounds NaN
+      if (!Double.isNaN(x) && !Double.isNaN(y) && !Double.isNaN(z)) {
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+        minZ = Math.min(minZ, z);
+        maxZ = Math.max(maxZ, z);
+      }
+    }
+    bodyCount = count;
+    ensureCellCapacity(Math.max(16, 2 * count));
+    newCell(minX, minY, minZ, maxX - minX, maxY - minY, maxZ - minZ);
+    for (int i = 0; i < count; i++) {
+      if (Double.isNaN(bodyX[i]) || Double.isNaN(bodyY[i]) || Double.isNaN(bodyZ[i])) {
+        if (log.isTraceEnabled()) {
+          log.trace("body {} has no location", i);
+        }
+        continue;
+      }
+      insert(i);
+    }
+  }
+
+  /**
+   * visit the cells of the tree and pass the mass summaries that act on body {@code index} to the
+   * visitor
+   *
+   * @param index the body to gather forces for
+   * @param visitor receives each accepted mass summary
+   */
+  public void applyForcesTo(int index, ForceVisitor visitor) {
+    if (cellCount > 0) {
+      applyForcesTo(ROOT, index, bodyX[index], bodyY[index], bodyZ[index], visitor);
+    }
+  }
+
+  private void applyForcesTo(
+      int cell, int index, double x, double y, double z, ForceVisitor visitor) {
+    int resident = body[cell];
+    int child = firstChild[cell];
+    if (child == NONE) {
+      // a leaf. bodies at the same location are visited as one aggregate, as in Node
+      if (resident == NONE || (resident == index && nextBody[resident] == NONE)) {
+        return;
+      }
+      visitor.addForceFrom(centerX[cell], centerY[cell], centerZ[cell], mass[cell]);
+      return;
+    }
+    double dx = centerX[cell] - x;
+    double dy = centerY[cell] - y;
+    double dz = centerZ[cell] - z;
+    double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+    if (cellWidth[cell] / d < theta) {
+      // this cell is sufficiently far away, just use its summary
+      visitor.addForceFrom(centerX[cell], centerY[cell], centerZ[cell], mass[cell]);
+    } else {
+      for (int i = 0; i < 8; i++) {
+        applyForcesTo(child + i, index, x, y, z, visitor);
+      }
+    }
+  }
+
+  /**
+   * set {@code fx[i]}, {@code fy[i]} and {@code fz[i]} to the force of the kernel on every body
+   * {@code i} of the last rebuild
+   *
+   * @param kernel the force law
+   * @param fx receives the x components of the forces, at least {@link #getBodyCount()} long
+   * @param fy receives the y components of the forces
+   * @param fz receives the z components of the forces
+   */
+  public void applyForces(ForceKernel kernel, double[] fx, double[] fy, double[] fz) {
+    for (int i = 0; i < bodyCount; i++) {
+      applyForcesTo(i, kernel, fx, fy, fz);
+    }
+  }
+
+  /**
+   * set {@code fx[index]}, {@code fy[index]} and {@code fz[index]} to the force of the kernel on
+   * body {@code index}. The kernel is evaluated for each accepted mass summary inside the
+   * traversal.
+   *
+   * @param index the body to compute the force on
+   * @param kernel the force law
+   * @param fx receives the x component of the force
+   * @param fy receives the y component of the force
+   * @param fz receives the z component of the force
+   */
+  public void applyForcesTo(int index, ForceKernel kernel, double[] fx, double[] fy, double[] fz) {
+    fx[index] = 0;
+    fy[index] = 0;
+    fz[index] = 0;
+    double x = bodyX[index];
+    double y = bodyY[index];
+    double z = bodyZ[index];
+    if (cellCount > 0 && !Double.isNaN(x) && !Double.isNaN(y) && !Double.isNaN(z)) {
+      applyForcesTo(ROOT, index, x, y, z, kernel, fx, fy, fz);
+    }
+  }
+
+  private void applyForcesTo(
+      int cell,
+      int index,
+      double x,
+      double y,
+      double z,
+      ForceKernel kernel,
+      double[] fx,
+      double[] fy,
+      double[] fz) {
+    int child = firstChild[cell];
+    if (child == NONE && body[cell] == NONE) {
+      return;
+    }
+    double dx = x - centerX[cell];
+    double dy = y - centerY[cell];
+    double dz = z - centerZ[cell];
+    double distanceSquared = dx * dx + dy * dy + dz * dz;
+    // a leaf, which adds nothing when it is at the body's location, or a cell that is sufficiently
+    // far away to use its summary
+    if (child == NONE || cellWidth[cell] / Math.sqrt(distanceSquared) < theta) {
+      double scale = kernel.scale(distanceSquared, mass[cell]);
+      fx[index] += dx * scale;
+      fy[index] += dy * scale;
+      fz[index] += dz * scale;
+    } else {
+      for (int i = 0; i < 8; i++) {
+        applyForcesTo(child + i, index, x, y, z, kernel, fx, fy, fz);
+      }
+    }
+  }
+
+  /**
+   * set {@code fx[i]}, {@code fy[i]} and {@code fz[i]} to the force of the kernel on every body
+   * {@code i} of the last rebuild. The mass summaries that each body interacts with are gathered
+   * first, and then evaluated in one batch.
+   *
+   * @param kernel the force law
+   * @param batch evaluates the kernel for each batch, such as {@link BatchKernel#preferred()}
+   * @param fx receives the x components of the forces, at least {@link #getBodyCount()} long
+   * @param fy receives the y components of the forces
+   * @param fz receives the z components of the forces
+   */
+  public void applyForces(
+      ForceKernel kernel, BatchKernel batch, double[] fx, double[] fy, double[] fz) {
+    for (int i = 0; i < bodyCount; i++) {
+      applyForcesTo(i, kernel, batch, fx, fy, fz);
+    }
+  }
+
+  /**
+   * set {@code fx[index]}, {@code fy[index]} and {@code fz[index]} to the force of the kernel on
+   * body {@code index}, evaluated in one batch over the mass summaries that the body interacts with
+   *
+   * @param index the body to compute the force on
+   * @param kernel the force law
+   * @param batch evaluates the kernel for the batch
+   * @param fx receives the x component of the force
+   * @param fy receives the y component of the force
+   * @param fz receives the z component of the force
+   */
+  public void applyForcesTo(
+      int index, ForceKernel kernel, BatchKernel batch, double[] fx, double[] fy, double[] fz) {
+    fx[index] = 0;
+    fy[index] = 0;
+    fz[index] = 0;
+    double x = bodyX[index];
+    double y = bodyY[index];
+    double z = bodyZ[index];
+    if (cellCount == 0 || Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z)) {
+      return;
+    }
+    accumulate(x, y, z, kernel, batch);
+    fx[index] = force[0];
+    fy[index] = force[1];
+    fz[index] = force[2];
+  }
+
+  /** set {@code force} to the force of the kernel on a body at {@code (x, y, z)}, in one batch */
+  private void accumulate(double x, double y, double z, ForceKernel kernel, BatchKernel batch) {
+    if (sourceMass.length < cellCount) {
+      // no body interacts with more summaries than there are cells
+      sourceX = new double[cellCount];
+      sourceY = new double[cellCount];
+      sourceZ = new double[cellCount];
+      sourceMass = new double[cellCount];
+    }
+    sourceCount = 0;
+    gather(ROOT, x, y, z);
+    force[0] = 0;
+    force[1] = 0;
+    force[2] = 0;
+    batch.accumulate(kernel, x, y, z, sourceX, sourceY, sourceZ, sourceMass, sourceCount, force);
+  }
+
+  /**
+   * estimate the error of the forces of the kernel for the current theta, for an error bound of a
+   * {@link ThetaController}. The forces on up to {@code samples} bodies, spread evenly over the
+   * bodies of the last rebuild, are compared with the direct sum over every body, at a cost of
+   * {@code samples} times the number of bodies.
+   *
+   * @param kernel the force law
+   * @param samples the number of bodies to sample
+   * @return the root mean square of the relative errors of the sampled forces
+   */
+  public double sampleError(ForceKernel kernel, int samples) {
+    int stride = Math.max(1, bodyCount / Math.max(1, samples));
+    double sum = 0;
+    int count = 0;
+    for (int i = 0; i < bodyCount; i += stride) {
+      double x = bodyX[i];
+      double y = bodyY[i];
+      double z = bodyZ[i];
+      if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z)) {
+        continue;
+      }
+      accumulate(x, y, z, kernel, BatchKernel.scalar());
+      double exactX = 0;
+      double exactY = 0;
+      double exactZ = 0;
+      for (int j = 0; j < bodyCount; j++) {
+        double dx = x - bodyX[j];
+        double dy = y - bodyY[j];
+        double dz = z - bodyZ[j];
+        // bodies without a location have NaN distances, and add nothing
+        double distanceSquared = dx * dx + dy * dy + dz * dz;
+        if (distanceSquared >= 0) {
+          double scale = kernel.scale(distanceSquared, bodyMass[j]);
+          exactX += dx * scale;
+          exactY += dy * scale;
+          exactZ += dz * scale;
+        }
+      }
+      double norm = exactX * exactX + exactY * exactY + exactZ * exactZ;
+      if (norm > 0) {
+        double ex = force[0] - exactX;
+        double ey = force[1] - exactY;
+        double ez = force[2] - exactZ;
+        sum += (ex * ex + ey * ey + ez * ez) / norm;
+        count++;
+      }
+    }
+    return count > 0 ? Math.sqrt(sum / count) : 0;
+  }
+
+  /** add the mass summaries that act on a body at {@code (x, y, z)} to the sources */
+  private void gather(int cell, double x, double y, double z) {
+    int child = firstChild[cell];
+    if (child == NONE && body[cell] == NONE) {
+      return;
+    }
+    double dx = x - centerX[cell];
+    double dy = y - centerY[cell];
+    double dz = z - centerZ[cell];
+    if (child == NONE || cellWidth[cell] / Math.sqrt(dx * dx + dy * dy + dz * dz) < theta) {
+      sourceX[sourceCount] = centerX[cell];
+      sourceY[sourceCount] = centerY[cell];
+      sourceZ[sourceCount] = centerZ[cell];
+      sourceMass[sourceCount] = mass[cell];
+      sourceCount++;
+    } else {
+      for (int i = 0; i < 8; i++) {
+        gather(child + i, x, y, z);
+      }
+    }
+  }
+
+  /**
+   * insert body {@code b}, descending from the root and splitting occupied leaves as needed
+   *
+   * @param b the index of the body
+   */
+  private void insert(int b) {
+    double x = bodyX[b];
+    double y = bodyY[b];
+    double z = bodyZ[b];
+    double m = bodyMass[b];
+    int cell = ROOT;
+    while (true) {
+      int child = firstChild[cell];
+      if (child == NONE) {
+        int resident = body[cell];
+        if (resident == NONE) {
+          // an empty leaf
+          body[cell] = b;
+          centerX[cell] = x;
+          centerY[cell] = y;
+          centerZ[cell] = z;
+          mass[cell] = m;
+          return;
+        }
+        if (Double.compare(bodyX[resident], x) == 0
+            && Double.compare(bodyY[resident], y) == 0
+            && Double.compare(bodyZ[resident], z) == 0) {
+          // same location. just add the new mass to the leaf
+          nextBody[b] = nextBody[resident];
+          nextBody[resident] = b;
+          addMass(cell, x, y, z, m);
+          return;
+        }
+        // there already is a body at a different location, so split and move the resident down
+        child = split(cell);
+        int target = child + octant(cell, bodyX[resident], bodyY[resident], bodyZ[resident]);
+        body[target] = resident;
+        centerX[target] = centerX[cell];
+        centerY[target] = centerY[cell];
+        centerZ[target] = centerZ[cell];
+        mass[target] = mass[cell];
+        body[cell] = NONE;
+      }
+      // update the center of mass of this inner cell and follow down the tree
+      addMass(cell, x, y, z, m);
+      cell = child + octant(cell, x, y, z);
+    }
+  }
+
+  /** combine a mass into the summary of a cell, with the same arithmetic as ForceObject.add */
+  private void addMass(int cell, double x, double y, double z, double m) {
+    double cellMass = mass[cell];
+    double totalMass = cellMass + m;
+    if (Double.compare(centerX[cell], x) == 0
+        && Double.compare(centerY[cell], y) == 0
+        && Double.compare(centerZ[cell], z) == 0) {
+      mass[cell] = totalMass;
+      return;
+    }
+    centerX[cell] = (centerX[cell] * cellMass + x * m) / totalMass;
+    centerY[cell] = (centerY[cell] * cellMass + y * m) / totalMass;
+    centerZ[cell] = (centerZ[cell] * cellMass + z * m) / totalMass;
+    mass[cell] = totalMass;
+  }
+
+  /**
+   * the octant of {@code cell} that holds a location. Locations on a dividing plane go to the west,
+   * north and front octants, as with the closed {@link Box#contains(double, double, double)} tests
+   * in Node
+   *
+   * @return 0 for FNW, 1 for FNE, 2 for FSW, 3 for FSE, 4 for BNW, 5 for BNE, 6 for BSW, 7 for BSE
+   */
+  int octant(int cell, double x, double y, double z) {
+    boolean west = x <= cellX[cell] + cellWidth[cell] / 2;
+    boolean north = y <= cellY[cell] + cellHeight[cell] / 2;
+    boolean front = z >= cellZ[cell] + cellDepth[cell] / 2;
+    return (front ? 0 : 4) + (north ? 0 : 2) + (west ? 0 : 1);
+  }
+
+  /**
+   * add 8 child cells to {@code cell}
+   *
+   * @return the index of the first (FNW) child
+   */
+  private int split(int cell) {
+    double width = cellWidth[cell] / 2;
+    double height = cellHeight[cell] / 2;
+    double depth = cellDepth[cell] / 2;
+    double x = cellX[cell];
+    double y = cellY[cell];
+    double z = cellZ[cell];
+    ensureCellCapacity(cellCount + 8);
+    int child = newCell(x, y, z + depth, width, height, depth);
+    newCell(x + width, y, z + depth, width, height, depth);
+    newCell(x, y + height, z + depth, width, height, depth);
+    newCell(x + width, y + height, z + depth, width, height, depth);
+    newCell(x, y, z, width, height, depth);
+    newCell(x + width, y, z, width, height, depth);
+    newCell(x, y + height, z, width, height, depth);
+    newCell(x + width, y + height, z, width, height, depth);
+    firstChild[cell] = child;
+    return child;
+  }
+
+  private int newCell(double x, double y, double z, double width, double height, double depth) {
+    int cell = cellCount++;
+    cellX[cell] = x;
+    cellY[cell] = y;
+    cellZ[cell] = z;
+    cellWidth[cell] = width;
+    cellHeight[cell] = height;
+    cellDepth[cell] = depth;
+    centerX[cell] = 0;
+    centerY[cell] = 0;
+    centerZ[cell] = 0;
+    mass[cell] = 0;
+    firstChild[cell] = NONE;
+    body[cell] = NONE;
+    return cell;
+  }
+
+  private void ensureCellCapacity(int capacity) {
+    if (capacity <= firstChild.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, firstChild.length + (firstChild.length >> 1));
+    cellX = Arrays.copyOf(cellX, newCapacity);
+    cellY = Arrays.copyOf(cellY, newCapacity);
+    cellZ = Arrays.copyOf(cellZ, newCapacity);
+    cellWidth = Arrays.copyOf(cellWidth, newCapacity);
+    cellHeight = Arrays.copyOf(cellHeight, newCapacity);
+    cellDepth = Arrays.copyOf(cellDepth, newCapacity);
+    centerX = Arrays.copyOf(centerX, newCapacity);
+    centerY = Arrays.copyOf(centerY, newCapacity);
+    centerZ = Arrays.copyOf(centerZ, newCapacity);
+    mass = Arrays.copyOf(mass, newCapacity);
+    firstChild = Arrays.copyOf(firstChild, newCapacity);
+    body = Arrays.copyOf(body, newCapacity);
+  }
+
+  private void ensureBodyCapacity(int capacity) {
+    if (capacity <= nextBody.length) {
+      return;
+    }
+    bodyX = new double[capacity];
+    bodyY = new double[capacity];
+    bodyZ = new double[capacity];
+    bodyMass = new double[capacity];
+    nextBody = new int[capacity];
+  }
+
+  @Override
+  public String toString() {
+    return "FlatTree:{cells="
+        + cellCount
+        + ", bodies="
+        + bodyCount
+        + ", bounds="
+        + getBounds()
+        + "}";
+  }
+}
@@ -58,8 +58,33 @@ public class ForceObject<T> {
     // no op
   }
 
+  /**
+   * override to use the second moments of an inner node of the tree, when the tree keeps them. They
+   * are the sums of {@code mass * da * db} over the elements under the node, for the components da
+   * and db of their distance from its center of mass {@code other.p}. For the inverse distance
+   * force {@code mass * d / |d|^2}, the correction to the force of {@code other} at {@code d = p -
+   * other.p} is {@code (4 (d . Q d) d / |d|^2 - 2 Q d - trace(Q) d) / |d|^4}, for the matrix {@code
+   * Q} of the moments. The default ignores the moments.
+   *
+   * @param other the summary of an inner node
+   */
+  protected void addForceFrom(
+      ForceObject<T> other,
+      double qxx,
+      double qxy,
+      double qxz,
+      double qyy,
+      double qyz,
+      double qzz) {
+    addForceFrom(other);
+  }
+
   public ForceObject add(ForceObject<T> other) {
     double totalMass = this.mass + other.mass;
+    if (this.p.equals(other.p)) {
+      // keep the exact location, so that later elements at this location still match it
+      return new ForceObject<>("force", this.p, totalMass);
+    }
     Point p =
         Point.of(
             (this.p.x * this.mass + other.p.x * other.mass) / totalMass,
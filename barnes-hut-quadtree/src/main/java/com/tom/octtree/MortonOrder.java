@@ -0,0 +1,138 @@
+package com.tom.octtree;
+
+import java.util.Arrays;
+
+/**
+ * Morton (Z-order) keys for locations in a {@link Box}, and a radix sort of the keys. The key of a
+ * location is the path of octants that {@link Node#childFor(Point)} would follow to it, one 3 bit
+ * digit per level, so the locations in any octant of the tree are contiguous when sorted by key,
+ * and the octant of a location at each level of the tree is one digit of its key.
+ *
+ * @author Tom Nelson
+ */
+final class MortonOrder {
+
+  /** the number of levels (bits per coordinate) in a key */
+  static final int LEVELS = 21;
+
+  private static final int RADIX_BITS = 8;
+  private static final int RADIX = 1 << RADIX_BITS;
+
+  private MortonOrder() {}
+
+  /**
+   * @param p the location
+   * @param bounds the volume of the root of the tree
+   * @return the Morton key of the location
+   */
+  static long key(Point p, Box bounds) {
+    // halve the volume as Node.split does, so a location on a dividing plane takes the same side
+    // as in Node.childFor: the front side, the north side, and the west side unless it is in the
+    // south half
+    double left = bounds.x;
+    double top = bounds.y;
+    double back = bounds.z;
+    double width = bounds.width;
+    double height = bounds.height;
+    double depth = bounds.depth;
+    long key = 0;
+    for (int level = 0; level < LEVELS; level++) {
+      width = width / 2;
+      height = height / 2;
+      depth = depth / 2;
+      double midX = left + width;
+      double midY = top + height;
+      double midZ = back + depth;
+      boolean front = p.z >= midZ;
+      boolean south = p.y > midY;
+      boolean east = south ? p.x >= midX : p.x > midX;
+      if (east) {
+        left = midX;
+      }
+      if (south) {
+        top = midY;
+      }
+      if (front) {
+        back = midZ;
+      }
+      key = key << 3 | (front ? 4 : 0) | (south ? 2 : 0) | (east ? 1 : 0);
+    }
+    return key;
+  }
+
+  /**
+   * the octant that holds a key at a level of the tree, where level 0 is the root
+   *
+   * @return 0 for BNW, 1 for BNE, 2 for BSW, 3 for BSE, 4 for FNW, 5 for FNE, 6 for FSW, 7 for FSE
+   */
+  static int octant(long key, int level) {
+    return (int) (key >>> (3 * (LEVELS - 1 - level))) & 7;
+  }
+
+  /**
+   * sort the keys in place, applying the same permutation to {@code order}
+   *
+   * @param keys the keys to sort
+   * @param order values that move with the keys
+   * @param count the number of keys to sort
+   */
+  static void sort(long[] keys, int[] order, int count) {
+    long[] keyBuffer = new long[count];
+    int[] orderBuffer = new int[count];
+    long[] fromKeys = keys;
+    int[] fromOrder = order;
+    int[] offsets = new int[RADIX];
+    for (int shift = 0; shift < 3 * LEVELS; shift += RADIX_BITS) {
+      Arrays.fill(offsets, 0);
+      for (int i = 0; i < count; i++) {
+        offsets[(int) (fromKeys[i] >>> shift) & (RADIX - 1)]++;
+      }
+      if (count == 0 || offsets[(int) (fromKeys[0] >>> shift) & (RADIX - 1)] == count) {
+        // every key has the same digit, so this pass would not move anything
+        continue;
+      }
+      int offset = 0;
+      for (int digit = 0; digit < RADIX; digit++) {
+        int digitCount = offsets[digit];
+        offsets[digit] = offset;
+        offset += digitCount;
+      }
+      for (int i = 0; i < count; i++) {
+        int target = offsets[(int) (fromKeys[i] >>> shift) & (RADIX - 1)]++;
+        keyBuffer[target] = fromKeys[i];
+        orderBuffer[target] = fromOrder[i];
+      }
+      long[] sortedKeys = keyBuffer;
+      keyBuffer = fromKeys;
+      fromKeys = sortedKeys;
+      int[] sortedOrder = orderBuffer;
+      orderBuffer = fromOrder;
+      fromOrder = sortedOrder;
+    }
+    if (fromKeys != keys) {
+      System.arraycopy(fromKeys, 0, keys, 0, count);
+      System.arraycopy(fromOrder, 0, order, 0, count);
+    }
+  }
+
+  /**
+   * find the end of the run of keys, starting at {@code from}, that are in the octant at a level or
+   * an earlier one. The keys in the range must be sorted and share the digits above the level.
+   *
+   * @return the first index in {@code [from, to)} whose octant is after {@code octant}, or {@code
+   *     to}
+   */
+  static int end(long[] keys, int from, int to, int level, int octant) {
+    int lo = from;
+    int hi = to;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (octant(keys[mid], level) <= octant) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
@@ -1,5 +1,13 @@
 package com.tom.octtree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,11 +43,73 @@ public class Node<T> {
 
   protected double theta = DEFAULT_THETA;
 
+  // the bounds of this node. the Box is only created when it is asked for, so that nodes reused
+  // from a NodeArena do not allocate
+  double volumeX;
+  double volumeY;
+  double volumeZ;
+  double volumeWidth;
+  double volumeHeight;
+  double volumeDepth;
   private Box volume;
 
+  /** the arena that child nodes come from, or null to create new ones */
+  NodeArena<T> arena;
+
+  /** the node that this node is an octant of, or null for the root */
+  Node<T> parent;
+
+  /**
+   * the number of elements that a leaf holds before it splits. With 1, elements at the same
+   * location are merged into one summary. With more, a leaf keeps its elements in {@code bodies}
+   * and visitors sum their forces directly.
+   */
+  int leafCapacity = 1;
+
+  // the elements of a leaf when leafCapacity is more than 1. With a leafCapacity of 1, the elements
+  // that are merged at one location, so that they can be indexed and removed one by one
+  ForceObject<T>[] bodies;
+  int bodyCount;
+
+  /**
+   * when true, insert does not combine a new ForceObject into every inner node that it passes.
+   * Instead each leaf accumulates the mass and mass weighted location of its elements in primitive
+   * fields, and {@link #aggregate()} sums them into the inner nodes in one pass from the leaves up.
+   */
+  protected boolean deferred;
+
+  // accumulators for deferred aggregation. the element count, total mass and mass weighted location.
+  // the count of a leaf is kept without deferred aggregation too, so that removal knows when the
+  // last of several merged elements is left
+  int count;
+  double totalMass;
+  double weightedX;
+  double weightedY;
+  double weightedZ;
+
+  /**
+   * when true, inner nodes keep the second moments of their mass about their center of mass, and
+   * visitors get them with the summary of a node in {@link ForceObject#addForceFrom(ForceObject,
+   * double, double, double, double, double, double)}
+   */
+  protected boolean quadrupole;
+
+  // the second moments, the sums of mass * da * db over the elements under this node, for the
+  // components da and db of their distance from the center of mass
+  double qxx;
+  double qxy;
+  double qxz;
+  double qyy;
+  double qyz;
+  double qzz;
+
   public static class Builder<T> {
     protected double theta = DEFAULT_THETA;
     protected Box volume;
+    protected boolean deferred;
+    protected NodeArena<T> arena;
+    protected int leafCapacity = 1;
+    protected boolean quadrupole;
 
     public Node.Builder<T> withVolume(
         double x, double y, double z, double width, double height, double depth) {
@@ -56,6 +126,33 @@ public class Node<T> {
       return this;
     }
 
+    /**
+     * @param deferred true to sum the masses of inner nodes in {@link Node#aggregate()} instead of
+     *     during insert
+     */
+    public Node.Builder<T> withDeferredAggregation(boolean deferred) {
+      this.deferred = deferred;
+      return this;
+    }
+
+    /** @param arena the arena to take child nodes from */
+    public Node.Builder<T> withArena(NodeArena<T> arena) {
+      this.arena = arena;
+      return this;
+    }
+
+    /** @param leafCapacity the number of elements that a leaf holds before it splits */
+    public Node.Builder<T> withLeafCapacity(int leafCapacity) {
+      this.leafCapacity = leafCapacity;
+      return this;
+    }
+
+    /** @param quadrupole true to keep the second moments of the inner nodes */
+    public Node.Builder<T> withQuadrupole(boolean quadrupole) {
+      this.quadrupole = quadrupole;
+      return this;
+    }
+
     public Node<T> build() {
       return new Node(this);
     }
@@ -66,20 +163,64 @@ public class Node<T> {
   }
 
   private Node(Node.Builder<T> builder) {
-    this(builder.volume, builder.theta);
+    setVolume(builder.volume);
+    this.theta = builder.theta;
+    this.deferred = builder.deferred;
+    this.arena = builder.arena;
+    this.leafCapacity = builder.leafCapacity;
+    this.quadrupole = builder.quadrupole;
   }
 
-  private Node(double x, double y, double z, double width, double height, double depth) {
-    this(new Box(x, y, z, width, height, depth));
+  /** an empty node for a {@link NodeArena}. {@link #reset} gives it its bounds and settings */
+  Node() {}
+
+  /**
+   * make this node an empty child of {@code parent}, with the passed bounds
+   *
+   * @return this node
+   */
+  Node<T> reset(
+      double x, double y, double z, double width, double height, double depth, Node<T> parent) {
+    volumeX = x;
+    volumeY = y;
+    volumeZ = z;
+    volumeWidth = width;
+    volumeHeight = height;
+    volumeDepth = depth;
+    volume = null;
+    this.parent = parent;
+    theta = parent.theta;
+    deferred = parent.deferred;
+    arena = parent.arena;
+    leafCapacity = parent.leafCapacity;
+    quadrupole = parent.quadrupole;
+    forceObject = null;
+    FNW = FNE = FSW = FSE = BNW = BNE = BSW = BSE = null;
+    clearBodies();
+    count = 0;
+    totalMass = weightedX = weightedY = weightedZ = 0;
+    qxx = qxy = qxz = qyy = qyz = qzz = 0;
+    return this;
   }
 
-  private Node(Box r, double theta) {
-    this.volume = r;
-    this.theta = theta;
+  private void setVolume(Box volume) {
+    this.volume = volume;
+    volumeX = volume.x;
+    volumeY = volume.y;
+    volumeZ = volume.z;
+    volumeWidth = volume.width;
+    volumeHeight = volume.height;
+    volumeDepth = volume.depth;
   }
 
-  private Node(Box r) {
-    volume = r;
+  /** the same test as {@link Box#contains(Point)} on the bounds of this node */
+  private boolean contains(Point p) {
+    return p.x >= volumeX
+        && p.x <= volumeX + volumeWidth
+        && p.y >= volumeY
+        && p.y <= volumeY + volumeHeight
+        && p.z >= volumeZ
+        && p.z <= volumeZ + volumeDepth;
   }
 
   public ForceObject<T> getForceObject() {
@@ -110,20 +251,61 @@ public class Node<T> {
    */
   public void insert(ForceObject<T> element) {
 
-    log.debug("insert {} into {}", element, this);
+    log.trace("insert {} into {}", element, this);
 
+    if (leafCapacity > 1 && isLeaf()) {
+      insertIntoBucket(element);
+      return;
+    }
     if (forceObject == null) {
       forceObject = element;
+      if (deferred) {
+        count = 0;
+        totalMass = weightedX = weightedY = weightedZ = 0;
+        accumulate(element);
+      } else {
+        count = 1;
+      }
       return;
     }
     if (isLeaf()) {
+      if (this.forceObject.p.equals(element.p)) {
+        // compare points for special case where the 2 elements are at the same location
+        // this would cause an infinite attempt to split and re-insert
+        // just add the new mass
+        if (bodyCount == 0) {
+          addBody(forceObject);
+        }
+        addBody(element);
+        if (deferred) {
+          accumulate(element);
+        } else {
+          this.forceObject = this.forceObject.add(element);
+          count++;
+        }
+        return;
+      }
       // there already is a forceObject, so split
       log.trace("must split {}", this);
       split();
-      log.trace("into this {} and re-insert {} and {}", this, this.forceObject, element);
-      // put the current resident and the new one into the correct quardrants
-      insertForceObject(this.forceObject);
+      // move the resident down with the count and masses it has accumulated
+      Node<T> child = childFor(this.forceObject.p);
+      if (child != null) {
+        child.forceObject = this.forceObject;
+        child.count = count;
+        child.totalMass = totalMass;
+        child.weightedX = weightedX;
+        child.weightedY = weightedY;
+        child.weightedZ = weightedZ;
+        moveBodiesTo(child);
+      } else {
+        log.error("no home for {} in {}", this.forceObject, this);
+        clearBodies();
+      }
       insertForceObject(element);
+      if (deferred) {
+        return;
+      }
       // update the centerOfMass, Mass, and Force on this node
       this.forceObject = this.forceObject.add(element);
 
@@ -132,41 +314,769 @@ public class Node<T> {
         log.error("can't insert {} into {}", element, this.forceObject);
       }
       // we're already split, update the forceElement for this new element
-      forceObject = forceObject.add(element);
+      if (!deferred) {
+        forceObject = forceObject.add(element);
+      }
       //and follow down the tree to insert
       insertForceObject(element);
     }
   }
 
+  /**
+   * insert into a leaf that holds up to leafCapacity elements. A full leaf splits, unless all of
+   * its elements and the new one are at the same location.
+   */
+  private void insertIntoBucket(ForceObject<T> element) {
+    if (bodyCount < leafCapacity || allAt(element.p)) {
+      addToBucket(element);
+      return;
+    }
+    split();
+    for (int i = 0; i < bodyCount; i++) {
+      insertForceObject(bodies[i]);
+    }
+    clearBodies();
+    insertForceObject(element);
+    if (!deferred) {
+      forceObject = forceObject.add(element);
+    }
+  }
+
+  private void addToBucket(ForceObject<T> element) {
+    addBody(element);
+    if (bodyCount == 1) {
+      forceObject = element;
+      count = 0;
+      totalMass = weightedX = weightedY = weightedZ = 0;
+    } else if (!deferred) {
+      forceObject = forceObject.add(element);
+    }
+    if (deferred) {
+      accumulate(element);
+    }
+  }
+
+  /** add to the elements of this leaf. Only elements at the same location overfill a bucket */
+  private void addBody(ForceObject<T> element) {
+    if (bodies == null) {
+      bodies = new ForceObject[Math.max(2, leafCapacity)];
+    } else if (bodyCount == bodies.length) {
+      bodies = Arrays.copyOf(bodies, bodyCount * 2);
+    }
+    bodies[bodyCount++] = element;
+  }
+
+  /** hand the elements of this leaf to a node that takes its place, and keep that node's array */
+  private void moveBodiesTo(Node<T> node) {
+    ForceObject<T>[] array = node.bodies;
+    node.bodies = bodies;
+    node.bodyCount = bodyCount;
+    bodies = array;
+    bodyCount = 0;
+  }
+
+  /** @return true if every element in this leaf is at the location */
+  private boolean allAt(Point p) {
+    for (int i = 0; i < bodyCount; i++) {
+      if (!bodies[i].p.equals(p)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void clearBodies() {
+    if (bodies != null) {
+      Arrays.fill(bodies, 0, bodyCount, null);
+    }
+    bodyCount = 0;
+  }
+
+  /** add the forces from this leaf to the visitor, element by element if it holds more than one */
+  private void addLeafForcesTo(ForceObject<T> visitor) {
+    if (leafCapacity > 1 && bodyCount > 1) {
+      for (int i = 0; i < bodyCount; i++) {
+        ForceObject<T> body = bodies[i];
+        if (!visitor.getElement().equals(body.getElement())) {
+          visitor.addForceFrom(body);
+        }
+      }
+    } else {
+      visitor.addForceFrom(this.forceObject);
+    }
+  }
+
+  private void accumulate(ForceObject<T> element) {
+    count++;
+    totalMass += element.mass;
+    weightedX += element.p.x * element.mass;
+    weightedY += element.p.y * element.mass;
+    weightedZ += element.p.z * element.mass;
+  }
+
+  /**
+   * with deferred aggregation, set the forceObject of each inner node, and of each leaf that holds
+   * more than one element, from the masses accumulated in the leaves. Every node below this one is
+   * visited once. Leaves keep their exact location.
+   */
+  void aggregate() {
+    if (isLeaf()) {
+      if (count > 1) {
+        // leaves of merged elements keep their exact location
+        Point p =
+            bodyCount > 1 && !allAt(bodies[0].p)
+                ? Point.of(weightedX / totalMass, weightedY / totalMass, weightedZ / totalMass)
+                : forceObject.p;
+        forceObject = new ForceObject("force", p, totalMass);
+      }
+      return;
+    }
+    count = 0;
+    totalMass = weightedX = weightedY = weightedZ = 0;
+    aggregate(FNW);
+    aggregate(FNE);
+    aggregate(FSE);
+    aggregate(FSW);
+    aggregate(BNW);
+    aggregate(BNE);
+    aggregate(BSE);
+    aggregate(BSW);
+    forceObject =
+        new ForceObject(
+            "force",
+            Point.of(weightedX / totalMass, weightedY / totalMass, weightedZ / totalMass),
+            totalMass);
+  }
+
+  private void aggregate(Node<T> child) {
+    if (child.forceObject == null) {
+      return;
+    }
+    child.aggregate();
+    count += child.count;
+    totalMass += child.totalMass;
+    weightedX += child.weightedX;
+    weightedY += child.weightedY;
+    weightedZ += child.weightedZ;
+  }
+
   private void insertForceObject(ForceObject<T> forceObject) {
-    if (FNW.volume.contains(forceObject.p)) {
-      FNW.insert(forceObject);
-    } else if (FNE.volume.contains(forceObject.p)) {
-      FNE.insert(forceObject);
-    } else if (FSE.volume.contains(forceObject.p)) {
-      FSE.insert(forceObject);
-    } else if (FSW.volume.contains(forceObject.p)) {
-      FSW.insert(forceObject);
-    } else if (BNW.volume.contains(forceObject.p)) {
-      BNW.insert(forceObject);
-    } else if (BNE.volume.contains(forceObject.p)) {
-      BNE.insert(forceObject);
-    } else if (BSE.volume.contains(forceObject.p)) {
-      BSE.insert(forceObject);
-    } else if (BSW.volume.contains(forceObject.p)) {
-      BSW.insert(forceObject);
+    Node<T> child = childFor(forceObject.p);
+    if (child != null) {
+      child.insert(forceObject);
     } else {
       log.error("no home for {} in {}", forceObject, this);
     }
   }
 
+  /**
+   * @param p a location inside this inner node
+   * @return the octant that holds the location, or null if none does
+   */
+  Node<T> childFor(Point p) {
+    if (FNW.contains(p)) {
+      return FNW;
+    } else if (FNE.contains(p)) {
+      return FNE;
+    } else if (FSE.contains(p)) {
+      return FSE;
+    } else if (FSW.contains(p)) {
+      return FSW;
+    } else if (BNW.contains(p)) {
+      return BNW;
+    } else if (BNE.contains(p)) {
+      return BNE;
+    } else if (BSE.contains(p)) {
+      return BSE;
+    } else if (BSW.contains(p)) {
+      return BSW;
+    }
+    return null;
+  }
+
+  /**
+   * build the subtree under this empty node from the elements, using the fork/join pool for the
+   * octants that hold more than {@code threshold} elements. The result is the same tree that
+   * inserting the elements in order would build. Elements outside of this node's volume have no
+   * octant, so if there are any the elements are simply inserted in order.
+   *
+   * @param elements elements to insert, in insertion order
+   * @param threshold the largest octant that is built without forking
+   * @param pool the pool to build in
+   */
+  void build(List<ForceObject<T>> elements, int threshold, ForkJoinPool pool) {
+    for (ForceObject<T> element : elements) {
+      if (!contains(element.p)) {
+        elements.forEach(this::insert);
+        return;
+      }
+    }
+    pool.invoke(new BuildTask<>(this, elements, threshold));
+  }
+
+  /** builds the subtree under one node, forking the octants that are larger than a threshold */
+  private static class BuildTask<T> extends RecursiveAction {
+    private final Node<T> node;
+    private final List<ForceObject<T>> elements;
+    private final int threshold;
+
+    BuildTask(Node<T> node, List<ForceObject<T>> elements, int threshold) {
+      this.node = node;
+      this.elements = elements;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (elements.size() <= Math.max(threshold, node.leafCapacity)) {
+        elements.forEach(node::insert);
+        return;
+      }
+      // insertion adds each element to the forceObject of every node it passes through, in order
+      ForceObject<T> first = elements.get(0);
+      ForceObject<T> forceObject = first;
+      boolean sameLocation = true;
+      for (int i = 1; i < elements.size(); i++) {
+        ForceObject<T> element = elements.get(i);
+        sameLocation &= first.p.equals(element.p);
+        if (!node.deferred) {
+          forceObject = forceObject.add(element);
+        }
+      }
+      if (sameLocation) {
+        // insertion merges all of them into this leaf
+        elements.forEach(node::insert);
+        return;
+      }
+      // with deferred aggregation this only marks the node as occupied until it is aggregated
+      node.forceObject = forceObject;
+      node.split();
+      Node<T>[] children =
+          new Node[] {
+            node.FNW, node.FNE, node.FSE, node.FSW, node.BNW, node.BNE, node.BSE, node.BSW
+          };
+      List<BuildTask<T>> tasks = new ArrayList<>(children.length);
+      for (Node<T> child : children) {
+        tasks.add(new BuildTask<>(child, new ArrayList<>(), threshold));
+      }
+      for (ForceObject<T> element : elements) {
+        Node<T> child = node.childFor(element.p);
+        for (int i = 0; i < children.length; i++) {
+          if (children[i] == child) {
+            tasks.get(i).elements.add(element);
+            break;
+          }
+        }
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  /**
+   * build the subtree under this empty node from the elements in Morton (Z-curve) order. The
+   * elements are sorted by their Morton keys, so the elements of each octant are a contiguous run
+   * that is found by a binary search on one digit of the keys, and the tree is built from the runs
+   * with no {@link Box#contains(Point)} tests and no re-insertion after a split. The inner
+   * summaries are combined from the child summaries, so they may differ from those of an inserted
+   * tree in the last bits. Runs that share a whole key, including all runs of elements at the same
+   * location, are inserted. Elements outside of this node's volume have no octant, so if there are
+   * any the elements are simply inserted in order.
+   *
+   * @param elements elements to load
+   * @param threshold the largest run that is built without forking
+   * @param pool the pool to build in, or null to build on the calling thread
+   */
+  void bulkLoad(List<ForceObject<T>> elements, int threshold, ForkJoinPool pool) {
+    int count = elements.size();
+    long[] keys = new long[count];
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      Point p = elements.get(i).p;
+      if (!contains(p)) {
+        elements.forEach(this::insert);
+        return;
+      }
+      keys[i] = MortonOrder.key(p, getBounds());
+      order[i] = i;
+    }
+    if (count == 0) {
+      return;
+    }
+    MortonOrder.sort(keys, order, count);
+    ForceObject<T>[] sorted = new ForceObject[count];
+    for (int i = 0; i < count; i++) {
+      sorted[i] = elements.get(order[i]);
+    }
+    MortonTask<T> task =
+        new MortonTask<>(this, sorted, keys, 0, count, 0, pool != null ? threshold : count);
+    if (pool != null && count > threshold) {
+      pool.invoke(task);
+    } else {
+      task.compute();
+    }
+  }
+
+  /** builds the subtree under one node from a run of Morton sorted elements */
+  private static class MortonTask<T> extends RecursiveAction {
+    private final Node<T> node;
+    private final ForceObject<T>[] elements;
+    private final long[] keys;
+    private final int from;
+    private final int to;
+    private final int level;
+    private final int threshold;
+
+    MortonTask(
+        Node<T> node,
+        ForceObject<T>[] elements,
+        long[] keys,
+        int from,
+        int to,
+        int level,
+        int threshold) {
+      this.node = node;
+      this.elements = elements;
+      this.keys = keys;
+      this.from = from;
+      this.to = to;
+      this.level = level;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= node.leafCapacity || keys[from] == keys[to - 1]) {
+        // elements that fit in a leaf, or elements in the same finest cell. insertion splits them
+        // if it must
+        for (int i = from; i < to; i++) {
+          node.insert(elements[i]);
+        }
+        return;
+      }
+      node.split();
+      // the children in octant order
+      Node<T>[] children =
+          new Node[] {
+            node.BNW, node.BNE, node.BSW, node.BSE, node.FNW, node.FNE, node.FSW, node.FSE
+          };
+      List<MortonTask<T>> tasks = new ArrayList<>(children.length);
+      int start = from;
+      for (int octant = 0; octant < children.length && start < to; octant++) {
+        int end = MortonOrder.end(keys, start, to, level, octant);
+        if (end > start) {
+          tasks.add(
+              new MortonTask<>(children[octant], elements, keys, start, end, level + 1, threshold));
+        }
+        start = end;
+      }
+      if (to - from > threshold) {
+        invokeAll(tasks);
+      } else {
+        tasks.forEach(MortonTask::compute);
+      }
+      if (node.deferred) {
+        // mark the node as occupied until it is aggregated
+        node.forceObject = elements[from];
+        return;
+      }
+      ForceObject<T> summary = null;
+      for (Node<T> child : children) {
+        if (child.forceObject != null) {
+          summary = summary == null ? child.forceObject : summary.add(child.forceObject);
+        }
+      }
+      node.forceObject = summary;
+    }
+  }
+
+  /** @return the opening threshold of this node */
+  public double getTheta() {
+    return theta;
+  }
+
+  /**
+   * set the opening threshold of this node and of every node under it. Nodes that later splits add
+   * take it from their parent.
+   *
+   * @param theta the new threshold
+   */
+  void setTheta(double theta) {
+    this.theta = theta;
+    if (!isLeaf()) {
+      FNW.setTheta(theta);
+      FNE.setTheta(theta);
+      FSW.setTheta(theta);
+      FSE.setTheta(theta);
+      BNW.setTheta(theta);
+      BNE.setTheta(theta);
+      BSW.setTheta(theta);
+      BSE.setTheta(theta);
+    }
+  }
+
   public Box getBounds() {
+    if (volume == null) {
+      volume = new Box(volumeX, volumeY, volumeZ, volumeWidth, volumeHeight, volumeDepth);
+    }
     return volume;
   }
 
   public void clear() {
     forceObject = null;
     FNW = FNE = FSW = FSE = BNW = BNE = BSW = BSE = null;
+    clearBodies();
+    count = 0;
+    totalMass = weightedX = weightedY = weightedZ = 0;
+  }
+
+  /**
+   * find the leaf that holds an element, by following its location down from this node
+   *
+   * @param element the ForceObject that was inserted for the element
+   * @return the leaf that holds the element, or null if no leaf under this node does
+   */
+  Node<T> leafOf(ForceObject<T> element) {
+    Node<T> node = this;
+    while (node != null && !node.isLeaf()) {
+      node = node.childFor(element.p);
+    }
+    // insertion and Morton order bulk loads both place a location as childFor does
+    return node != null && node.holds(element) ? node : null;
+  }
+
+  /**
+   * @param p a location
+   * @return the leaf under this node that the location falls into, or null if none does
+   */
+  Node<T> leafAt(Point p) {
+    Node<T> node = this;
+    while (node != null && !node.isLeaf()) {
+      node = node.childFor(p);
+    }
+    return node;
+  }
+
+  /**
+   * put each element of the leaves under this node into the index, with the leaf that holds it
+   *
+   * @param leaves the index to fill
+   */
+  void index(Map<T, Node<T>> leaves) {
+    if (isLeaf()) {
+      for (int i = 0; i < bodyCount; i++) {
+        leaves.put(bodies[i].getElement(), this);
+      }
+      if (bodyCount == 0 && forceObject != null) {
+        leaves.put(forceObject.getElement(), this);
+      }
+      return;
+    }
+    for (Node<T> child : children()) {
+      child.index(leaves);
+    }
+  }
+
+  /**
+   * pass each element under this node whose location is inside the box to the consumer. Octants
+   * that do not overlap the box are not visited.
+   *
+   * @param r the box to search
+   * @param consumer receives each element and its location
+   */
+  void query(Box r, BiConsumer<T, Point> consumer) {
+    if (volumeX > r.maxX
+        || volumeX + volumeWidth < r.x
+        || volumeY > r.maxY
+        || volumeY + volumeHeight < r.y
+        || volumeZ > r.maxZ
+        || volumeZ + volumeDepth < r.z) {
+      return;
+    }
+    if (isLeaf()) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i].p.inside(r)) {
+          consumer.accept(bodies[i].getElement(), bodies[i].p);
+        }
+      }
+      if (bodyCount == 0 && forceObject != null && forceObject.p.inside(r)) {
+        consumer.accept(forceObject.getElement(), forceObject.p);
+      }
+      return;
+    }
+    for (Node<T> child : children()) {
+      child.query(r, consumer);
+    }
+  }
+
+  /**
+   * pass each element under this node whose location is inside the sphere to the consumer. Octants
+   * that are farther from the center than the radius are not visited.
+   *
+   * @param s the sphere to search
+   * @param consumer receives each element and its location
+   */
+  void query(Sphere s, BiConsumer<T, Point> consumer) {
+    if (distanceSquared(s.center.x, s.center.y, s.center.z) > s.radius * s.radius) {
+      return;
+    }
+    if (isLeaf()) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i].p.inside(s)) {
+          consumer.accept(bodies[i].getElement(), bodies[i].p);
+        }
+      }
+      if (bodyCount == 0 && forceObject != null && forceObject.p.inside(s)) {
+        consumer.accept(forceObject.getElement(), forceObject.p);
+      }
+      return;
+    }
+    for (Node<T> child : children()) {
+      child.query(s, consumer);
+    }
+  }
+
+  /**
+   * pass the {@code k} elements under this node that are nearest to a location to the consumer,
+   * nearest first. Nodes and elements wait in one queue ordered by their distance, where the
+   * distance of a node is that of the nearest point of its volume, so an element leaves the queue
+   * only when nothing that is left can be nearer. Only the nodes nearer than the k-th element are
+   * opened.
+   *
+   * @param x x coordinate of the location
+   * @param y y coordinate of the location
+   * @param z z coordinate of the location
+   * @param k the number of elements to find
+   * @param consumer receives each element and its location
+   */
+  void nearest(double x, double y, double z, int k, BiConsumer<T, Point> consumer) {
+    PriorityQueue<Candidate<T>> queue = new PriorityQueue<>();
+    queue.add(new Candidate<>(distanceSquared(x, y, z), this, null));
+    int found = 0;
+    while (found < k && !queue.isEmpty()) {
+      Candidate<T> next = queue.poll();
+      Node<T> node = next.node;
+      if (node == null) {
+        consumer.accept(next.element.getElement(), next.element.p);
+        found++;
+      } else if (node.isLeaf()) {
+        for (int i = 0; i < node.bodyCount; i++) {
+          ForceObject<T> element = node.bodies[i];
+          queue.add(new Candidate<>(element.p.distanceSquared(x, y, z), null, element));
+        }
+        if (node.bodyCount == 0 && node.forceObject != null) {
+          ForceObject<T> element = node.forceObject;
+          queue.add(new Candidate<>(element.p.distanceSquared(x, y, z), null, element));
+        }
+      } else {
+        for (Node<T> child : node.children()) {
+          if (!child.isLeaf() || child.forceObject != null) {
+            queue.add(new Candidate<>(child.distanceSquared(x, y, z), child, null));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * a node or an element in the queue of {@link #nearest(double, double, double, int, BiConsumer)}
+   */
+  private static final class Candidate<T> implements Comparable<Candidate<T>> {
+    final double distanceSquared;
+    final Node<T> node;
+    final ForceObject<T> element;
+
+    Candidate(double distanceSquared, Node<T> node, ForceObject<T> element) {
+      this.distanceSquared = distanceSquared;
+      this.node = node;
+      this.element = element;
+    }
+
+    @Override
+    public int compareTo(Candidate<T> other) {
+      return Double.compare(distanceSquared, other.distanceSquared);
+    }
+  }
+
+  /** @return the squared distance from a location to the volume of this node, 0 inside of it */
+  double distanceSquared(double x, double y, double z) {
+    double dx = Math.max(0, Math.max(volumeX - x, x - (volumeX + volumeWidth)));
+    double dy = Math.max(0, Math.max(volumeY - y, y - (volumeY + volumeHeight)));
+    double dz = Math.max(0, Math.max(volumeZ - z, z - (volumeZ + volumeDepth)));
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  /** @return true if this leaf holds the element, alone or merged with others at its location */
+  boolean holds(ForceObject<T> element) {
+    if (bodyCount > 0) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i] == element) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return forceObject == element;
+  }
+
+  /**
+   * remove an element from this leaf. The nodes above it are not changed, see {@link #repair()}.
+   *
+   * @param element the ForceObject that was inserted for the element
+   * @return true if this leaf held the element
+   */
+  boolean remove(ForceObject<T> element) {
+    if (bodyCount > 0) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i] == element) {
+          System.arraycopy(bodies, i + 1, bodies, i, bodyCount - i - 1);
+          bodies[--bodyCount] = null;
+          summarizeBucket();
+          if (leafCapacity == 1 && bodyCount == 1) {
+            // the last of the elements merged at a location is a leaf of its own again
+            clearBodies();
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+    if (forceObject == element) {
+      forceObject = null;
+      count = 0;
+      totalMass = weightedX = weightedY = weightedZ = 0;
+      return true;
+    }
+    return false;
+  }
+
+  /** set the forceObject and accumulators of a leaf from its elements, as insert does */
+  private void summarizeBucket() {
+    forceObject = bodyCount > 0 ? bodies[0] : null;
+    count = 0;
+    totalMass = weightedX = weightedY = weightedZ = 0;
+    for (int i = 0; i < bodyCount; i++) {
+      if (deferred) {
+        accumulate(bodies[i]);
+      } else if (i > 0) {
+        forceObject = forceObject.add(bodies[i]);
+      }
+    }
+    if (deferred) {
+      aggregate();
+    } else {
+      count = bodyCount;
+    }
+  }
+
+  /**
+   * after an element was inserted into or removed from this leaf, update the nodes from here up to
+   * the root. A node whose octants would fit in one leaf collapses back into a leaf, and the
+   * summary of every other node is combined again from its octants. Only the nodes on the path to
+   * the root are visited.
+   *
+   * @return the leaf that now holds the elements of this leaf
+   */
+  Node<T> repair() {
+    if (deferred && isLeaf()) {
+      aggregate();
+    }
+    Node<T> leaf = this;
+    for (Node<T> node = parent; node != null; node = node.parent) {
+      if (node.collapse()) {
+        leaf = node;
+      } else {
+        node.summarize();
+      }
+    }
+    return leaf;
+  }
+
+  /**
+   * make this inner node a leaf again if all of its octants are leaves and only one of them is
+   * occupied, or their elements fit in one bucket. With a {@link NodeArena}, the octants are not
+   * reused until the next rebuild.
+   *
+   * @return true if this node is now a leaf
+   */
+  private boolean collapse() {
+    Node<T>[] children = children();
+    Node<T> occupied = null;
+    int occupiedCount = 0;
+    int elementCount = 0;
+    for (Node<T> child : children) {
+      if (!child.isLeaf()) {
+        return false;
+      }
+      if (child.forceObject != null) {
+        occupied = child;
+        occupiedCount++;
+        elementCount += child.bodyCount;
+      }
+    }
+    if (occupiedCount > 1 && (leafCapacity == 1 || elementCount > leafCapacity)) {
+      return false;
+    }
+    FNW = FNE = FSW = FSE = BNW = BNE = BSW = BSE = null;
+    if (leafCapacity > 1) {
+      clearBodies();
+      for (Node<T> child : children) {
+        for (int i = 0; i < child.bodyCount; i++) {
+          addToBucket(child.bodies[i]);
+        }
+      }
+      if (deferred) {
+        aggregate();
+      }
+    } else if (occupied == null) {
+      clear();
+    } else {
+      forceObject = occupied.forceObject;
+      count = occupied.count;
+      totalMass = occupied.totalMass;
+      weightedX = occupied.weightedX;
+      weightedY = occupied.weightedY;
+      weightedZ = occupied.weightedZ;
+      occupied.moveBodiesTo(this);
+    }
+    if (log.isTraceEnabled()) {
+      log.trace("collapsed {}", this);
+    }
+    return true;
+  }
+
+  /** set the forceObject of this inner node from the summaries of its octants */
+  private void summarize() {
+    if (deferred) {
+      count = 0;
+      totalMass = weightedX = weightedY = weightedZ = 0;
+      for (Node<T> child : children()) {
+        if (child.forceObject != null) {
+          count += child.count;
+          totalMass += child.totalMass;
+          weightedX += child.weightedX;
+          weightedY += child.weightedY;
+          weightedZ += child.weightedZ;
+        }
+      }
+      forceObject =
+          new ForceObject(
+              "force",
+              Point.of(weightedX / totalMass, weightedY / totalMass, weightedZ / totalMass),
+              totalMass);
+      return;
+    }
+    ForceObject<T> summary = null;
+    for (Node<T> child : children()) {
+      if (child.forceObject != null) {
+        summary = summary == null ? child.forceObject : summary.add(child.forceObject);
+      }
+    }
+    forceObject = summary;
+  }
+
+  /** @return the octants of this inner node */
+  private Node<T>[] children() {
+    return new Node[] {FNW, FNE, FSE, FSW, BNW, BNE, BSE, BSW};
   }
 
   /*
@@ -176,25 +1086,31 @@ public class Node<T> {
     if (log.isTraceEnabled()) {
       log.info("splitting {}", this);
     }
-    double width = volume.width / 2;
-    double height = volume.height / 2;
-    double depth = volume.depth / 2;
-    double x = volume.x;
-    double y = volume.y;
-    double z = volume.z;
-    FNE = new Node(x + width, y, z + depth, width, height, depth);
-    FNW = new Node(x, y, z + depth, width, height, depth);
-    FSW = new Node(x, y + height, z + depth, width, height, depth);
-    FSE = new Node(x + width, y + height, z + depth, width, height, depth);
-    BNE = new Node(x + width, y, z, width, height, depth);
-    BNW = new Node(x, y, z, width, height, depth);
-    BSW = new Node(x, y + height, z, width, height, depth);
-    BSE = new Node(x + width, y + height, z, width, height, depth);
+    double width = volumeWidth / 2;
+    double height = volumeHeight / 2;
+    double depth = volumeDepth / 2;
+    double x = volumeX;
+    double y = volumeY;
+    double z = volumeZ;
+    FNE = child(x + width, y, z + depth, width, height, depth);
+    FNW = child(x, y, z + depth, width, height, depth);
+    FSW = child(x, y + height, z + depth, width, height, depth);
+    FSE = child(x + width, y + height, z + depth, width, height, depth);
+    BNE = child(x + width, y, z, width, height, depth);
+    BNW = child(x, y, z, width, height, depth);
+    BSW = child(x, y + height, z, width, height, depth);
+    BSE = child(x + width, y + height, z, width, height, depth);
     if (log.isTraceEnabled()) {
       log.trace("after split, this node is {}", this);
     }
   }
 
+  /** @return an empty child node with the settings of this node, from the arena if there is one */
+  private Node<T> child(double x, double y, double z, double width, double height, double depth) {
+    Node<T> child = arena != null ? arena.next() : new Node<>();
+    return child.reset(x, y, z, width, height, depth, this);
+  }
+
   public void visit(ForceObject<T> target) {
     if (this.forceObject == null || target.getElement().equals(this.forceObject.getElement())) {
       return;
@@ -209,17 +1125,17 @@ public class Node<T> {
             target.getElement(),
             target.p);
       }
-      target.addForceFrom(this.forceObject);
+      addLeafForcesTo(target);
       log.trace("added force from {} so its now {}", this.forceObject, target);
     } else {
       // not a leaf
       //  this node is an internal node
       //  calculate s/d
-      double s = this.volume.width;
+      double s = this.volumeWidth;
       //      distance between the incoming node's position and
       //      the center of mass for this node
       double d = this.forceObject.p.distance(target.p);
-      if (s / d < DEFAULT_THETA) {
+      if (s / d < theta) {
         // this node is sufficiently far away
         // just use this node's forces
         if (log.isTraceEnabled()) {
@@ -230,7 +1146,7 @@ public class Node<T> {
               target.getElement(),
               target.p);
         }
-        target.addForceFrom(this.forceObject);
+        addSummaryTo(target);
         log.trace("added force from {} so its now {}", this.forceObject, target);
 
       } else {
@@ -247,6 +1163,179 @@ public class Node<T> {
     }
   }
 
+  /**
+   * gather the interaction list of a group of visitors whose locations are inside the box from
+   * ({@code minX}, {@code minY}, {@code minZ}) to ({@code maxX}, {@code maxY}, {@code maxZ}). An
+   * inner node is used as a summary when {@code s / d < theta} for the distance {@code d} from its
+   * center of mass to the nearest point of the box, so it passes the opening test of every visitor
+   * in the group. Other inner nodes are opened, and non-empty leaves are always in the list.
+   *
+   * @param interactions receives the accepted inner nodes and the leaves, in traversal order
+   */
+  void interactions(
+      double minX,
+      double minY,
+      double minZ,
+      double maxX,
+      double maxY,
+      double maxZ,
+      List<Node<T>> interactions) {
+    if (this.forceObject == null) {
+      return;
+    }
+    if (isLeaf()) {
+      interactions.add(this);
+      return;
+    }
+    Point center = this.forceObject.p;
+    double dx = Math.max(0, Math.max(minX - center.x, center.x - maxX));
+    double dy = Math.max(0, Math.max(minY - center.y, center.y - maxY));
+    double dz = Math.max(0, Math.max(minZ - center.z, center.z - maxZ));
+    double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+    if (this.volumeWidth / d < theta) {
+      // this node is sufficiently far away from the whole group
+      interactions.add(this);
+    } else {
+      FNW.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+      FNE.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+      FSW.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+      FSE.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+      BNW.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+      BNE.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+      BSW.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+      BSE.interactions(minX, minY, minZ, maxX, maxY, maxZ, interactions);
+    }
+  }
+
+  /**
+   * add the forces of this interaction list entry to a visitor: the summary of an accepted inner
+   * node, or the elements of a leaf other than the visitor's own
+   *
+   * @param visitor the visitor
+   */
+  void applyInteractionTo(ForceObject<T> visitor) {
+    if (isLeaf()) {
+      applyForcesTo(visitor);
+    } else {
+      addSummaryTo(visitor);
+    }
+  }
+
+  /**
+   * {@link #applyInteractionTo(ForceObject)}, that also counts the entry as a visited node, and
+   * counts the summary or the forces from the elements of the leaf that it adds
+   *
+   * @param visitor the visitor
+   * @param counter receives the counts
+   */
+  void applyInteractionTo(ForceObject<T> visitor, TraversalStats.Counter counter) {
+    if (isLeaf()) {
+      applyForcesTo(visitor, null, counter);
+    } else {
+      addSummaryTo(visitor);
+      counter.nodesVisited++;
+      counter.approximations++;
+    }
+  }
+
+  /** add the summary of this inner node to the visitor, with its second moments if it keeps them */
+  private void addSummaryTo(ForceObject<T> visitor) {
+    if (quadrupole) {
+      visitor.addForceFrom(this.forceObject, qxx, qxy, qxz, qyy, qyz, qzz);
+    } else {
+      visitor.addForceFrom(this.forceObject);
+    }
+  }
+
+  /** compute the second moments of every node under this one, from the leaves up */
+  void computeMoments() {
+    if (!isLeaf()) {
+      // leaves are computed by their parent
+      FNW.computeInnerMoments();
+      FNE.computeInnerMoments();
+      FSW.computeInnerMoments();
+      FSE.computeInnerMoments();
+      BNW.computeInnerMoments();
+      BNE.computeInnerMoments();
+      BSW.computeInnerMoments();
+      BSE.computeInnerMoments();
+    }
+    moments();
+  }
+
+  private void computeInnerMoments() {
+    if (!isLeaf()) {
+      computeMoments();
+    }
+  }
+
+  /** compute the second moments of this node and each of its ancestors, after an edit */
+  void updateMoments() {
+    for (Node<T> node = this; node != null; node = node.parent) {
+      node.moments();
+    }
+  }
+
+  /**
+   * compute the second moments of this node from the elements of a leaf, or from the moments of the
+   * children of an inner node, shifted to this node's center of mass. Leaf children are computed
+   * first, inner children must be current.
+   */
+  private void moments() {
+    qxx = qxy = qxz = qyy = qyz = qzz = 0;
+    if (forceObject == null) {
+      return;
+    }
+    Point center = forceObject.p;
+    if (isLeaf()) {
+      // the elements of a leaf of capacity 1 are all at its center
+      if (leafCapacity > 1) {
+        for (int i = 0; i < bodyCount; i++) {
+          addMoments(bodies[i].p, bodies[i].mass, center);
+        }
+      }
+      return;
+    }
+    addChildMoments(FNW, center);
+    addChildMoments(FNE, center);
+    addChildMoments(FSW, center);
+    addChildMoments(FSE, center);
+    addChildMoments(BNW, center);
+    addChildMoments(BNE, center);
+    addChildMoments(BSW, center);
+    addChildMoments(BSE, center);
+  }
+
+  /** add the moments of a child, shifted to the center of mass of this node */
+  private void addChildMoments(Node<T> child, Point center) {
+    if (child.forceObject == null) {
+      return;
+    }
+    if (child.isLeaf()) {
+      child.moments();
+    }
+    qxx += child.qxx;
+    qxy += child.qxy;
+    qxz += child.qxz;
+    qyy += child.qyy;
+    qyz += child.qyz;
+    qzz += child.qzz;
+    addMoments(child.forceObject.p, child.forceObject.mass, center);
+  }
+
+  /** add the moments of a point mass about the center */
+  private void addMoments(Point p, double mass, Point center) {
+    double dx = p.x - center.x;
+    double dy = p.y - center.y;
+    double dz = p.z - center.z;
+    qxx += mass * dx * dx;
+    qxy += mass * dx * dy;
+    qxz += mass * dx * dz;
+    qyy += mass * dy * dy;
+    qyz += mass * dy * dz;
+    qzz += mass * dz * dz;
+  }
+
   static String asString(Box r) {
     return "["
         + (int) r.x
@@ -297,19 +1386,17 @@ public class Node<T> {
     }
 
     if (isLeaf()) {
-
-      visitor.addForceFrom(this.forceObject);
-
+      addLeafForcesTo(visitor);
     } else {
       // not a leaf. this node is an internal node
       //  calculate s/d
-      double s = this.volume.width;
+      double s = this.volumeWidth;
       //      distance between the incoming node's position and
       //      the center of mass for this node
       double d = this.forceObject.p.distance(visitor.p);
       if (s / d < theta) {
         // this node is sufficiently far away, just use this node's forces
-        visitor.addForceFrom(this.forceObject);
+        addSummaryTo(visitor);
 
       } else {
         // down the tree we go
@@ -325,6 +1412,102 @@ public class Node<T> {
     }
   }
 
+  /**
+   * accept a visit from the visitor force object, whose element is held by the leaf {@code self}.
+   * Only that leaf can hold the visitor's element, so no other node compares its element with the
+   * visitor's.
+   *
+   * @param visitor the visitor
+   * @param self the leaf that holds the element of the visitor
+   */
+  void applyForcesTo(ForceObject<T> visitor, Node<T> self) {
+    if (this.forceObject == null) {
+      return;
+    }
+    if (this == self) {
+      if (bodyCount == 0) {
+        // the visitor's element alone
+        return;
+      }
+      applyForcesTo(visitor);
+    } else if (isLeaf()) {
+      if (leafCapacity > 1 && bodyCount > 1) {
+        for (int i = 0; i < bodyCount; i++) {
+          visitor.addForceFrom(bodies[i]);
+        }
+      } else {
+        visitor.addForceFrom(this.forceObject);
+      }
+    } else {
+      double d = this.forceObject.p.distance(visitor.p);
+      if (this.volumeWidth / d < theta) {
+        // this node is sufficiently far away, just use this node's forces
+        addSummaryTo(visitor);
+      } else {
+        FNW.applyForcesTo(visitor, self);
+        FNE.applyForcesTo(visitor, self);
+        FSW.applyForcesTo(visitor, self);
+        FSE.applyForcesTo(visitor, self);
+        BNW.applyForcesTo(visitor, self);
+        BNE.applyForcesTo(visitor, self);
+        BSW.applyForcesTo(visitor, self);
+        BSE.applyForcesTo(visitor, self);
+      }
+    }
+  }
+
+  /**
+   * the traversal of {@link #applyForcesTo(ForceObject, Node)}, or of {@link
+   * #applyForcesTo(ForceObject)} when {@code self} is null, that also counts the nodes it visits,
+   * the summaries it uses and the forces it adds from the elements of leaves. It is kept apart from
+   * them so that traversals without statistics do no counting.
+   *
+   * @param visitor the visitor
+   * @param self the leaf that holds the element of the visitor, or null to compare elements
+   * @param counter receives the counts
+   */
+  void applyForcesTo(ForceObject<T> visitor, Node<T> self, TraversalStats.Counter counter) {
+    if (this.forceObject == null || (this == self && bodyCount == 0)) {
+      return;
+    }
+    // only the leaf of the visitor can hold its element, when that leaf is known
+    boolean compare = self == null || this == self;
+    if (compare && visitor.getElement().equals(this.forceObject.getElement())) {
+      return;
+    }
+    counter.nodesVisited++;
+    if (isLeaf()) {
+      if (leafCapacity > 1 && bodyCount > 1) {
+        for (int i = 0; i < bodyCount; i++) {
+          ForceObject<T> body = bodies[i];
+          if (!compare || !visitor.getElement().equals(body.getElement())) {
+            visitor.addForceFrom(body);
+            counter.leafInteractions++;
+          }
+        }
+      } else {
+        visitor.addForceFrom(this.forceObject);
+        counter.leafInteractions++;
+      }
+    } else {
+      double d = this.forceObject.p.distance(visitor.p);
+      if (this.volumeWidth / d < theta) {
+        // this node is sufficiently far away, just use this node's forces
+        addSummaryTo(visitor);
+        counter.approximations++;
+      } else {
+        FNW.applyForcesTo(visitor, self, counter);
+        FNE.applyForcesTo(visitor, self, counter);
+        FSW.applyForcesTo(visitor, self, counter);
+        FSE.applyForcesTo(visitor, self, counter);
+        BNW.applyForcesTo(visitor, self, counter);
+        BNE.applyForcesTo(visitor, self, counter);
+        BSW.applyForcesTo(visitor, self, counter);
+        BSE.applyForcesTo(visitor, self, counter);
+      }
+    }
+  }
+
   static String marginIncrement = "   ";
 
   @Override
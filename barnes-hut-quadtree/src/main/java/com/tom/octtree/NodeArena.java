@@ -0,0 +1,123 @@
+package com.tom.octtree;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of {@link Node} objects that a {@link BarnesHutOctTree} takes its inner and leaf nodes
+ * from. {@code rebuild} resets the arena and then refills it from the start, so the nodes of the
+ * previous frame are reused instead of being left for the garbage collector. The arena grows by its
+ * growth factor when a tree needs more nodes than it holds, and keeps the high-water mark of the
+ * nodes in use so that the initial capacity can be tuned.
+ *
+ * <p>Because the nodes are reused, a node that was taken from the tree is only valid until the next
+ * rebuild.
+ *
+ * @author Tom Nelson
+ */
+public class NodeArena<T> {
+
+  private static final Logger log = LoggerFactory.getLogger(NodeArena.class);
+
+  public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+  public static final double DEFAULT_GROWTH_FACTOR = 1.5;
+
+  public static class Builder<T> {
+    protected int initialCapacity = DEFAULT_INITIAL_CAPACITY;
+    protected double growthFactor = DEFAULT_GROWTH_FACTOR;
+
+    /** @param initialCapacity the number of nodes to create up front */
+    public NodeArena.Builder<T> initialCapacity(int initialCapacity) {
+      this.initialCapacity = initialCapacity;
+      return this;
+    }
+
+    /** @param growthFactor the factor, greater than 1, to grow the capacity by when it is full */
+    public NodeArena.Builder<T> growthFactor(double growthFactor) {
+      if (!(growthFactor > 1)) {
+        throw new IllegalArgumentException("growthFactor must be greater than 1: " + growthFactor);
+      }
+      this.growthFactor = growthFactor;
+      return this;
+    }
+
+    public NodeArena<T> build() {
+      return new NodeArena<>(this);
+    }
+  }
+
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  private final double growthFactor;
+
+  private Node<T>[] nodes;
+
+  /** the number of nodes in use since the last reset */
+  private int size;
+
+  private int highWaterMark;
+
+  private NodeArena(Builder<T> builder) {
+    this.growthFactor = builder.growthFactor;
+    this.nodes = new Node[0];
+    grow(Math.max(0, builder.initialCapacity));
+  }
+
+  /** @return the number of nodes that the arena holds */
+  public synchronized int getCapacity() {
+    return nodes.length;
+  }
+
+  /** @return the number of nodes in use since the last reset */
+  public synchronized int getSize() {
+    return size;
+  }
+
+  /** @return the largest number of nodes that have been in use at once */
+  public synchronized int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /** return every node to the arena */
+  public synchronized void reset() {
+    size = 0;
+  }
+
+  /** @return the next unused node, which the caller must {@link Node#reset} */
+  synchronized Node<T> next() {
+    if (size == nodes.length) {
+      grow(Math.max(size + 1, (int) (size * growthFactor)));
+    }
+    Node<T> node = nodes[size++];
+    if (size > highWaterMark) {
+      highWaterMark = size;
+    }
+    return node;
+  }
+
+  private void grow(int capacity) {
+    int oldCapacity = nodes.length;
+    nodes = Arrays.copyOf(nodes, capacity);
+    for (int i = oldCapacity; i < capacity; i++) {
+      nodes[i] = new Node<>();
+    }
+    if (oldCapacity > 0) {
+      log.debug("grew from {} to {} nodes", oldCapacity, capacity);
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "NodeArena{capacity="
+        + nodes.length
+        + ", size="
+        + size
+        + ", highWaterMark="
+        + highWaterMark
+        + "}";
+  }
+}
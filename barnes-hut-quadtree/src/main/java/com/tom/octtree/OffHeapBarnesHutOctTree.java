@@ -0,0 +1,756 @@
+package com.tom.octtree;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Barnes-Hut OctTree that keeps its cells and bodies outside of the heap, in direct {@link
+ * ByteBuffer}s. It has the same rebuild and force methods as {@link FlatBarnesHutOctTree}, and
+ * builds the same tree with the same arithmetic, so it gives the same forces. The heap holds only a
+ * few buffer objects per million bodies, so neither the heap size nor the work of the garbage
+ * collector grows with the simulation.
+ *
+ * <p>Cells and bodies are fixed size records in pages of {@value #PAGE_SIZE} records. Growing the
+ * storage adds pages and never copies the records that are already stored, and no single buffer has
+ * to hold the whole tree. Once the storage has grown to hold a rebuild, later rebuilds with as many
+ * or fewer bodies and the force passes allocate nothing.
+ *
+ * <p>The storage has an explicit lifecycle. {@link #clear()} removes the bodies and keeps the pages
+ * for the next rebuild. {@link #close()} drops the pages, after which the tree can not be used. The
+ * direct memory of a closed tree is returned when the garbage collector finds its buffers, which
+ * are small objects on the heap; its size is limited by {@code -XX:MaxDirectMemorySize}.
+ *
+ * <p>A built tree can be written to a snapshot file with {@link #write(Path)}, and loaded in
+ * another process with {@link #map(Path)}, which maps the records of the file into memory instead
+ * of reading them. The force passes of a mapped tree read the mapped pages directly, so it is ready
+ * as soon as the file is mapped. A mapped tree can not be rebuilt. Bodies keep their index in the
+ * snapshot, so forces are gathered for the same body indices as in the tree that wrote it.
+ *
+ * <p>The snapshot is a header of {@value #HEADER_BYTES} bytes, followed by the cell records and
+ * then the body records, in little-endian order:
+ *
+ * <ul>
+ *   <li>int magic {@code 0x42484F54} ("BHOT") and int version {@value #VERSION}
+ *   <li>int bytes per cell, int bytes per body, int cell count and int body count
+ *   <li>double theta
+ *   <li>the x, y, z, width, height and depth of the bounds that the tree was built with, and of the
+ *       root
+ * </ul>
+ *
+ * @author Tom Nelson
+ */
+public class OffHeapBarnesHutOctTree implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(OffHeapBarnesHutOctTree.class);
+
+  /** value of {@code FIRST_CHILD} for a leaf cell and of {@code BODY} for an empty cell */
+  static final int NONE = -1;
+
+  /** index of the root cell */
+  static final int ROOT = 0;
+
+  static final int PAGE_SHIFT = 14;
+
+  /** the number of records in a page */
+  static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+  // the fields of a cell record
+  private static final int X = 0;
+  private static final int Y = 8;
+  private static final int Z = 16;
+  private static final int WIDTH = 24;
+  private static final int HEIGHT = 32;
+  private static final int DEPTH = 40;
+  private static final int CENTER_X = 48;
+  private static final int CENTER_Y = 56;
+  private static final int CENTER_Z = 64;
+  private static final int MASS = 72;
+  private static final int FIRST_CHILD = 80;
+  private static final int BODY = 84;
+  private static final int CELL_BYTES = 88;
+
+  // the fields of a body record. further bodies at the same location as a leaf's first body follow
+  // in NEXT
+  private static final int BODY_X = 0;
+  private static final int BODY_Y = 8;
+  private static final int BODY_Z = 16;
+  private static final int BODY_MASS = 24;
+  private static final int NEXT = 32;
+  private static final int BODY_BYTES = 40;
+
+  /** the first int of a snapshot */
+  static final int MAGIC = 0x42484F54;
+
+  /** the version of the snapshot layout */
+  static final int VERSION = 1;
+
+  /** the size of the header of a snapshot */
+  static final int HEADER_BYTES = 128;
+
+  /** the byte order of the records, in memory and in a snapshot */
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  public static class Builder {
+    protected double theta = Node.DEFAULT_THETA;
+    protected Box bounds;
+
+    public OffHeapBarnesHutOctTree.Builder bounds(Box bounds) {
+      this.bounds = bounds;
+      return this;
+    }
+
+    public OffHeapBarnesHutOctTree.Builder bounds(
+        double x, double y, double z, double width, double height, double depth) {
+      bounds(new Box(x, y, z, width, height, depth));
+      return this;
+    }
+
+    public OffHeapBarnesHutOctTree.Builder bounds(double width, double height, double depth) {
+      bounds(new Box(0, 0, 0, width, height, depth));
+      return this;
+    }
+
+    public OffHeapBarnesHutOctTree.Builder theta(double theta) {
+      this.theta = theta;
+      return this;
+    }
+
+    public OffHeapBarnesHutOctTree build() {
+      return new OffHeapBarnesHutOctTree(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** fixed size records in direct buffers of {@link #PAGE_SIZE} records each */
+  private static final class Pages {
+    final int recordBytes;
+    ByteBuffer[] pages = new ByteBuffer[0];
+
+    Pages(int recordBytes) {
+      this.recordBytes = recordBytes;
+    }
+
+    void ensureCapacity(int records) {
+      int count = (records + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+      if (count <= pages.length) {
+        return;
+      }
+      int old = pages.length;
+      pages = Arrays.copyOf(pages, count);
+      for (int i = old; i < count; i++) {
+        pages[i] = ByteBuffer.allocateDirect(recordBytes << PAGE_SHIFT).order(ORDER);
+      }
+    }
+
+    /** write the first {@code records} records to the channel */
+    void write(FileChannel channel, int records) throws IOException {
+      for (int i = 0; records > 0; i++, records -= PAGE_SIZE) {
+        ByteBuffer page = pages[i].duplicate();
+        // through Buffer, as ByteBuffer only overrides these from Java 9
+        ((Buffer) page).position(0);
+        ((Buffer) page).limit(Math.min(records, PAGE_SIZE) * recordBytes);
+        while (page.hasRemaining()) {
+          channel.write(page);
+        }
+      }
+    }
+
+    /**
+     * map {@code records} records of the channel, starting at {@code position}, read only
+     *
+     * @return the position after the records
+     */
+    long map(FileChannel channel, long position, int records) throws IOException {
+      pages = new ByteBuffer[(records + PAGE_SIZE - 1) >>> PAGE_SHIFT];
+      for (int i = 0; i < pages.length; i++, records -= PAGE_SIZE) {
+        long size = (long) Math.min(records, PAGE_SIZE) * recordBytes;
+        pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ORDER);
+        position += size;
+      }
+      return position;
+    }
+
+    double getDouble(int record, int field) {
+      return pages[record >>> PAGE_SHIFT].getDouble(
+          (record & (PAGE_SIZE - 1)) * recordBytes + field);
+    }
+
+    void putDouble(int record, int field, double value) {
+      pages[record >>> PAGE_SHIFT].putDouble(
+          (record & (PAGE_SIZE - 1)) * recordBytes + field, value);
+    }
+
+    int getInt(int record, int field) {
+      return pages[record >>> PAGE_SHIFT].getInt((record & (PAGE_SIZE - 1)) * recordBytes + field);
+    }
+
+    void putInt(int record, int field, int value) {
+      pages[record >>> PAGE_SHIFT].putInt((record & (PAGE_SIZE - 1)) * recordBytes + field, value);
+    }
+
+    long bytes() {
+      long bytes = 0;
+      for (ByteBuffer page : pages) {
+        bytes += page.capacity();
+      }
+      return bytes;
+    }
+
+    void release() {
+      pages = new ByteBuffer[0];
+    }
+  }
+
+  protected double theta;
+
+  /** the bounds requested at build time. The root cell grows to hold bodies outside of it */
+  private final Box initialBounds;
+
+  private final Pages cells = new Pages(CELL_BYTES);
+  private final Pages bodies = new Pages(BODY_BYTES);
+
+  int cellCount;
+  int bodyCount;
+
+  private boolean closed;
+
+  /** true for a tree that was mapped from a snapshot */
+  private boolean mapped;
+
+  private OffHeapBarnesHutOctTree(Builder builder) {
+    this(builder.theta, builder.bounds);
+  }
+
+  private OffHeapBarnesHutOctTree(double theta, Box initialBounds) {
+    this.theta = theta;
+    this.initialBounds = initialBounds;
+  }
+
+  /**
+   * write the tree to a snapshot file, which {@link #map(Path)} loads. An existing file is replaced
+   *
+   * @param file the file to write
+   * @throws IOException if the file can not be written
+   */
+  public void write(Path file) throws IOException {
+    checkOpen();
+    Box root = getBounds();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ORDER);
+    header.putInt(MAGIC).putInt(VERSION);
+    header.putInt(CELL_BYTES).putInt(BODY_BYTES).putInt(cellCount).putInt(bodyCount);
+    header.putDouble(theta);
+    header.putDouble(initialBounds.x).putDouble(initialBounds.y).putDouble(initialBounds.z);
+    header.putDouble(initialBounds.width).putDouble(initialBounds.height);
+    header.putDouble(initialBounds.depth);
+    header.putDouble(root.x).putDouble(root.y).putDouble(root.z);
+    header.putDouble(root.width).putDouble(root.height).putDouble(root.depth);
+    ((Buffer) header).clear();
+    try (FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      cells.write(channel, cellCount);
+      bodies.write(channel, bodyCount);
+    }
+    log.trace("wrote {} cells and {} bodies to {}", cellCount, bodyCount, file);
+  }
+
+  /**
+   * load a tree from a snapshot file that {@link #write(Path)} wrote, by mapping its records into
+   * memory. The records are read when the force passes reach them. The file must not be changed
+   * while the tree is in use.
+   *
+   * @param file the snapshot
+   * @return a tree that can be traversed but not rebuilt
+   * @throws IOException if the file can not be read or is not a snapshot of an oct tree
+   */
+  public static OffHeapBarnesHutOctTree map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ORDER);
+      while (header.hasRemaining() && channel.read(header) >= 0) {}
+      ((Buffer) header).flip();
+      if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+        throw new IOException(file + " is not an oct tree snapshot");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException(file + " has snapshot version " + version + ", not " + VERSION);
+      }
+      if (header.getInt() != CELL_BYTES || header.getInt() != BODY_BYTES) {
+        throw new IOException(file + " has a different record layout");
+      }
+      int cellCount = header.getInt();
+      int bodyCount = header.getInt();
+      double theta = header.getDouble();
+      Box initialBounds =
+          new Box(
+              header.getDouble(),
+              header.getDouble(),
+              header.getDouble(),
+              header.getDouble(),
+              header.getDouble(),
+              header.getDouble());
+      long size = HEADER_BYTES + (long) cellCount * CELL_BYTES + (long) bodyCount * BODY_BYTES;
+      if (channel.size() < size) {
+        throw new IOException(file + " is shorter than its " + size + " bytes of records");
+      }
+      OffHeapBarnesHutOctTree tree = new OffHeapBarnesHutOctTree(theta, initialBounds);
+      tree.mapped = true;
+      long position = tree.cells.map(channel, HEADER_BYTES, cellCount);
+      tree.bodies.map(channel, position, bodyCount);
+      tree.cellCount = cellCount;
+      tree.bodyCount = bodyCount;
+      log.trace("mapped {} cells and {} bodies from {}", cellCount, bodyCount, file);
+      return tree;
+    }
+  }
+
+  /** @return true if the tree was mapped from a snapshot, and so can not be rebuilt */
+  public boolean isMapped() {
+    return mapped;
+  }
+
+  /** @return the bounds of the root cell */
+  public Box getBounds() {
+    if (cellCount == 0) {
+      return initialBounds;
+    }
+    return new Box(
+        cells.getDouble(ROOT, X),
+        cells.getDouble(ROOT, Y),
+        cells.getDouble(ROOT, Z),
+        cells.getDouble(ROOT, WIDTH),
+        cells.getDouble(ROOT, HEIGHT),
+        cells.getDouble(ROOT, DEPTH));
+  }
+
+  /** @return the number of cells, inner and leaf, in the tree */
+  public int getCellCount() {
+    return cellCount;
+  }
+
+  /** @return the number of bodies passed to the last rebuild */
+  public int getBodyCount() {
+    return bodyCount;
+  }
+
+  /** @return the bytes of direct memory that the tree holds */
+  public long getStorageBytes() {
+    return cells.bytes() + bodies.bytes();
+  }
+
+  public double getTheta() {
+    return theta;
+  }
+
+  /**
+   * change the opening threshold, for example from a {@link ThetaController} between frames
+   *
+   * @param theta the new threshold
+   */
+  public void setTheta(double theta) {
+    this.theta = theta;
+  }
+
+  /**
+   * remove all cells and bodies. The storage is kept for the next rebuild, and the mapping of a
+   * mapped tree until it is closed
+   */
+  public void clear() {
+    cellCount = 0;
+    bodyCount = 0;
+  }
+
+  /**
+   * remove all cells and bodies and drop the storage. A closed tree can not be rebuilt or
+   * traversed, and closing it again does nothing
+   */
+  @Override
+  public void close() {
+    clear();
+    if (!closed) {
+      closed = true;
+      log.trace("released {} bytes", getStorageBytes());
+      cells.release();
+      bodies.release();
+    }
+  }
+
+  /**
+   * grow the storage to hold at least this many bodies and cells, so that rebuilds that fit do not
+   * allocate
+   *
+   * @param bodies the number of bodies
+   * @param cells the number of cells
+   */
+  public void ensureCapacity(int bodies, int cells) {
+    checkWritable();
+    this.bodies.ensureCapacity(bodies);
+    this.cells.ensureCapacity(cells);
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("the tree is closed");
+    }
+  }
+
+  private void checkWritable() {
+    checkOpen();
+    if (mapped) {
+      throw new IllegalStateException("the tree is mapped from a snapshot and can not be rebuilt");
+    }
+  }
+
+  /**
+   * rebuild the tree with bodies of unit mass
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param zs z coordinates of the bodies
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, double[] zs, int count) {
+    rebuild(xs, ys, zs, null, count);
+  }
+
+  /**
+   * rebuild the tree. Body {@code i} is at {@code (xs[i], ys[i], zs[i])} with mass {@code
+   * masses[i]}. The values are copied, so the arrays may be changed after this method returns.
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param zs z coordinates of the bodies
+   * @param masses masses of the bodies, or null for unit masses
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, double[] zs, double[] masses, int count) {
+    checkWritable();
+    clear();
+    bodies.ensureCapacity(count);
+    double minX = initialBounds.x;
+    double minY = initialBounds.y;
+    double minZ = initialBounds.z;
+    double maxX = initialBounds.maxX;
+    double maxY = initialBounds.maxY;
+    double maxZ = initialBounds.maxZ;
+    for (int i = 0; i < count; i++) {
+      double x = xs[i];
+      double y = ys[i];
+      double z = zs[i];
+      bodies.putDouble(i, BODY_X, x);
+      bodies.putDouble(i, BODY_Y, y);
+      bodies.putDouble(i, BODY_Z, z);
+      bodies.putDouble(i, BODY_MASS, masses != null ? masses[i] : 1);
+      bodies.putInt(i, NEXT, NONE);
+      // grow the root to hold every body. Bodies with no location are not inserted, and would
+      // make the root bounds NaN
+      if (!Double.isNaN(x) && !Double.isNaN(y) && !Double.isNaN(z)) {
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+        minZ = Math.min(minZ, z);
+        maxZ = Math.max(maxZ, z);
+      }
+    }
+    bodyCount = count;
+    cells.ensureCapacity(Math.max(16, 2 * count));
+    newCell(minX, minY, minZ, maxX - minX, maxY - minY, maxZ - minZ);
+    for (int i = 0; i < count; i++) {
+      if (Double.isNaN(bodies.getDouble(i, BODY_X))
+          || Double.isNaN(bodies.getDouble(i, BODY_Y))
+          || Double.isNaN(bodies.getDouble(i, BODY_Z))) {
+        if (log.isTraceEnabled()) {
+          log.trace("body {} has no location", i);
+        }
+        continue;
+      }
+      insert(i);
+    }
+  }
+
+  /**
+   * visit the cells of the tree and pass the mass summaries that act on body {@code index} to the
+   * visitor
+   *
+   * @param index the body to gather forces for
+   * @param visitor receives each accepted mass summary
+   */
+  public void applyForcesTo(int index, FlatBarnesHutOctTree.ForceVisitor visitor) {
+    checkOpen();
+    if (cellCount > 0) {
+      applyForcesTo(
+          ROOT,
+          index,
+          bodies.getDouble(index, BODY_X),
+          bodies.getDouble(index, BODY_Y),
+          bodies.getDouble(index, BODY_Z),
+          visitor);
+    }
+  }
+
+  private void applyForcesTo(
+      int cell,
+      int index,
+      double x,
+      double y,
+      double z,
+      FlatBarnesHutOctTree.ForceVisitor visitor) {
+    int resident = cells.getInt(cell, BODY);
+    int child = cells.getInt(cell, FIRST_CHILD);
+    double centerX = cells.getDouble(cell, CENTER_X);
+    double centerY = cells.getDouble(cell, CENTER_Y);
+    double centerZ = cells.getDouble(cell, CENTER_Z);
+    if (child == NONE) {
+      // a leaf. bodies at the same location are visited as one aggregate, as in Node
+      if (resident == NONE || (resident == index && bodies.getInt(resident, NEXT) == NONE)) {
+        return;
+      }
+      visitor.addForceFrom(centerX, centerY, centerZ, cells.getDouble(cell, MASS));
+      return;
+    }
+    double dx = centerX - x;
+    double dy = centerY - y;
+    double dz = centerZ - z;
+    double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+    if (cells.getDouble(cell, WIDTH) / d < theta) {
+      // this cell is sufficiently far away, just use its summary
+      visitor.addForceFrom(centerX, centerY, centerZ, cells.getDouble(cell, MASS));
+    } else {
+      for (int i = 0; i < 8; i++) {
+        applyForcesTo(child + i, index, x, y, z, visitor);
+      }
+    }
+  }
+
+  /**
+   * set {@code fx[i]}, {@code fy[i]} and {@code fz[i]} to the force of the kernel on every body
+   * {@code i} of the last rebuild
+   *
+   * @param kernel the force law
+   * @param fx receives the x components of the forces, at least {@link #getBodyCount()} long
+   * @param fy receives the y components of the forces
+   * @param fz receives the z components of the forces
+   */
+  public void applyForces(ForceKernel kernel, double[] fx, double[] fy, double[] fz) {
+    checkOpen();
+    for (int i = 0; i < bodyCount; i++) {
+      applyForcesTo(i, kernel, fx, fy, fz);
+    }
+  }
+
+  /**
+   * set {@code fx[index]}, {@code fy[index]} and {@code fz[index]} to the force of the kernel on
+   * body {@code index}. The kernel is evaluated for each accepted mass summary inside the
+   * traversal.
+   *
+   * @param index the body to compute the force on
+   * @param kernel the force law
+   * @param fx receives the x component of the force
+   * @param fy receives the y component of the force
+   * @param fz receives the z component of the force
+   */
+  public void applyForcesTo(int index, ForceKernel kernel, double[] fx, double[] fy, double[] fz) {
+    checkOpen();
+    fx[index] = 0;
+    fy[index] = 0;
+    fz[index] = 0;
+    if (cellCount == 0) {
+      return;
+    }
+    double x = bodies.getDouble(index, BODY_X);
+    double y = bodies.getDouble(index, BODY_Y);
+    double z = bodies.getDouble(index, BODY_Z);
+    if (!Double.isNaN(x) && !Double.isNaN(y) && !Double.isNaN(z)) {
+      applyForcesTo(ROOT, index, x, y, z, kernel, fx, fy, fz);
+    }
+  }
+
+  private void applyForcesTo(
+      int cell,
+      int index,
+      double x,
+      double y,
+      double z,
+      ForceKernel kernel,
+      double[] fx,
+      double[] fy,
+      double[] fz) {
+    int child = cells.getInt(cell, FIRST_CHILD);
+    if (child == NONE && cells.getInt(cell, BODY) == NONE) {
+      return;
+    }
+    double dx = x - cells.getDouble(cell, CENTER_X);
+    double dy = y - cells.getDouble(cell, CENTER_Y);
+    double dz = z - cells.getDouble(cell, CENTER_Z);
+    double distanceSquared = dx * dx + dy * dy + dz * dz;
+    // a leaf, which adds nothing when it is at the body's location, or a cell that is sufficiently
+    // far away to use its summary
+    if (child == NONE || cells.getDouble(cell, WIDTH) / Math.sqrt(distanceSquared) < theta) {
+      double scale = kernel.scale(distanceSquared, cells.getDouble(cell, MASS));
+      fx[index] += dx * scale;
+      fy[index] += dy * scale;
+      fz[index] += dz * scale;
+    } else {
+      for (int i = 0; i < 8; i++) {
+        applyForcesTo(child + i, index, x, y, z, kernel, fx, fy, fz);
+      }
+    }
+  }
+
+  /**
+   * insert body {@code b}, descending from the root and splitting occupied leaves as needed
+   *
+   * @param b the index of the body
+   */
+  private void insert(int b) {
+    double x = bodies.getDouble(b, BODY_X);
+    double y = bodies.getDouble(b, BODY_Y);
+    double z = bodies.getDouble(b, BODY_Z);
+    double m = bodies.getDouble(b, BODY_MASS);
+    int cell = ROOT;
+    while (true) {
+      int child = cells.getInt(cell, FIRST_CHILD);
+      if (child == NONE) {
+        int resident = cells.getInt(cell, BODY);
+        if (resident == NONE) {
+          // an empty leaf
+          cells.putInt(cell, BODY, b);
+          cells.putDouble(cell, CENTER_X, x);
+          cells.putDouble(cell, CENTER_Y, y);
+          cells.putDouble(cell, CENTER_Z, z);
+          cells.putDouble(cell, MASS, m);
+          return;
+        }
+        double residentX = bodies.getDouble(resident, BODY_X);
+        double residentY = bodies.getDouble(resident, BODY_Y);
+        double residentZ = bodies.getDouble(resident, BODY_Z);
+        if (Double.compare(residentX, x) == 0
+            && Double.compare(residentY, y) == 0
+            && Double.compare(residentZ, z) == 0) {
+          // same location. just add the new mass to the leaf
+          bodies.putInt(b, NEXT, bodies.getInt(resident, NEXT));
+          bodies.putInt(resident, NEXT, b);
+          addMass(cell, x, y, z, m);
+          return;
+        }
+        // there already is a body at a different location, so split and move the resident down
+        child = split(cell);
+        int target = child + octant(cell, residentX, residentY, residentZ);
+        cells.putInt(target, BODY, resident);
+        cells.putDouble(target, CENTER_X, cells.getDouble(cell, CENTER_X));
+        cells.putDouble(target, CENTER_Y, cells.getDouble(cell, CENTER_Y));
+        cells.putDouble(target, CENTER_Z, cells.getDouble(cell, CENTER_Z));
+        cells.putDouble(target, MASS, cells.getDouble(cell, MASS));
+        cells.putInt(cell, BODY, NONE);
+      }
+      // update the center of mass of this inner cell and follow down the tree
+      addMass(cell, x, y, z, m);
+      cell = child + octant(cell, x, y, z);
+    }
+  }
+
+  /** combine a mass into the summary of a cell, with the same arithmetic as ForceObject.add */
+  private void addMass(int cell, double x, double y, double z, double m) {
+    double cellMass = cells.getDouble(cell, MASS);
+    double totalMass = cellMass + m;
+    double centerX = cells.getDouble(cell, CENTER_X);
+    double centerY = cells.getDouble(cell, CENTER_Y);
+    double centerZ = cells.getDouble(cell, CENTER_Z);
+    if (Double.compare(centerX, x) == 0
+        && Double.compare(centerY, y) == 0
+        && Double.compare(centerZ, z) == 0) {
+      cells.putDouble(cell, MASS, totalMass);
+      return;
+    }
+    cells.putDouble(cell, CENTER_X, (centerX * cellMass + x * m) / totalMass);
+    cells.putDouble(cell, CENTER_Y, (centerY * cellMass + y * m) / totalMass);
+    cells.putDouble(cell, CENTER_Z, (centerZ * cellMass + z * m) / totalMass);
+    cells.putDouble(cell, MASS, totalMass);
+  }
+
+  /**
+   * the octant of {@code cell} that holds a location. Locations on a dividing plane go to the west,
+   * north and front octants, as in {@link FlatBarnesHutOctTree}
+   *
+   * @return 0 for FNW, 1 for FNE, 2 for FSW, 3 for FSE, 4 for BNW, 5 for BNE, 6 for BSW, 7 for BSE
+   */
+  int octant(int cell, double x, double y, double z) {
+    boolean west = x <= cells.getDouble(cell, X) + cells.getDouble(cell, WIDTH) / 2;
+    boolean north = y <= cells.getDouble(cell, Y) + cells.getDouble(cell, HEIGHT) / 2;
+    boolean front = z >= cells.getDouble(cell, Z) + cells.getDouble(cell, DEPTH) / 2;
+    return (front ? 0 : 4) + (north ? 0 : 2) + (west ? 0 : 1);
+  }
+
+  /**
+   * add 8 child cells to {@code cell}
+   *
+   * @return the index of the first (FNW) child
+   */
+  private int split(int cell) {
+    double width = cells.getDouble(cell, WIDTH) / 2;
+    double height = cells.getDouble(cell, HEIGHT) / 2;
+    double depth = cells.getDouble(cell, DEPTH) / 2;
+    double x = cells.getDouble(cell, X);
+    double y = cells.getDouble(cell, Y);
+    double z = cells.getDouble(cell, Z);
+    cells.ensureCapacity(cellCount + 8);
+    int child = newCell(x, y, z + depth, width, height, depth);
+    newCell(x + width, y, z + depth, width, height, depth);
+    newCell(x, y + height, z + depth, width, height, depth);
+    newCell(x + width, y + height, z + depth, width, height, depth);
+    newCell(x, y, z, width, height, depth);
+    newCell(x + width, y, z, width, height, depth);
+    newCell(x, y + height, z, width, height, depth);
+    newCell(x + width, y + height, z, width, height, depth);
+    cells.putInt(cell, FIRST_CHILD, child);
+    return child;
+  }
+
+  private int newCell(double x, double y, double z, double width, double height, double depth) {
+    int cell = cellCount++;
+    cells.putDouble(cell, X, x);
+    cells.putDouble(cell, Y, y);
+    cells.putDouble(cell, Z, z);
+    cells.putDouble(cell, WIDTH, width);
+    cells.putDouble(cell, HEIGHT, height);
+    cells.putDouble(cell, DEPTH, depth);
+    cells.putDouble(cell, CENTER_X, 0);
+    cells.putDouble(cell, CENTER_Y, 0);
+    cells.putDouble(cell, CENTER_Z, 0);
+    cells.putDouble(cell, MASS, 0);
+    cells.putInt(cell, FIRST_CHILD, NONE);
+    cells.putInt(cell, BODY, NONE);
+    return cell;
+  }
+
+  @Override
+  public String toString() {
+    return "OffHeapTree:{cells="
+        + cellCount
+        + ", bodies="
+        + bodyCount
+        + ", bounds="
+        + getBounds()
+        + ", bytes="
+        + getStorageBytes()
+        + "}";
+  }
+}
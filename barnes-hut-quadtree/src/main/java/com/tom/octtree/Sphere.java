@@ -1,7 +1,7 @@
 package com.tom.octtree;
 
 /**
- * unused at this time
+ * a sphere for {@link BarnesHutOctTree#query(Sphere, java.util.function.BiConsumer)}
  *
  * @author Tom Nelson
  */
@@ -35,6 +35,8 @@ public class Sphere {
     if (r.maxY < center.y - radius) return false;
     if (r.x > center.x + radius) return false;
     if (r.y > center.y + radius) return false;
+    if (r.maxZ < center.z - radius) return false;
+    if (r.z > center.z + radius) return false;
     // more expensive test
     return squaredDistance(center, r) < radius * radius;
   }
@@ -55,6 +57,13 @@ public class Sphere {
     if (cy > r.maxY) {
       distSq += (cy - r.maxY) * (cy - r.maxY);
     }
+    double cz = p.z;
+    if (cz < r.z) {
+      distSq += (r.z - cz) * (r.z - cz);
+    }
+    if (cz > r.maxZ) {
+      distSq += (cz - r.maxZ) * (cz - r.maxZ);
+    }
     return distSq;
   }
 }
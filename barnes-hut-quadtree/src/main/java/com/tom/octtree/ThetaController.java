@@ -0,0 +1,237 @@
+package com.tom.octtree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts theta once per frame to hold a measurement at a target, instead of tuning it by hand for
+ * each data set. The target is either a time budget for the force pass, which a larger theta meets
+ * by visiting fewer nodes, or a bound on the relative force error, which a smaller theta meets by
+ * opening more of them. Small trees then get nearly exact forces and large trees stay within their
+ * frame time.
+ *
+ * <pre>{@code
+ * ThetaController controller = ThetaController.builder().timeBudget(8_000_000).build();
+ * // each frame
+ * long start = System.nanoTime();
+ * tree.applyForcesToAll(visitors);
+ * tree.setTheta(controller.update(System.nanoTime() - start));
+ * }</pre>
+ *
+ * <p>The cost of a force pass and its error both change with a power of theta, about {@code
+ * theta^-3} and {@code theta^2}, so each update multiplies theta by the ratio of the smoothed
+ * measurement to the target raised to the gain, 0.5 by default. The step of one update is limited,
+ * measurements within the tolerance of the target leave theta alone, and theta stays between its
+ * minimum and maximum. {@link FlatBarnesHutOctTree#sampleError(ForceKernel, int)} estimates the
+ * error for an error bound.
+ *
+ * @author Tom Nelson
+ */
+public class ThetaController {
+
+  private static final Logger log = LoggerFactory.getLogger(ThetaController.class);
+
+  public static final double DEFAULT_MIN_THETA = 0.1;
+
+  public static final double DEFAULT_MAX_THETA = 1.2;
+
+  public static final double DEFAULT_GAIN = 0.5;
+
+  public static final double DEFAULT_SMOOTHING = 0.5;
+
+  public static final double DEFAULT_TOLERANCE = 0.05;
+
+  /** the largest factor that one update changes theta by */
+  public static final double DEFAULT_MAX_STEP = 1.5;
+
+  public static class Builder {
+    protected double target = Double.NaN;
+    protected boolean timeBudget;
+    protected double initialTheta = Node.DEFAULT_THETA;
+    protected double minTheta = DEFAULT_MIN_THETA;
+    protected double maxTheta = DEFAULT_MAX_THETA;
+    protected double gain = DEFAULT_GAIN;
+    protected double smoothing = DEFAULT_SMOOTHING;
+    protected double tolerance = DEFAULT_TOLERANCE;
+    protected double maxStep = DEFAULT_MAX_STEP;
+
+    /**
+     * hold the time of the force pass at the budget. Measurements are in nanoseconds.
+     *
+     * @param nanos the budget for one force pass
+     */
+    public ThetaController.Builder timeBudget(long nanos) {
+      if (nanos <= 0) {
+        throw new IllegalArgumentException("the time budget must be positive: " + nanos);
+      }
+      this.target = nanos;
+      this.timeBudget = true;
+      return this;
+    }
+
+    /**
+     * hold the relative force error at the bound, for example 0.01 for an RMS relative error of 1%
+     *
+     * @param error the error to hold
+     */
+    public ThetaController.Builder errorBound(double error) {
+      if (!(error > 0)) {
+        throw new IllegalArgumentException("the error bound must be positive: " + error);
+      }
+      this.target = error;
+      this.timeBudget = false;
+      return this;
+    }
+
+    /** @param theta the theta to start from */
+    public ThetaController.Builder initialTheta(double theta) {
+      this.initialTheta = theta;
+      return this;
+    }
+
+    /**
+     * @param minTheta the smallest theta, greater than 0
+     * @param maxTheta the largest theta
+     */
+    public ThetaController.Builder range(double minTheta, double maxTheta) {
+      if (!(minTheta > 0) || !(maxTheta >= minTheta)) {
+        throw new IllegalArgumentException("bad theta range: " + minTheta + ", " + maxTheta);
+      }
+      this.minTheta = minTheta;
+      this.maxTheta = maxTheta;
+      return this;
+    }
+
+    /** @param gain the power of the ratio of measurement to target that theta is multiplied by */
+    public ThetaController.Builder gain(double gain) {
+      this.gain = gain;
+      return this;
+    }
+
+    /**
+     * @param smoothing the weight, from 0 to 1, of the newest measurement in the moving average. 1
+     *     uses each measurement as it is
+     */
+    public ThetaController.Builder smoothing(double smoothing) {
+      if (!(smoothing > 0 && smoothing <= 1)) {
+        throw new IllegalArgumentException("smoothing must be in (0, 1]: " + smoothing);
+      }
+      this.smoothing = smoothing;
+      return this;
+    }
+
+    /** @param tolerance the relative distance from the target within which theta is kept */
+    public ThetaController.Builder tolerance(double tolerance) {
+      this.tolerance = tolerance;
+      return this;
+    }
+
+    /** @param maxStep the largest factor, greater than 1, that one update changes theta by */
+    public ThetaController.Builder maxStep(double maxStep) {
+      if (!(maxStep > 1)) {
+        throw new IllegalArgumentException("maxStep must be greater than 1: " + maxStep);
+      }
+      this.maxStep = maxStep;
+      return this;
+    }
+
+    public ThetaController build() {
+      if (Double.isNaN(target)) {
+        throw new IllegalStateException("set a time budget or an error bound");
+      }
+      return new ThetaController(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final double target;
+  private final boolean timeBudget;
+  private final double minTheta;
+  private final double maxTheta;
+  private final double gain;
+  private final double smoothing;
+  private final double tolerance;
+  private final double maxStep;
+
+  private double theta;
+
+  /** the moving average of the measurements, or NaN before the first */
+  private double average = Double.NaN;
+
+  private ThetaController(Builder builder) {
+    this.target = builder.target;
+    this.timeBudget = builder.timeBudget;
+    this.minTheta = builder.minTheta;
+    this.maxTheta = builder.maxTheta;
+    this.gain = builder.gain;
+    this.smoothing = builder.smoothing;
+    this.tolerance = builder.tolerance;
+    this.maxStep = builder.maxStep;
+    this.theta = clamp(builder.initialTheta);
+  }
+
+  /** @return the theta for the next frame */
+  public double getTheta() {
+    return theta;
+  }
+
+  /** @return the time budget in nanoseconds or the error bound */
+  public double getTarget() {
+    return target;
+  }
+
+  /** @return true if the target is a time budget, false if it is an error bound */
+  public boolean isTimeBudget() {
+    return timeBudget;
+  }
+
+  /**
+   * adjust theta from the measurement of the frame that used the current theta
+   *
+   * @param measurement the time of the force pass in nanoseconds, or its relative error
+   * @return the theta for the next frame
+   */
+  public double update(double measurement) {
+    if (Double.isNaN(measurement) || measurement < 0) {
+      return theta;
+    }
+    average =
+        Double.isNaN(average) ? measurement : smoothing * measurement + (1 - smoothing) * average;
+    double ratio = average / target;
+    if (Math.abs(ratio - 1) <= tolerance) {
+      return theta;
+    }
+    // a pass that is too slow needs a larger theta, a pass that is too inaccurate a smaller one
+    double step = Math.pow(Math.max(ratio, Double.MIN_NORMAL), timeBudget ? gain : -gain);
+    step = Math.max(1 / maxStep, Math.min(maxStep, step));
+    double next = clamp(theta * step);
+    if (log.isTraceEnabled()) {
+      log.trace("measured {} for a target of {}, theta {} -> {}", average, target, theta, next);
+    }
+    theta = next;
+    return theta;
+  }
+
+  /** forget the measurements and start again from a theta */
+  public void reset(double theta) {
+    this.theta = clamp(theta);
+    this.average = Double.NaN;
+  }
+
+  private double clamp(double theta) {
+    return Math.max(minTheta, Math.min(maxTheta, theta));
+  }
+
+  @Override
+  public String toString() {
+    return "ThetaController{"
+        + (timeBudget ? "timeBudget=" : "errorBound=")
+        + target
+        + ", theta="
+        + theta
+        + "}";
+  }
+}
@@ -1,6 +1,15 @@
 package com.tom.quadtree;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +20,9 @@ import org.slf4j.LoggerFactory;
  * http://www.cs.princeton.edu/courses/archive/fall03/cs126/assignments/barnes-hut.html
  * https://github.com/chindesaurus/BarnesHut-N-Body
  *
+ * <p>Edits and rebuilds hold the lock of the tree, and force passes must not run during them. To
+ * read one frame while the next is built, use a {@link DoubleBufferedQuadTree}.
+ *
  * @author Tom Nelson
  */
 public class BarnesHutQuadTree<T> {
@@ -23,6 +35,15 @@ public class BarnesHutQuadTree<T> {
   public static class Builder<T> {
     protected double theta = Node.DEFAULT_THETA;
     protected Rectangle bounds;
+    protected ForkJoinPool pool;
+    protected int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    protected boolean mortonOrder;
+    protected boolean deferredAggregation;
+    protected NodeArena<T> arena;
+    protected int leafCapacity = 1;
+    protected boolean leafIndex;
+    protected boolean quadrupole;
+    protected boolean stats;
 
     public BarnesHutQuadTree.Builder bounds(Rectangle bounds) {
       this.bounds = bounds;
@@ -44,6 +65,120 @@ public class BarnesHutQuadTree<T> {
       return this;
     }
 
+    /**
+     * build the tree in parallel on the common {@link ForkJoinPool} during {@code rebuild}
+     *
+     * @param parallel true to build in parallel, false to insert on the calling thread
+     */
+    public BarnesHutQuadTree.Builder parallel(boolean parallel) {
+      this.pool = parallel ? ForkJoinPool.commonPool() : null;
+      return this;
+    }
+
+    /**
+     * build the tree in parallel on the passed pool during {@code rebuild}
+     *
+     * @param pool the pool to build in
+     */
+    public BarnesHutQuadTree.Builder parallel(ForkJoinPool pool) {
+      this.pool = pool;
+      return this;
+    }
+
+    /** @param parallelThreshold subtrees with at most this many elements are built by one thread */
+    public BarnesHutQuadTree.Builder parallelThreshold(int parallelThreshold) {
+      this.parallelThreshold = parallelThreshold;
+      return this;
+    }
+
+    /**
+     * bulk load the tree in Morton (Z-curve) order during {@code rebuild} instead of inserting the
+     * elements one at a time from the root
+     *
+     * @param mortonOrder true to bulk load in Morton order
+     */
+    public BarnesHutQuadTree.Builder mortonOrder(boolean mortonOrder) {
+      this.mortonOrder = mortonOrder;
+      return this;
+    }
+
+    /**
+     * sum the masses of the inner nodes in one pass after the elements are inserted, instead of
+     * creating a new summary ForceObject at every level of every insert
+     *
+     * @param deferredAggregation true to aggregate after the elements are inserted
+     */
+    public BarnesHutQuadTree.Builder deferredAggregation(boolean deferredAggregation) {
+      this.deferredAggregation = deferredAggregation;
+      return this;
+    }
+
+    /**
+     * take the nodes of the tree from an arena that each rebuild resets and refills, instead of
+     * creating new nodes. Nodes taken from the tree are only valid until the next rebuild.
+     *
+     * @param arena the arena to take nodes from
+     */
+    public BarnesHutQuadTree.Builder arena(NodeArena<T> arena) {
+      this.arena = arena;
+      return this;
+    }
+
+    /**
+     * let leaves hold up to {@code leafCapacity} elements before they split. Visitors sum the
+     * forces from the elements of a leaf directly, so a larger capacity trades some direct
+     * summation for fewer nodes to build and to traverse. The default of 1 merges elements at the
+     * same location into one summary.
+     *
+     * @param leafCapacity the number of elements that a leaf holds, at least 1
+     */
+    public BarnesHutQuadTree.Builder leafCapacity(int leafCapacity) {
+      if (leafCapacity < 1) {
+        throw new IllegalArgumentException("leafCapacity must be at least 1: " + leafCapacity);
+      }
+      this.leafCapacity = leafCapacity;
+      return this;
+    }
+
+    /**
+     * keep an index from each element to the leaf that holds it, filled by {@code rebuild} and kept
+     * up to date by edits. Visitors whose element is in the index skip their own leaf without
+     * calling {@code equals} at every visited node, edits find their leaf without a descent, and
+     * {@link BarnesHutQuadTree#getLeaf(Object)} is a lookup. Elements are matched by identity, so a
+     * visitor must hold the same element instance that was passed to the tree. Visitors with other
+     * instances fall back to comparing elements with {@code equals}.
+     *
+     * @param leafIndex true to keep the index
+     */
+    public BarnesHutQuadTree.Builder leafIndex(boolean leafIndex) {
+      this.leafIndex = leafIndex;
+      return this;
+    }
+
+    /**
+     * keep the second moments of the mass of each inner node, and pass them to visitors with the
+     * summary of the node in {@link ForceObject#addForceFrom(ForceObject, double, double, double)}.
+     * A visitor that adds the quadrupole term to its force reaches the accuracy of a smaller theta
+     * with a larger one, and so visits fewer nodes.
+     *
+     * @param quadrupole true to keep the second moments
+     */
+    public BarnesHutQuadTree.Builder quadrupole(boolean quadrupole) {
+      this.quadrupole = quadrupole;
+      return this;
+    }
+
+    /**
+     * keep {@link TraversalStats} of the rebuilds and force traversals of the tree. Without them,
+     * rebuilds are not timed and traversals do no counting.
+     *
+     * @param stats true to keep statistics
+     */
+    public BarnesHutQuadTree.Builder stats(boolean stats) {
+      this.stats = stats;
+      return this;
+    }
+
     public BarnesHutQuadTree<T> build() {
       return new BarnesHutQuadTree(this);
     }
@@ -68,8 +203,50 @@ public class BarnesHutQuadTree<T> {
 
   private Object lock = new Object();
 
+  /** the default for the largest subtree that a parallel rebuild builds on one thread */
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+
+  /** the pool for parallel rebuilds, or null to rebuild on the calling thread */
+  private final ForkJoinPool pool;
+
+  private final int parallelThreshold;
+
+  /** true to bulk load rebuilds in Morton order */
+  private final boolean mortonOrder;
+
+  /** the ForceObjects that were inserted since the last rebuild, before there is an index */
+  private final List<ForceObject<T>> inserted = new ArrayList<>();
+
+  /** the ForceObject of each element, made from {@code inserted} by the first edit */
+  private Map<T, ForceObject<T>> index;
+
+  /** the leaf that holds each element, by identity, or null if the tree keeps no leaf index */
+  private final Map<T, Node<T>> leaves;
+
+  /** the statistics of the tree, or null if it keeps none */
+  private final TraversalStats stats;
+
+  /**
+   * the engine for frames that are rebuilt from primitive arrays, created by the first of them. It
+   * is empty while the frame is made of elements
+   */
+  private FlatBarnesHutQuadTree flat;
+
   private BarnesHutQuadTree(Builder<T> builder) {
-    this.root = Node.<T>builder().withArea(builder.bounds).withTheta(builder.theta).build();
+    this.root =
+        Node.<T>builder()
+            .withArea(builder.bounds)
+            .withTheta(builder.theta)
+            .withDeferredAggregation(builder.deferredAggregation)
+            .withArena(builder.arena)
+            .withLeafCapacity(builder.leafCapacity)
+            .withQuadrupole(builder.quadrupole)
+            .build();
+    this.pool = builder.pool;
+    this.parallelThreshold = builder.parallelThreshold;
+    this.mortonOrder = builder.mortonOrder;
+    this.leaves = builder.leafIndex ? new IdentityHashMap<>() : null;
+    this.stats = builder.stats ? new TraversalStats() : null;
   }
 
   /*
@@ -77,6 +254,48 @@ public class BarnesHutQuadTree<T> {
    */
   public void clear() {
     root.clear();
+    if (root.arena != null) {
+      root.arena.reset();
+    }
+    inserted.clear();
+    index = null;
+    if (leaves != null) {
+      leaves.clear();
+    }
+    if (flat != null) {
+      flat.clear();
+    }
+  }
+
+  /** @return the opening threshold of the nodes of this tree */
+  public double getTheta() {
+    return root.getTheta();
+  }
+
+  /**
+   * change the opening threshold of the tree, for example from a {@link ThetaController} between
+   * frames. Every node takes the new theta, and so do the nodes of later rebuilds and edits. The
+   * tree must not be traversed while its theta changes.
+   *
+   * @param theta the new threshold
+   */
+  public void setTheta(double theta) {
+    synchronized (lock) {
+      root.setTheta(theta);
+      if (flat != null) {
+        flat.setTheta(theta);
+      }
+    }
+  }
+
+  /** @return the statistics of the tree, or null if it was not built to keep them */
+  public TraversalStats getStats() {
+    return stats;
+  }
+
+  /** @return the arena that the nodes of this tree come from, or null if there is none */
+  public NodeArena<T> getArena() {
+    return root.arena;
   }
 
   /**
@@ -86,7 +305,74 @@ public class BarnesHutQuadTree<T> {
    */
   public void applyForcesTo(ForceObject<T> visitor) {
     if (root != null && root.forceObject != visitor) {
-      root.applyForcesTo(visitor);
+      Node<T> self = leaves != null ? leaves.get(visitor.getElement()) : null;
+      if (stats != null) {
+        TraversalStats.Counter counter = stats.counter();
+        root.applyForcesTo(visitor, self, counter);
+        stats.record(counter);
+      } else if (self != null) {
+        root.applyForcesTo(visitor, self);
+      } else {
+        root.applyForcesTo(visitor);
+      }
+    }
+  }
+
+  /**
+   * @param element an element in the tree
+   * @return the leaf that holds the element, or null if it is not in the tree. With a leaf index
+   *     this is a lookup, otherwise a descent from the root.
+   */
+  public Node<T> getLeaf(T element) {
+    synchronized (lock) {
+      Node<T> leaf = leaves != null ? leaves.get(element) : null;
+      if (leaf != null) {
+        return leaf;
+      }
+      ForceObject<T> forceObject = index().get(element);
+      return forceObject != null ? root.leafOf(forceObject) : null;
+    }
+  }
+
+  /**
+   * pass each element whose location is inside the rectangle, edges included, to the consumer. Only
+   * the nodes that overlap the rectangle are visited, so the cost is the depth of the tree plus the
+   * elements near the rectangle, not a scan of every element. Like the force passes, a query takes
+   * no lock, and the tree must not be rebuilt or edited while it runs. Elements of a rebuild from
+   * primitive arrays are not found.
+   *
+   * @param area the rectangle to search
+   * @param consumer receives each element and its location
+   */
+  public void query(Rectangle area, BiConsumer<T, Point> consumer) {
+    root.query(area, consumer);
+  }
+
+  /**
+   * pass each element whose location is inside the circle, edge included, to the consumer. Only the
+   * nodes that overlap the circle are visited.
+   *
+   * @param circle the circle to search
+   * @param consumer receives each element and its location
+   * @see #query(Rectangle, BiConsumer)
+   */
+  public void query(Circle circle, BiConsumer<T, Point> consumer) {
+    root.query(circle, consumer);
+  }
+
+  /**
+   * pass the {@code k} elements nearest to a location to the consumer, nearest first, or every
+   * element if there are fewer. Elements at the same distance come in no particular order. Only the
+   * nodes that may hold one of them are visited.
+   *
+   * @param location the location to search from
+   * @param k the number of elements to find
+   * @param consumer receives each element and its location
+   * @see #query(Rectangle, BiConsumer)
+   */
+  public void nearest(Point location, int k, BiConsumer<T, Point> consumer) {
+    if (k > 0) {
+      root.nearest(location.x, location.y, k, consumer);
     }
   }
 
@@ -96,7 +382,12 @@ public class BarnesHutQuadTree<T> {
    */
   protected void insert(ForceObject node) {
     synchronized (lock) {
-      root.insert(node);
+      if (index != null) {
+        index.put((T) node.getElement(), node);
+      } else {
+        inserted.add(node);
+      }
+      insertForceObject(node);
     }
   }
 
@@ -107,10 +398,7 @@ public class BarnesHutQuadTree<T> {
    * @param locations function to get locations from elements
    */
   public void rebuild(Collection<T> elements, Function<T, Point> locations) {
-    clear();
-    synchronized (lock) {
-      elements.forEach(element -> insert(new ForceObject(element, locations.apply(element))));
-    }
+    rebuildFrom(elements, element -> new ForceObject<>(element, locations.apply(element)));
   }
 
   /**
@@ -120,11 +408,524 @@ public class BarnesHutQuadTree<T> {
    */
   public void rebuild(
       Collection<T> elements, Function<T, Double> masses, Function<T, Point> locations) {
-    clear();
+    rebuildFrom(
+        elements,
+        element -> new ForceObject<>(element, locations.apply(element), masses.apply(element)));
+  }
+
+  /**
+   * rebuild the quad tree from bodies of unit mass in primitive arrays. See {@link
+   * #rebuild(double[], double[], double[], int)}.
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, int count) {
+    rebuild(xs, ys, null, count);
+  }
+
+  /**
+   * rebuild the quad tree from bodies in primitive arrays, with no {@link ForceObject}, {@link
+   * Point} or boxed mass per body. Body {@code i} is at {@code (xs[i], ys[i])} with mass {@code
+   * masses[i]}, and is identified by its index. The values are copied, so the arrays may be changed
+   * after this method returns.
+   *
+   * <p>The bodies are built into a {@link FlatBarnesHutQuadTree} with the bounds and theta of this
+   * tree, which merges bodies at the same location into one leaf as a tree with a leaf capacity of
+   * 1 does. Its forces are gathered by body index with {@link #applyForcesTo(int, ForceKernel,
+   * double[], double[])} and {@link #applyForcesTo(int, FlatBarnesHutQuadTree.ForceVisitor)}. The
+   * elements of an earlier rebuild are removed, so {@link #getRoot()} is empty until the next
+   * rebuild from elements.
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param masses masses of the bodies, or null for unit masses
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, double[] masses, int count) {
     synchronized (lock) {
-      elements.forEach(
-          element ->
-              insert(new ForceObject(element, locations.apply(element), masses.apply(element))));
+      clear();
+      if (flat == null) {
+        flat = FlatBarnesHutQuadTree.builder().bounds(getBounds()).theta(getTheta()).build();
+      }
+      flat.rebuild(xs, ys, masses, count);
+    }
+  }
+
+  /** @return the engine of the last rebuild from primitive arrays */
+  private FlatBarnesHutQuadTree flat() {
+    if (flat == null) {
+      throw new IllegalStateException("the tree was not rebuilt from primitive arrays");
+    }
+    return flat;
+  }
+
+  /**
+   * set the force of the kernel on body {@code index} of the last rebuild from primitive arrays
+   *
+   * @param index the body to compute the force on
+   * @param kernel the force law
+   * @param fx receives the x component of the force
+   * @param fy receives the y component of the force
+   */
+  public void applyForcesTo(int index, ForceKernel kernel, double[] fx, double[] fy) {
+    flat().applyForcesTo(index, kernel, fx, fy);
+  }
+
+  /**
+   * pass the mass summaries that act on body {@code index} of the last rebuild from primitive
+   * arrays to the visitor
+   *
+   * @param index the body to gather forces for
+   * @param visitor receives each accepted mass summary
+   */
+  public void applyForcesTo(int index, FlatBarnesHutQuadTree.ForceVisitor visitor) {
+    flat().applyForcesTo(index, visitor);
+  }
+
+  /**
+   * set the force of the kernel on every body of the last rebuild from primitive arrays
+   *
+   * @param kernel the force law
+   * @param fx receives the x components of the forces, at least as long as the bodies
+   * @param fy receives the y components of the forces
+   */
+  public void applyForces(ForceKernel kernel, double[] fx, double[] fy) {
+    flat().applyForces(kernel, fx, fy);
+  }
+
+  /**
+   * rebuild the quad tree, in parallel if a pool was set and there are enough elements. Both ways
+   * build the same tree. A Morton order bulk load builds the same shape of tree.
+   *
+   * @param elements elements to pass to ForceObjects
+   * @param forceObjects function to create the ForceObject for an element
+   */
+  private void rebuildFrom(Collection<T> elements, Function<T, ForceObject<T>> forceObjects) {
+    long start = stats != null ? System.nanoTime() : 0;
+    synchronized (lock) {
+      clear();
+      elements.forEach(element -> inserted.add(forceObjects.apply(element)));
+      if (mortonOrder) {
+        root.bulkLoad(inserted, parallelThreshold, pool);
+      } else if (pool != null && inserted.size() > parallelThreshold) {
+        root.build(inserted, parallelThreshold, pool);
+      } else {
+        inserted.forEach(root::insert);
+      }
+      if (root.deferred) {
+        root.aggregate();
+      }
+      if (root.quadrupole) {
+        root.computeMoments();
+      }
+      if (leaves != null) {
+        root.index(leaves);
+      }
+      if (stats != null) {
+        stats.recordRebuild(System.nanoTime() - start, root);
+      }
+    }
+  }
+
+  /**
+   * insert an element with a mass of 1 without rebuilding the tree
+   *
+   * @param element the element to insert
+   * @param location the location of the element
+   */
+  public void insert(T element, Point location) {
+    insert(element, location, 1);
+  }
+
+  /**
+   * insert an element without rebuilding the tree. Only the nodes from the root to the leaf of the
+   * element change, so the cost is the depth of the tree rather than a rebuild of every element. An
+   * element that is already in the tree is moved to the location, with the new mass.
+   *
+   * @param element the element to insert
+   * @param location the location of the element
+   * @param mass the mass of the element
+   */
+  public void insert(T element, Point location, double mass) {
+    synchronized (lock) {
+      ForceObject<T> forceObject = new ForceObject<>(element, location, mass);
+      ForceObject<T> previous = index().remove(element);
+      if (previous != null) {
+        removeForceObject(previous);
+      }
+      index.put(element, forceObject);
+      insertForceObject(forceObject);
+    }
+  }
+
+  /**
+   * move an element to a new location without rebuilding the tree. The element is removed from its
+   * leaf and inserted at the location, and only the nodes on those two paths from the root change.
+   * Nodes whose quadrants no longer need to be split collapse back into leaves.
+   *
+   * @param element the element to move
+   * @param location the new location of the element
+   * @return true if the element is in the tree, false if it is not and nothing changed
+   */
+  public boolean update(T element, Point location) {
+    synchronized (lock) {
+      ForceObject<T> previous = index().get(element);
+      if (previous == null) {
+        return false;
+      }
+      if (!previous.p.equals(location)) {
+        ForceObject<T> forceObject = new ForceObject<>(element, location, previous.mass);
+        index.remove(element);
+        removeForceObject(previous);
+        index.put(element, forceObject);
+        insertForceObject(forceObject);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * remove an element without rebuilding the tree. Only the nodes from the root to the leaf of the
+   * element change.
+   *
+   * @param element the element to remove
+   * @return true if the element was in the tree
+   */
+  public boolean remove(T element) {
+    synchronized (lock) {
+      ForceObject<T> previous = index().remove(element);
+      if (previous == null) {
+        return false;
+      }
+      removeForceObject(previous);
+      return true;
+    }
+  }
+
+  /**
+   * @return the ForceObject of each element in the tree. It is made by the first edit after a
+   *     rebuild, so that a rebuild does not pay for it
+   */
+  private Map<T, ForceObject<T>> index() {
+    if (index == null) {
+      index = new HashMap<>();
+      inserted.forEach(forceObject -> index.put(forceObject.getElement(), forceObject));
+      inserted.clear();
+    }
+    return index;
+  }
+
+  private void insertForceObject(ForceObject<T> forceObject) {
+    if (!root.isLeaf() && !root.getBounds().contains(forceObject.p)) {
+      // the quadrants of the root can not grow to hold the location, so load every element again
+      // into a root that holds them all
+      List<ForceObject<T>> forceObjects = new ArrayList<>(index().values());
+      root.clear();
+      if (root.arena != null) {
+        root.arena.reset();
+      }
+      root.bulkLoad(forceObjects, parallelThreshold, pool);
+      if (root.deferred) {
+        root.aggregate();
+      }
+      if (root.quadrupole) {
+        root.computeMoments();
+      }
+      if (leaves != null) {
+        leaves.clear();
+        root.index(leaves);
+      }
+      return;
+    }
+    // the leaf that the element goes into. If it splits, its elements move into its subtree
+    Node<T> target = root.leafAt(forceObject.p);
+    root.insert(forceObject);
+    if (target != null && leaves != null) {
+      target.index(leaves);
+    }
+    if (root.deferred) {
+      if (target != null) {
+        // a leaf that split into quadrants left their summaries to be aggregated
+        target.aggregate();
+      }
+      Node<T> leaf = leaves != null ? leaves.get(forceObject.getElement()) : null;
+      if (leaf == null) {
+        leaf = root.leafOf(forceObject);
+      }
+      if (leaf != null) {
+        Node<T> holder = leaf.repair();
+        if (holder != leaf && leaves != null) {
+          holder.index(leaves);
+        }
+      }
+    }
+    if (root.quadrupole) {
+      Node<T> leaf = root.leafAt(forceObject.p);
+      if (leaf != null) {
+        leaf.updateMoments();
+      } else {
+        root.computeMoments();
+      }
+    }
+  }
+
+  private void removeForceObject(ForceObject<T> forceObject) {
+    Node<T> leaf = leaves != null ? leaves.remove(forceObject.getElement()) : null;
+    if (leaf == null || !leaf.holds(forceObject)) {
+      leaf = root.leafOf(forceObject);
+    }
+    if (leaf == null || !leaf.remove(forceObject)) {
+      log.debug("{} is not in the tree", forceObject);
+      return;
+    }
+    Node<T> holder = leaf.repair();
+    if (holder != leaf && leaves != null) {
+      // a collapse moved the elements that were left up into an ancestor
+      holder.index(leaves);
+    }
+    if (root.quadrupole) {
+      holder.updateMoments();
+    }
+  }
+
+  /**
+   * apply forces to every visitor, splitting the visitors across the common {@link ForkJoinPool}.
+   * Each visitor only accumulates into itself, so visitors must not be shared between elements. The
+   * tree must not be rebuilt or edited while this method runs.
+   *
+   * @param visitors one visitor per element
+   */
+  public void applyForcesToAll(List<? extends ForceObject<T>> visitors) {
+    applyForcesToAll(visitors, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * apply forces to every visitor, splitting the visitors across the passed {@link ForkJoinPool}
+   *
+   * @param visitors one visitor per element
+   * @param pool the pool to run the force pass in
+   */
+  public void applyForcesToAll(List<? extends ForceObject<T>> visitors, ForkJoinPool pool) {
+    if (visitors.isEmpty()) {
+      return;
+    }
+    int grain = Math.max(MIN_GRAIN, visitors.size() / (8 * pool.getParallelism()));
+    pool.invoke(new ForceTask<>(this, visitors, 0, visitors.size(), grain));
+  }
+
+  /**
+   * create a visitor for each element and apply forces to all of them in parallel on the common
+   * {@link ForkJoinPool}. Each visitor is the result slot for its element.
+   *
+   * @param elements elements to pass to ForceObjects
+   * @param locations function to get locations from elements
+   * @param visitorFactory creates the visitor for an element at a location
+   * @return the visitors, in the iteration order of {@code elements}
+   */
+  public <V extends ForceObject<T>> List<V> applyForcesToAll(
+      Collection<T> elements,
+      Function<T, Point> locations,
+      BiFunction<T, Point, V> visitorFactory) {
+    return applyForcesToAll(elements, locations, visitorFactory, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * create a visitor for each element and apply forces to all of them in parallel on the passed
+   * {@link ForkJoinPool}
+   *
+   * @param elements elements to pass to ForceObjects
+   * @param locations function to get locations from elements
+   * @param visitorFactory creates the visitor for an element at a location
+   * @param pool the pool to run the force pass in
+   * @return the visitors, in the iteration order of {@code elements}
+   */
+  public <V extends ForceObject<T>> List<V> applyForcesToAll(
+      Collection<T> elements,
+      Function<T, Point> locations,
+      BiFunction<T, Point, V> visitorFactory,
+      ForkJoinPool pool) {
+    List<V> visitors = new ArrayList<>(elements.size());
+    for (T element : elements) {
+      visitors.add(visitorFactory.apply(element, locations.apply(element)));
+    }
+    applyForcesToAll(visitors, pool);
+    return visitors;
+  }
+
+  /** the default number of visitors that share an interaction list in applyForcesToGroups */
+  public static final int DEFAULT_GROUP_SIZE = 32;
+
+  /**
+   * apply forces to every visitor with a grouped traversal, on the common {@link ForkJoinPool}. See
+   * {@link #applyForcesToGroups(List, int, ForkJoinPool)}.
+   *
+   * @param visitors one visitor per element
+   */
+  public void applyForcesToGroups(List<? extends ForceObject<T>> visitors) {
+    applyForcesToGroups(visitors, DEFAULT_GROUP_SIZE, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * apply forces to every visitor with a grouped traversal. The visitors are split by the quadrants
+   * of the tree until each group has at most {@code groupSize} of them or reaches a leaf. The tree
+   * is walked once per group to gather an interaction list, with an opening test against the box
+   * around the group's locations, and every visitor of the group gets its forces from that list.
+   * Nearby visitors open nearly the same nodes, so this saves most of the per visitor traversal.
+   *
+   * <p>A node is only used as a summary when it is far enough from every visitor of the group, so
+   * each visitor gets the forces of at least the nodes that {@link #applyForcesTo(ForceObject)}
+   * would open for it, and with a group size of 1 exactly those. The tree must not be rebuilt or
+   * edited while this method runs.
+   *
+   * @param visitors one visitor per element
+   * @param groupSize the most visitors to put in one group, unless they share a leaf
+   * @param pool the pool to run the force pass in
+   */
+  public void applyForcesToGroups(
+      List<? extends ForceObject<T>> visitors, int groupSize, ForkJoinPool pool) {
+    if (visitors.isEmpty() || root.forceObject == null) {
+      return;
+    }
+    List<List<ForceObject<T>>> groups = new ArrayList<>();
+    group(root, new ArrayList<>(visitors), Math.max(1, groupSize), groups);
+    int grain = Math.max(1, groups.size() / (8 * pool.getParallelism()));
+    pool.invoke(new GroupTask<>(this, groups, 0, groups.size(), grain));
+  }
+
+  /** split the visitors by the quadrants of the node until the groups are small or at a leaf */
+  private static <T> void group(
+      Node<T> node,
+      List<ForceObject<T>> visitors,
+      int groupSize,
+      List<List<ForceObject<T>>> groups) {
+    if (visitors.isEmpty()) {
+      return;
+    }
+    if (visitors.size() <= groupSize || node.isLeaf()) {
+      groups.add(visitors);
+      return;
+    }
+    double midX = node.areaX + node.areaWidth / 2;
+    double midY = node.areaY + node.areaHeight / 2;
+    // in NW, NE, SW, SE order. visitors on a dividing line go west and north, as in Node
+    List<ForceObject<T>>[] quadrants = new List[4];
+    for (int i = 0; i < 4; i++) {
+      quadrants[i] = new ArrayList<>();
+    }
+    for (ForceObject<T> visitor : visitors) {
+      quadrants[(visitor.p.x <= midX ? 0 : 1) + (visitor.p.y <= midY ? 0 : 2)].add(visitor);
+    }
+    group(node.NW, quadrants[0], groupSize, groups);
+    group(node.NE, quadrants[1], groupSize, groups);
+    group(node.SW, quadrants[2], groupSize, groups);
+    group(node.SE, quadrants[3], groupSize, groups);
+  }
+
+  /**
+   * gather the interaction list of one group and apply it to each visitor of the group
+   *
+   * @param group the visitors of the group
+   * @param interactions a list to gather the interactions in, cleared first
+   */
+  private void applyForcesToGroup(List<ForceObject<T>> group, List<Node<T>> interactions) {
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    for (ForceObject<T> visitor : group) {
+      minX = Math.min(minX, visitor.p.x);
+      minY = Math.min(minY, visitor.p.y);
+      maxX = Math.max(maxX, visitor.p.x);
+      maxY = Math.max(maxY, visitor.p.y);
+    }
+    interactions.clear();
+    root.interactions(minX, minY, maxX, maxY, interactions);
+    for (ForceObject<T> visitor : group) {
+      if (stats != null) {
+        TraversalStats.Counter counter = stats.counter();
+        for (Node<T> node : interactions) {
+          node.applyInteractionTo(visitor, counter);
+        }
+        stats.record(counter);
+      } else {
+        for (Node<T> node : interactions) {
+          node.applyInteractionTo(visitor);
+        }
+      }
+    }
+  }
+
+  /** the fewest visitors that a {@link ForceTask} will hand to a single thread */
+  private static final int MIN_GRAIN = 16;
+
+  /** applies forces to a range of visitors, forking halves of the range until it is small */
+  private static class ForceTask<T> extends RecursiveAction {
+    private final BarnesHutQuadTree<T> tree;
+    private final List<? extends ForceObject<T>> visitors;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    ForceTask(
+        BarnesHutQuadTree<T> tree,
+        List<? extends ForceObject<T>> visitors,
+        int from,
+        int to,
+        int grain) {
+      this.tree = tree;
+      this.visitors = visitors;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        for (int i = from; i < to; i++) {
+          tree.applyForcesTo(visitors.get(i));
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new ForceTask<>(tree, visitors, from, middle, grain),
+          new ForceTask<>(tree, visitors, middle, to, grain));
+    }
+  }
+
+  /** applies forces to a range of visitor groups, forking halves of the range until it is small */
+  private static class GroupTask<T> extends RecursiveAction {
+    private final BarnesHutQuadTree<T> tree;
+    private final List<List<ForceObject<T>>> groups;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    GroupTask(
+        BarnesHutQuadTree<T> tree, List<List<ForceObject<T>>> groups, int from, int to, int grain) {
+      this.tree = tree;
+      this.groups = groups;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        List<Node<T>> interactions = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+          tree.applyForcesToGroup(groups.get(i), interactions);
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new GroupTask<>(tree, groups, from, middle, grain),
+          new GroupTask<>(tree, groups, middle, to, grain));
     }
   }
 
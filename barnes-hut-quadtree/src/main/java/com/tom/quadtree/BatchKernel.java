@@ -0,0 +1,104 @@
+package com.tom.quadtree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates a {@link ForceKernel} for one body against a batch of sources, which may be single
+ * bodies or the mass summaries of cells. {@link FlatBarnesHutQuadTree#applyForces(ForceKernel,
+ * BatchKernel, double[], double[])} gathers the sources that a body interacts with into primitive
+ * arrays and passes them to a batch kernel, so the direct sum is one tight loop instead of being
+ * spread over the traversal.
+ *
+ * <p>The {@link #scalar()} kernel is plain Java. On Java 17 and later the jar also holds a kernel
+ * that uses the incubating Vector API ({@code jdk.incubator.vector}) to evaluate several sources in
+ * each instruction. It is in the {@code META-INF/versions/17} overlay of the multi-release jar, so
+ * Java 8 users are unaffected, and {@link #preferred()} only returns it when the JVM was started
+ * with {@code --add-modules jdk.incubator.vector}. Otherwise {@link #preferred()} is the scalar
+ * kernel.
+ *
+ * <p>The vector kernel sums its lanes separately, so its forces may differ from the scalar kernel
+ * in the last bits.
+ *
+ * @author Tom Nelson
+ */
+public class BatchKernel {
+
+  private static final Logger log = LoggerFactory.getLogger(BatchKernel.class);
+
+  /** the name of the kernel in the Java 17 overlay */
+  static final String VECTOR_KERNEL = "com.tom.quadtree.VectorBatchKernel";
+
+  private static final BatchKernel SCALAR = new BatchKernel();
+
+  private static final BatchKernel PREFERRED = load();
+
+  /** @return the plain Java kernel */
+  public static BatchKernel scalar() {
+    return SCALAR;
+  }
+
+  /** @return the vector kernel when it can be loaded, otherwise the scalar kernel */
+  public static BatchKernel preferred() {
+    return PREFERRED;
+  }
+
+  /** @return the vector kernel, or null when it is missing or the Vector API is not available */
+  static BatchKernel vector() {
+    return PREFERRED == SCALAR ? null : PREFERRED;
+  }
+
+  private static BatchKernel load() {
+    try {
+      BatchKernel kernel =
+          (BatchKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+      log.debug("using {}", kernel);
+      return kernel;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      log.debug("the vector kernel is not available, using the scalar kernel: {}", e.toString());
+      return SCALAR;
+    }
+  }
+
+  BatchKernel() {}
+
+  /**
+   * add the force of the kernel from {@code count} sources to {@code force}. Sources at the
+   * location of the body add no force.
+   *
+   * @param kernel the force law
+   * @param x x coordinate of the body
+   * @param y y coordinate of the body
+   * @param sourceX x coordinates of the sources
+   * @param sourceY y coordinates of the sources
+   * @param sourceMass masses of the sources
+   * @param count the number of sources, from index 0
+   * @param force the x and y components of the force, which are added to
+   */
+  public void accumulate(
+      ForceKernel kernel,
+      double x,
+      double y,
+      double[] sourceX,
+      double[] sourceY,
+      double[] sourceMass,
+      int count,
+      double[] force) {
+    double fx = 0;
+    double fy = 0;
+    for (int i = 0; i < count; i++) {
+      double dx = x - sourceX[i];
+      double dy = y - sourceY[i];
+      double scale = kernel.scale(dx * dx + dy * dy, sourceMass[i]);
+      fx += dx * scale;
+      fy += dy * scale;
+    }
+    force[0] += fx;
+    force[1] += fy;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchKernel{scalar}";
+  }
+}
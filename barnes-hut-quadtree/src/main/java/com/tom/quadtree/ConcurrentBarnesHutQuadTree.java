@@ -0,0 +1,477 @@
+package com.tom.quadtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Barnes-Hut quad tree that many threads can insert into at once without a lock. {@link
+ * BarnesHutQuadTree} serializes its inserts on one lock, because each insert changes the summary of
+ * every node that it passes. This tree takes the lock and the summaries off the insert path:
+ *
+ * <ul>
+ *   <li>The content of each cell is empty, an immutable leaf, or the array of its four quadrants,
+ *       and an insert replaces it with a compare-and-set. A full leaf is split by building its
+ *       quadrants privately and installing them with one compare-and-set, so other threads see
+ *       either the old leaf or the complete split. A thread that loses a race reads the new content
+ *       and tries again.
+ *   <li>Inserts do not touch the summaries. They are summed from the leaves up in one pass, the
+ *       first time forces are applied after an insert, or by {@link #aggregate()}.
+ * </ul>
+ *
+ * Inserts into different parts of the tree touch different cells, so they scale with the number of
+ * threads; only inserts into the same cell at the same moment retry. The tree that the inserts
+ * build does not depend on their order: a leaf splits when it holds more than {@code leafCapacity}
+ * elements that are not all at the same location, as in {@link BarnesHutQuadTree}.
+ *
+ * <p>The bounds of the tree are fixed when it is built, and an element outside of them is rejected,
+ * because growing the root would need every thread to agree on a new one. Forces must not be
+ * applied while elements are inserted, and the forces of a leaf are always summed from its
+ * elements.
+ *
+ * @author Tom Nelson
+ */
+public class ConcurrentBarnesHutQuadTree<T> {
+
+  private static final Logger log = LoggerFactory.getLogger(ConcurrentBarnesHutQuadTree.class);
+
+  public static class Builder<T> {
+    protected double theta = Node.DEFAULT_THETA;
+    protected Rectangle bounds;
+    protected int leafCapacity = 1;
+    protected ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public ConcurrentBarnesHutQuadTree.Builder bounds(Rectangle bounds) {
+      this.bounds = bounds;
+      return this;
+    }
+
+    public ConcurrentBarnesHutQuadTree.Builder bounds(
+        double x, double y, double width, double height) {
+      return bounds(new Rectangle(x, y, width, height));
+    }
+
+    public ConcurrentBarnesHutQuadTree.Builder bounds(double width, double height) {
+      return bounds(new Rectangle(0, 0, width, height));
+    }
+
+    public ConcurrentBarnesHutQuadTree.Builder theta(double theta) {
+      this.theta = theta;
+      return this;
+    }
+
+    /** @param leafCapacity the number of elements that a leaf holds before it splits */
+    public ConcurrentBarnesHutQuadTree.Builder leafCapacity(int leafCapacity) {
+      if (leafCapacity < 1) {
+        throw new IllegalArgumentException("leafCapacity must be at least 1: " + leafCapacity);
+      }
+      this.leafCapacity = leafCapacity;
+      return this;
+    }
+
+    /** @param pool the pool for {@link #insertAll} and {@link #applyForcesToAll} */
+    public ConcurrentBarnesHutQuadTree.Builder pool(ForkJoinPool pool) {
+      this.pool = pool;
+      return this;
+    }
+
+    public ConcurrentBarnesHutQuadTree<T> build() {
+      if (bounds == null) {
+        throw new IllegalStateException("set the bounds of the tree");
+      }
+      return new ConcurrentBarnesHutQuadTree<>(this);
+    }
+  }
+
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  /** the elements of a leaf. A leaf is never changed, an insert replaces it */
+  private static final class Leaf<T> {
+    final ForceObject<T>[] elements;
+
+    Leaf(ForceObject<T>[] elements) {
+      this.elements = elements;
+    }
+
+    Leaf<T> with(ForceObject<T> element) {
+      ForceObject<T>[] copy = Arrays.copyOf(elements, elements.length + 1);
+      copy[elements.length] = element;
+      return new Leaf<>(copy);
+    }
+
+    /** @return true if every element of this leaf is at the location */
+    boolean allAt(Point p) {
+      for (ForceObject<T> element : elements) {
+        if (!element.p.equals(p)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** a square of the tree, with its content and the summary that {@link #aggregate()} sets */
+  private static final class Cell<T> {
+    final double x;
+    final double y;
+    final double width;
+    final double height;
+
+    /** null when empty, a {@link Leaf}, or the quadrants {@code NW, NE, SW, SE} */
+    volatile Object content;
+
+    // the summary of the elements under this cell, written by aggregate
+    double mass;
+    double weightedX;
+    double weightedY;
+    ForceObject<T> forceObject;
+
+    Cell(double x, double y, double width, double height) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+    }
+
+    /** @return the index of the quadrant that holds the location, as {@link Node#childFor} */
+    int quadrant(Point p) {
+      return (p.x <= x + width / 2 ? 0 : 1) + (p.y <= y + height / 2 ? 0 : 2);
+    }
+
+    /** @return the four empty quadrants of this cell */
+    Cell<T>[] split() {
+      double w = width / 2;
+      double h = height / 2;
+      return new Cell[] {
+        new Cell<>(x, y, w, h),
+        new Cell<>(x + w, y, w, h),
+        new Cell<>(x, y + h, w, h),
+        new Cell<>(x + w, y + h, w, h)
+      };
+    }
+  }
+
+  private static final AtomicReferenceFieldUpdater<Cell, Object> CONTENT =
+      AtomicReferenceFieldUpdater.newUpdater(Cell.class, Object.class, "content");
+
+  private final Rectangle bounds;
+  private final double theta;
+  private final int leafCapacity;
+  private final ForkJoinPool pool;
+
+  private volatile Cell<T> root;
+
+  private final LongAdder size = new LongAdder();
+
+  /** true when elements were inserted since the summaries were last summed */
+  private volatile boolean dirty;
+
+  private ConcurrentBarnesHutQuadTree(Builder<T> builder) {
+    this.bounds = builder.bounds;
+    this.theta = builder.theta;
+    this.leafCapacity = builder.leafCapacity;
+    this.pool = builder.pool;
+    this.root = new Cell<>(bounds.x, bounds.y, bounds.width, bounds.height);
+  }
+
+  /** @return the bounds of this tree */
+  public Rectangle getBounds() {
+    return bounds;
+  }
+
+  /** @return the opening threshold of this tree */
+  public double getTheta() {
+    return theta;
+  }
+
+  /** @return the number of elements in the tree */
+  public int size() {
+    return size.intValue();
+  }
+
+  /**
+   * insert an element of mass 1. Any number of threads may insert at once.
+   *
+   * @param element the element
+   * @param location the location of the element, inside the bounds of the tree
+   */
+  public void insert(T element, Point location) {
+    insert(new ForceObject<>(element, location));
+  }
+
+  /**
+   * insert an element. Any number of threads may insert at once.
+   *
+   * @param element the element
+   * @param location the location of the element, inside the bounds of the tree
+   * @param mass the mass of the element
+   */
+  public void insert(T element, Point location, double mass) {
+    insert(new ForceObject<>(element, location, mass));
+  }
+
+  /**
+   * insert a ForceObject. Any number of threads may insert at once.
+   *
+   * @param forceObject the ForceObject, inside the bounds of the tree
+   */
+  public void insert(ForceObject<T> forceObject) {
+    if (!bounds.contains(forceObject.p)) {
+      throw new IllegalArgumentException(forceObject.p + " is outside of the bounds " + bounds);
+    }
+    Cell<T> cell = root;
+    while (true) {
+      Object content = cell.content;
+      if (content == null) {
+        if (CONTENT.compareAndSet(cell, null, new Leaf<>(new ForceObject[] {forceObject}))) {
+          break;
+        }
+      } else if (content instanceof Leaf) {
+        Leaf<T> leaf = (Leaf<T>) content;
+        if (leaf.elements.length < leafCapacity || leaf.allAt(forceObject.p)) {
+          if (CONTENT.compareAndSet(cell, leaf, leaf.with(forceObject))) {
+            break;
+          }
+        } else {
+          // install the split leaf, then insert into it on the next pass
+          CONTENT.compareAndSet(cell, leaf, split(cell, leaf));
+        }
+      } else {
+        cell = ((Cell<T>[]) content)[cell.quadrant(forceObject.p)];
+      }
+    }
+    size.increment();
+    if (!dirty) {
+      dirty = true;
+    }
+  }
+
+  /** @return the quadrants of the cell with the elements of the leaf, not yet visible to others */
+  private Cell<T>[] split(Cell<T> cell, Leaf<T> leaf) {
+    Cell<T>[] quadrants = cell.split();
+    for (ForceObject<T> element : leaf.elements) {
+      Cell<T> quadrant = quadrants[cell.quadrant(element.p)];
+      Leaf<T> content = (Leaf<T>) quadrant.content;
+      quadrant.content =
+          content == null ? new Leaf<>(new ForceObject[] {element}) : content.with(element);
+    }
+    return quadrants;
+  }
+
+  /**
+   * insert the elements in parallel on the pool of the tree
+   *
+   * @param elements elements to pass to ForceObjects
+   * @param locations function to get locations from elements
+   */
+  public void insertAll(Collection<T> elements, Function<T, Point> locations) {
+    List<ForceObject<T>> forceObjects = new ArrayList<>(elements.size());
+    for (T element : elements) {
+      forceObjects.add(new ForceObject<>(element, locations.apply(element)));
+    }
+    if (forceObjects.isEmpty()) {
+      return;
+    }
+    int grain = Math.max(MIN_GRAIN, forceObjects.size() / (8 * pool.getParallelism()));
+    pool.invoke(new InsertTask<>(this, forceObjects, 0, forceObjects.size(), grain));
+  }
+
+  /**
+   * clear the tree and insert the elements in parallel
+   *
+   * @param elements elements to pass to ForceObjects
+   * @param locations function to get locations from elements
+   */
+  public void rebuild(Collection<T> elements, Function<T, Point> locations) {
+    clear();
+    insertAll(elements, locations);
+    aggregate();
+  }
+
+  /** remove every element. No thread may insert while the tree is cleared */
+  public void clear() {
+    root = new Cell<>(bounds.x, bounds.y, bounds.width, bounds.height);
+    size.reset();
+    dirty = false;
+  }
+
+  /**
+   * sum the summaries of the cells from the leaves up. Forces call this when elements were inserted
+   * since the last time, so it is only needed to choose when the cost is paid. No thread may insert
+   * while the summaries are summed.
+   */
+  public synchronized void aggregate() {
+    if (dirty) {
+      aggregate(root);
+      // clear the flag after the summaries are written, so that a thread that reads it sees them
+      dirty = false;
+      log.trace("aggregated {} elements", size);
+    }
+  }
+
+  private void aggregate(Cell<T> cell) {
+    cell.mass = cell.weightedX = cell.weightedY = 0;
+    cell.forceObject = null;
+    Object content = cell.content;
+    if (content == null) {
+      return;
+    }
+    if (content instanceof Leaf) {
+      for (ForceObject<T> element : ((Leaf<T>) content).elements) {
+        cell.mass += element.mass;
+        cell.weightedX += element.p.x * element.mass;
+        cell.weightedY += element.p.y * element.mass;
+      }
+      return;
+    }
+    for (Cell<T> quadrant : (Cell<T>[]) content) {
+      aggregate(quadrant);
+      cell.mass += quadrant.mass;
+      cell.weightedX += quadrant.weightedX;
+      cell.weightedY += quadrant.weightedY;
+    }
+    cell.forceObject =
+        new ForceObject(
+            "force", Point.of(cell.weightedX / cell.mass, cell.weightedY / cell.mass), cell.mass);
+  }
+
+  /**
+   * passed {@code ForceObject} will visit the cells of the tree and accumulate their forces
+   *
+   * @param visitor the visitor
+   */
+  public void applyForcesTo(ForceObject<T> visitor) {
+    if (dirty) {
+      aggregate();
+    }
+    applyForcesTo(root, visitor);
+  }
+
+  private void applyForcesTo(Cell<T> cell, ForceObject<T> visitor) {
+    Object content = cell.content;
+    if (content == null) {
+      return;
+    }
+    if (content instanceof Leaf) {
+      for (ForceObject<T> element : ((Leaf<T>) content).elements) {
+        if (!visitor.getElement().equals(element.getElement())) {
+          visitor.addForceFrom(element);
+        }
+      }
+      return;
+    }
+    double d = cell.forceObject.p.distance(visitor.p);
+    if (cell.width / d < theta) {
+      visitor.addForceFrom(cell.forceObject);
+    } else {
+      for (Cell<T> quadrant : (Cell<T>[]) content) {
+        applyForcesTo(quadrant, visitor);
+      }
+    }
+  }
+
+  /**
+   * apply forces to every visitor, splitting the visitors across the pool of the tree. No thread
+   * may insert while this method runs.
+   *
+   * @param visitors one visitor per element
+   */
+  public void applyForcesToAll(List<? extends ForceObject<T>> visitors) {
+    if (visitors.isEmpty()) {
+      return;
+    }
+    aggregate();
+    int grain = Math.max(MIN_GRAIN, visitors.size() / (8 * pool.getParallelism()));
+    pool.invoke(new ForceTask<>(this, visitors, 0, visitors.size(), grain));
+  }
+
+  /** the fewest elements or visitors that a task will hand to a single thread */
+  private static final int MIN_GRAIN = 16;
+
+  /** inserts a range of elements, forking halves of the range until it is small */
+  private static class InsertTask<T> extends RecursiveAction {
+    private final ConcurrentBarnesHutQuadTree<T> tree;
+    private final List<ForceObject<T>> elements;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    InsertTask(
+        ConcurrentBarnesHutQuadTree<T> tree,
+        List<ForceObject<T>> elements,
+        int from,
+        int to,
+        int grain) {
+      this.tree = tree;
+      this.elements = elements;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        for (int i = from; i < to; i++) {
+          tree.insert(elements.get(i));
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new InsertTask<>(tree, elements, from, middle, grain),
+          new InsertTask<>(tree, elements, middle, to, grain));
+    }
+  }
+
+  /** applies forces to a range of visitors, forking halves of the range until it is small */
+  private static class ForceTask<T> extends RecursiveAction {
+    private final ConcurrentBarnesHutQuadTree<T> tree;
+    private final List<? extends ForceObject<T>> visitors;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    ForceTask(
+        ConcurrentBarnesHutQuadTree<T> tree,
+        List<? extends ForceObject<T>> visitors,
+        int from,
+        int to,
+        int grain) {
+      this.tree = tree;
+      this.visitors = visitors;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        for (int i = from; i < to; i++) {
+          tree.applyForcesTo(tree.root, visitors.get(i));
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new ForceTask<>(tree, visitors, from, middle, grain),
+          new ForceTask<>(tree, visitors, middle, to, grain));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentBarnesHutQuadTree{bounds=" + bounds + ", size=" + size() + "}";
+  }
+}
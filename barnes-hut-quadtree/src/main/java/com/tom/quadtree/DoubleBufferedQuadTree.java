@@ -0,0 +1,345 @@
+package com.tom.quadtree;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two {@link BarnesHutQuadTree}s, one that readers traverse and a spare that the next frame is
+ * built into on a background thread. When the spare is complete it is published with an atomic
+ * swap, and the tree it replaces becomes the spare for the frame after. Readers always see a
+ * complete tree that nothing changes while they hold it, and take no lock to get it.
+ *
+ * <p>A reader holds the current tree with a {@link Snapshot}, which it must close when it is done:
+ *
+ * <pre>{@code
+ * try (DoubleBufferedQuadTree.Snapshot<T> snapshot = tree.acquire()) {
+ *   snapshot.applyForcesTo(visitor);
+ * }
+ * }</pre>
+ *
+ * Acquiring a snapshot is a pair of atomic operations. A rebuild does not reuse a tree until the
+ * snapshots of it are closed, so a snapshot that is held across two rebuilds delays the second one,
+ * but never the readers. {@link #applyForcesTo(ForceObject)} and {@link #applyForcesToAll(List)}
+ * hold a snapshot for one force pass.
+ *
+ * <p>Rebuilds run one after another, in the order they were asked for, on the executor, which is a
+ * single daemon thread by default. {@link #close()} stops that thread. The elements and their
+ * locations are copied by the calling thread, so the caller may move the elements while the tree
+ * is built.
+ *
+ * @author Tom Nelson
+ */
+public class DoubleBufferedQuadTree<T> implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(DoubleBufferedQuadTree.class);
+
+  public static class Builder<T> {
+    protected Supplier<BarnesHutQuadTree<T>> trees;
+    protected Executor executor;
+
+    /**
+     * @param trees creates each of the two trees, with the settings for every frame. The trees must
+     *     not share a {@link NodeArena}
+     */
+    public DoubleBufferedQuadTree.Builder trees(Supplier<BarnesHutQuadTree<T>> trees) {
+      this.trees = trees;
+      return this;
+    }
+
+    /**
+     * @param executor runs the rebuilds, instead of a thread of the tree's own. {@link
+     *     DoubleBufferedQuadTree#close()} does not shut it down
+     */
+    public DoubleBufferedQuadTree.Builder executor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public DoubleBufferedQuadTree<T> build() {
+      if (trees == null) {
+        throw new IllegalStateException("set the supplier of the trees");
+      }
+      return new DoubleBufferedQuadTree<>(this);
+    }
+  }
+
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  /** a tree and the number of readers that hold it */
+  private static final class Buffer<T> {
+    final BarnesHutQuadTree<T> tree;
+    final AtomicInteger readers = new AtomicInteger();
+    long version;
+
+    /** true while a rebuild waits for the readers, so that only then do readers take the lock */
+    volatile boolean awaited;
+
+    Buffer(BarnesHutQuadTree<T> tree) {
+      this.tree = tree;
+    }
+
+    /** let go of the tree, and wake a rebuild that waits for the last reader */
+    void release() {
+      if (readers.decrementAndGet() == 0 && awaited) {
+        synchronized (this) {
+          notifyAll();
+        }
+      }
+    }
+
+    /** wait until no reader holds the tree */
+    synchronized void awaitReaders() throws InterruptedException {
+      awaited = true;
+      try {
+        while (readers.get() > 0) {
+          wait();
+        }
+      } finally {
+        awaited = false;
+      }
+    }
+  }
+
+  /**
+   * a complete tree that does not change until the snapshot is closed. Its nodes, and the nodes
+   * that it gives to visitors, are only valid until then.
+   */
+  public static final class Snapshot<T> implements AutoCloseable {
+    private final Buffer<T> buffer;
+    private boolean closed;
+
+    private Snapshot(Buffer<T> buffer) {
+      this.buffer = buffer;
+    }
+
+    /** @return the number of rebuilds that were published up to and including this tree */
+    public long getVersion() {
+      return buffer.version;
+    }
+
+    /** @return the root {@code Node} of the tree */
+    public Node<T> getRoot() {
+      return buffer.tree.getRoot();
+    }
+
+    /** @return the bounds of the tree */
+    public Rectangle getBounds() {
+      return buffer.tree.getBounds();
+    }
+
+    /** @see BarnesHutQuadTree#applyForcesTo(ForceObject) */
+    public void applyForcesTo(ForceObject<T> visitor) {
+      buffer.tree.applyForcesTo(visitor);
+    }
+
+    /** @see BarnesHutQuadTree#applyForcesToAll(List) */
+    public void applyForcesToAll(List<? extends ForceObject<T>> visitors) {
+      buffer.tree.applyForcesToAll(visitors);
+    }
+
+    /** @see BarnesHutQuadTree#applyForcesToGroups(List) */
+    public void applyForcesToGroups(List<? extends ForceObject<T>> visitors) {
+      buffer.tree.applyForcesToGroups(visitors);
+    }
+
+    /** release the tree, so that a later rebuild may reuse it */
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        buffer.release();
+      }
+    }
+  }
+
+  /** the tree that readers traverse */
+  private final AtomicReference<Buffer<T>> front;
+
+  /** the tree that the next rebuild fills. Only the rebuild that is running uses it */
+  private Buffer<T> spare;
+
+  private final Executor executor;
+
+  /** the default rebuild thread, which {@link #close()} stops, or null if the builder set one */
+  private final ExecutorService ownExecutor;
+
+  private boolean closed;
+
+  /** the last rebuild that was asked for. The next one runs after it */
+  private CompletableFuture<Long> pending = CompletableFuture.completedFuture(0L);
+
+  private DoubleBufferedQuadTree(Builder<T> builder) {
+    this.front = new AtomicReference<>(new Buffer<>(builder.trees.get()));
+    this.spare = new Buffer<>(builder.trees.get());
+    this.ownExecutor = builder.executor == null ? rebuildThread() : null;
+    this.executor = builder.executor != null ? builder.executor : ownExecutor;
+  }
+
+  private static ExecutorService rebuildThread() {
+    return Executors.newSingleThreadExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable, "DoubleBufferedQuadTree-rebuild");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * hold the current tree until the snapshot is closed. This takes no lock and never waits for a
+   * rebuild.
+   *
+   * @return a snapshot of the current tree
+   */
+  public Snapshot<T> acquire() {
+    while (true) {
+      Buffer<T> buffer = front.get();
+      buffer.readers.incrementAndGet();
+      // a rebuild reuses a tree only after it was replaced, so a tree that is still current after
+      // the increment is safe to read
+      if (front.get() == buffer) {
+        return new Snapshot<>(buffer);
+      }
+      buffer.release();
+    }
+  }
+
+  /** @return the version of the current tree, 0 before the first rebuild */
+  public long getVersion() {
+    return front.get().version;
+  }
+
+  /**
+   * apply forces from the current tree to the visitor
+   *
+   * @param visitor the visitor
+   */
+  public void applyForcesTo(ForceObject<T> visitor) {
+    try (Snapshot<T> snapshot = acquire()) {
+      snapshot.applyForcesTo(visitor);
+    }
+  }
+
+  /**
+   * apply forces from the current tree to every visitor in parallel. All of them see the same tree.
+   *
+   * @param visitors one visitor per element
+   */
+  public void applyForcesToAll(List<? extends ForceObject<T>> visitors) {
+    try (Snapshot<T> snapshot = acquire()) {
+      snapshot.applyForcesToAll(visitors);
+    }
+  }
+
+  /**
+   * build the next tree with elements of mass 1 in the background and publish it
+   *
+   * @param elements the elements of the next frame
+   * @param locations the locations of the elements, which are read before this method returns
+   * @return completes with the version of the new tree when it is published
+   */
+  public CompletableFuture<Long> rebuildAsync(
+      Collection<T> elements, Function<T, Point> locations) {
+    return rebuildAsync(elements, null, locations);
+  }
+
+  /**
+   * build the next tree in the background and publish it
+   *
+   * @param elements the elements of the next frame
+   * @param masses the masses of the elements, or null for mass 1, read before this method returns
+   * @param locations the locations of the elements, which are read before this method returns
+   * @return completes with the version of the new tree when it is published
+   */
+  public CompletableFuture<Long> rebuildAsync(
+      Collection<T> elements, Function<T, Double> masses, Function<T, Point> locations) {
+    // copy the frame, so that the caller may move the elements while the tree is built
+    Map<T, Point> points = new LinkedHashMap<>();
+    Map<T, Double> weights = masses != null ? new HashMap<>() : null;
+    for (T element : elements) {
+      points.put(element, locations.apply(element));
+      if (weights != null) {
+        weights.put(element, masses.apply(element));
+      }
+    }
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("the tree is closed");
+      }
+      log.trace("rebuild of {} elements requested", points.size());
+      // a failed rebuild does not stop the ones after it
+      pending =
+          pending
+              .handle((version, failure) -> version)
+              .thenApplyAsync(version -> build(points, weights), executor);
+      return pending;
+    }
+  }
+
+  /**
+   * build the next tree in the background, publish it and wait for it
+   *
+   * @param elements the elements of the next frame
+   * @param locations the locations of the elements
+   * @return the version of the new tree
+   */
+  public long rebuild(Collection<T> elements, Function<T, Point> locations) {
+    return rebuildAsync(elements, locations).join();
+  }
+
+  /** fill the spare tree, publish it, and keep the tree it replaces as the next spare */
+  private long build(Map<T, Point> points, Map<T, Double> masses) {
+    Buffer<T> buffer = spare;
+    // readers that took this tree before it was replaced may still be traversing it
+    try {
+      buffer.awaitReaders();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("interrupted while a reader held the spare tree");
+    }
+    if (masses != null) {
+      buffer.tree.rebuild(points.keySet(), masses::get, points::get);
+    } else {
+      buffer.tree.rebuild(points.keySet(), points::get);
+    }
+    buffer.version = front.get().version + 1;
+    spare = front.getAndSet(buffer);
+    log.trace("published version {} with {} elements", buffer.version, points.size());
+    return buffer.version;
+  }
+
+  /**
+   * stop the rebuild thread of the tree after the rebuilds that were asked for, or do nothing if the
+   * builder set the executor. Readers may still acquire the current tree, but it can not be rebuilt
+   * again. Closing the tree again does nothing.
+   */
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      if (ownExecutor != null) {
+        pending.whenComplete((version, failure) -> ownExecutor.shutdown());
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DoubleBufferedQuadTree{version=" + getVersion() + "}";
+  }
+}
@@ -0,0 +1,537 @@
+package com.tom.quadtree;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Fast Multipole Method solver over the cells of a {@link FlatBarnesHutQuadTree}. Where a
+ * Barnes-Hut tree walks the tree once per body, this solver computes the forces on all bodies in
+ * one pass that is linear in the number of bodies: multipole expansions are built from the leaves
+ * up (P2M, M2M), pairs of well separated cells exchange them as local expansions (M2L), and the
+ * local expansions are pushed down to the leaves (L2L) and evaluated at the bodies (L2P).
+ *
+ * <p>The expansions are complex power series of {@code order} terms about the center of mass of
+ * each cell, for the 2 dimensional field
+ *
+ * <pre>
+ *   f(i) = sum over j of mass(j) * (p(i) - p(j)) / |p(i) - p(j)|^2
+ * </pre>
+ *
+ * which is the repulsion of force directed layouts. Bodies at the same location exert no force on
+ * each other. Two cells interact through their expansions when {@code (r1 + r2) < theta * d}, where
+ * {@code r} is the radius of a cell around its center of mass and {@code d} is the distance between
+ * the centers, and the error falls off as {@code theta} to the power of the order. Nearby leaves
+ * interact directly. The cells are found with a dual tree walk, so adaptive trees need no separate
+ * interaction lists.
+ *
+ * <p>The workflow is the same as the other trees: {@link #rebuild(double[], double[], double[],
+ * int)} with the current locations, then {@link #evaluate()}, then read the forces with {@link
+ * #getForceX(int)} and {@link #getForceY(int)}. The storage is kept for the next rebuild.
+ *
+ * @author Tom Nelson
+ */
+public class FastMultipoleQuadTree {
+
+  private static final Logger log = LoggerFactory.getLogger(FastMultipoleQuadTree.class);
+
+  /** the default number of terms in the expansions */
+  public static final int DEFAULT_ORDER = 8;
+
+  /** the default ratio of cell radii to distance under which cells interact through expansions */
+  public static final double DEFAULT_THETA = 0.5;
+
+  public static class Builder {
+    protected double theta = DEFAULT_THETA;
+    protected int order = DEFAULT_ORDER;
+    protected Rectangle bounds;
+
+    public FastMultipoleQuadTree.Builder bounds(Rectangle bounds) {
+      this.bounds = bounds;
+      return this;
+    }
+
+    public FastMultipoleQuadTree.Builder bounds(double x, double y, double width, double height) {
+      bounds(new Rectangle(x, y, width, height));
+      return this;
+    }
+
+    public FastMultipoleQuadTree.Builder bounds(double width, double height) {
+      bounds(new Rectangle(0, 0, width, height));
+      return this;
+    }
+
+    /** @param theta the separation ratio, between 0 and 1. Smaller is more accurate and slower */
+    public FastMultipoleQuadTree.Builder theta(double theta) {
+      if (!(theta >= 0 && theta < 1)) {
+        throw new IllegalArgumentException("theta must be at least 0 and less than 1: " + theta);
+      }
+      this.theta = theta;
+      return this;
+    }
+
+    /** @param order the number of terms in the expansions. More is more accurate and slower */
+    public FastMultipoleQuadTree.Builder order(int order) {
+      if (order < 1) {
+        throw new IllegalArgumentException("order must be at least 1: " + order);
+      }
+      this.order = order;
+      return this;
+    }
+
+    public FastMultipoleQuadTree build() {
+      return new FastMultipoleQuadTree(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** the tree that partitions the bodies */
+  private final FlatBarnesHutQuadTree tree;
+
+  protected double theta;
+
+  private final int order;
+
+  /** the number of coefficients per cell, {@code order + 1} */
+  private final int terms;
+
+  /** binomial coefficients, {@code binomial[n][k]} for n up to {@code 2 * order} */
+  private final double[][] binomial;
+
+  // cell storage, indexed by cell, and by cell * terms + k for the expansion coefficients
+  double[] radius = new double[0];
+  double[] multipoleRe = new double[0];
+  double[] multipoleIm = new double[0];
+  double[] localRe = new double[0];
+  double[] localIm = new double[0];
+  // the force on the bodies of a leaf, which are all at the location of the leaf
+  double[] leafForceX = new double[0];
+  double[] leafForceY = new double[0];
+
+  // body storage, indexed by body
+  double[] forceX = new double[0];
+  double[] forceY = new double[0];
+
+  // scratch for the powers of a complex number
+  private final double[] powerRe;
+  private final double[] powerIm;
+
+  private FastMultipoleQuadTree(Builder builder) {
+    this.tree = FlatBarnesHutQuadTree.builder().bounds(builder.bounds).build();
+    this.theta = builder.theta;
+    this.order = builder.order;
+    this.terms = order + 1;
+    this.binomial = new double[2 * terms][];
+    for (int n = 0; n < binomial.length; n++) {
+      binomial[n] = new double[n + 1];
+      binomial[n][0] = 1;
+      binomial[n][n] = 1;
+      for (int k = 1; k < n; k++) {
+        binomial[n][k] = binomial[n - 1][k - 1] + binomial[n - 1][k];
+      }
+    }
+    this.powerRe = new double[2 * terms];
+    this.powerIm = new double[2 * terms];
+  }
+
+  /** @return the bounds of the root cell */
+  public Rectangle getBounds() {
+    return tree.getBounds();
+  }
+
+  /** @return the number of cells, inner and leaf, in the tree */
+  public int getCellCount() {
+    return tree.getCellCount();
+  }
+
+  /** @return the number of bodies passed to the last rebuild */
+  public int getBodyCount() {
+    return tree.getBodyCount();
+  }
+
+  public double getTheta() {
+    return theta;
+  }
+
+  public int getOrder() {
+    return order;
+  }
+
+  /** remove all cells and bodies. The storage is kept for the next rebuild */
+  public void clear() {
+    tree.clear();
+  }
+
+  /**
+   * rebuild the tree with bodies of unit mass
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, int count) {
+    rebuild(xs, ys, null, count);
+  }
+
+  /**
+   * rebuild the tree and the multipole expansions of its cells. Body {@code i} is at {@code (xs[i],
+   * ys[i])} with mass {@code masses[i]}
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param masses positive masses of the bodies, or null for unit masses
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, double[] masses, int count) {
+    tree.rebuild(xs, ys, masses, count);
+    ensureCapacity(tree.bodyCount, tree.cellCount);
+    // children always follow their parent, so this visits the children of a cell before the cell
+    for (int cell = tree.cellCount - 1; cell >= 0; cell--) {
+      upward(cell);
+    }
+  }
+
+  /**
+   * compute the force on every body of the last rebuild. Read them with {@link #getForceX(int)} and
+   * {@link #getForceY(int)}
+   */
+  public void evaluate() {
+    int cellCount = tree.cellCount;
+    Arrays.fill(localRe, 0, cellCount * terms, 0);
+    Arrays.fill(localIm, 0, cellCount * terms, 0);
+    Arrays.fill(leafForceX, 0, cellCount, 0);
+    Arrays.fill(leafForceY, 0, cellCount, 0);
+    Arrays.fill(forceX, 0, tree.bodyCount, 0);
+    Arrays.fill(forceY, 0, tree.bodyCount, 0);
+    if (cellCount == 0) {
+      return;
+    }
+    interact(FlatBarnesHutQuadTree.ROOT);
+    for (int cell = 0; cell < cellCount; cell++) {
+      downward(cell);
+    }
+  }
+
+  /**
+   * @param index a body of the last rebuild
+   * @return the x component of the force on the body from the last {@link #evaluate()}
+   */
+  public double getForceX(int index) {
+    return forceX[index];
+  }
+
+  /**
+   * @param index a body of the last rebuild
+   * @return the y component of the force on the body from the last {@link #evaluate()}
+   */
+  public double getForceY(int index) {
+    return forceY[index];
+  }
+
+  private boolean isLeaf(int cell) {
+    return tree.firstChild[cell] == FlatBarnesHutQuadTree.NONE;
+  }
+
+  private boolean isEmpty(int cell) {
+    return isLeaf(cell) && tree.body[cell] == FlatBarnesHutQuadTree.NONE;
+  }
+
+  /** P2M for a leaf, whose bodies are all at its center, or M2M from the children of a cell */
+  private void upward(int cell) {
+    int base = cell * terms;
+    Arrays.fill(multipoleRe, base, base + terms, 0);
+    Arrays.fill(multipoleIm, base, base + terms, 0);
+    radius[cell] = 0;
+    int child = tree.firstChild[cell];
+    if (child == FlatBarnesHutQuadTree.NONE) {
+      multipoleRe[base] = tree.mass[cell];
+      return;
+    }
+    double r = 0;
+    for (int c = child; c < child + 4; c++) {
+      if (isEmpty(c)) {
+        continue;
+      }
+      double wx = tree.centerX[c] - tree.centerX[cell];
+      double wy = tree.centerY[c] - tree.centerY[cell];
+      r = Math.max(r, Math.sqrt(wx * wx + wy * wy) + radius[c]);
+      multipoleToMultipole(c, cell, wx, wy);
+    }
+    radius[cell] = r;
+  }
+
+  /** the interactions of the cells inside one cell with each other */
+  private void interact(int cell) {
+    int child = tree.firstChild[cell];
+    if (child == FlatBarnesHutQuadTree.NONE) {
+      // the bodies of a leaf are all at one location
+      return;
+    }
+    for (int i = child; i < child + 4; i++) {
+      if (isEmpty(i)) {
+        continue;
+      }
+      interact(i);
+      for (int j = i + 1; j < child + 4; j++) {
+        if (!isEmpty(j)) {
+          interact(i, j);
+        }
+      }
+    }
+  }
+
+  /** the interactions between two disjoint cells, in both directions */
+  private void interact(int a, int b) {
+    boolean leafA = isLeaf(a);
+    boolean leafB = isLeaf(b);
+    if (leafA && leafB) {
+      particleToParticle(a, b);
+      return;
+    }
+    double dx = tree.centerX[a] - tree.centerX[b];
+    double dy = tree.centerY[a] - tree.centerY[b];
+    double d = Math.sqrt(dx * dx + dy * dy);
+    if (radius[a] + radius[b] < theta * d) {
+      // well separated. a leaf takes the field of the other cell directly, and is a point source
+      interactOneWay(b, leafB, a, leafA);
+      interactOneWay(a, leafA, b, leafB);
+      return;
+    }
+    // split the larger cell
+    if (leafB || (!leafA && radius[a] >= radius[b])) {
+      int child = tree.firstChild[a];
+      for (int c = child; c < child + 4; c++) {
+        if (!isEmpty(c)) {
+          interact(c, b);
+        }
+      }
+    } else {
+      int child = tree.firstChild[b];
+      for (int c = child; c < child + 4; c++) {
+        if (!isEmpty(c)) {
+          interact(a, c);
+        }
+      }
+    }
+  }
+
+  /** add the field of the source cell to the target cell, with the cheapest operator that fits */
+  private void interactOneWay(int source, boolean sourceIsLeaf, int target, boolean targetIsLeaf) {
+    if (targetIsLeaf) {
+      multipoleToParticle(source, target);
+    } else if (sourceIsLeaf) {
+      particleToLocal(source, target);
+    } else {
+      multipoleToLocal(source, target);
+    }
+  }
+
+  /** L2L from a cell to its inner children, and L2P to its leaf children */
+  private void downward(int cell) {
+    int child = tree.firstChild[cell];
+    if (child == FlatBarnesHutQuadTree.NONE) {
+      if (tree.body[cell] != FlatBarnesHutQuadTree.NONE) {
+        double fx = leafForceX[cell];
+        double fy = leafForceY[cell];
+        for (int b = tree.body[cell]; b != FlatBarnesHutQuadTree.NONE; b = tree.nextBody[b]) {
+          forceX[b] = fx;
+          forceY[b] = fy;
+        }
+      }
+      return;
+    }
+    for (int c = child; c < child + 4; c++) {
+      if (isEmpty(c)) {
+        continue;
+      }
+      double ux = tree.centerX[c] - tree.centerX[cell];
+      double uy = tree.centerY[c] - tree.centerY[cell];
+      if (isLeaf(c)) {
+        localToParticle(cell, c, ux, uy);
+      } else {
+        localToLocal(cell, c, ux, uy);
+      }
+    }
+  }
+
+  /** fill the scratch arrays with the powers 0 to n of a complex number */
+  private void powers(double re, double im, int n) {
+    powerRe[0] = 1;
+    powerIm[0] = 0;
+    for (int k = 1; k <= n; k++) {
+      powerRe[k] = powerRe[k - 1] * re - powerIm[k - 1] * im;
+      powerIm[k] = powerRe[k - 1] * im + powerIm[k - 1] * re;
+    }
+  }
+
+  /** fill the scratch arrays with the powers 0 to n of the inverse of a complex number */
+  private void inversePowers(double re, double im, int n) {
+    double norm = re * re + im * im;
+    powers(re / norm, -im / norm, n);
+  }
+
+  /** direct forces between the bodies of two leaves */
+  private void particleToParticle(int a, int b) {
+    double dx = tree.centerX[a] - tree.centerX[b];
+    double dy = tree.centerY[a] - tree.centerY[b];
+    double distanceSquared = dx * dx + dy * dy;
+    if (distanceSquared == 0) {
+      return;
+    }
+    double scaleA = tree.mass[b] / distanceSquared;
+    double scaleB = tree.mass[a] / distanceSquared;
+    leafForceX[a] += dx * scaleA;
+    leafForceY[a] += dy * scaleA;
+    leafForceX[b] -= dx * scaleB;
+    leafForceY[b] -= dy * scaleB;
+  }
+
+  /** shift the multipole expansion of a child by {@code w} to the center of its parent */
+  private void multipoleToMultipole(int child, int parent, double wx, double wy) {
+    int source = child * terms;
+    int target = parent * terms;
+    double a0 = multipoleRe[source];
+    multipoleRe[target] += a0;
+    powers(wx, wy, order);
+    for (int l = 1; l <= order; l++) {
+      double re = -a0 * powerRe[l] / l;
+      double im = -a0 * powerIm[l] / l;
+      for (int k = 1; k <= l; k++) {
+        double aRe = multipoleRe[source + k];
+        double aIm = multipoleIm[source + k];
+        double c = binomial[l - 1][k - 1];
+        re += c * (aRe * powerRe[l - k] - aIm * powerIm[l - k]);
+        im += c * (aRe * powerIm[l - k] + aIm * powerRe[l - k]);
+      }
+      multipoleRe[target + l] += re;
+      multipoleIm[target + l] += im;
+    }
+  }
+
+  /** convert the multipole expansion of the source to a local expansion of the target (M2L) */
+  private void multipoleToLocal(int source, int target) {
+    int s = source * terms;
+    int t = target * terms;
+    inversePowers(
+        tree.centerX[source] - tree.centerX[target],
+        tree.centerY[source] - tree.centerY[target],
+        2 * order);
+    double a0 = multipoleRe[s];
+    for (int l = 1; l <= order; l++) {
+      double re = -a0 * powerRe[l] / l;
+      double im = -a0 * powerIm[l] / l;
+      for (int k = 1; k <= order; k++) {
+        double c = (k & 1) == 0 ? binomial[l + k - 1][k - 1] : -binomial[l + k - 1][k - 1];
+        double aRe = multipoleRe[s + k];
+        double aIm = multipoleIm[s + k];
+        re += c * (aRe * powerRe[l + k] - aIm * powerIm[l + k]);
+        im += c * (aRe * powerIm[l + k] + aIm * powerRe[l + k]);
+      }
+      localRe[t + l] += re;
+      localIm[t + l] += im;
+    }
+  }
+
+  /** add the local expansion of the bodies of the source leaf to the target (P2L) */
+  private void particleToLocal(int source, int target) {
+    int t = target * terms;
+    inversePowers(
+        tree.centerX[source] - tree.centerX[target],
+        tree.centerY[source] - tree.centerY[target],
+        order);
+    double m = tree.mass[source];
+    for (int l = 1; l <= order; l++) {
+      localRe[t + l] -= m * powerRe[l] / l;
+      localIm[t + l] -= m * powerIm[l] / l;
+    }
+  }
+
+  /** evaluate the multipole expansion of the source at the target leaf (M2P) */
+  private void multipoleToParticle(int source, int target) {
+    int s = source * terms;
+    inversePowers(
+        tree.centerX[target] - tree.centerX[source],
+        tree.centerY[target] - tree.centerY[source],
+        order + 1);
+    double a0 = multipoleRe[s];
+    // the derivative of the potential. its conjugate is the force
+    double re = a0 * powerRe[1];
+    double im = a0 * powerIm[1];
+    for (int k = 1; k <= order; k++) {
+      double aRe = multipoleRe[s + k];
+      double aIm = multipoleIm[s + k];
+      re -= k * (aRe * powerRe[k + 1] - aIm * powerIm[k + 1]);
+      im -= k * (aRe * powerIm[k + 1] + aIm * powerRe[k + 1]);
+    }
+    leafForceX[target] += re;
+    leafForceY[target] -= im;
+  }
+
+  /** shift the local expansion of a parent by {@code u} to the center of its child (L2L) */
+  private void localToLocal(int parent, int child, double ux, double uy) {
+    int s = parent * terms;
+    int t = child * terms;
+    powers(ux, uy, order);
+    for (int j = 1; j <= order; j++) {
+      double re = 0;
+      double im = 0;
+      for (int l = j; l <= order; l++) {
+        double c = binomial[l][j];
+        re += c * (localRe[s + l] * powerRe[l - j] - localIm[s + l] * powerIm[l - j]);
+        im += c * (localRe[s + l] * powerIm[l - j] + localIm[s + l] * powerRe[l - j]);
+      }
+      localRe[t + j] += re;
+      localIm[t + j] += im;
+    }
+  }
+
+  /** evaluate the local expansion of a parent at its leaf child, {@code u} from its center (L2P) */
+  private void localToParticle(int parent, int leaf, double ux, double uy) {
+    int s = parent * terms;
+    powers(ux, uy, order);
+    double re = 0;
+    double im = 0;
+    for (int l = 1; l <= order; l++) {
+      re += l * (localRe[s + l] * powerRe[l - 1] - localIm[s + l] * powerIm[l - 1]);
+      im += l * (localRe[s + l] * powerIm[l - 1] + localIm[s + l] * powerRe[l - 1]);
+    }
+    leafForceX[leaf] += re;
+    leafForceY[leaf] -= im;
+  }
+
+  private void ensureCapacity(int bodies, int cells) {
+    if (bodies > forceX.length) {
+      forceX = new double[bodies];
+      forceY = new double[bodies];
+    }
+    if (cells > radius.length) {
+      int capacity = Math.max(cells, radius.length + (radius.length >> 1));
+      radius = new double[capacity];
+      multipoleRe = new double[capacity * terms];
+      multipoleIm = new double[capacity * terms];
+      localRe = new double[capacity * terms];
+      localIm = new double[capacity * terms];
+      leafForceX = new double[capacity];
+      leafForceY = new double[capacity];
+      if (log.isDebugEnabled()) {
+        log.debug("grew to {} cells of order {}", capacity, order);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FastMultipoleTree:{order="
+        + order
+        + ", theta="
+        + theta
+        + ", cells="
+        + tree.cellCount
+        + ", bodies="
+        + tree.bodyCount
+        + "}";
+  }
+}
@@ -0,0 +1,477 @@
+package com.tom.quadtree;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Barnes-Hut QuadTree for force passes that are bound by memory bandwidth. It is laid out like
+ * {@link FlatBarnesHutQuadTree}, but keeps the locations and masses of its bodies and the centers
+ * of mass and masses of its cells as {@code float}, and stores no bounds per cell: the bounds of a
+ * cell are computed in {@code double} from the bounds of the root while the tree is descended. A
+ * cell takes 20 bytes instead of the 64 of the flat tree, and a body 16 instead of 28, so much more
+ * of a large tree fits in the caches.
+ *
+ * <p>Only storage is in single precision. The summaries are summed in {@code double} in one pass
+ * from the leaves up after the bodies are inserted, and the force kernels compute distances and
+ * accumulate forces in {@code double}. The relative error that the rounding adds is of the order of
+ * 1e-7 times the ratio of the size of the tree to the distances between bodies, well below the
+ * error of the Barnes-Hut approximation for any useful theta.
+ *
+ * <p>The tree splits and merges as {@link FlatBarnesHutQuadTree} does, on the rounded locations:
+ * bodies whose locations round to the same {@code float} are merged into one leaf.
+ *
+ * @author Tom Nelson
+ */
+public class FloatBarnesHutQuadTree {
+
+  private static final Logger log = LoggerFactory.getLogger(FloatBarnesHutQuadTree.class);
+
+  /** value of {@code firstChild} for a leaf cell and of {@code body} for an empty cell */
+  static final int NONE = -1;
+
+  /** index of the root cell */
+  static final int ROOT = 0;
+
+  public static class Builder {
+    protected double theta = Node.DEFAULT_THETA;
+    protected Rectangle bounds;
+
+    public FloatBarnesHutQuadTree.Builder bounds(Rectangle bounds) {
+      this.bounds = bounds;
+      return this;
+    }
+
+    public FloatBarnesHutQuadTree.Builder bounds(double x, double y, double width, double height) {
+      bounds(new Rectangle(x, y, width, height));
+      return this;
+    }
+
+    public FloatBarnesHutQuadTree.Builder bounds(double width, double height) {
+      bounds(new Rectangle(0, 0, width, height));
+      return this;
+    }
+
+    public FloatBarnesHutQuadTree.Builder theta(double theta) {
+      this.theta = theta;
+      return this;
+    }
+
+    public FloatBarnesHutQuadTree build() {
+      return new FloatBarnesHutQuadTree(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  protected double theta;
+
+  /** the bounds requested at build time. The root cell grows to hold bodies outside of it */
+  private final Rectangle initialBounds;
+
+  // the bounds of the root cell of the last rebuild
+  private double rootX;
+  private double rootY;
+  private double rootWidth;
+  private double rootHeight;
+
+  // cell storage, indexed by cell. The 4 children of a cell are contiguous, in NW, NE, SW, SE order
+  float[] centerX = new float[0];
+  float[] centerY = new float[0];
+  float[] mass = new float[0];
+  int[] firstChild = new int[0];
+  // the first body in a leaf cell. further bodies at the same location follow in nextBody
+  int[] body = new int[0];
+
+  int cellCount;
+
+  // body storage, indexed by body
+  float[] bodyX = new float[0];
+  float[] bodyY = new float[0];
+  float[] bodyMass = new float[0];
+  int[] nextBody = new int[0];
+
+  int bodyCount;
+
+  private FloatBarnesHutQuadTree(Builder builder) {
+    this.theta = builder.theta;
+    this.initialBounds = builder.bounds;
+  }
+
+  /** @return the bounds of the root cell */
+  public Rectangle getBounds() {
+    if (cellCount == 0) {
+      return initialBounds;
+    }
+    return new Rectangle(rootX, rootY, rootWidth, rootHeight);
+  }
+
+  /** @return the number of cells, inner and leaf, in the tree */
+  public int getCellCount() {
+    return cellCount;
+  }
+
+  /** @return the number of bodies passed to the last rebuild */
+  public int getBodyCount() {
+    return bodyCount;
+  }
+
+  public double getTheta() {
+    return theta;
+  }
+
+  /**
+   * change the opening threshold, for example from a {@link ThetaController} between frames
+   *
+   * @param theta the new threshold
+   */
+  public void setTheta(double theta) {
+    this.theta = theta;
+  }
+
+  /** remove all cells and bodies. The storage is kept for the next rebuild */
+  public void clear() {
+    cellCount = 0;
+    bodyCount = 0;
+  }
+
+  /**
+   * grow the storage to hold at least this many bodies and cells, so that rebuilds that fit do not
+   * allocate
+   *
+   * @param bodies the number of bodies
+   * @param cells the number of cells
+   */
+  public void ensureCapacity(int bodies, int cells) {
+    ensureBodyCapacity(bodies);
+    ensureCellCapacity(cells);
+  }
+
+  /**
+   * rebuild the tree with bodies of unit mass
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, int count) {
+    rebuild(xs, ys, null, count);
+  }
+
+  /**
+   * rebuild the tree. Body {@code i} is at {@code (xs[i], ys[i])} with mass {@code masses[i]},
+   * rounded to {@code float}. The values are copied, so the arrays may be changed after this method
+   * returns.
+   *
+   * @param xs x coordinates of the bodies
+   * @param ys y coordinates of the bodies
+   * @param masses masses of the bodies, or null for unit masses
+   * @param count the number of bodies to use from the arrays
+   */
+  public void rebuild(double[] xs, double[] ys, double[] masses, int count) {
+    clear();
+    ensureBodyCapacity(count);
+    double minX = initialBounds.x;
+    double minY = initialBounds.y;
+    double maxX = initialBounds.maxX;
+    double maxY = initialBounds.maxY;
+    for (int i = 0; i < count; i++) {
+      float x = (float) xs[i];
+      float y = (float) ys[i];
+      bodyX[i] = x;
+      bodyY[i] = y;
+      bodyMass[i] = masses != null ? (float) masses[i] : 1;
+      nextBody[i] = NONE;
+      // grow the root to hold every body, as Node.insert does for the root. Bodies with no
+      // location are not inserted, and would make the root bounds NaN
+      if (!Float.isNaN(x) && !Float.isNaN(y)) {
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+      }
+    }
+    bodyCount = count;
+    rootX = minX;
+    rootY = minY;
+    rootWidth = maxX - minX;
+    rootHeight = maxY - minY;
+    ensureCellCapacity(Math.max(16, 2 * count));
+    newCell();
+    for (int i = 0; i < count; i++) {
+      if (Float.isNaN(bodyX[i]) || Float.isNaN(bodyY[i])) {
+        if (log.isTraceEnabled()) {
+          log.trace("body {} has no location", i);
+        }
+        continue;
+      }
+      insert(i);
+    }
+    aggregate();
+  }
+
+  /**
+   * visit the cells of the tree and pass the mass summaries that act on body {@code index} to the
+   * visitor
+   *
+   * @param index the body to gather forces for
+   * @param visitor receives each accepted mass summary
+   */
+  public void applyForcesTo(int index, FlatBarnesHutQuadTree.ForceVisitor visitor) {
+    if (cellCount > 0) {
+      applyForcesTo(ROOT, rootWidth, index, bodyX[index], bodyY[index], visitor);
+    }
+  }
+
+  private void applyForcesTo(
+      int cell,
+      double width,
+      int index,
+      double x,
+      double y,
+      FlatBarnesHutQuadTree.ForceVisitor visitor) {
+    int resident = body[cell];
+    int child = firstChild[cell];
+    if (child == NONE) {
+      // a leaf. bodies at the same location are visited as one aggregate, as in Node
+      if (resident == NONE || (resident == index && nextBody[resident] == NONE)) {
+        return;
+      }
+      visitor.addForceFrom(centerX[cell], centerY[cell], mass[cell]);
+      return;
+    }
+    double dx = centerX[cell] - x;
+    double dy = centerY[cell] - y;
+    double d = Math.sqrt(dx * dx + dy * dy);
+    if (width / d < theta) {
+      // this cell is sufficiently far away, just use its summary
+      visitor.addForceFrom(centerX[cell], centerY[cell], mass[cell]);
+    } else {
+      for (int i = 0; i < 4; i++) {
+        applyForcesTo(child + i, width / 2, index, x, y, visitor);
+      }
+    }
+  }
+
+  /**
+   * set {@code fx[i]} and {@code fy[i]} to the force of the kernel on every body {@code i} of the
+   * last rebuild
+   *
+   * @param kernel the force law
+   * @param fx receives the x components of the forces, at least {@link #getBodyCount()} long
+   * @param fy receives the y components of the forces
+   */
+  public void applyForces(ForceKernel kernel, double[] fx, double[] fy) {
+    for (int i = 0; i < bodyCount; i++) {
+      applyForcesTo(i, kernel, fx, fy);
+    }
+  }
+
+  /**
+   * set {@code fx[index]} and {@code fy[index]} to the force of the kernel on body {@code index}.
+   * The kernel is evaluated for each accepted mass summary inside the traversal.
+   *
+   * @param index the body to compute the force on
+   * @param kernel the force law
+   * @param fx receives the x component of the force
+   * @param fy receives the y component of the force
+   */
+  public void applyForcesTo(int index, ForceKernel kernel, double[] fx, double[] fy) {
+    fx[index] = 0;
+    fy[index] = 0;
+    double x = bodyX[index];
+    double y = bodyY[index];
+    if (cellCount > 0 && !Double.isNaN(x) && !Double.isNaN(y)) {
+      applyForcesTo(ROOT, rootWidth, index, x, y, kernel, fx, fy);
+    }
+  }
+
+  private void applyForcesTo(
+      int cell,
+      double width,
+      int index,
+      double x,
+      double y,
+      ForceKernel kernel,
+      double[] fx,
+      double[] fy) {
+    int child = firstChild[cell];
+    if (child == NONE && body[cell] == NONE) {
+      return;
+    }
+    double dx = x - centerX[cell];
+    double dy = y - centerY[cell];
+    double distanceSquared = dx * dx + dy * dy;
+    // a leaf, which adds nothing when it is at the body's location, or a cell that is sufficiently
+    // far away to use its summary
+    if (child == NONE || width / Math.sqrt(distanceSquared) < theta) {
+      double scale = kernel.scale(distanceSquared, mass[cell]);
+      fx[index] += dx * scale;
+      fy[index] += dy * scale;
+    } else {
+      for (int i = 0; i < 4; i++) {
+        applyForcesTo(child + i, width / 2, index, x, y, kernel, fx, fy);
+      }
+    }
+  }
+
+  /**
+   * insert body {@code b}, descending from the root and splitting occupied leaves as needed. The
+   * summaries are left to {@link #aggregate()}.
+   *
+   * @param b the index of the body
+   */
+  private void insert(int b) {
+    float x = bodyX[b];
+    float y = bodyY[b];
+    int cell = ROOT;
+    double cellX = rootX;
+    double cellY = rootY;
+    double width = rootWidth;
+    double height = rootHeight;
+    while (true) {
+      int child = firstChild[cell];
+      if (child == NONE) {
+        int resident = body[cell];
+        if (resident == NONE) {
+          // an empty leaf
+          body[cell] = b;
+          return;
+        }
+        if (bodyX[resident] == x && bodyY[resident] == y) {
+          // same location. just add the body to the leaf
+          nextBody[b] = nextBody[resident];
+          nextBody[resident] = b;
+          return;
+        }
+        // there already is a body at a different location, so split and move the resident down
+        child = split(cell);
+        body[child + quadrant(cellX, cellY, width, height, bodyX[resident], bodyY[resident])] =
+            resident;
+        body[cell] = NONE;
+      }
+      int quadrant = quadrant(cellX, cellY, width, height, x, y);
+      width /= 2;
+      height /= 2;
+      if ((quadrant & 1) != 0) {
+        cellX += width;
+      }
+      if ((quadrant & 2) != 0) {
+        cellY += height;
+      }
+      cell = child + quadrant;
+    }
+  }
+
+  /**
+   * set the summaries of every cell from its bodies or its children, in {@code double}. The
+   * children of a cell are always made after it, so one pass from the last cell to the first sees
+   * every child before its parent.
+   */
+  private void aggregate() {
+    for (int cell = cellCount - 1; cell >= 0; cell--) {
+      double totalMass = 0;
+      double weightedX = 0;
+      double weightedY = 0;
+      int child = firstChild[cell];
+      if (child == NONE) {
+        int resident = body[cell];
+        if (resident == NONE) {
+          continue;
+        }
+        for (int b = resident; b != NONE; b = nextBody[b]) {
+          totalMass += bodyMass[b];
+        }
+        // the bodies of a leaf are at one location, which it keeps exactly
+        centerX[cell] = bodyX[resident];
+        centerY[cell] = bodyY[resident];
+        mass[cell] = (float) totalMass;
+        continue;
+      }
+      for (int i = child; i < child + 4; i++) {
+        double m = mass[i];
+        totalMass += m;
+        weightedX += centerX[i] * m;
+        weightedY += centerY[i] * m;
+      }
+      centerX[cell] = (float) (weightedX / totalMass);
+      centerY[cell] = (float) (weightedY / totalMass);
+      mass[cell] = (float) totalMass;
+    }
+  }
+
+  /**
+   * the quadrant of a cell that holds a location. Locations on a dividing line go to the west and
+   * north quadrants, as in {@link FlatBarnesHutQuadTree}
+   *
+   * @return 0 for NW, 1 for NE, 2 for SW, 3 for SE
+   */
+  static int quadrant(double cellX, double cellY, double width, double height, double x, double y) {
+    boolean west = x <= cellX + width / 2;
+    boolean north = y <= cellY + height / 2;
+    if (north) {
+      return west ? 0 : 1;
+    }
+    return west ? 2 : 3;
+  }
+
+  /**
+   * add 4 child cells to {@code cell}
+   *
+   * @return the index of the first (NW) child
+   */
+  private int split(int cell) {
+    ensureCellCapacity(cellCount + 4);
+    int child = newCell();
+    newCell();
+    newCell();
+    newCell();
+    firstChild[cell] = child;
+    return child;
+  }
+
+  private int newCell() {
+    int cell = cellCount++;
+    centerX[cell] = 0;
+    centerY[cell] = 0;
+    mass[cell] = 0;
+    firstChild[cell] = NONE;
+    body[cell] = NONE;
+    return cell;
+  }
+
+  private void ensureCellCapacity(int capacity) {
+    if (capacity <= firstChild.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, firstChild.length + (firstChild.length >> 1));
+    centerX = Arrays.copyOf(centerX, newCapacity);
+    centerY = Arrays.copyOf(centerY, newCapacity);
+    mass = Arrays.copyOf(mass, newCapacity);
+    firstChild = Arrays.copyOf(firstChild, newCapacity);
+    body = Arrays.copyOf(body, newCapacity);
+  }
+
+  private void ensureBodyCapacity(int capacity) {
+    if (capacity <= nextBody.length) {
+      return;
+    }
+    bodyX = new float[capacity];
+    bodyY = new float[capacity];
+    bodyMass = new float[capacity];
+    nextBody = new int[capacity];
+  }
+
+  @Override
+  public String toString() {
+    return "FloatTree:{cells="
+        + cellCount
+        + ", bodies="
+        + bodyCount
+        + ", bounds="
+        + getBounds()
+        + "}";
+  }
+}
@@ -0,0 +1,139 @@
+package com.tom.quadtree;
+
+/**
+ * A force law that {@link FlatBarnesHutQuadTree} evaluates inside its traversal, instead of calling
+ * a visitor for each accepted mass summary. The forces are written to primitive arrays, so there is
+ * no {@link ForceObject} or {@link Point} per interaction, and the only call in the inner loop is
+ * to this final class, which the JIT inlines.
+ *
+ * <p>A kernel is the sum of up to three terms, each of which is off when its strength is 0. For a
+ * source of mass {@code m} at {@code q} and a body at {@code p}, with {@code d = p - q}:
+ *
+ * <ul>
+ *   <li>repulsion, {@code strength * m * d / |d|^2}: Coulomb repulsion in the plane, and the {@code
+ *       k^2 / |d|} repulsion of Fruchterman-Reingold with {@code strength = k^2}
+ *   <li>gravity, {@code -g * m * d / (|d|^2 + softening^2)^(3/2)}: inverse square attraction, with
+ *       softening to bound the force between close bodies
+ *   <li>attraction, {@code -strength * m * d}: linear attraction, for which the summaries of the
+ *       tree are exact
+ * </ul>
+ *
+ * Sources at the location of the body add no force.
+ *
+ * @author Tom Nelson
+ */
+public final class ForceKernel {
+
+  public static class Builder {
+    protected double repulsion;
+    protected double gravity;
+    protected double softening;
+    protected double attraction;
+
+    /** @param strength the strength of the inverse distance repulsion */
+    public ForceKernel.Builder repulsion(double strength) {
+      this.repulsion = strength;
+      return this;
+    }
+
+    /**
+     * @param g the gravitational constant of the inverse square attraction
+     * @param softening the length below which the attraction stops growing
+     */
+    public ForceKernel.Builder gravity(double g, double softening) {
+      this.gravity = g;
+      this.softening = softening;
+      return this;
+    }
+
+    /** @param strength the strength of the linear attraction */
+    public ForceKernel.Builder attraction(double strength) {
+      this.attraction = strength;
+      return this;
+    }
+
+    public ForceKernel build() {
+      return new ForceKernel(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** @return a kernel with only the inverse distance repulsion */
+  public static ForceKernel repulsion(double strength) {
+    return builder().repulsion(strength).build();
+  }
+
+  /** @return a kernel with only the softened inverse square attraction */
+  public static ForceKernel gravity(double g, double softening) {
+    return builder().gravity(g, softening).build();
+  }
+
+  /** @return a kernel with only the linear attraction */
+  public static ForceKernel attraction(double strength) {
+    return builder().attraction(strength).build();
+  }
+
+  private final double repulsion;
+  private final double gravity;
+  private final double softeningSquared;
+  private final double attraction;
+
+  private ForceKernel(Builder builder) {
+    this.repulsion = builder.repulsion;
+    this.gravity = builder.gravity;
+    this.softeningSquared = builder.softening * builder.softening;
+    this.attraction = builder.attraction;
+  }
+
+  double getRepulsion() {
+    return repulsion;
+  }
+
+  double getGravity() {
+    return gravity;
+  }
+
+  double getSofteningSquared() {
+    return softeningSquared;
+  }
+
+  double getAttraction() {
+    return attraction;
+  }
+
+  /**
+   * @param distanceSquared the squared distance from the source to the body
+   * @param mass the mass of the source
+   * @return the factor to multiply the distance vector {@code d} by to get the force on the body
+   */
+  double scale(double distanceSquared, double mass) {
+    if (distanceSquared == 0) {
+      return 0;
+    }
+    double scale = -attraction;
+    if (repulsion != 0) {
+      scale += repulsion / distanceSquared;
+    }
+    if (gravity != 0) {
+      double softened = distanceSquared + softeningSquared;
+      scale -= gravity / (softened * Math.sqrt(softened));
+    }
+    return mass * scale;
+  }
+
+  @Override
+  public String toString() {
+    return "ForceKernel{repulsion="
+        + repulsion
+        + ", gravity="
+        + gravity
+        + ", softening="
+        + Math.sqrt(softeningSquared)
+        + ", attraction="
+        + attraction
+        + "}";
+  }
+}
@@ -58,8 +58,29 @@ public class ForceObject<T> {
     // no op
   }
 
+  /**
+   * override to use the second moments of an inner node of the tree, when the tree keeps them. They
+   * are the sums of {@code mass * dx * dx}, {@code mass * dx * dy} and {@code mass * dy * dy} over
+   * the elements under the node, for dx and dy from its center of mass {@code other.p}. For the
+   * inverse distance force {@code mass * d / |d|^2}, the correction to the force of {@code other}
+   * at {@code d = p - other.p} is the conjugate of {@code Q / d^3} in complex numbers, with {@code
+   * Q = (qxx - qyy) + 2i * qxy}. The default ignores the moments.
+   *
+   * @param other the summary of an inner node
+   * @param qxx the second moment in x
+   * @param qxy the mixed second moment
+   * @param qyy the second moment in y
+   */
+  protected void addForceFrom(ForceObject<T> other, double qxx, double qxy, double qyy) {
+    addForceFrom(other);
+  }
+
   public ForceObject add(ForceObject<T> other) {
     double totalMass = this.mass + other.mass;
+    if (this.p.equals(other.p)) {
+      // keep the exact location, so that later elements at this location still match it
+      return new ForceObject<>("force", this.p, totalMass);
+    }
     Point p =
         Point.of(
             (this.p.x * this.mass + other.p.x * other.mass) / totalMass,
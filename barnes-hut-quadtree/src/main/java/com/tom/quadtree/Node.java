@@ -1,5 +1,13 @@
 package com.tom.quadtree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,11 +41,67 @@ public class Node<T> {
 
   protected double theta = DEFAULT_THETA;
 
+  // the bounds of this node. the Rectangle is only created when it is asked for, so that nodes
+  // reused from a NodeArena do not allocate
+  double areaX;
+  double areaY;
+  double areaWidth;
+  double areaHeight;
   protected Rectangle area;
 
+  /** the arena that child nodes come from, or null to create new ones */
+  NodeArena<T> arena;
+
+  /** the node that this node is a quadrant of, or null for the root */
+  Node<T> parent;
+
+  /**
+   * the number of elements that a leaf holds before it splits. With 1, elements at the same
+   * location are merged into one summary. With more, a leaf keeps its elements in {@code bodies}
+   * and visitors sum their forces directly.
+   */
+  int leafCapacity = 1;
+
+  // the elements of a leaf when leafCapacity is more than 1. With a leafCapacity of 1, the elements
+  // that are merged at one location, so that they can be indexed and removed one by one
+  ForceObject<T>[] bodies;
+  int bodyCount;
+
+  /**
+   * when true, insert does not combine a new ForceObject into every inner node that it passes.
+   * Instead each leaf accumulates the mass and mass weighted location of its elements in primitive
+   * fields, and {@link #aggregate()} sums them into the inner nodes in one pass from the leaves up.
+   */
+  protected boolean deferred;
+
+  // accumulators for deferred aggregation. the element count, total mass and mass weighted location.
+  // the count of a leaf is kept without deferred aggregation too, so that removal knows when the
+  // last of several merged elements is left
+  int count;
+  double totalMass;
+  double weightedX;
+  double weightedY;
+
+  /**
+   * when true, inner nodes keep the second moments of their mass about their center of mass, and
+   * visitors get them with the summary of a node in {@link ForceObject#addForceFrom(ForceObject,
+   * double, double, double)}
+   */
+  protected boolean quadrupole;
+
+  // the second moments, the sums of mass * dx * dx, mass * dx * dy and mass * dy * dy over the
+  // elements under this node, for dx and dy from the center of mass
+  double qxx;
+  double qxy;
+  double qyy;
+
   public static class Builder<T> {
     protected double theta = DEFAULT_THETA;
     protected Rectangle area;
+    protected boolean deferred;
+    protected NodeArena<T> arena;
+    protected int leafCapacity = 1;
+    protected boolean quadrupole;
 
     public Node.Builder<T> withArea(double x, double y, double width, double height) {
       return withArea(new Rectangle(x, y, width, height));
@@ -53,6 +117,33 @@ public class Node<T> {
       return this;
     }
 
+    /**
+     * @param deferred true to sum the masses of inner nodes in {@link Node#aggregate()} instead of
+     *     during insert
+     */
+    public Node.Builder<T> withDeferredAggregation(boolean deferred) {
+      this.deferred = deferred;
+      return this;
+    }
+
+    /** @param arena the arena to take child nodes from */
+    public Node.Builder<T> withArena(NodeArena<T> arena) {
+      this.arena = arena;
+      return this;
+    }
+
+    /** @param leafCapacity the number of elements that a leaf holds before it splits */
+    public Node.Builder<T> withLeafCapacity(int leafCapacity) {
+      this.leafCapacity = leafCapacity;
+      return this;
+    }
+
+    /** @param quadrupole true to keep the second moments of the inner nodes */
+    public Node.Builder<T> withQuadrupole(boolean quadrupole) {
+      this.quadrupole = quadrupole;
+      return this;
+    }
+
     public Node<T> build() {
       return new Node(this);
     }
@@ -63,16 +154,54 @@ public class Node<T> {
   }
 
   private Node(Node.Builder<T> builder) {
-    this(builder.area, builder.theta);
+    setArea(builder.area);
+    this.theta = builder.theta;
+    this.deferred = builder.deferred;
+    this.arena = builder.arena;
+    this.leafCapacity = builder.leafCapacity;
+    this.quadrupole = builder.quadrupole;
+  }
+
+  /** an empty node for a {@link NodeArena}. {@link #reset} gives it its bounds and settings */
+  Node() {}
+
+  /**
+   * make this node an empty child of {@code parent}, with the passed bounds
+   *
+   * @return this node
+   */
+  Node<T> reset(double x, double y, double width, double height, Node<T> parent) {
+    areaX = x;
+    areaY = y;
+    areaWidth = width;
+    areaHeight = height;
+    area = null;
+    this.parent = parent;
+    theta = parent.theta;
+    deferred = parent.deferred;
+    arena = parent.arena;
+    leafCapacity = parent.leafCapacity;
+    quadrupole = parent.quadrupole;
+    forceObject = null;
+    NW = NE = SW = SE = null;
+    clearBodies();
+    count = 0;
+    totalMass = weightedX = weightedY = 0;
+    qxx = qxy = qyy = 0;
+    return this;
   }
 
-  private Node(double x, double y, double width, double height, double theta) {
-    this(new Rectangle(x, y, width, height), theta);
+  private void setArea(Rectangle area) {
+    this.area = area;
+    areaX = area.x;
+    areaY = area.y;
+    areaWidth = area.width;
+    areaHeight = area.height;
   }
 
-  private Node(Rectangle r, double theta) {
-    area = r;
-    this.theta = theta;
+  /** the same test as {@link Rectangle#contains(double, double)} on the bounds of this node */
+  private boolean contains(double px, double py) {
+    return px >= areaX && px <= areaX + areaWidth && py >= areaY && py <= areaY + areaHeight;
   }
 
   /**
@@ -112,7 +241,7 @@ public class Node<T> {
 
   /** @return the rectangular area of this node */
   public Rectangle getArea() {
-    return area;
+    return getBounds();
   }
 
   /**
@@ -125,13 +254,24 @@ public class Node<T> {
     if (log.isTraceEnabled()) {
       log.trace("insert {} into {}", element, this);
     }
-    if (!this.getBounds().contains(element.p.x, element.p.y)) {
+    if (!contains(element.p.x, element.p.y)) {
       log.trace("{} outside of spatial bounds {}", element.p, this.getBounds());
-      this.area = area.add(element.p.x, element.p.y);
+      setArea(getBounds().add(element.p.x, element.p.y));
     }
 
+    if (leafCapacity > 1 && isLeaf()) {
+      insertIntoBucket(element);
+      return;
+    }
     if (forceObject == null) {
       forceObject = element;
+      if (deferred) {
+        count = 0;
+        totalMass = weightedX = weightedY = 0;
+        accumulate(element);
+      } else {
+        count = 1;
+      }
       return;
     }
     if (isLeaf()) {
@@ -139,46 +279,411 @@ public class Node<T> {
         // compare points for special case where the 2 elements are at the same location
         // this would cause an infinite attempt to split and re-insert
         // just add the new mass
-        this.forceObject = this.forceObject.add(element);
+        if (bodyCount == 0) {
+          addBody(forceObject);
+        }
+        addBody(element);
+        if (deferred) {
+          accumulate(element);
+        } else {
+          this.forceObject = this.forceObject.add(element);
+          count++;
+        }
       } else {
-        // there already is a forceObject and location is different, so split
+        // there already is a forceObject and location is different, so split, and move the
+        // resident down with the count and masses it has accumulated
         split();
-        // put the current resident and the new one into the correct quadrants
-        insertForceObject(this.forceObject);
+        Node<T> child = childFor(this.forceObject.p);
+        if (child != null) {
+          child.forceObject = this.forceObject;
+          child.count = count;
+          child.totalMass = totalMass;
+          child.weightedX = weightedX;
+          child.weightedY = weightedY;
+          moveBodiesTo(child);
+        } else {
+          clearBodies();
+        }
         insertForceObject(element);
-        // update the centerOfMass, Mass, and Force on this node
-        this.forceObject = this.forceObject.add(element);
+        if (!deferred) {
+          // update the centerOfMass, Mass, and Force on this node
+          this.forceObject = this.forceObject.add(element);
+        }
       }
     } else {
       if (forceObject == element) {
         log.error("can't insert {} into {}", element, this.forceObject);
       }
       // we're already split, update the forceElement for this new element
-      forceObject = forceObject.add(element);
+      if (!deferred) {
+        forceObject = forceObject.add(element);
+      }
       //and follow down the tree to insert
       insertForceObject(element);
     }
   }
 
+  /**
+   * insert into a leaf that holds up to leafCapacity elements. A full leaf splits, unless all of
+   * its elements and the new one are at the same location.
+   */
+  private void insertIntoBucket(ForceObject<T> element) {
+    if (bodyCount < leafCapacity || allAt(element.p)) {
+      addToBucket(element);
+      return;
+    }
+    split();
+    for (int i = 0; i < bodyCount; i++) {
+      insertForceObject(bodies[i]);
+    }
+    clearBodies();
+    insertForceObject(element);
+    if (!deferred) {
+      forceObject = forceObject.add(element);
+    }
+  }
+
+  private void addToBucket(ForceObject<T> element) {
+    addBody(element);
+    if (bodyCount == 1) {
+      forceObject = element;
+      count = 0;
+      totalMass = weightedX = weightedY = 0;
+    } else if (!deferred) {
+      forceObject = forceObject.add(element);
+    }
+    if (deferred) {
+      accumulate(element);
+    }
+  }
+
+  /** add to the elements of this leaf. Only elements at the same location overfill a bucket */
+  private void addBody(ForceObject<T> element) {
+    if (bodies == null) {
+      bodies = new ForceObject[Math.max(2, leafCapacity)];
+    } else if (bodyCount == bodies.length) {
+      bodies = Arrays.copyOf(bodies, bodyCount * 2);
+    }
+    bodies[bodyCount++] = element;
+  }
+
+  /** hand the elements of this leaf to a node that takes its place, and keep that node's array */
+  private void moveBodiesTo(Node<T> node) {
+    ForceObject<T>[] array = node.bodies;
+    node.bodies = bodies;
+    node.bodyCount = bodyCount;
+    bodies = array;
+    bodyCount = 0;
+  }
+
+  /** @return true if every element in this leaf is at the location */
+  private boolean allAt(Point p) {
+    for (int i = 0; i < bodyCount; i++) {
+      if (!bodies[i].p.equals(p)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void clearBodies() {
+    if (bodies != null) {
+      Arrays.fill(bodies, 0, bodyCount, null);
+    }
+    bodyCount = 0;
+  }
+
+  private void accumulate(ForceObject<T> element) {
+    count++;
+    totalMass += element.mass;
+    weightedX += element.p.x * element.mass;
+    weightedY += element.p.y * element.mass;
+  }
+
+  /**
+   * with deferred aggregation, set the forceObject of each inner node, and of each leaf that holds
+   * more than one element, from the masses accumulated in the leaves. Every node below this one is
+   * visited once. Leaves keep their exact location.
+   */
+  void aggregate() {
+    if (isLeaf()) {
+      if (count > 1) {
+        // leaves of merged elements keep their exact location
+        Point p =
+            bodyCount > 1 && !allAt(bodies[0].p)
+                ? Point.of(weightedX / totalMass, weightedY / totalMass)
+                : forceObject.p;
+        forceObject = new ForceObject("force", p, totalMass);
+      }
+      return;
+    }
+    count = 0;
+    totalMass = weightedX = weightedY = 0;
+    aggregate(NW);
+    aggregate(NE);
+    aggregate(SE);
+    aggregate(SW);
+    forceObject =
+        new ForceObject("force", Point.of(weightedX / totalMass, weightedY / totalMass), totalMass);
+  }
+
+  private void aggregate(Node<T> child) {
+    if (child.forceObject == null) {
+      return;
+    }
+    child.aggregate();
+    count += child.count;
+    totalMass += child.totalMass;
+    weightedX += child.weightedX;
+    weightedY += child.weightedY;
+  }
+
   /**
    * insert into the correct quadrant of this inner node
    *
    * @param forceObject object to insert
    */
   private void insertForceObject(ForceObject forceObject) {
-    if (NW.area.contains(forceObject.p)) {
-      NW.insert(forceObject);
-    } else if (NE.area.contains(forceObject.p)) {
-      NE.insert(forceObject);
-    } else if (SE.area.contains(forceObject.p)) {
-      SE.insert(forceObject);
-    } else if (SW.area.contains(forceObject.p)) {
-      SW.insert(forceObject);
+    Node<T> child = childFor(forceObject.p);
+    if (child != null) {
+      child.insert(forceObject);
+    }
+  }
+
+  /**
+   * @param p a location inside this inner node
+   * @return the quadrant that holds the location, or null if none does
+   */
+  Node<T> childFor(Point p) {
+    if (NW.contains(p.x, p.y)) {
+      return NW;
+    } else if (NE.contains(p.x, p.y)) {
+      return NE;
+    } else if (SE.contains(p.x, p.y)) {
+      return SE;
+    } else if (SW.contains(p.x, p.y)) {
+      return SW;
+    }
+    return null;
+  }
+
+  /**
+   * build the subtree under this empty node from the elements, using the fork/join pool for the
+   * quadrants that hold more than {@code threshold} elements. The result is the same tree that
+   * inserting the elements in order would build. Elements outside of this node's area would grow
+   * the area during insertion, so if there are any the elements are simply inserted in order.
+   *
+   * @param elements elements to insert, in insertion order
+   * @param threshold the largest quadrant that is built without forking
+   * @param pool the pool to build in
+   */
+  void build(List<ForceObject<T>> elements, int threshold, ForkJoinPool pool) {
+    for (ForceObject<T> element : elements) {
+      if (!contains(element.p.x, element.p.y)) {
+        elements.forEach(this::insert);
+        return;
+      }
+    }
+    pool.invoke(new BuildTask<>(this, elements, threshold));
+  }
+
+  /** builds the subtree under one node, forking the quadrants that are larger than a threshold */
+  private static class BuildTask<T> extends RecursiveAction {
+    private final Node<T> node;
+    private final List<ForceObject<T>> elements;
+    private final int threshold;
+
+    BuildTask(Node<T> node, List<ForceObject<T>> elements, int threshold) {
+      this.node = node;
+      this.elements = elements;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (elements.size() <= Math.max(threshold, node.leafCapacity)) {
+        elements.forEach(node::insert);
+        return;
+      }
+      // insertion adds each element to the forceObject of every node it passes through, in order
+      ForceObject<T> first = elements.get(0);
+      ForceObject<T> forceObject = first;
+      boolean sameLocation = true;
+      for (int i = 1; i < elements.size(); i++) {
+        ForceObject<T> element = elements.get(i);
+        sameLocation &= first.p.equals(element.p);
+        if (!node.deferred) {
+          forceObject = forceObject.add(element);
+        }
+      }
+      if (sameLocation) {
+        // insertion merges all of them into this leaf
+        elements.forEach(node::insert);
+        return;
+      }
+      // with deferred aggregation this only marks the node as occupied until it is aggregated
+      node.forceObject = forceObject;
+      node.split();
+      Node<T>[] children = new Node[] {node.NW, node.NE, node.SE, node.SW};
+      List<BuildTask<T>> tasks = new ArrayList<>(children.length);
+      for (Node<T> child : children) {
+        tasks.add(new BuildTask<>(child, new ArrayList<>(), threshold));
+      }
+      for (ForceObject<T> element : elements) {
+        Node<T> child = node.childFor(element.p);
+        for (int i = 0; i < children.length; i++) {
+          if (children[i] == child) {
+            tasks.get(i).elements.add(element);
+            break;
+          }
+        }
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  /**
+   * build the subtree under this empty node from the elements in Morton (Z-curve) order. The area
+   * first grows to hold every element, as it would during insertion. Then the elements are sorted
+   * by their Morton keys, so the elements of each quadrant are a contiguous run that is found by a
+   * binary search on one digit of the keys, and the tree is built from the runs with no {@link
+   * Rectangle#contains(Point)} tests and no re-insertion after a split. The inner summaries are
+   * combined from the child summaries, so they may differ from those of an inserted tree in the
+   * last bits. Runs that share a whole key, including all runs of elements at the same location,
+   * are inserted.
+   *
+   * @param elements elements to load
+   * @param threshold the largest run that is built without forking
+   * @param pool the pool to build in, or null to build on the calling thread
+   */
+  void bulkLoad(List<ForceObject<T>> elements, int threshold, ForkJoinPool pool) {
+    int count = elements.size();
+    if (count == 0) {
+      return;
+    }
+    for (ForceObject<T> element : elements) {
+      if (!contains(element.p.x, element.p.y)) {
+        setArea(getBounds().add(element.p.x, element.p.y));
+      }
+    }
+    long[] keys = new long[count];
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      Point p = elements.get(i).p;
+      keys[i] = MortonOrder.key(p.x, p.y, getBounds());
+      order[i] = i;
+    }
+    MortonOrder.sort(keys, order, count);
+    ForceObject<T>[] sorted = new ForceObject[count];
+    for (int i = 0; i < count; i++) {
+      sorted[i] = elements.get(order[i]);
+    }
+    MortonTask<T> task =
+        new MortonTask<>(this, sorted, keys, 0, count, 0, pool != null ? threshold : count);
+    if (pool != null && count > threshold) {
+      pool.invoke(task);
+    } else {
+      task.compute();
+    }
+  }
+
+  /** builds the subtree under one node from a run of Morton sorted elements */
+  private static class MortonTask<T> extends RecursiveAction {
+    private final Node<T> node;
+    private final ForceObject<T>[] elements;
+    private final long[] keys;
+    private final int from;
+    private final int to;
+    private final int level;
+    private final int threshold;
+
+    MortonTask(
+        Node<T> node,
+        ForceObject<T>[] elements,
+        long[] keys,
+        int from,
+        int to,
+        int level,
+        int threshold) {
+      this.node = node;
+      this.elements = elements;
+      this.keys = keys;
+      this.from = from;
+      this.to = to;
+      this.level = level;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= node.leafCapacity || keys[from] == keys[to - 1]) {
+        // elements that fit in a leaf, or elements in the same finest cell. insertion splits them
+        // if it must
+        for (int i = from; i < to; i++) {
+          node.insert(elements[i]);
+        }
+        return;
+      }
+      node.split();
+      // the children in quadrant order
+      Node<T>[] children = new Node[] {node.NW, node.NE, node.SW, node.SE};
+      List<MortonTask<T>> tasks = new ArrayList<>(children.length);
+      int start = from;
+      for (int quadrant = 0; quadrant < children.length && start < to; quadrant++) {
+        int end = MortonOrder.end(keys, start, to, level, quadrant);
+        if (end > start) {
+          tasks.add(
+              new MortonTask<>(
+                  children[quadrant], elements, keys, start, end, level + 1, threshold));
+        }
+        start = end;
+      }
+      if (to - from > threshold) {
+        invokeAll(tasks);
+      } else {
+        tasks.forEach(MortonTask::compute);
+      }
+      if (node.deferred) {
+        // mark the node as occupied until it is aggregated
+        node.forceObject = elements[from];
+        return;
+      }
+      ForceObject<T> summary = null;
+      for (Node<T> child : children) {
+        if (child.forceObject != null) {
+          summary = summary == null ? child.forceObject : summary.add(child.forceObject);
+        }
+      }
+      node.forceObject = summary;
+    }
+  }
+
+  /** @return the opening threshold of this node */
+  public double getTheta() {
+    return theta;
+  }
+
+  /**
+   * set the opening threshold of this node and of every node under it. Nodes that later splits add
+   * take it from their parent.
+   *
+   * @param theta the new threshold
+   */
+  void setTheta(double theta) {
+    this.theta = theta;
+    if (!isLeaf()) {
+      NW.setTheta(theta);
+      NE.setTheta(theta);
+      SW.setTheta(theta);
+      SE.setTheta(theta);
     }
   }
 
   /** @return the rectangular bounds of this node */
   public Rectangle getBounds() {
+    if (area == null) {
+      area = new Rectangle(areaX, areaY, areaWidth, areaHeight);
+    }
     return area;
   }
 
@@ -186,6 +691,349 @@ public class Node<T> {
   public void clear() {
     forceObject = null;
     NW = NE = SW = SE = null;
+    clearBodies();
+    count = 0;
+    totalMass = weightedX = weightedY = 0;
+  }
+
+  /**
+   * find the leaf that holds an element, by following its location down from this node
+   *
+   * @param element the ForceObject that was inserted for the element
+   * @return the leaf that holds the element, or null if no leaf under this node does
+   */
+  Node<T> leafOf(ForceObject<T> element) {
+    Node<T> node = this;
+    while (node != null && !node.isLeaf()) {
+      node = node.childFor(element.p);
+    }
+    // insertion and Morton order bulk loads both place a location as childFor does
+    return node != null && node.holds(element) ? node : null;
+  }
+
+  /**
+   * @param p a location
+   * @return the leaf under this node that the location falls into, or null if none does
+   */
+  Node<T> leafAt(Point p) {
+    Node<T> node = this;
+    while (node != null && !node.isLeaf()) {
+      node = node.childFor(p);
+    }
+    return node;
+  }
+
+  /**
+   * put each element of the leaves under this node into the index, with the leaf that holds it
+   *
+   * @param leaves the index to fill
+   */
+  void index(Map<T, Node<T>> leaves) {
+    if (isLeaf()) {
+      for (int i = 0; i < bodyCount; i++) {
+        leaves.put(bodies[i].getElement(), this);
+      }
+      if (bodyCount == 0 && forceObject != null) {
+        leaves.put(forceObject.getElement(), this);
+      }
+      return;
+    }
+    NW.index(leaves);
+    NE.index(leaves);
+    SE.index(leaves);
+    SW.index(leaves);
+  }
+
+  /**
+   * pass each element under this node whose location is inside the rectangle to the consumer.
+   * Quadrants that do not overlap the rectangle are not visited.
+   *
+   * @param r the rectangle to search
+   * @param consumer receives each element and its location
+   */
+  void query(Rectangle r, BiConsumer<T, Point> consumer) {
+    if (areaX > r.maxX || areaX + areaWidth < r.x || areaY > r.maxY || areaY + areaHeight < r.y) {
+      return;
+    }
+    if (isLeaf()) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i].p.inside(r)) {
+          consumer.accept(bodies[i].getElement(), bodies[i].p);
+        }
+      }
+      if (bodyCount == 0 && forceObject != null && forceObject.p.inside(r)) {
+        consumer.accept(forceObject.getElement(), forceObject.p);
+      }
+      return;
+    }
+    NW.query(r, consumer);
+    NE.query(r, consumer);
+    SE.query(r, consumer);
+    SW.query(r, consumer);
+  }
+
+  /**
+   * pass each element under this node whose location is inside the circle to the consumer.
+   * Quadrants that are farther from the center than the radius are not visited.
+   *
+   * @param c the circle to search
+   * @param consumer receives each element and its location
+   */
+  void query(Circle c, BiConsumer<T, Point> consumer) {
+    if (distanceSquared(c.center.x, c.center.y) > c.radius * c.radius) {
+      return;
+    }
+    if (isLeaf()) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i].p.inside(c)) {
+          consumer.accept(bodies[i].getElement(), bodies[i].p);
+        }
+      }
+      if (bodyCount == 0 && forceObject != null && forceObject.p.inside(c)) {
+        consumer.accept(forceObject.getElement(), forceObject.p);
+      }
+      return;
+    }
+    NW.query(c, consumer);
+    NE.query(c, consumer);
+    SE.query(c, consumer);
+    SW.query(c, consumer);
+  }
+
+  /**
+   * pass the {@code k} elements under this node that are nearest to a location to the consumer,
+   * nearest first. Nodes and elements wait in one queue ordered by their distance, where the
+   * distance of a node is that of the nearest point of its area, so an element leaves the queue
+   * only when nothing that is left can be nearer. Only the nodes nearer than the k-th element are
+   * opened.
+   *
+   * @param x x coordinate of the location
+   * @param y y coordinate of the location
+   * @param k the number of elements to find
+   * @param consumer receives each element and its location
+   */
+  void nearest(double x, double y, int k, BiConsumer<T, Point> consumer) {
+    PriorityQueue<Candidate<T>> queue = new PriorityQueue<>();
+    queue.add(new Candidate<>(distanceSquared(x, y), this, null));
+    int found = 0;
+    while (found < k && !queue.isEmpty()) {
+      Candidate<T> next = queue.poll();
+      Node<T> node = next.node;
+      if (node == null) {
+        consumer.accept(next.element.getElement(), next.element.p);
+        found++;
+      } else if (node.isLeaf()) {
+        for (int i = 0; i < node.bodyCount; i++) {
+          ForceObject<T> element = node.bodies[i];
+          queue.add(new Candidate<>(element.p.distanceSquared(x, y), null, element));
+        }
+        if (node.bodyCount == 0 && node.forceObject != null) {
+          ForceObject<T> element = node.forceObject;
+          queue.add(new Candidate<>(element.p.distanceSquared(x, y), null, element));
+        }
+      } else {
+        for (Node<T> child : node.children()) {
+          if (!child.isLeaf() || child.forceObject != null) {
+            queue.add(new Candidate<>(child.distanceSquared(x, y), child, null));
+          }
+        }
+      }
+    }
+  }
+
+  /** a node or an element in the queue of {@link #nearest(double, double, int, BiConsumer)} */
+  private static final class Candidate<T> implements Comparable<Candidate<T>> {
+    final double distanceSquared;
+    final Node<T> node;
+    final ForceObject<T> element;
+
+    Candidate(double distanceSquared, Node<T> node, ForceObject<T> element) {
+      this.distanceSquared = distanceSquared;
+      this.node = node;
+      this.element = element;
+    }
+
+    @Override
+    public int compareTo(Candidate<T> other) {
+      return Double.compare(distanceSquared, other.distanceSquared);
+    }
+  }
+
+  /** @return the squared distance from a location to the area of this node, 0 inside of it */
+  double distanceSquared(double x, double y) {
+    double dx = Math.max(0, Math.max(areaX - x, x - (areaX + areaWidth)));
+    double dy = Math.max(0, Math.max(areaY - y, y - (areaY + areaHeight)));
+    return dx * dx + dy * dy;
+  }
+
+  /** @return true if this leaf holds the element, alone or merged with others at its location */
+  boolean holds(ForceObject<T> element) {
+    if (bodyCount > 0) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i] == element) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return forceObject == element;
+  }
+
+  /**
+   * remove an element from this leaf. The nodes above it are not changed, see {@link #repair()}.
+   *
+   * @param element the ForceObject that was inserted for the element
+   * @return true if this leaf held the element
+   */
+  boolean remove(ForceObject<T> element) {
+    if (bodyCount > 0) {
+      for (int i = 0; i < bodyCount; i++) {
+        if (bodies[i] == element) {
+          System.arraycopy(bodies, i + 1, bodies, i, bodyCount - i - 1);
+          bodies[--bodyCount] = null;
+          summarizeBucket();
+          if (leafCapacity == 1 && bodyCount == 1) {
+            // the last of the elements merged at a location is a leaf of its own again
+            clearBodies();
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+    if (forceObject == element) {
+      forceObject = null;
+      count = 0;
+      totalMass = weightedX = weightedY = 0;
+      return true;
+    }
+    return false;
+  }
+
+  /** set the forceObject and accumulators of a leaf from its elements, as insert does */
+  private void summarizeBucket() {
+    forceObject = bodyCount > 0 ? bodies[0] : null;
+    count = 0;
+    totalMass = weightedX = weightedY = 0;
+    for (int i = 0; i < bodyCount; i++) {
+      if (deferred) {
+        accumulate(bodies[i]);
+      } else if (i > 0) {
+        forceObject = forceObject.add(bodies[i]);
+      }
+    }
+    if (deferred) {
+      aggregate();
+    } else {
+      count = bodyCount;
+    }
+  }
+
+  /**
+   * after an element was inserted into or removed from this leaf, update the nodes from here up to
+   * the root. A node whose quadrants would fit in one leaf collapses back into a leaf, and the
+   * summary of every other node is combined again from its quadrants. Only the nodes on the path to
+   * the root are visited.
+   *
+   * @return the leaf that now holds the elements of this leaf
+   */
+  Node<T> repair() {
+    if (deferred && isLeaf()) {
+      aggregate();
+    }
+    Node<T> leaf = this;
+    for (Node<T> node = parent; node != null; node = node.parent) {
+      if (node.collapse()) {
+        leaf = node;
+      } else {
+        node.summarize();
+      }
+    }
+    return leaf;
+  }
+
+  /**
+   * make this inner node a leaf again if all of its quadrants are leaves and only one of them is
+   * occupied, or their elements fit in one bucket. With a {@link NodeArena}, the quadrants are not
+   * reused until the next rebuild.
+   *
+   * @return true if this node is now a leaf
+   */
+  private boolean collapse() {
+    Node<T>[] children = children();
+    Node<T> occupied = null;
+    int occupiedCount = 0;
+    int elementCount = 0;
+    for (Node<T> child : children) {
+      if (!child.isLeaf()) {
+        return false;
+      }
+      if (child.forceObject != null) {
+        occupied = child;
+        occupiedCount++;
+        elementCount += child.bodyCount;
+      }
+    }
+    if (occupiedCount > 1 && (leafCapacity == 1 || elementCount > leafCapacity)) {
+      return false;
+    }
+    NW = NE = SE = SW = null;
+    if (leafCapacity > 1) {
+      clearBodies();
+      for (Node<T> child : children) {
+        for (int i = 0; i < child.bodyCount; i++) {
+          addToBucket(child.bodies[i]);
+        }
+      }
+      if (deferred) {
+        aggregate();
+      }
+    } else if (occupied == null) {
+      clear();
+    } else {
+      forceObject = occupied.forceObject;
+      count = occupied.count;
+      totalMass = occupied.totalMass;
+      weightedX = occupied.weightedX;
+      weightedY = occupied.weightedY;
+      occupied.moveBodiesTo(this);
+    }
+    if (log.isTraceEnabled()) {
+      log.trace("collapsed {}", this);
+    }
+    return true;
+  }
+
+  /** set the forceObject of this inner node from the summaries of its quadrants */
+  private void summarize() {
+    if (deferred) {
+      count = 0;
+      totalMass = weightedX = weightedY = 0;
+      for (Node<T> child : children()) {
+        if (child.forceObject != null) {
+          count += child.count;
+          totalMass += child.totalMass;
+          weightedX += child.weightedX;
+          weightedY += child.weightedY;
+        }
+      }
+      forceObject =
+          new ForceObject(
+              "force", Point.of(weightedX / totalMass, weightedY / totalMass), totalMass);
+      return;
+    }
+    ForceObject<T> summary = null;
+    for (Node<T> child : children()) {
+      if (child.forceObject != null) {
+        summary = summary == null ? child.forceObject : summary.add(child.forceObject);
+      }
+    }
+    forceObject = summary;
+  }
+
+  /** @return the quadrants of this inner node */
+  private Node<T>[] children() {
+    return new Node[] {NW, NE, SE, SW};
   }
 
   /*
@@ -195,14 +1043,20 @@ public class Node<T> {
     if (log.isTraceEnabled()) {
       log.trace("splitting {}", this);
     }
-    double width = (area.width / 2);
-    double height = (area.height / 2);
-    double x = area.x;
-    double y = area.y;
-    NE = new Node(x + width, y, width, height, theta);
-    NW = new Node(x, y, width, height, theta);
-    SW = new Node(x, y + height, width, height, theta);
-    SE = new Node(x + width, y + height, width, height, theta);
+    double width = (areaWidth / 2);
+    double height = (areaHeight / 2);
+    double x = areaX;
+    double y = areaY;
+    NE = child(x + width, y, width, height);
+    NW = child(x, y, width, height);
+    SW = child(x, y + height, width, height);
+    SE = child(x + width, y + height, width, height);
+  }
+
+  /** @return an empty child node with the settings of this node, from the arena if there is one */
+  private Node<T> child(double x, double y, double width, double height) {
+    Node<T> child = arena != null ? arena.next() : new Node<>();
+    return child.reset(x, y, width, height, this);
   }
 
   /**
@@ -216,19 +1070,27 @@ public class Node<T> {
     }
 
     if (isLeaf()) {
-
-      visitor.addForceFrom(this.forceObject);
-
+      if (leafCapacity > 1 && bodyCount > 1) {
+        // sum the forces from the elements of the leaf directly
+        for (int i = 0; i < bodyCount; i++) {
+          ForceObject<T> body = bodies[i];
+          if (!visitor.getElement().equals(body.getElement())) {
+            visitor.addForceFrom(body);
+          }
+        }
+      } else {
+        visitor.addForceFrom(this.forceObject);
+      }
     } else {
       // not a leaf. this node is an internal node
       //  calculate s/d
-      double s = this.area.width;
+      double s = this.areaWidth;
       //      distance between the incoming node's position and
       //      the center of mass for this node
       double d = this.forceObject.p.distance(visitor.p);
       if (s / d < theta) {
         // this node is sufficiently far away, just use this node's forces
-        visitor.addForceFrom(this.forceObject);
+        addSummaryTo(visitor);
 
       } else {
         // down the tree we go
@@ -240,6 +1102,241 @@ public class Node<T> {
     }
   }
 
+  /**
+   * accept a visit from the visitor force object, whose element is held by the leaf {@code self}.
+   * Only that leaf can hold the visitor's element, so no other node compares its element with the
+   * visitor's.
+   *
+   * @param visitor the visitor
+   * @param self the leaf that holds the element of the visitor
+   */
+  void applyForcesTo(ForceObject<T> visitor, Node<T> self) {
+    if (this.forceObject == null) {
+      return;
+    }
+    if (this == self) {
+      if (bodyCount == 0) {
+        // the visitor's element alone
+        return;
+      }
+      applyForcesTo(visitor);
+    } else if (isLeaf()) {
+      if (leafCapacity > 1 && bodyCount > 1) {
+        for (int i = 0; i < bodyCount; i++) {
+          visitor.addForceFrom(bodies[i]);
+        }
+      } else {
+        visitor.addForceFrom(this.forceObject);
+      }
+    } else {
+      double d = this.forceObject.p.distance(visitor.p);
+      if (this.areaWidth / d < theta) {
+        // this node is sufficiently far away, just use this node's forces
+        addSummaryTo(visitor);
+      } else {
+        NW.applyForcesTo(visitor, self);
+        NE.applyForcesTo(visitor, self);
+        SW.applyForcesTo(visitor, self);
+        SE.applyForcesTo(visitor, self);
+      }
+    }
+  }
+
+  /**
+   * the traversal of {@link #applyForcesTo(ForceObject, Node)}, or of {@link
+   * #applyForcesTo(ForceObject)} when {@code self} is null, that also counts the nodes it visits,
+   * the summaries it uses and the forces it adds from the elements of leaves. It is kept apart from
+   * them so that traversals without statistics do no counting.
+   *
+   * @param visitor the visitor
+   * @param self the leaf that holds the element of the visitor, or null to compare elements
+   * @param counter receives the counts
+   */
+  void applyForcesTo(ForceObject<T> visitor, Node<T> self, TraversalStats.Counter counter) {
+    if (this.forceObject == null || (this == self && bodyCount == 0)) {
+      return;
+    }
+    // only the leaf of the visitor can hold its element, when that leaf is known
+    boolean compare = self == null || this == self;
+    if (compare && visitor.getElement().equals(this.forceObject.getElement())) {
+      return;
+    }
+    counter.nodesVisited++;
+    if (isLeaf()) {
+      if (leafCapacity > 1 && bodyCount > 1) {
+        for (int i = 0; i < bodyCount; i++) {
+          ForceObject<T> body = bodies[i];
+          if (!compare || !visitor.getElement().equals(body.getElement())) {
+            visitor.addForceFrom(body);
+            counter.leafInteractions++;
+          }
+        }
+      } else {
+        visitor.addForceFrom(this.forceObject);
+        counter.leafInteractions++;
+      }
+    } else {
+      double d = this.forceObject.p.distance(visitor.p);
+      if (this.areaWidth / d < theta) {
+        // this node is sufficiently far away, just use this node's forces
+        addSummaryTo(visitor);
+        counter.approximations++;
+      } else {
+        NW.applyForcesTo(visitor, self, counter);
+        NE.applyForcesTo(visitor, self, counter);
+        SW.applyForcesTo(visitor, self, counter);
+        SE.applyForcesTo(visitor, self, counter);
+      }
+    }
+  }
+
+  /**
+   * gather the interaction list of a group of visitors whose locations are inside the box from
+   * ({@code minX}, {@code minY}) to ({@code maxX}, {@code maxY}). An inner node is used as a
+   * summary when {@code s / d < theta} for the distance {@code d} from its center of mass to the
+   * nearest point of the box, so it passes the opening test of every visitor in the group. Other
+   * inner nodes are opened, and non-empty leaves are always in the list.
+   *
+   * @param interactions receives the accepted inner nodes and the leaves, in traversal order
+   */
+  void interactions(
+      double minX, double minY, double maxX, double maxY, List<Node<T>> interactions) {
+    if (this.forceObject == null) {
+      return;
+    }
+    if (isLeaf()) {
+      interactions.add(this);
+      return;
+    }
+    Point center = this.forceObject.p;
+    double dx = Math.max(0, Math.max(minX - center.x, center.x - maxX));
+    double dy = Math.max(0, Math.max(minY - center.y, center.y - maxY));
+    double d = Math.sqrt(dx * dx + dy * dy);
+    if (this.areaWidth / d < theta) {
+      // this node is sufficiently far away from the whole group
+      interactions.add(this);
+    } else {
+      NW.interactions(minX, minY, maxX, maxY, interactions);
+      NE.interactions(minX, minY, maxX, maxY, interactions);
+      SW.interactions(minX, minY, maxX, maxY, interactions);
+      SE.interactions(minX, minY, maxX, maxY, interactions);
+    }
+  }
+
+  /**
+   * add the forces of this interaction list entry to a visitor: the summary of an accepted inner
+   * node, or the elements of a leaf other than the visitor's own
+   *
+   * @param visitor the visitor
+   */
+  void applyInteractionTo(ForceObject<T> visitor) {
+    if (isLeaf()) {
+      applyForcesTo(visitor);
+    } else {
+      addSummaryTo(visitor);
+    }
+  }
+
+  /**
+   * {@link #applyInteractionTo(ForceObject)}, that also counts the entry as a visited node, and
+   * counts the summary or the forces from the elements of the leaf that it adds
+   *
+   * @param visitor the visitor
+   * @param counter receives the counts
+   */
+  void applyInteractionTo(ForceObject<T> visitor, TraversalStats.Counter counter) {
+    if (isLeaf()) {
+      applyForcesTo(visitor, null, counter);
+    } else {
+      addSummaryTo(visitor);
+      counter.nodesVisited++;
+      counter.approximations++;
+    }
+  }
+
+  /** add the summary of this inner node to the visitor, with its second moments if it keeps them */
+  private void addSummaryTo(ForceObject<T> visitor) {
+    if (quadrupole) {
+      visitor.addForceFrom(this.forceObject, qxx, qxy, qyy);
+    } else {
+      visitor.addForceFrom(this.forceObject);
+    }
+  }
+
+  /** compute the second moments of every node under this one, from the leaves up */
+  void computeMoments() {
+    if (!isLeaf()) {
+      // leaves are computed by their parent
+      NW.computeInnerMoments();
+      NE.computeInnerMoments();
+      SW.computeInnerMoments();
+      SE.computeInnerMoments();
+    }
+    moments();
+  }
+
+  private void computeInnerMoments() {
+    if (!isLeaf()) {
+      computeMoments();
+    }
+  }
+
+  /** compute the second moments of this node and each of its ancestors, after an edit */
+  void updateMoments() {
+    for (Node<T> node = this; node != null; node = node.parent) {
+      node.moments();
+    }
+  }
+
+  /**
+   * compute the second moments of this node from the elements of a leaf, or from the moments of the
+   * children of an inner node, shifted to this node's center of mass. Leaf children are computed
+   * first, inner children must be current.
+   */
+  private void moments() {
+    qxx = qxy = qyy = 0;
+    if (forceObject == null) {
+      return;
+    }
+    Point center = forceObject.p;
+    if (isLeaf()) {
+      // the elements of a leaf of capacity 1 are all at its center
+      if (leafCapacity > 1) {
+        for (int i = 0; i < bodyCount; i++) {
+          addMoments(bodies[i].p, bodies[i].mass, center);
+        }
+      }
+      return;
+    }
+    addChildMoments(NW, center);
+    addChildMoments(NE, center);
+    addChildMoments(SW, center);
+    addChildMoments(SE, center);
+  }
+
+  /** add the moments of a child, shifted to the center of mass of this node */
+  private void addChildMoments(Node<T> child, Point center) {
+    if (child.forceObject == null) {
+      return;
+    }
+    if (child.isLeaf()) {
+      child.moments();
+    }
+    qxx += child.qxx;
+    qxy += child.qxy;
+    qyy += child.qyy;
+    addMoments(child.forceObject.p, child.forceObject.mass, center);
+  }
+
+  /** add the moments of a point mass about the center */
+  private void addMoments(Point p, double mass, Point center) {
+    double dx = p.x - center.x;
+    double dy = p.y - center.y;
+    qxx += mass * dx * dx;
+    qxy += mass * dx * dy;
+    qyy += mass * dy * dy;
+  }
+
   static String asString(Rectangle r) {
     return "[" + (int) r.x + "," + (int) r.y + "," + (int) r.width + "," + (int) r.height + "]";
   }
@@ -0,0 +1,216 @@
+package com.tom.quadtree;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the rebuilds and force traversals of a {@link BarnesHutQuadTree}, kept when the
+ * tree is built with {@link BarnesHutQuadTree.Builder#stats(boolean)}.
+ *
+ * <p>A rebuild records its time and the shape of the tree it built: the number of nodes, the depth
+ * of the non-empty leaves and the number of elements that they hold. Edits between rebuilds do not
+ * change the shape that is reported.
+ *
+ * <p>Each {@link BarnesHutQuadTree#applyForcesTo(ForceObject)}, and so each visitor of {@link
+ * BarnesHutQuadTree#applyForcesToAll(java.util.List)}, counts the nodes it visited, the inner nodes
+ * whose summary it used because {@code s / d < theta}, and the forces it added from the elements of
+ * leaves. In {@link BarnesHutQuadTree#applyForcesToGroups(java.util.List)} each visitor counts as
+ * one traversal that visits the entries of its group's interaction list. A traversal counts on its
+ * own thread, in a counter that the thread reuses, and adds its counts to striped totals when it is
+ * done, so parallel traversals do not contend or allocate. Trees without statistics use a traversal
+ * that does no counting at all.
+ *
+ * @author Tom Nelson
+ */
+public class TraversalStats {
+
+  /** the counts of one traversal, kept by the thread that runs it */
+  static final class Counter {
+    long nodesVisited;
+    long approximations;
+    long leafInteractions;
+  }
+
+  /** the counter of each thread, reused by every traversal that the thread runs */
+  private final ThreadLocal<Counter> counters = ThreadLocal.withInitial(Counter::new);
+
+  // the last rebuild, written and read under the lock of this object
+  private long rebuildNanos;
+  private int nodeCount;
+  private int leafCount;
+  private int elementCount;
+  private int maxDepth;
+  private long depthSum;
+  private int maxLeafOccupancy;
+
+  private final LongAdder rebuilds = new LongAdder();
+  private final LongAdder traversals = new LongAdder();
+  private final LongAdder nodesVisited = new LongAdder();
+  private final LongAdder approximations = new LongAdder();
+  private final LongAdder leafInteractions = new LongAdder();
+  private final LongAccumulator maxNodesVisited = new LongAccumulator(Math::max, 0);
+
+  TraversalStats() {}
+
+  /**
+   * record a rebuild and the shape of the tree that it built
+   *
+   * @param nanos the time that the rebuild took
+   * @param root the root of the tree
+   */
+  synchronized void recordRebuild(long nanos, Node<?> root) {
+    rebuilds.increment();
+    rebuildNanos = nanos;
+    nodeCount = 0;
+    leafCount = 0;
+    elementCount = 0;
+    maxDepth = 0;
+    depthSum = 0;
+    maxLeafOccupancy = 0;
+    measure(root, 0);
+  }
+
+  private void measure(Node<?> node, int depth) {
+    nodeCount++;
+    if (!node.isLeaf()) {
+      measure(node.NW, depth + 1);
+      measure(node.NE, depth + 1);
+      measure(node.SW, depth + 1);
+      measure(node.SE, depth + 1);
+    } else if (node.forceObject != null) {
+      // a leaf of capacity 1 holds its merged elements in bodies, or a single element without
+      int occupancy = Math.max(1, node.bodyCount);
+      leafCount++;
+      elementCount += occupancy;
+      depthSum += depth;
+      maxDepth = Math.max(maxDepth, depth);
+      maxLeafOccupancy = Math.max(maxLeafOccupancy, occupancy);
+    }
+  }
+
+  /** @return the counter of the calling thread, cleared for a new traversal */
+  Counter counter() {
+    Counter counter = counters.get();
+    counter.nodesVisited = 0;
+    counter.approximations = 0;
+    counter.leafInteractions = 0;
+    return counter;
+  }
+
+  /** add the counts of a finished traversal to the totals */
+  void record(Counter counter) {
+    traversals.increment();
+    nodesVisited.add(counter.nodesVisited);
+    approximations.add(counter.approximations);
+    leafInteractions.add(counter.leafInteractions);
+    maxNodesVisited.accumulate(counter.nodesVisited);
+  }
+
+  /** @return the number of rebuilds since the tree was built */
+  public long getRebuilds() {
+    return rebuilds.sum();
+  }
+
+  /** @return the time that the last rebuild took, in nanoseconds */
+  public synchronized long getRebuildNanos() {
+    return rebuildNanos;
+  }
+
+  /** @return the number of nodes, inner, leaf and empty, that the last rebuild built */
+  public synchronized int getNodeCount() {
+    return nodeCount;
+  }
+
+  /** @return the number of leaves that hold elements after the last rebuild */
+  public synchronized int getLeafCount() {
+    return leafCount;
+  }
+
+  /** @return the depth of the deepest non-empty leaf after the last rebuild. The root is at 0 */
+  public synchronized int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /** @return the average depth of the non-empty leaves after the last rebuild */
+  public synchronized double getAverageDepth() {
+    return leafCount > 0 ? (double) depthSum / leafCount : 0;
+  }
+
+  /** @return the average number of elements in a non-empty leaf after the last rebuild */
+  public synchronized double getAverageLeafOccupancy() {
+    return leafCount > 0 ? (double) elementCount / leafCount : 0;
+  }
+
+  /** @return the largest number of elements in one leaf after the last rebuild */
+  public synchronized int getMaxLeafOccupancy() {
+    return maxLeafOccupancy;
+  }
+
+  /** @return the number of traversals since the tree was built or the counters were reset */
+  public long getTraversals() {
+    return traversals.sum();
+  }
+
+  /** @return the number of non-empty nodes that the traversals visited */
+  public long getNodesVisited() {
+    return nodesVisited.sum();
+  }
+
+  /** @return the number of inner node summaries that the traversals used */
+  public long getApproximations() {
+    return approximations.sum();
+  }
+
+  /** @return the number of forces that the traversals added from the elements of leaves */
+  public long getLeafInteractions() {
+    return leafInteractions.sum();
+  }
+
+  /** @return the largest number of nodes that one traversal visited */
+  public long getMaxNodesVisited() {
+    return maxNodesVisited.get();
+  }
+
+  /** @return the average number of nodes that a traversal visited */
+  public double getAverageNodesVisited() {
+    long count = traversals.sum();
+    return count > 0 ? (double) nodesVisited.sum() / count : 0;
+  }
+
+  /**
+   * reset the traversal counters, for example at the start of each frame. Traversals that run while
+   * the counters are reset may be counted in part.
+   */
+  public void reset() {
+    traversals.reset();
+    nodesVisited.reset();
+    approximations.reset();
+    leafInteractions.reset();
+    maxNodesVisited.reset();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TraversalStats{rebuildNanos="
+        + rebuildNanos
+        + ", nodes="
+        + nodeCount
+        + ", leaves="
+        + leafCount
+        + ", maxDepth="
+        + maxDepth
+        + ", averageDepth="
+        + getAverageDepth()
+        + ", averageLeafOccupancy="
+        + getAverageLeafOccupancy()
+        + ", traversals="
+        + getTraversals()
+        + ", nodesVisited="
+        + getNodesVisited()
+        + ", approximations="
+        + getApproximations()
+        + ", leafInteractions="
+        + getLeafInteractions()
+        + "}";
+  }
+}
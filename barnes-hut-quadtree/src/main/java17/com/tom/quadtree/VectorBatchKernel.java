@@ -0,0 +1,77 @@
+package com.tom.quadtree;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link BatchKernel} that uses the Vector API to evaluate as many sources at once as the
+ * preferred vector species of the platform holds, and the scalar kernel for the sources that are
+ * left over. It is only in the Java 17 overlay of the multi-release jar, and is loaded by {@link
+ * BatchKernel#preferred()} when {@code jdk.incubator.vector} is available.
+ *
+ * @author Tom Nelson
+ */
+final class VectorBatchKernel extends BatchKernel {
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  VectorBatchKernel() {}
+
+  @Override
+  public void accumulate(
+      ForceKernel kernel,
+      double x,
+      double y,
+      double[] sourceX,
+      double[] sourceY,
+      double[] sourceMass,
+      int count,
+      double[] force) {
+    double repulsion = kernel.getRepulsion();
+    double gravity = kernel.getGravity();
+    double softeningSquared = kernel.getSofteningSquared();
+    double attraction = kernel.getAttraction();
+    DoubleVector sumX = DoubleVector.zero(SPECIES);
+    DoubleVector sumY = DoubleVector.zero(SPECIES);
+    int bound = SPECIES.loopBound(count);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      DoubleVector dx = DoubleVector.fromArray(SPECIES, sourceX, i).neg().add(x);
+      DoubleVector dy = DoubleVector.fromArray(SPECIES, sourceY, i).neg().add(y);
+      DoubleVector distanceSquared = dx.mul(dx).add(dy.mul(dy));
+      DoubleVector scale = DoubleVector.broadcast(SPECIES, -attraction);
+      if (repulsion != 0) {
+        scale = scale.add(DoubleVector.broadcast(SPECIES, repulsion).div(distanceSquared));
+      }
+      if (gravity != 0) {
+        DoubleVector softened = distanceSquared.add(softeningSquared);
+        DoubleVector cube = softened.mul(softened.sqrt());
+        scale = scale.sub(DoubleVector.broadcast(SPECIES, gravity).div(cube));
+      }
+      scale = scale.mul(DoubleVector.fromArray(SPECIES, sourceMass, i));
+      // sources at the location of the body add no force
+      VectorMask<Double> coincident = distanceSquared.compare(VectorOperators.EQ, 0);
+      scale = scale.blend(0, coincident);
+      sumX = sumX.add(dx.mul(scale));
+      sumY = sumY.add(dy.mul(scale));
+    }
+    double fx = sumX.reduceLanes(VectorOperators.ADD);
+    double fy = sumY.reduceLanes(VectorOperators.ADD);
+    for (; i < count; i++) {
+      double dx = x - sourceX[i];
+      double dy = y - sourceY[i];
+      double scale = kernel.scale(dx * dx + dy * dy, sourceMass[i]);
+      fx += dx * scale;
+      fy += dy * scale;
+    }
+    force[0] += fx;
+    force[1] += fy;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchKernel{vector, lanes=" + SPECIES.length() + "}";
+  }
+}
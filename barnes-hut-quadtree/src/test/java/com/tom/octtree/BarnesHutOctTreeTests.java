@@ -0,0 +1,998 @@
+package com.tom.octtree;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test of the construction of the BarnesHutOctTree
+ *
+ * @author Tom Nelson
+ */
+public class BarnesHutOctTreeTests {
+
+  /** test that edge case where all force objects are at the same location is merged into a leaf */
+  @Test
+  public void testSameLocation() {
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    tree.insert(new ForceObject<>("A", 10, 10, 10));
+    tree.insert(new ForceObject<>("B", 10, 10, 10));
+    tree.insert(new ForceObject<>("C", 10, 10, 10));
+
+    Assert.assertTrue(tree.getRoot().isLeaf());
+    Assert.assertEquals(new ForceObject<>("force", 10, 10, 10, 3), tree.getRoot().getForceObject());
+  }
+
+  /**
+   * test that many force objects at the same location, with masses that do not divide evenly, stay
+   * merged in one leaf that keeps their exact location
+   */
+  @Test
+  public void testSameLocationKeepsLocation() {
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    Point p = Point.of(0.1, 0.7, 0.3);
+    tree.insert(new ForceObject<>("A", Point.of(400, 400, 400)));
+    double mass = 0;
+    for (int i = 0; i < 100; i++) {
+      tree.insert(new ForceObject<>("N" + i, p, 1 + i % 3));
+      mass += 1 + i % 3;
+    }
+    // one split separates them from A
+    Node<String> leaf = tree.getRoot().BNW;
+    Assert.assertTrue(leaf.isLeaf());
+    Assert.assertEquals(p, leaf.forceObject.p);
+    Assert.assertEquals(mass, leaf.forceObject.mass, 0);
+  }
+
+  static List<Point> randomLocations(int count, Random random) {
+    List<Point> locations = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      if (i > 0 && i % 100 == 0) {
+        // put some elements at the same location as another element
+        locations.add(locations.get(i - 1));
+      } else {
+        locations.add(
+            Point.of(
+                random.nextDouble() * 500, random.nextDouble() * 500, random.nextDouble() * 500));
+      }
+    }
+    return locations;
+  }
+
+  static List<String> elements(int count) {
+    List<String> elements = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      elements.add("N" + i);
+    }
+    return elements;
+  }
+
+  /** test that a parallel rebuild builds the same tree as a serial rebuild */
+  @Test
+  public void testParallelRebuild() {
+    List<String> elements = elements(5000);
+    List<Point> locations = randomLocations(5000, new Random(2));
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    BarnesHutOctTree<String> parallelTree =
+        BarnesHutOctTree.builder()
+            .bounds(500, 500, 500)
+            .parallel(true)
+            .parallelThreshold(16)
+            .build();
+    parallelTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    Assert.assertEquals(tree.toString(), parallelTree.toString());
+  }
+
+  /**
+   * test that a Morton order bulk load builds the same tree as insertion, with inner summaries that
+   * differ at most in the last bits
+   */
+  @Test
+  public void testMortonOrderRebuild() {
+    List<String> elements = elements(5000);
+    List<Point> locations = randomLocations(5000, new Random(3));
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    BarnesHutOctTree<String> mortonTree =
+        BarnesHutOctTree.builder()
+            .bounds(500, 500, 500)
+            .mortonOrder(true)
+            .parallel(true)
+            .parallelThreshold(16)
+            .build();
+    mortonTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), mortonTree.getRoot());
+  }
+
+  /**
+   * test that a Morton order bulk load puts elements on the dividing planes into the same leaves as
+   * insertion
+   */
+  @Test
+  public void testMortonOrderOnDividingPlanes() {
+    List<Point> locations = new ArrayList<>();
+    for (int x = 0; x <= 500; x += 50) {
+      for (int y = 0; y <= 500; y += 50) {
+        for (int z = 0; z <= 500; z += 50) {
+          locations.add(Point.of(x, y, z));
+        }
+      }
+    }
+    List<String> elements = elements(locations.size());
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    BarnesHutOctTree<String> mortonTree =
+        BarnesHutOctTree.builder().bounds(500, 500, 500).mortonOrder(true).build();
+    mortonTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), mortonTree.getRoot());
+    for (int i = 0; i < elements.size(); i++) {
+      Node<String> leaf = mortonTree.getRoot().leafAt(locations.get(i));
+      Assert.assertEquals(elements.get(i), leaf.forceObject.getElement());
+    }
+  }
+
+  /**
+   * test that deferred aggregation, with insertion, parallel builds and Morton order bulk loads,
+   * builds the same tree as insertion, with inner summaries that differ at most in the last bits
+   */
+  @Test
+  public void testDeferredAggregation() {
+    List<String> elements = elements(5000);
+    List<Point> locations = randomLocations(5000, new Random(4));
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    List<BarnesHutOctTree<String>> deferredTrees = new ArrayList<>();
+    deferredTrees.add(
+        BarnesHutOctTree.builder().bounds(500, 500, 500).deferredAggregation(true).build());
+    deferredTrees.add(
+        BarnesHutOctTree.builder()
+            .bounds(500, 500, 500)
+            .deferredAggregation(true)
+            .parallel(true)
+            .parallelThreshold(16)
+            .build());
+    deferredTrees.add(
+        BarnesHutOctTree.builder()
+            .bounds(500, 500, 500)
+            .deferredAggregation(true)
+            .mortonOrder(true)
+            .build());
+    for (BarnesHutOctTree<String> deferredTree : deferredTrees) {
+      deferredTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+      assertSameTree(tree.getRoot(), deferredTree.getRoot());
+    }
+  }
+
+  /** test that a tree with a node arena reuses the nodes of the previous rebuild */
+  @Test
+  public void testNodeArena() {
+    List<String> elements = elements(2000);
+    List<Point> locations = randomLocations(2000, new Random(5));
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    NodeArena<String> arena = NodeArena.<String>builder().initialCapacity(16).build();
+    BarnesHutOctTree<String> arenaTree =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).arena(arena).build();
+    arenaTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), arenaTree.getRoot());
+    int highWaterMark = arena.getHighWaterMark();
+    Assert.assertEquals(highWaterMark, arena.getSize());
+
+    int capacity = arena.getCapacity();
+    Node<String> fnw = arenaTree.getRoot().FNW;
+    arenaTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), arenaTree.getRoot());
+    Assert.assertSame(fnw, arenaTree.getRoot().FNW);
+    Assert.assertEquals(capacity, arena.getCapacity());
+    Assert.assertEquals(highWaterMark, arena.getHighWaterMark());
+  }
+
+  /** sums the inverse-distance repulsion from each visited node */
+  static class Repulsion extends ForceObject<String> {
+    double fx;
+    double fy;
+    double fz;
+    int visits;
+
+    Repulsion(String element, Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected void addForceFrom(ForceObject<String> other) {
+      visits++;
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double dz = p.z - other.p.z;
+      double distanceSquared = dx * dx + dy * dy + dz * dz;
+      fx += other.mass * dx / distanceSquared;
+      fy += other.mass * dy / distanceSquared;
+      fz += other.mass * dz / distanceSquared;
+    }
+  }
+
+  /**
+   * test that with leafCapacity the tree has fewer nodes, a Morton order build has the same nodes,
+   * and with theta 0 the forces are the direct sums
+   */
+  @Test
+  public void testLeafCapacity() {
+    List<String> elements = elements(1000);
+    List<Point> locations = randomLocations(1000, new Random(6));
+    BarnesHutOctTree<String> tree = BarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    BarnesHutOctTree<String> bucketTree =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).leafCapacity(8).build();
+    bucketTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    Assert.assertTrue(countNodes(bucketTree.getRoot()) * 4 < countNodes(tree.getRoot()));
+
+    BarnesHutOctTree<String> mortonTree =
+        BarnesHutOctTree.<String>builder()
+            .bounds(500, 500, 500)
+            .leafCapacity(8)
+            .mortonOrder(true)
+            .build();
+    mortonTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    Assert.assertEquals(countNodes(bucketTree.getRoot()), countNodes(mortonTree.getRoot()));
+
+    List<String> distinctElements = elements(300);
+    List<Point> distinctLocations = new ArrayList<>();
+    Random random = new Random(7);
+    for (int i = 0; i < distinctElements.size(); i++) {
+      distinctLocations.add(
+          Point.of(
+              random.nextDouble() * 500, random.nextDouble() * 500, random.nextDouble() * 500));
+    }
+    BarnesHutOctTree<String> exactTree =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).theta(0).leafCapacity(8).build();
+    exactTree.rebuild(
+        distinctElements, e -> distinctLocations.get(Integer.parseInt(e.substring(1))));
+    for (int i = 0; i < distinctElements.size(); i++) {
+      Repulsion visitor = new Repulsion(distinctElements.get(i), distinctLocations.get(i));
+      exactTree.applyForcesTo(visitor);
+      Repulsion expected = new Repulsion(distinctElements.get(i), distinctLocations.get(i));
+      for (int j = 0; j < distinctElements.size(); j++) {
+        if (j != i) {
+          expected.addForceFrom(
+              new ForceObject<>(distinctElements.get(j), distinctLocations.get(j)));
+        }
+      }
+      Assert.assertEquals(expected.fx, visitor.fx, 1e-9);
+      Assert.assertEquals(expected.fy, visitor.fy, 1e-9);
+      Assert.assertEquals(expected.fz, visitor.fz, 1e-9);
+    }
+  }
+
+  /**
+   * test that moving, removing and inserting elements one at a time builds the same tree as a
+   * rebuild with the final locations, including elements that are merged at one location
+   */
+  @Test
+  public void testIncrementalEdits() {
+    List<Supplier<BarnesHutOctTree.Builder<String>>> builders = new ArrayList<>();
+    builders.add(() -> BarnesHutOctTree.<String>builder().bounds(500, 500, 500));
+    builders.add(
+        () -> BarnesHutOctTree.<String>builder().bounds(500, 500, 500).deferredAggregation(true));
+    builders.add(() -> BarnesHutOctTree.<String>builder().bounds(500, 500, 500).leafCapacity(8));
+    builders.add(
+        () ->
+            BarnesHutOctTree.<String>builder()
+                .bounds(500, 500, 500)
+                .deferredAggregation(true)
+                .leafCapacity(8));
+    for (Supplier<BarnesHutOctTree.Builder<String>> builder : builders) {
+      List<String> elements = elements(2000);
+      List<Point> locations = randomLocations(2000, new Random(8));
+      Map<String, Point> current = new LinkedHashMap<>();
+      for (int i = 0; i < elements.size(); i++) {
+        current.put(elements.get(i), locations.get(i));
+      }
+      BarnesHutOctTree<String> editedTree = builder.get().build();
+      editedTree.rebuild(elements, current::get);
+
+      Random random = new Random(9);
+      for (int i = 0; i < 300; i++) {
+        String element = elements.get(random.nextInt(elements.size()));
+        Point location =
+            i % 10 == 0
+                // onto the location of another element
+                ? locations.get(random.nextInt(locations.size()))
+                : Point.of(
+                    random.nextDouble() * 500,
+                    random.nextDouble() * 500,
+                    random.nextDouble() * 500);
+        Assert.assertEquals(current.containsKey(element), editedTree.update(element, location));
+        current.computeIfPresent(element, (e, p) -> location);
+      }
+      for (int i = 100; i < 1000; i += 100) {
+        // the last of the elements merged at a location is left
+        Assert.assertTrue(editedTree.remove(elements.get(i)));
+        Assert.assertFalse(editedTree.remove(elements.get(i)));
+        current.remove(elements.get(i));
+      }
+      for (int i = 0; i < 50; i++) {
+        Point location =
+            Point.of(
+                random.nextDouble() * 500, random.nextDouble() * 500, random.nextDouble() * 500);
+        editedTree.insert("M" + i, location);
+        current.put("M" + i, location);
+      }
+
+      BarnesHutOctTree<String> rebuiltTree = builder.get().build();
+      rebuiltTree.rebuild(current.keySet(), current::get);
+      if (editedTree.getRoot().leafCapacity > 1) {
+        Assert.assertEquals(countNodes(rebuiltTree.getRoot()), countNodes(editedTree.getRoot()));
+        Assert.assertEquals(
+            rebuiltTree.getRoot().forceObject.mass, editedTree.getRoot().forceObject.mass, 1e-9);
+        assertSameSummaries(rebuiltTree.getRoot(), editedTree.getRoot());
+      } else {
+        assertSameTree(rebuiltTree.getRoot(), editedTree.getRoot());
+      }
+
+      // the octants of the root can not grow, so an edit outside of the bounds changes nothing
+      double mass = editedTree.getRoot().forceObject.mass;
+      try {
+        editedTree.insert("outside", Point.of(600, 250, 250));
+        Assert.fail("inserted outside of the bounds");
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        editedTree.update("M0", Point.of(600, 250, 250));
+        Assert.fail("moved outside of the bounds");
+      } catch (IllegalArgumentException expected) {
+      }
+      Assert.assertFalse(editedTree.remove("outside"));
+      Assert.assertEquals(mass, editedTree.getRoot().forceObject.mass, 1e-9);
+      Assert.assertTrue(editedTree.remove("M0"));
+      Assert.assertEquals(mass - 1, editedTree.getRoot().forceObject.mass, 1e-9);
+    }
+  }
+
+  /**
+   * test that the grouped traversal gives each visitor at least the interactions of its own
+   * traversal, and exactly its forces when nothing is summarized or each group is one location
+   */
+  @Test
+  public void testGroupedTraversal() {
+    List<String> elements = elements(3000);
+    List<Point> locations = randomLocations(3000, new Random(12));
+    for (int leafCapacity : new int[] {1, 8}) {
+      for (double theta : new double[] {0, 0.5}) {
+        BarnesHutOctTree<String> tree =
+            BarnesHutOctTree.<String>builder()
+                .bounds(500, 500, 500)
+                .theta(theta)
+                .leafCapacity(leafCapacity)
+                .build();
+        tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+        List<Repulsion> single = new ArrayList<>();
+        List<Repulsion> grouped = new ArrayList<>();
+        List<Repulsion> ones = new ArrayList<>();
+        for (int i = 0; i < elements.size(); i++) {
+          single.add(new Repulsion(elements.get(i), locations.get(i)));
+          grouped.add(new Repulsion(elements.get(i), locations.get(i)));
+          ones.add(new Repulsion(elements.get(i), locations.get(i)));
+          tree.applyForcesTo(single.get(i));
+        }
+        tree.applyForcesToGroups(grouped);
+        tree.applyForcesToGroups(ones, 1, ForkJoinPool.commonPool());
+
+        for (int i = 0; i < elements.size(); i++) {
+          Assert.assertTrue(grouped.get(i).visits >= single.get(i).visits);
+          if (theta == 0) {
+            Assert.assertEquals(single.get(i).visits, grouped.get(i).visits);
+            Assert.assertEquals(single.get(i).fx, grouped.get(i).fx, 0);
+            Assert.assertEquals(single.get(i).fy, grouped.get(i).fy, 0);
+            Assert.assertEquals(single.get(i).fz, grouped.get(i).fz, 0);
+          }
+          if (leafCapacity == 1) {
+            // each group of one is at one location, so its opening test is the visitor's own
+            Assert.assertEquals(single.get(i).visits, ones.get(i).visits);
+            Assert.assertEquals(single.get(i).fx, ones.get(i).fx, 0);
+            Assert.assertEquals(single.get(i).fy, ones.get(i).fy, 0);
+            Assert.assertEquals(single.get(i).fz, ones.get(i).fz, 0);
+          }
+        }
+      }
+    }
+  }
+
+  /** adds the quadrupole term of the summaries of inner nodes to the repulsion */
+  static class QuadrupoleRepulsion extends Repulsion {
+
+    QuadrupoleRepulsion(String element, Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected void addForceFrom(
+        ForceObject<String> other,
+        double qxx,
+        double qxy,
+        double qxz,
+        double qyy,
+        double qyz,
+        double qzz) {
+      addForceFrom(other);
+      // (4 (d . Q d) d / |d|^2 - 2 Q d - trace(Q) d) / |d|^4, for d = p - other.p
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double dz = p.z - other.p.z;
+      double qdx = qxx * dx + qxy * dy + qxz * dz;
+      double qdy = qxy * dx + qyy * dy + qyz * dz;
+      double qdz = qxz * dx + qyz * dy + qzz * dz;
+      double distanceSquared = dx * dx + dy * dy + dz * dz;
+      double radial = 4 * (dx * qdx + dy * qdy + dz * qdz) / distanceSquared - (qxx + qyy + qzz);
+      double scale = 1 / (distanceSquared * distanceSquared);
+      fx += (radial * dx - 2 * qdx) * scale;
+      fy += (radial * dy - 2 * qdy) * scale;
+      fz += (radial * dz - 2 * qdz) * scale;
+    }
+  }
+
+  /** @return the forces on each element, and the number of visits, from a tree of the elements */
+  private static double[][] forces(
+      List<String> elements, List<Point> locations, double theta, boolean quadrupole) {
+    BarnesHutOctTree<String> tree =
+        BarnesHutOctTree.<String>builder()
+            .bounds(500, 500, 500)
+            .theta(theta)
+            .quadrupole(quadrupole)
+            .build();
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    double[][] forces = new double[4][elements.size()];
+    for (int i = 0; i < elements.size(); i++) {
+      Repulsion visitor = new QuadrupoleRepulsion(elements.get(i), locations.get(i));
+      tree.applyForcesTo(visitor);
+      forces[0][i] = visitor.fx;
+      forces[1][i] = visitor.fy;
+      forces[2][i] = visitor.fz;
+      forces[3][0] += visitor.visits;
+    }
+    return forces;
+  }
+
+  /** @return the root mean square error of the forces relative to the exact forces */
+  private static double relativeError(double[][] forces, double[][] exact) {
+    double error = 0;
+    double norm = 0;
+    for (int i = 0; i < exact[0].length; i++) {
+      for (int j = 0; j < exact.length - 1; j++) {
+        double e = forces[j][i] - exact[j][i];
+        error += e * e;
+        norm += exact[j][i] * exact[j][i];
+      }
+    }
+    return Math.sqrt(error / norm);
+  }
+
+  /**
+   * test that the quadrupole term reaches the accuracy of a small theta with a larger one, and that
+   * edits keep the second moments of the nodes
+   */
+  @Test
+  public void testQuadrupole() {
+    List<String> elements = elements(3000);
+    List<Point> locations = new ArrayList<>();
+    Random random = new Random(13);
+    for (int i = 0; i < elements.size(); i++) {
+      // cluster half of the elements
+      double scale = i % 2 == 0 ? 50 : 500;
+      double offset = i % 2 == 0 ? 100 : 0;
+      locations.add(
+          Point.of(
+              offset + random.nextDouble() * scale,
+              offset + random.nextDouble() * scale,
+              offset + random.nextDouble() * scale));
+    }
+    double[][] exact = forces(elements, locations, 0, false);
+    double[][] monopole = forces(elements, locations, 0.3, false);
+    double[][] quadrupole = forces(elements, locations, 0.5, true);
+    double[][] wideMonopole = forces(elements, locations, 0.7, false);
+    double[][] wideQuadrupole = forces(elements, locations, 0.7, true);
+    // a larger theta with the quadrupole term is more accurate, with far fewer visits
+    Assert.assertTrue(relativeError(quadrupole, exact) < relativeError(monopole, exact));
+    Assert.assertTrue(quadrupole[3][0] < 0.6 * monopole[3][0]);
+    // and at the same theta the quadrupole term is several times more accurate
+    Assert.assertTrue(
+        relativeError(wideQuadrupole, exact) < relativeError(wideMonopole, exact) / 3);
+
+    // edits keep the moments of the nodes
+    for (int leafCapacity : new int[] {1, 8}) {
+      for (boolean deferred : new boolean[] {false, true}) {
+        Supplier<BarnesHutOctTree<String>> builder =
+            () ->
+                BarnesHutOctTree.<String>builder()
+                    .bounds(500, 500, 500)
+                    .quadrupole(true)
+                    .leafCapacity(leafCapacity)
+                    .deferredAggregation(deferred)
+                    .build();
+        BarnesHutOctTree<String> edited = builder.get();
+        Map<String, Point> current = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+          current.put(elements.get(i), locations.get(i));
+        }
+        edited.rebuild(current.keySet(), current::get);
+        for (int i = 0; i < 300; i++) {
+          String element = elements.get(random.nextInt(2000));
+          if (i % 3 == 0) {
+            edited.remove(element);
+            current.remove(element);
+          } else {
+            Point p =
+                Point.of(
+                    random.nextDouble() * 500,
+                    random.nextDouble() * 500,
+                    random.nextDouble() * 500);
+            edited.insert(element, p);
+            current.put(element, p);
+          }
+        }
+        BarnesHutOctTree<String> rebuilt = builder.get();
+        rebuilt.rebuild(current.keySet(), current::get);
+        assertSameMoments(rebuilt.getRoot(), edited.getRoot());
+      }
+    }
+  }
+
+  private static void assertSameMoments(Node<String> expected, Node<String> actual) {
+    double scale = Math.max(1, expected.qxx + expected.qyy + expected.qzz) * 1e-9;
+    Assert.assertEquals(expected.qxx, actual.qxx, scale);
+    Assert.assertEquals(expected.qxy, actual.qxy, scale);
+    Assert.assertEquals(expected.qxz, actual.qxz, scale);
+    Assert.assertEquals(expected.qyy, actual.qyy, scale);
+    Assert.assertEquals(expected.qyz, actual.qyz, scale);
+    Assert.assertEquals(expected.qzz, actual.qzz, scale);
+    if (!expected.isLeaf() && !actual.isLeaf()) {
+      Node<String>[] expectedChildren = children(expected);
+      Node<String>[] actualChildren = children(actual);
+      for (int i = 0; i < expectedChildren.length; i++) {
+        assertSameMoments(expectedChildren[i], actualChildren[i]);
+      }
+    }
+  }
+
+  /**
+   * test that the leaf index finds the leaf of every element after a rebuild and after edits, and
+   * that visitors get the same forces as without the index, also when they hold another instance of
+   * their element
+   */
+  @Test
+  public void testLeafIndex() {
+    for (int leafCapacity : new int[] {1, 8}) {
+      List<String> elements = elements(2000);
+      List<Point> locations = randomLocations(2000, new Random(10));
+      Map<String, Point> current = new LinkedHashMap<>();
+      for (int i = 0; i < elements.size(); i++) {
+        current.put(elements.get(i), locations.get(i));
+      }
+      BarnesHutOctTree<String> indexedTree =
+          BarnesHutOctTree.<String>builder()
+              .bounds(500, 500, 500)
+              .leafCapacity(leafCapacity)
+              .leafIndex(true)
+              .build();
+      BarnesHutOctTree<String> plainTree =
+          BarnesHutOctTree.<String>builder()
+              .bounds(500, 500, 500)
+              .leafCapacity(leafCapacity)
+              .build();
+      indexedTree.rebuild(elements, current::get);
+      plainTree.rebuild(elements, current::get);
+      assertLeafIndex(indexedTree, plainTree, current);
+
+      Random random = new Random(11);
+      for (int i = 0; i < 200; i++) {
+        String element = elements.get(random.nextInt(elements.size()));
+        if (i % 4 == 0) {
+          indexedTree.remove(element);
+          plainTree.remove(element);
+          current.remove(element);
+        } else {
+          Point location =
+              i % 10 == 1
+                  // onto the location of another element
+                  ? locations.get(random.nextInt(locations.size()))
+                  : Point.of(
+                      random.nextDouble() * 500,
+                      random.nextDouble() * 500,
+                      random.nextDouble() * 500);
+          indexedTree.insert(element, location);
+          plainTree.insert(element, location);
+          current.put(element, location);
+        }
+      }
+      assertLeafIndex(indexedTree, plainTree, current);
+    }
+  }
+
+  private static void assertLeafIndex(
+      BarnesHutOctTree<String> indexedTree,
+      BarnesHutOctTree<String> plainTree,
+      Map<String, Point> locations) {
+    for (Map.Entry<String, Point> entry : locations.entrySet()) {
+      String element = entry.getKey();
+      Node<String> leaf = indexedTree.getLeaf(element);
+      Assert.assertTrue(leaf.isLeaf());
+      boolean held = leaf.bodyCount == 0 && leaf.forceObject.getElement() == element;
+      for (int i = 0; i < leaf.bodyCount; i++) {
+        held |= leaf.bodies[i].getElement() == element;
+      }
+      Assert.assertTrue(held);
+
+      Repulsion indexed = new Repulsion(element, entry.getValue());
+      indexedTree.applyForcesTo(indexed);
+      Repulsion plain = new Repulsion(element, entry.getValue());
+      plainTree.applyForcesTo(plain);
+      Repulsion copy = new Repulsion(new String(element), entry.getValue());
+      indexedTree.applyForcesTo(copy);
+      Assert.assertEquals(plain.fx, indexed.fx, 0);
+      Assert.assertEquals(plain.fy, indexed.fy, 0);
+      Assert.assertEquals(plain.fx, copy.fx, 0);
+      Assert.assertEquals(plain.fy, copy.fy, 0);
+      Assert.assertEquals(plain.fz, indexed.fz, 0);
+      Assert.assertEquals(plain.fz, copy.fz, 0);
+    }
+    Assert.assertNull(indexedTree.getLeaf("not in the tree"));
+  }
+
+  /** test that the statistics describe the tree and count the traversals without changing them */
+  @Test
+  public void testTraversalStats() {
+    Assert.assertNull(BarnesHutOctTree.builder().bounds(500, 500, 500).build().getStats());
+    Map<String, Point> small = new LinkedHashMap<>();
+    small.put("A", Point.of(100, 100, 100));
+    small.put("B", Point.of(400, 100, 100));
+    small.put("C", Point.of(100, 400, 100));
+    BarnesHutOctTree<String> smallTree =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).stats(true).build();
+    smallTree.rebuild(small.keySet(), small::get);
+    TraversalStats smallStats = smallTree.getStats();
+    Assert.assertEquals(1, smallStats.getRebuilds());
+    Assert.assertEquals(9, smallStats.getNodeCount());
+    Assert.assertEquals(3, smallStats.getLeafCount());
+    Assert.assertEquals(1, smallStats.getMaxDepth());
+    Assert.assertEquals(1, smallStats.getAverageDepth(), 0);
+    Assert.assertEquals(1, smallStats.getAverageLeafOccupancy(), 0);
+
+    List<String> elements = elements(2000);
+    List<Point> locations = randomLocations(2000, new Random(16));
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    for (int leafCapacity : new int[] {1, 8}) {
+      for (boolean leafIndex : new boolean[] {false, true}) {
+        BarnesHutOctTree<String> plain =
+            BarnesHutOctTree.<String>builder()
+                .bounds(500, 500, 500)
+                .leafCapacity(leafCapacity)
+                .leafIndex(leafIndex)
+                .build();
+        BarnesHutOctTree<String> counted =
+            BarnesHutOctTree.<String>builder()
+                .bounds(500, 500, 500)
+                .leafCapacity(leafCapacity)
+                .leafIndex(leafIndex)
+                .stats(true)
+                .build();
+        plain.rebuild(elements, location);
+        counted.rebuild(elements, location);
+        TraversalStats stats = counted.getStats();
+        Assert.assertTrue(stats.getRebuildNanos() > 0);
+        Assert.assertEquals(countNodes(counted.getRoot()), stats.getNodeCount());
+        Assert.assertEquals(
+            elements.size(), stats.getAverageLeafOccupancy() * stats.getLeafCount(), 1e-9);
+        Assert.assertTrue(stats.getMaxLeafOccupancy() > 1);
+        Assert.assertTrue(stats.getAverageDepth() <= stats.getMaxDepth());
+
+        long visits = 0;
+        for (String element : elements) {
+          Repulsion expected = new Repulsion(element, location.apply(element));
+          Repulsion actual = new Repulsion(element, location.apply(element));
+          plain.applyForcesTo(expected);
+          counted.applyForcesTo(actual);
+          Assert.assertEquals(expected.visits, actual.visits);
+          Assert.assertEquals(expected.fx, actual.fx, 0);
+          Assert.assertEquals(expected.fy, actual.fy, 0);
+          Assert.assertEquals(expected.fz, actual.fz, 0);
+          visits += actual.visits;
+        }
+        Assert.assertEquals(elements.size(), stats.getTraversals());
+        Assert.assertEquals(visits, stats.getApproximations() + stats.getLeafInteractions());
+        Assert.assertTrue(stats.getApproximations() > 0);
+        Assert.assertTrue(stats.getNodesVisited() > stats.getApproximations());
+        Assert.assertTrue(stats.getMaxNodesVisited() >= stats.getAverageNodesVisited());
+
+        // a parallel pass counts the same traversals
+        long nodesVisited = stats.getNodesVisited();
+        stats.reset();
+        Assert.assertEquals(0, stats.getTraversals());
+        counted.applyForcesToAll(elements, location, Repulsion::new);
+        Assert.assertEquals(elements.size(), stats.getTraversals());
+        Assert.assertEquals(nodesVisited, stats.getNodesVisited());
+        Assert.assertEquals(visits, stats.getApproximations() + stats.getLeafInteractions());
+
+        // visit counts as a traversal too
+        stats.reset();
+        for (String element : elements) {
+          counted.visit(new Repulsion(element, location.apply(element)));
+        }
+        Assert.assertEquals(elements.size(), stats.getTraversals());
+        Assert.assertEquals(nodesVisited, stats.getNodesVisited());
+
+        // a grouped pass counts one traversal of its group's interactions per visitor
+        stats.reset();
+        List<Repulsion> grouped = new ArrayList<>();
+        for (String element : elements) {
+          grouped.add(new Repulsion(element, location.apply(element)));
+        }
+        counted.applyForcesToGroups(grouped);
+        long groupedVisits = grouped.stream().mapToLong(r -> r.visits).sum();
+        Assert.assertEquals(elements.size(), stats.getTraversals());
+        Assert.assertEquals(groupedVisits, stats.getApproximations() + stats.getLeafInteractions());
+        Assert.assertTrue(stats.getApproximations() > 0);
+        Assert.assertTrue(stats.getLeafInteractions() > 0);
+      }
+    }
+  }
+
+  /** test that a theta set on the tree is used by its traversals and by later rebuilds */
+  @Test
+  public void testSetTheta() {
+    List<String> elements = elements(1000);
+    List<Point> locations = randomLocations(1000, new Random(18));
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    BarnesHutOctTree<String> built =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).theta(0.8).build();
+    built.rebuild(elements, location);
+    BarnesHutOctTree<String> changed =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).build();
+    changed.rebuild(elements, location);
+    Assert.assertEquals(Node.DEFAULT_THETA, changed.getTheta(), 0);
+    changed.setTheta(0.8);
+    Assert.assertEquals(0.8, changed.getTheta(), 0);
+    for (int pass = 0; pass < 2; pass++) {
+      for (String element : elements) {
+        Repulsion expected = new Repulsion(element, location.apply(element));
+        Repulsion actual = new Repulsion(element, location.apply(element));
+        built.applyForcesTo(expected);
+        changed.applyForcesTo(actual);
+        Assert.assertEquals(expected.visits, actual.visits);
+        Assert.assertEquals(expected.fx, actual.fx, 0);
+        Assert.assertEquals(expected.fy, actual.fy, 0);
+        Assert.assertEquals(expected.fz, actual.fz, 0);
+      }
+      changed.rebuild(elements, location);
+    }
+  }
+
+  /**
+   * test that a rebuild from primitive arrays gives the same summaries as a rebuild from elements,
+   * and the same kernel forces as the flat tree
+   */
+  @Test
+  public void testPrimitiveRebuild() {
+    List<String> elements = elements(2000);
+    List<Point> locations = randomLocations(2000, new Random(9));
+    for (int i = 100; i < locations.size(); i += 100) {
+      // keep the leaves to one element, so no visitor is at the location of a summary
+      Point p = locations.get(i);
+      locations.set(i, Point.of(p.x, p.y, (p.z + 250) % 500));
+    }
+    int n = elements.size();
+    double[] xs = new double[n];
+    double[] ys = new double[n];
+    double[] zs = new double[n];
+    double[] masses = new double[n];
+    for (int i = 0; i < n; i++) {
+      xs[i] = locations.get(i).x;
+      ys[i] = locations.get(i).y;
+      zs[i] = locations.get(i).z;
+      masses[i] = 1 + i % 3;
+    }
+    BarnesHutOctTree<String> tree =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).build();
+    try {
+      tree.applyForcesTo(0, (x, y, z, mass) -> {});
+      Assert.fail("forces from a tree that was not rebuilt from arrays");
+    } catch (IllegalStateException expected) {
+    }
+    BarnesHutOctTree<String> objectTree =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).build();
+    objectTree.rebuild(
+        elements,
+        e -> masses[Integer.parseInt(e.substring(1))],
+        e -> locations.get(Integer.parseInt(e.substring(1))));
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    tree.rebuild(xs, ys, zs, masses, n);
+    Assert.assertNull(tree.getRoot().getForceObject());
+    for (int i = 0; i < n; i += 7) {
+      Repulsion expected = new Repulsion(elements.get(i), locations.get(i));
+      objectTree.applyForcesTo(expected);
+      double[] actual = new double[3];
+      int index = i;
+      tree.applyForcesTo(
+          i,
+          (x, y, z, mass) -> {
+            double dx = xs[index] - x;
+            double dy = ys[index] - y;
+            double dz = zs[index] - z;
+            double distanceSquared = dx * dx + dy * dy + dz * dz;
+            actual[0] += mass * dx / distanceSquared;
+            actual[1] += mass * dy / distanceSquared;
+            actual[2] += mass * dz / distanceSquared;
+          });
+      Assert.assertEquals(expected.fx, actual[0], 1e-9 * Math.abs(expected.fx) + 1e-9);
+      Assert.assertEquals(expected.fy, actual[1], 1e-9 * Math.abs(expected.fy) + 1e-9);
+      Assert.assertEquals(expected.fz, actual[2], 1e-9 * Math.abs(expected.fz) + 1e-9);
+    }
+
+    ForceKernel kernel = ForceKernel.repulsion(100);
+    FlatBarnesHutOctTree flat = FlatBarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    flat.rebuild(xs, ys, zs, masses, n);
+    double[] fx = new double[n];
+    double[] fy = new double[n];
+    double[] fz = new double[n];
+    double[] expectedX = new double[n];
+    double[] expectedY = new double[n];
+    double[] expectedZ = new double[n];
+    tree.applyForces(kernel, fx, fy, fz);
+    flat.applyForces(kernel, expectedX, expectedY, expectedZ);
+    Assert.assertArrayEquals(expectedX, fx, 0);
+    Assert.assertArrayEquals(expectedY, fy, 0);
+    Assert.assertArrayEquals(expectedZ, fz, 0);
+
+    // a rebuild from elements empties the primitive frame
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    tree.applyForcesTo(0, kernel, fx, fy, fz);
+    Assert.assertEquals(0, fx[0], 0);
+    Assert.assertEquals(n, tree.getRoot().getForceObject().mass, 0);
+  }
+
+  /** test that the range and nearest queries find the same elements as a scan of every element */
+  @Test
+  public void testQueries() {
+    Random random = new Random(11);
+    List<String> elements = elements(2000);
+    List<Point> locations = randomLocations(2000, random);
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    for (int leafCapacity : new int[] {1, 8}) {
+      BarnesHutOctTree<String> tree =
+          BarnesHutOctTree.<String>builder()
+              .bounds(500, 500, 500)
+              .leafCapacity(leafCapacity)
+              .build();
+      tree.rebuild(elements, location);
+      for (int q = 0; q < 20; q++) {
+        Point center =
+            Point.of(
+                random.nextDouble() * 500, random.nextDouble() * 500, random.nextDouble() * 500);
+        Box box = new Box(center.x, center.y, center.z, 80, 40, 120);
+        Sphere sphere = new Sphere(center, 90);
+        Set<String> inBox = new HashSet<>();
+        Set<String> inSphere = new HashSet<>();
+        List<Double> distances = new ArrayList<>();
+        for (String element : elements) {
+          Point p = location.apply(element);
+          if (p.inside(box)) {
+            inBox.add(element);
+          }
+          if (p.inside(sphere)) {
+            inSphere.add(element);
+          }
+          distances.add(p.distanceSquared(center));
+        }
+        distances.sort(null);
+
+        Set<String> found = new HashSet<>();
+        tree.query(
+            box,
+            (element, p) -> {
+              Assert.assertEquals(location.apply(element), p);
+              Assert.assertTrue(found.add(element));
+            });
+        Assert.assertEquals(inBox, found);
+        found.clear();
+        tree.query(sphere, (element, p) -> Assert.assertTrue(found.add(element)));
+        Assert.assertEquals(inSphere, found);
+
+        List<Double> nearest = new ArrayList<>();
+        tree.nearest(center, 10, (element, p) -> nearest.add(p.distanceSquared(center)));
+        Assert.assertEquals(distances.subList(0, 10), nearest);
+      }
+      List<String> all = new ArrayList<>();
+      tree.nearest(Point.ORIGIN, elements.size() + 1, (element, p) -> all.add(element));
+      Assert.assertEquals(elements.size(), new HashSet<>(all).size());
+    }
+
+    // a sphere does not intersect a box that is level with it but far away in z
+    Sphere sphere = new Sphere(Point.of(50, 50, 50), 10);
+    Assert.assertTrue(sphere.intersects(new Box(45, 45, 45, 10, 10, 10)));
+    Assert.assertFalse(sphere.intersects(new Box(45, 45, 400, 10, 10, 10)));
+  }
+
+  private static int countNodes(Node<String> node) {
+    if (node == null) {
+      return 0;
+    }
+    int count = 1;
+    for (Node<String> child : children(node)) {
+      count += countNodes(child);
+    }
+    return count;
+  }
+
+  private static void assertSameTree(Node<String> expected, Node<String> actual) {
+    Box expectedBounds = expected.getBounds();
+    Box actualBounds = actual.getBounds();
+    Assert.assertEquals(expectedBounds.x, actualBounds.x, 0);
+    Assert.assertEquals(expectedBounds.y, actualBounds.y, 0);
+    Assert.assertEquals(expectedBounds.z, actualBounds.z, 0);
+    Assert.assertEquals(expectedBounds.width, actualBounds.width, 0);
+    Assert.assertEquals(expected.isLeaf(), actual.isLeaf());
+    if (expected.forceObject == null) {
+      Assert.assertNull(actual.forceObject);
+      return;
+    }
+    if (expected.isLeaf()) {
+      Assert.assertEquals(expected.forceObject, actual.forceObject);
+      Assert.assertEquals(expected.forceObject.mass, actual.forceObject.mass, 0);
+      return;
+    }
+    Assert.assertEquals(expected.forceObject.mass, actual.forceObject.mass, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.x, actual.forceObject.p.x, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.y, actual.forceObject.p.y, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.z, actual.forceObject.p.z, 1e-9);
+    Node<String>[] expectedChildren = children(expected);
+    Node<String>[] actualChildren = children(actual);
+    for (int i = 0; i < expectedChildren.length; i++) {
+      assertSameTree(expectedChildren[i], actualChildren[i]);
+    }
+  }
+
+  /** assert that the trees have the same nodes with the same mass and center of mass */
+  private static void assertSameSummaries(Node<String> expected, Node<String> actual) {
+    Box expectedBounds = expected.getBounds();
+    Box actualBounds = actual.getBounds();
+    Assert.assertEquals(expectedBounds.x, actualBounds.x, 0);
+    Assert.assertEquals(expectedBounds.y, actualBounds.y, 0);
+    Assert.assertEquals(expectedBounds.z, actualBounds.z, 0);
+    Assert.assertEquals(expectedBounds.width, actualBounds.width, 0);
+    Assert.assertEquals(expected.isLeaf(), actual.isLeaf());
+    if (expected.forceObject == null) {
+      Assert.assertNull(actual.forceObject);
+      return;
+    }
+    Assert.assertEquals(expected.forceObject.mass, actual.forceObject.mass, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.x, actual.forceObject.p.x, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.y, actual.forceObject.p.y, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.z, actual.forceObject.p.z, 1e-9);
+    if (!expected.isLeaf()) {
+      Node<String>[] expectedChildren = children(expected);
+      Node<String>[] actualChildren = children(actual);
+      for (int i = 0; i < expectedChildren.length; i++) {
+        assertSameSummaries(expectedChildren[i], actualChildren[i]);
+      }
+    }
+  }
+
+  private static Node<String>[] children(Node<String> node) {
+    return new Node[] {
+      node.BNW, node.BNE, node.BSW, node.BSE, node.FNW, node.FNE, node.FSW, node.FSE
+    };
+  }
+}
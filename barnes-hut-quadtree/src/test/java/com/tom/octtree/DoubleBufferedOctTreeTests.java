@@ -0,0 +1,171 @@
+package com.tom.octtree;
+
+import com.tom.octtree.BarnesHutOctTreeTests.Repulsion;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that the double buffered tree publishes complete trees and does not reuse a tree that a
+ * reader holds
+ *
+ * @author Tom Nelson
+ */
+public class DoubleBufferedOctTreeTests {
+
+  private static DoubleBufferedOctTree<String> tree() {
+    return DoubleBufferedOctTree.<String>builder()
+        .trees(() -> BarnesHutOctTree.<String>builder().bounds(500, 500, 500).build())
+        .build();
+  }
+
+  /** test that the published tree gives the same forces as a tree rebuilt in place */
+  @Test
+  public void testRebuild() {
+    List<String> elements = BarnesHutOctTreeTests.elements(1000);
+    List<Point> locations = BarnesHutOctTreeTests.randomLocations(1000, new Random(1));
+    DoubleBufferedOctTree<String> buffered = tree();
+    Assert.assertEquals(0, buffered.getVersion());
+    BarnesHutOctTree<String> plain =
+        BarnesHutOctTree.<String>builder().bounds(500, 500, 500).build();
+    for (int frame = 1; frame <= 3; frame++) {
+      for (int i = 0; i < locations.size(); i++) {
+        Point p = locations.get(i);
+        locations.set(i, Point.of((p.x + 7 * frame) % 500, p.y, p.z));
+      }
+      plain.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+      Assert.assertEquals(
+          frame, buffered.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1)))));
+      Assert.assertEquals(frame, buffered.getVersion());
+      for (int i = 0; i < elements.size(); i += 10) {
+        Repulsion expected = new Repulsion(elements.get(i), locations.get(i));
+        Repulsion actual = new Repulsion(elements.get(i), locations.get(i));
+        plain.applyForcesTo(expected);
+        buffered.applyForcesTo(actual);
+        Assert.assertEquals(expected.fx, actual.fx, 0);
+        Assert.assertEquals(expected.fy, actual.fy, 0);
+        Assert.assertEquals(expected.fz, actual.fz, 0);
+      }
+    }
+  }
+
+  /** test that readers always see a complete tree while rebuilds are published */
+  @Test
+  public void testConcurrentReaders() throws Exception {
+    DoubleBufferedOctTree<String> buffered = tree();
+    Random random = new Random(2);
+    // the tree of version v holds v elements, each of mass 1
+    List<List<Point>> frames = new ArrayList<>();
+    for (int v = 1; v <= 200; v++) {
+      List<Point> frame = new ArrayList<>();
+      for (int i = 0; i < v; i++) {
+        frame.add(
+            Point.of(
+                random.nextDouble() * 500, random.nextDouble() * 500, random.nextDouble() * 500));
+      }
+      frames.add(frame);
+    }
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<String> failure = new AtomicReference<>();
+    List<Thread> readers = new ArrayList<>();
+    for (int r = 0; r < 4; r++) {
+      Thread reader =
+          new Thread(
+              () -> {
+                while (!done.get() && failure.get() == null) {
+                  try (DoubleBufferedOctTree.Snapshot<String> snapshot = buffered.acquire()) {
+                    long version = snapshot.getVersion();
+                    Node<String> root = snapshot.getRoot();
+                    double mass = root.getForceObject() != null ? root.getForceObject().mass : 0;
+                    if (mass != version) {
+                      failure.set("version " + version + " has mass " + mass);
+                    }
+                  }
+                }
+              });
+      reader.start();
+      readers.add(reader);
+    }
+    CompletableFuture<Long> last = null;
+    for (List<Point> frame : frames) {
+      List<String> elements = new ArrayList<>();
+      for (int i = 0; i < frame.size(); i++) {
+        elements.add("N" + i);
+      }
+      last = buffered.rebuildAsync(elements, e -> frame.get(Integer.parseInt(e.substring(1))));
+    }
+    Assert.assertEquals(frames.size(), (long) last.join());
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    Assert.assertNull(failure.get(), failure.get());
+    Assert.assertEquals(frames.size(), buffered.getVersion());
+  }
+
+  /** test that a rebuild waits for the readers of the tree it would reuse */
+  @Test
+  public void testSnapshotHoldsTree() throws Exception {
+    List<String> elements = BarnesHutOctTreeTests.elements(100);
+    List<Point> locations = BarnesHutOctTreeTests.randomLocations(100, new Random(3));
+    DoubleBufferedOctTree<String> buffered = tree();
+    buffered.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    DoubleBufferedOctTree.Snapshot<String> snapshot = buffered.acquire();
+    double mass = snapshot.getRoot().getForceObject().mass;
+
+    // the first rebuild fills the spare tree, the second would reuse the held one
+    CompletableFuture<Long> first =
+        buffered.rebuildAsync(elements.subList(0, 50), e -> locations.get(0));
+    CompletableFuture<Long> second =
+        buffered.rebuildAsync(elements.subList(0, 25), e -> locations.get(0));
+    Assert.assertEquals(2, (long) first.join());
+    Thread.sleep(100);
+    Assert.assertFalse(second.isDone());
+    Assert.assertEquals(1, snapshot.getVersion());
+    Assert.assertEquals(mass, snapshot.getRoot().getForceObject().mass, 0);
+
+    snapshot.close();
+    snapshot.close();
+    Assert.assertEquals(3, (long) second.join());
+    try (DoubleBufferedOctTree.Snapshot<String> current = buffered.acquire()) {
+      Assert.assertEquals(25, current.getRoot().getForceObject().mass, 0);
+    }
+  }
+
+  /** test that closing the tree stops its rebuild thread and refuses later rebuilds */
+  @Test
+  public void testClose() throws Exception {
+    Set<Thread> before = Thread.getAllStackTraces().keySet();
+    DoubleBufferedOctTree<String> buffered = tree();
+    List<String> elements = Arrays.asList("A", "B");
+    buffered.rebuild(elements, e -> Point.of(e.equals("A") ? 100 : 200, 100, 100));
+    Thread rebuildThread = null;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (!before.contains(thread) && thread.getName().equals("DoubleBufferedOctTree-rebuild")) {
+        rebuildThread = thread;
+      }
+    }
+    Assert.assertNotNull(rebuildThread);
+
+    buffered.close();
+    buffered.close();
+    rebuildThread.join(10_000);
+    Assert.assertFalse(rebuildThread.isAlive());
+    try {
+      buffered.rebuildAsync(elements, e -> Point.of(e.equals("A") ? 100 : 200, 100, 100));
+      Assert.fail("a closed tree was rebuilt");
+    } catch (IllegalStateException expected) {
+      Assert.assertEquals(1, buffered.getVersion());
+    }
+    try (DoubleBufferedOctTree.Snapshot<String> snapshot = buffered.acquire()) {
+      Assert.assertEquals(2, snapshot.getRoot().getForceObject().mass, 0);
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package com.tom.octtree;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that the FlatBarnesHutOctTree visits the same mass summaries, in the same order, as the
+ * BarnesHutOctTree built from the same bodies, and that it does not allocate once it has grown
+ *
+ * @author Tom Nelson
+ */
+public class FlatBarnesHutOctTreeTests {
+
+  private static final int COUNT = 500;
+
+  private double[] xs = new double[COUNT];
+  private double[] ys = new double[COUNT];
+  private double[] zs = new double[COUNT];
+  private double[] masses = new double[COUNT];
+
+  private void randomBodies(long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < COUNT; i++) {
+      if (i > 0 && i % 50 == 0) {
+        // put some bodies at the same location as another body
+        xs[i] = xs[i - 1];
+        ys[i] = ys[i - 1];
+        zs[i] = zs[i - 1];
+      } else {
+        xs[i] = random.nextDouble() * 500;
+        ys[i] = random.nextDouble() * 500;
+        zs[i] = random.nextDouble() * 500;
+      }
+      masses[i] = 1 + random.nextInt(3);
+    }
+  }
+
+  private static List<Double> visits(BarnesHutOctTree<Integer> tree, int i, Point p, double mass) {
+    List<Double> visits = new ArrayList<>();
+    tree.applyForcesTo(
+        new ForceObject(i, p, mass) {
+          @Override
+          protected void addForceFrom(ForceObject other) {
+            visits.add(other.p.x);
+            visits.add(other.p.y);
+            visits.add(other.p.z);
+            visits.add(other.mass);
+          }
+        });
+    return visits;
+  }
+
+  private static List<Double> visits(FlatBarnesHutOctTree tree, int i) {
+    List<Double> visits = new ArrayList<>();
+    tree.applyForcesTo(
+        i,
+        (x, y, z, mass) -> {
+          visits.add(x);
+          visits.add(y);
+          visits.add(z);
+          visits.add(mass);
+        });
+    return visits;
+  }
+
+  @Test
+  public void testSameVisitsAsBarnesHutOctTree() {
+    randomBodies(42);
+    Map<Integer, Point> locations = new HashMap<>();
+    Map<Integer, Double> massMap = new HashMap<>();
+    List<Integer> elements = new ArrayList<>();
+    for (int i = 0; i < COUNT; i++) {
+      elements.add(i);
+      locations.put(i, Point.of(xs[i], ys[i], zs[i]));
+      massMap.put(i, masses[i]);
+    }
+    BarnesHutOctTree<Integer> tree =
+        BarnesHutOctTree.builder().bounds(500, 500, 500).theta(0.7).build();
+    tree.rebuild(elements, massMap::get, locations::get);
+
+    FlatBarnesHutOctTree flat =
+        FlatBarnesHutOctTree.builder().bounds(500, 500, 500).theta(0.7).build();
+    flat.rebuild(xs, ys, zs, masses, COUNT);
+
+    Assert.assertEquals(
+        tree.getRoot().getForceObject().mass, flat.mass[FlatBarnesHutOctTree.ROOT], 0);
+    for (int i = 0; i < COUNT; i++) {
+      Assert.assertEquals(visits(tree, i, locations.get(i), masses[i]), visits(flat, i));
+    }
+  }
+
+  /** test that a body with no location is left out of the tree and out of the root bounds */
+  @Test
+  public void testBodyWithNoLocation() {
+    FlatBarnesHutOctTree flat = FlatBarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    flat.rebuild(
+        new double[] {10, 20, 30}, new double[] {5, 5, Double.NaN}, new double[] {5, 5, 5}, null, 3);
+    Box bounds = flat.getBounds();
+    Assert.assertEquals(0, bounds.x, 0);
+    Assert.assertEquals(0, bounds.y, 0);
+    Assert.assertEquals(0, bounds.z, 0);
+    Assert.assertEquals(500, bounds.width, 0);
+    Assert.assertEquals(500, bounds.height, 0);
+    Assert.assertEquals(500, bounds.depth, 0);
+    Assert.assertEquals(2, flat.mass[FlatBarnesHutOctTree.ROOT], 0);
+    Assert.assertEquals(Arrays.asList(20.0, 5.0, 5.0, 1.0), visits(flat, 0));
+  }
+
+  /**
+   * test that the scalar batch kernel gives the forces of the fused kernels, and that the vector
+   * kernel, when the JVM can load it, gives the forces of the scalar kernel
+   */
+  @Test
+  public void testBatchKernels() {
+    randomBodies(17);
+    FlatBarnesHutOctTree flat = FlatBarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    flat.rebuild(xs, ys, zs, masses, COUNT);
+    double[] fx = new double[COUNT];
+    double[] fy = new double[COUNT];
+    double[] fz = new double[COUNT];
+    double[] batchX = new double[COUNT];
+    double[] batchY = new double[COUNT];
+    double[] batchZ = new double[COUNT];
+    ForceKernel[] kernels = {
+      ForceKernel.repulsion(2),
+      ForceKernel.gravity(3, 1),
+      ForceKernel.attraction(0.01),
+      ForceKernel.builder().repulsion(2).gravity(3, 1).attraction(0.01).build()
+    };
+    BatchKernel vector = BatchKernel.vector();
+    for (ForceKernel kernel : kernels) {
+      flat.applyForces(kernel, fx, fy, fz);
+      flat.applyForces(kernel, BatchKernel.scalar(), batchX, batchY, batchZ);
+      Assert.assertArrayEquals(fx, batchX, 0);
+      Assert.assertArrayEquals(fy, batchY, 0);
+      Assert.assertArrayEquals(fz, batchZ, 0);
+      if (vector != null) {
+        flat.applyForces(kernel, vector, batchX, batchY, batchZ);
+        for (int i = 0; i < COUNT; i++) {
+          double norm = Math.sqrt(fx[i] * fx[i] + fy[i] * fy[i] + fz[i] * fz[i]);
+          Assert.assertEquals(fx[i], batchX[i], 1e-12 * norm);
+          Assert.assertEquals(fy[i], batchY[i], 1e-12 * norm);
+          Assert.assertEquals(fz[i], batchZ[i], 1e-12 * norm);
+        }
+      }
+    }
+    if (vector == null) {
+      return;
+    }
+    // batches of every length, so that some sources are left over after the last full vector
+    Random random = new Random(19);
+    double[] sourceX = new double[40];
+    double[] sourceY = new double[40];
+    double[] sourceZ = new double[40];
+    double[] sourceMass = new double[40];
+    for (int i = 0; i < 40; i++) {
+      sourceX[i] = random.nextDouble() * 10;
+      sourceY[i] = random.nextDouble() * 10;
+      sourceZ[i] = random.nextDouble() * 10;
+      sourceMass[i] = 1 + random.nextDouble();
+    }
+    // a source at the location of the body
+    sourceX[5] = 5;
+    sourceY[5] = 5;
+    sourceZ[5] = 5;
+    for (ForceKernel kernel : kernels) {
+      for (int count = 0; count <= 40; count++) {
+        double[] expected = {1, -1, 2};
+        double[] actual = {1, -1, 2};
+        BatchKernel.scalar()
+            .accumulate(kernel, 5, 5, 5, sourceX, sourceY, sourceZ, sourceMass, count, expected);
+        vector.accumulate(kernel, 5, 5, 5, sourceX, sourceY, sourceZ, sourceMass, count, actual);
+        for (int k = 0; k < 3; k++) {
+          Assert.assertEquals(expected[k], actual[k], 1e-12 * Math.abs(expected[k]));
+        }
+      }
+    }
+  }
+
+  /** test that a controller finds the theta that meets an error bound */
+  @Test
+  public void testThetaController() {
+    randomBodies(23);
+    FlatBarnesHutOctTree flat = FlatBarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    flat.rebuild(xs, ys, zs, masses, COUNT);
+    ForceKernel kernel = ForceKernel.repulsion(1);
+
+    // a theta set on the tree gives the forces of a tree built with it
+    FlatBarnesHutOctTree built =
+        FlatBarnesHutOctTree.builder().bounds(500, 500, 500).theta(0.9).build();
+    built.rebuild(xs, ys, zs, masses, COUNT);
+    flat.setTheta(0.9);
+    Assert.assertEquals(0.9, flat.getTheta(), 0);
+    Assert.assertEquals(built.sampleError(kernel, COUNT), flat.sampleError(kernel, COUNT), 0);
+
+    double previous = Double.MAX_VALUE;
+    for (double bound : new double[] {0.02, 0.005}) {
+      ThetaController controller =
+          ThetaController.builder().errorBound(bound).initialTheta(1.2).build();
+      for (int frame = 0; frame < 30; frame++) {
+        flat.setTheta(controller.getTheta());
+        controller.update(flat.sampleError(kernel, 100));
+      }
+      flat.setTheta(controller.getTheta());
+      Assert.assertTrue(flat.sampleError(kernel, 100) < bound * 1.5);
+      Assert.assertTrue(controller.getTheta() < previous);
+      previous = controller.getTheta();
+    }
+    // with theta 0 the forces are the direct sums
+    flat.setTheta(0);
+    Assert.assertEquals(0, flat.sampleError(kernel, 100), 1e-12);
+  }
+
+  /** the bytes allocated by the current thread while the runnable runs */
+  static long allocatedBytes(Runnable runnable) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+    runnable.run();
+    return threads.getThreadAllocatedBytes(id) - before;
+  }
+
+  /** test that the fused kernels give the forces of a visitor with the same force law */
+  @Test
+  public void testForceKernels() {
+    randomBodies(13);
+    FlatBarnesHutOctTree flat = FlatBarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    flat.rebuild(xs, ys, zs, masses, COUNT);
+    double[] fx = new double[COUNT];
+    double[] fy = new double[COUNT];
+    double[] fz = new double[COUNT];
+    ForceKernel[] kernels = {
+      ForceKernel.repulsion(2),
+      ForceKernel.gravity(3, 1),
+      ForceKernel.attraction(0.01),
+      ForceKernel.builder().repulsion(2).gravity(3, 1).attraction(0.01).build()
+    };
+    for (ForceKernel kernel : kernels) {
+      flat.applyForces(kernel, fx, fy, fz);
+      for (int i = 0; i < COUNT; i++) {
+        int index = i;
+        double[] expected = new double[3];
+        flat.applyForcesTo(
+            index,
+            (x, y, z, mass) -> {
+              double dx = xs[index] - x;
+              double dy = ys[index] - y;
+              double dz = zs[index] - z;
+              double scale = kernel.scale(dx * dx + dy * dy + dz * dz, mass);
+              expected[0] += dx * scale;
+              expected[1] += dy * scale;
+              expected[2] += dz * scale;
+            });
+        Assert.assertEquals(expected[0], fx[i], 0);
+        Assert.assertEquals(expected[1], fy[i], 0);
+        Assert.assertEquals(expected[2], fz[i], 0);
+      }
+    }
+
+    // the summaries are exact for the linear attraction
+    flat.applyForces(kernels[2], fx, fy, fz);
+    for (int i = 0; i < COUNT; i++) {
+      double ex = 0;
+      double ey = 0;
+      double ez = 0;
+      for (int j = 0; j < COUNT; j++) {
+        ex -= 0.01 * masses[j] * (xs[i] - xs[j]);
+        ey -= 0.01 * masses[j] * (ys[i] - ys[j]);
+        ez -= 0.01 * masses[j] * (zs[i] - zs[j]);
+      }
+      Assert.assertEquals(ex, fx[i], 1e-9 * Math.abs(ex) + 1e-9);
+      Assert.assertEquals(ey, fy[i], 1e-9 * Math.abs(ey) + 1e-9);
+      Assert.assertEquals(ez, fz[i], 1e-9 * Math.abs(ez) + 1e-9);
+    }
+  }
+
+  /** test that rebuilds and force visits allocate nothing once the storage has grown */
+  @Test
+  public void testSteadyStateDoesNotAllocate() {
+    randomBodies(11);
+    FlatBarnesHutOctTree flat = FlatBarnesHutOctTree.builder().bounds(500, 500, 500).build();
+    FlatBarnesHutOctTree.ForceVisitor visitor = (x, y, z, mass) -> {};
+    ForceKernel kernel = ForceKernel.builder().repulsion(1).gravity(1, 1).build();
+    double[] fx = new double[COUNT];
+    double[] fy = new double[COUNT];
+    double[] fz = new double[COUNT];
+    Runnable frame =
+        () -> {
+          flat.rebuild(xs, ys, zs, masses, COUNT);
+          flat.applyForces(kernel, fx, fy, fz);
+          flat.applyForces(kernel, BatchKernel.scalar(), fx, fy, fz);
+          for (int i = 0; i < COUNT; i++) {
+            flat.applyForcesTo(i, visitor);
+          }
+        };
+    for (int i = 0; i < 10; i++) {
+      frame.run();
+    }
+    long overhead = allocatedBytes(() -> {});
+    Assert.assertEquals(overhead, allocatedBytes(frame));
+  }
+}
@@ -1,5 +1,15 @@
 package com.tom.quadtree;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -40,6 +50,26 @@ public class BarnesHutQuadTreeTests {
     Assert.assertTrue(tree.getRoot().getForceObject().equals(expectedForceObject));
   }
 
+  /**
+   * test that many force objects at the same location, with masses that do not divide evenly, stay
+   * merged in one leaf that keeps their exact location
+   */
+  @Test
+  public void testSameLocationKeepsLocation() {
+    Point p = Point.of(0.1, 0.7);
+    tree.insert(new ForceObject<>("A", Point.of(400, 400)));
+    double mass = 0;
+    for (int i = 0; i < 100; i++) {
+      tree.insert(new ForceObject<>("N" + i, p, 1 + i % 3));
+      mass += 1 + i % 3;
+    }
+    // one split separates them from A
+    Node<String> leaf = tree.getRoot().NW;
+    Assert.assertTrue(leaf.isLeaf());
+    Assert.assertEquals(p, leaf.forceObject.p);
+    Assert.assertEquals(mass, leaf.forceObject.mass, 0);
+  }
+
   /** test a simple construction */
   @Test
   public void testTwo() {
@@ -65,4 +95,942 @@ public class BarnesHutQuadTreeTests {
     Assert.assertTrue(NW.SE.forceObject == null);
     Assert.assertTrue(root.NE.forceObject.equals(forceObjectD));
   }
+
+  /** sums the inverse-distance repulsion from each visited node */
+  static class Repulsion extends ForceObject<String> {
+    double fx;
+    double fy;
+    int visits;
+
+    Repulsion(String element, Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected <S> void addForceFrom(ForceObject<String> other) {
+      visits++;
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double distanceSquared = dx * dx + dy * dy;
+      fx += other.mass * dx / distanceSquared;
+      fy += other.mass * dy / distanceSquared;
+    }
+  }
+
+  static List<String> randomElements(int count, Random random, List<Point> locations) {
+    List<String> elements = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      elements.add("N" + i);
+      locations.add(Point.of(random.nextDouble() * 500, random.nextDouble() * 500));
+    }
+    return elements;
+  }
+
+  /** test that the parallel force pass gives each visitor the same force as a serial pass */
+  @Test
+  public void testApplyForcesToAll() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(1000, new Random(1), locations);
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    List<Repulsion> parallel =
+        tree.applyForcesToAll(
+            elements, e -> locations.get(Integer.parseInt(e.substring(1))), Repulsion::new);
+    Assert.assertEquals(elements.size(), parallel.size());
+    for (int i = 0; i < elements.size(); i++) {
+      Repulsion serial = new Repulsion(elements.get(i), locations.get(i));
+      tree.applyForcesTo(serial);
+      Assert.assertSame(elements.get(i), parallel.get(i).getElement());
+      Assert.assertEquals(serial.fx, parallel.get(i).fx, 0);
+      Assert.assertEquals(serial.fy, parallel.get(i).fy, 0);
+    }
+  }
+
+  /** test that a parallel rebuild builds the same tree as a serial rebuild */
+  @Test
+  public void testParallelRebuild() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(5000, new Random(2), locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    BarnesHutQuadTree<String> parallelTree =
+        BarnesHutQuadTree.builder().bounds(500, 500).parallel(true).parallelThreshold(16).build();
+    parallelTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    Assert.assertEquals(tree.toString(), parallelTree.toString());
+  }
+
+  /**
+   * test that Morton order bulk loads, serial and parallel, build the same tree as insertion, with
+   * inner summaries that differ at most in the last bits
+   */
+  @Test
+  public void testMortonOrderRebuild() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(5000, new Random(3), locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    BarnesHutQuadTree<String> mortonTree =
+        BarnesHutQuadTree.builder().bounds(500, 500).mortonOrder(true).build();
+    mortonTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), mortonTree.getRoot());
+
+    BarnesHutQuadTree<String> parallelTree =
+        BarnesHutQuadTree.builder()
+            .bounds(500, 500)
+            .mortonOrder(true)
+            .parallel(true)
+            .parallelThreshold(16)
+            .build();
+    parallelTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), parallelTree.getRoot());
+  }
+
+  /**
+   * test that a Morton order bulk load puts elements on the dividing lines into the same leaves as
+   * insertion
+   */
+  @Test
+  public void testMortonOrderOnDividingLines() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = new ArrayList<>();
+    for (int x = 0; x <= 500; x += 25) {
+      for (int y = 0; y <= 500; y += 25) {
+        elements.add("N" + elements.size());
+        locations.add(Point.of(x, y));
+      }
+    }
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    BarnesHutQuadTree<String> mortonTree =
+        BarnesHutQuadTree.builder().bounds(500, 500).mortonOrder(true).build();
+    mortonTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), mortonTree.getRoot());
+    for (int i = 0; i < elements.size(); i++) {
+      Node<String> leaf = mortonTree.getRoot().leafAt(locations.get(i));
+      Assert.assertEquals(elements.get(i), leaf.forceObject.getElement());
+    }
+  }
+
+  /**
+   * test that deferred aggregation, with insertion, parallel builds and Morton order bulk loads,
+   * builds the same tree as insertion, with inner summaries that differ at most in the last bits
+   */
+  @Test
+  public void testDeferredAggregation() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(5000, new Random(4), locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    List<BarnesHutQuadTree<String>> deferredTrees = new ArrayList<>();
+    deferredTrees.add(
+        BarnesHutQuadTree.builder().bounds(500, 500).deferredAggregation(true).build());
+    deferredTrees.add(
+        BarnesHutQuadTree.builder()
+            .bounds(500, 500)
+            .deferredAggregation(true)
+            .parallel(true)
+            .parallelThreshold(16)
+            .build());
+    deferredTrees.add(
+        BarnesHutQuadTree.builder()
+            .bounds(500, 500)
+            .deferredAggregation(true)
+            .mortonOrder(true)
+            .build());
+    for (BarnesHutQuadTree<String> deferredTree : deferredTrees) {
+      deferredTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+      assertSameTree(tree.getRoot(), deferredTree.getRoot());
+    }
+  }
+
+  /** test that a tree with a node arena reuses the nodes of the previous rebuild */
+  @Test
+  public void testNodeArena() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(2000, new Random(5), locations);
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    NodeArena<String> arena =
+        NodeArena.<String>builder().initialCapacity(16).growthFactor(2).build();
+    BarnesHutQuadTree<String> arenaTree =
+        BarnesHutQuadTree.<String>builder().bounds(500, 500).arena(arena).build();
+    arenaTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), arenaTree.getRoot());
+    int nodes = countNodes(arenaTree.getRoot()) - 1;
+    Assert.assertEquals(nodes, arena.getSize());
+    Assert.assertEquals(nodes, arena.getHighWaterMark());
+    Assert.assertTrue(arena.getCapacity() >= nodes);
+
+    // the same rebuild reuses the same nodes without growing
+    int capacity = arena.getCapacity();
+    Node<String> nw = arenaTree.getRoot().NW;
+    arenaTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    assertSameTree(tree.getRoot(), arenaTree.getRoot());
+    Assert.assertSame(nw, arenaTree.getRoot().NW);
+    Assert.assertEquals(capacity, arena.getCapacity());
+
+    // a smaller rebuild keeps the high-water mark
+    arenaTree.rebuild(
+        elements.subList(0, 100), e -> locations.get(Integer.parseInt(e.substring(1))));
+    Assert.assertTrue(arena.getSize() < nodes);
+    Assert.assertEquals(nodes, arena.getHighWaterMark());
+  }
+
+  /**
+   * test that leaves hold up to leafCapacity elements, that parallel and Morton order builds put
+   * the same elements in the same leaves, and that with theta 0 the forces are the direct sums
+   */
+  @Test
+  public void testLeafCapacity() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(2000, new Random(6), locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    BarnesHutQuadTree<String> bucketTree =
+        BarnesHutQuadTree.<String>builder().bounds(500, 500).leafCapacity(8).build();
+    bucketTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+
+    List<List<String>> leaves = leaves(bucketTree.getRoot(), new ArrayList<>());
+    Assert.assertEquals(elements.size(), leaves.stream().mapToInt(List::size).sum());
+    Assert.assertTrue(leaves.stream().allMatch(leaf -> leaf.size() <= 8));
+    Assert.assertTrue(countNodes(bucketTree.getRoot()) * 4 < countNodes(tree.getRoot()));
+    Assert.assertEquals(
+        tree.getRoot().forceObject.mass, bucketTree.getRoot().forceObject.mass, 1e-9);
+
+    BarnesHutQuadTree<String> parallelTree =
+        BarnesHutQuadTree.<String>builder()
+            .bounds(500, 500)
+            .leafCapacity(8)
+            .parallel(true)
+            .parallelThreshold(16)
+            .build();
+    parallelTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    Assert.assertEquals(bucketTree.toString(), parallelTree.toString());
+
+    BarnesHutQuadTree<String> mortonTree =
+        BarnesHutQuadTree.<String>builder()
+            .bounds(500, 500)
+            .leafCapacity(8)
+            .mortonOrder(true)
+            .deferredAggregation(true)
+            .build();
+    mortonTree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    Assert.assertEquals(leaves, leaves(mortonTree.getRoot(), new ArrayList<>()));
+
+    // with theta 0 every element is visited directly
+    List<Point> distinctLocations = new ArrayList<>();
+    List<String> distinctElements = randomElements(500, new Random(7), distinctLocations);
+    BarnesHutQuadTree<String> exactTree =
+        BarnesHutQuadTree.<String>builder().bounds(500, 500).theta(0).leafCapacity(8).build();
+    exactTree.rebuild(
+        distinctElements, e -> distinctLocations.get(Integer.parseInt(e.substring(1))));
+    for (int i = 0; i < distinctElements.size(); i++) {
+      Repulsion visitor = new Repulsion(distinctElements.get(i), distinctLocations.get(i));
+      exactTree.applyForcesTo(visitor);
+      Repulsion expected = new Repulsion(distinctElements.get(i), distinctLocations.get(i));
+      for (int j = 0; j < distinctElements.size(); j++) {
+        if (j != i) {
+          expected.addForceFrom(
+              new ForceObject<>(distinctElements.get(j), distinctLocations.get(j)));
+        }
+      }
+      Assert.assertEquals(expected.fx, visitor.fx, 1e-9);
+      Assert.assertEquals(expected.fy, visitor.fy, 1e-9);
+    }
+  }
+
+  /**
+   * test that moving, removing and inserting elements one at a time builds the same tree as a
+   * rebuild with the final locations, including elements that are merged at one location and
+   * locations outside of the bounds
+   */
+  @Test
+  public void testIncrementalEdits() {
+    List<Supplier<BarnesHutQuadTree.Builder<String>>> builders = new ArrayList<>();
+    builders.add(() -> BarnesHutQuadTree.<String>builder().bounds(500, 500));
+    builders.add(
+        () -> BarnesHutQuadTree.<String>builder().bounds(500, 500).deferredAggregation(true));
+    builders.add(
+        () ->
+            BarnesHutQuadTree.<String>builder()
+                .bounds(500, 500)
+                .mortonOrder(true)
+                .arena(NodeArena.<String>builder().build()));
+    builders.add(() -> BarnesHutQuadTree.<String>builder().bounds(500, 500).leafCapacity(8));
+    builders.add(
+        () ->
+            BarnesHutQuadTree.<String>builder()
+                .bounds(500, 500)
+                .deferredAggregation(true)
+                .leafCapacity(8));
+    for (Supplier<BarnesHutQuadTree.Builder<String>> builder : builders) {
+      List<Point> locations = new ArrayList<>();
+      List<String> elements = randomElements(2000, new Random(8), locations);
+      for (int i = 100; i < locations.size(); i += 100) {
+        // put some elements at the same location as another element
+        locations.set(i, locations.get(i - 1));
+      }
+      Map<String, Point> current = new LinkedHashMap<>();
+      for (int i = 0; i < elements.size(); i++) {
+        current.put(elements.get(i), locations.get(i));
+      }
+      BarnesHutQuadTree<String> editedTree = builder.get().build();
+      editedTree.rebuild(elements, current::get);
+
+      Random random = new Random(9);
+      for (int i = 0; i < 300; i++) {
+        String element = elements.get(random.nextInt(elements.size()));
+        Point location =
+            i % 10 == 0
+                // onto the location of another element
+                ? locations.get(random.nextInt(locations.size()))
+                : Point.of(random.nextDouble() * 500, random.nextDouble() * 500);
+        Assert.assertEquals(current.containsKey(element), editedTree.update(element, location));
+        current.computeIfPresent(element, (e, p) -> location);
+      }
+      for (int i = 100; i < 1000; i += 100) {
+        // the last of the elements merged at a location is left
+        Assert.assertTrue(editedTree.remove(elements.get(i)));
+        Assert.assertFalse(editedTree.remove(elements.get(i)));
+        current.remove(elements.get(i));
+      }
+      for (int i = 0; i < 100; i++) {
+        String element = elements.get(random.nextInt(elements.size()));
+        editedTree.remove(element);
+        current.remove(element);
+      }
+      for (int i = 0; i < 50; i++) {
+        Point location = Point.of(random.nextDouble() * 500, random.nextDouble() * 500);
+        editedTree.insert("M" + i, location);
+        current.put("M" + i, location);
+      }
+
+      BarnesHutQuadTree<String> rebuiltTree = builder.get().build();
+      rebuiltTree.rebuild(current.keySet(), current::get);
+      if (editedTree.getRoot().leafCapacity > 1) {
+        Assert.assertEquals(
+            leaves(rebuiltTree.getRoot(), new ArrayList<>()),
+            leaves(editedTree.getRoot(), new ArrayList<>()));
+        assertSameSummaries(rebuiltTree.getRoot(), editedTree.getRoot());
+      } else {
+        assertSameTree(rebuiltTree.getRoot(), editedTree.getRoot());
+      }
+
+      // an element outside of the bounds grows the root, and no element is lost
+      editedTree.insert("outside", Point.of(600, 250));
+      Assert.assertEquals(600, editedTree.getBounds().width, 0);
+      Assert.assertEquals(current.size() + 1, editedTree.getRoot().forceObject.mass, 1e-9);
+    }
+  }
+
+  /**
+   * test that the grouped traversal gives each visitor at least the interactions of its own
+   * traversal, and exactly its forces when nothing is summarized or each group is one location
+   */
+  @Test
+  public void testGroupedTraversal() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(3000, new Random(12), locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    for (int leafCapacity : new int[] {1, 8}) {
+      for (double theta : new double[] {0, 0.5}) {
+        BarnesHutQuadTree<String> tree =
+            BarnesHutQuadTree.<String>builder()
+                .bounds(500, 500)
+                .theta(theta)
+                .leafCapacity(leafCapacity)
+                .build();
+        tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+        List<Repulsion> single = new ArrayList<>();
+        List<Repulsion> grouped = new ArrayList<>();
+        List<Repulsion> ones = new ArrayList<>();
+        for (int i = 0; i < elements.size(); i++) {
+          single.add(new Repulsion(elements.get(i), locations.get(i)));
+          grouped.add(new Repulsion(elements.get(i), locations.get(i)));
+          ones.add(new Repulsion(elements.get(i), locations.get(i)));
+          tree.applyForcesTo(single.get(i));
+        }
+        tree.applyForcesToGroups(grouped);
+        tree.applyForcesToGroups(ones, 1, ForkJoinPool.commonPool());
+
+        for (int i = 0; i < elements.size(); i++) {
+          Assert.assertTrue(grouped.get(i).visits >= single.get(i).visits);
+          if (theta == 0) {
+            Assert.assertEquals(single.get(i).visits, grouped.get(i).visits);
+            Assert.assertEquals(single.get(i).fx, grouped.get(i).fx, 0);
+            Assert.assertEquals(single.get(i).fy, grouped.get(i).fy, 0);
+          }
+          if (leafCapacity == 1) {
+            // each group of one is at one location, so its opening test is the visitor's own
+            Assert.assertEquals(single.get(i).visits, ones.get(i).visits);
+            Assert.assertEquals(single.get(i).fx, ones.get(i).fx, 0);
+            Assert.assertEquals(single.get(i).fy, ones.get(i).fy, 0);
+          }
+        }
+      }
+    }
+  }
+
+  /** adds the quadrupole term of the summaries of inner nodes to the repulsion */
+  static class QuadrupoleRepulsion extends Repulsion {
+
+    QuadrupoleRepulsion(String element, Point p) {
+      super(element, p);
+    }
+
+    @Override
+    protected void addForceFrom(ForceObject<String> other, double qxx, double qxy, double qyy) {
+      addForceFrom(other);
+      // the conjugate of Q / d^3, with Q = (qxx - qyy) + 2i qxy and d = p - other.p
+      double dx = p.x - other.p.x;
+      double dy = p.y - other.p.y;
+      double cubeRe = dx * dx * dx - 3 * dx * dy * dy;
+      double cubeIm = 3 * dx * dx * dy - dy * dy * dy;
+      double distanceSquared = dx * dx + dy * dy;
+      double scale = 1 / (distanceSquared * distanceSquared * distanceSquared);
+      double a = qxx - qyy;
+      double b = 2 * qxy;
+      fx += (a * cubeRe + b * cubeIm) * scale;
+      fy += (a * cubeIm - b * cubeRe) * scale;
+    }
+  }
+
+  /** @return the forces on each element, and the number of visits, from the tree */
+  private static double[][] forces(
+      BarnesHutQuadTree<String> tree, List<String> elements, List<Point> locations) {
+    double[][] forces = new double[3][elements.size()];
+    for (int i = 0; i < elements.size(); i++) {
+      Repulsion visitor = new QuadrupoleRepulsion(elements.get(i), locations.get(i));
+      tree.applyForcesTo(visitor);
+      forces[0][i] = visitor.fx;
+      forces[1][i] = visitor.fy;
+      forces[2][0] += visitor.visits;
+    }
+    return forces;
+  }
+
+  /** @return the root mean square error of the forces relative to the exact forces */
+  static double relativeError(double[][] forces, double[][] exact) {
+    double error = 0;
+    double norm = 0;
+    for (int i = 0; i < exact[0].length; i++) {
+      for (int j = 0; j < exact.length - 1; j++) {
+        double e = forces[j][i] - exact[j][i];
+        error += e * e;
+        norm += exact[j][i] * exact[j][i];
+      }
+    }
+    return Math.sqrt(error / norm);
+  }
+
+  /**
+   * test that the quadrupole term reaches the accuracy of a small theta with a larger one, and that
+   * edits keep the second moments of the nodes
+   */
+  @Test
+  public void testQuadrupole() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(3000, new Random(13), locations);
+    for (int i = 0; i < locations.size(); i += 2) {
+      // cluster half of the elements
+      Point p = locations.get(i);
+      locations.set(i, Point.of(100 + p.x / 10, 100 + p.y / 10));
+    }
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    double[][] exact = forces(tree(elements, location, 0, false), elements, locations);
+    double[][] monopole = forces(tree(elements, location, 0.3, false), elements, locations);
+    double[][] quadrupole = forces(tree(elements, location, 0.5, true), elements, locations);
+    double[][] wideMonopole = forces(tree(elements, location, 0.7, false), elements, locations);
+    double[][] wideQuadrupole = forces(tree(elements, location, 0.7, true), elements, locations);
+    log.info(
+        "monopole at 0.3: error {}, {} visits. quadrupole at 0.5: error {}, {} visits",
+        relativeError(monopole, exact),
+        monopole[2][0],
+        relativeError(quadrupole, exact),
+        quadrupole[2][0]);
+    // a larger theta with the quadrupole term is more accurate, with far fewer visits
+    Assert.assertTrue(relativeError(quadrupole, exact) < relativeError(monopole, exact));
+    Assert.assertTrue(quadrupole[2][0] < 0.6 * monopole[2][0]);
+    // and at the same theta the quadrupole term is several times more accurate
+    Assert.assertTrue(
+        relativeError(wideQuadrupole, exact) < relativeError(wideMonopole, exact) / 3);
+
+    // edits keep the moments of the nodes
+    for (int leafCapacity : new int[] {1, 8}) {
+      for (boolean deferred : new boolean[] {false, true}) {
+        BarnesHutQuadTree<String> edited =
+            BarnesHutQuadTree.<String>builder()
+                .bounds(500, 500)
+                .quadrupole(true)
+                .leafCapacity(leafCapacity)
+                .deferredAggregation(deferred)
+                .build();
+        Map<String, Point> current = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+          current.put(elements.get(i), locations.get(i));
+        }
+        edited.rebuild(current.keySet(), current::get);
+        Random random = new Random(14);
+        for (int i = 0; i < 300; i++) {
+          String element = elements.get(random.nextInt(2000));
+          if (i % 3 == 0) {
+            edited.remove(element);
+            current.remove(element);
+          } else {
+            Point p = Point.of(random.nextDouble() * 500, random.nextDouble() * 500);
+            edited.insert(element, p);
+            current.put(element, p);
+          }
+        }
+        BarnesHutQuadTree<String> rebuilt =
+            BarnesHutQuadTree.<String>builder()
+                .bounds(500, 500)
+                .quadrupole(true)
+                .leafCapacity(leafCapacity)
+                .deferredAggregation(deferred)
+                .build();
+        rebuilt.rebuild(current.keySet(), current::get);
+        assertSameMoments(rebuilt.getRoot(), edited.getRoot());
+      }
+    }
+  }
+
+  private static BarnesHutQuadTree<String> tree(
+      List<String> elements, Function<String, Point> location, double theta, boolean quadrupole) {
+    BarnesHutQuadTree<String> tree =
+        BarnesHutQuadTree.<String>builder()
+            .bounds(500, 500)
+            .theta(theta)
+            .quadrupole(quadrupole)
+            .build();
+    tree.rebuild(elements, location);
+    return tree;
+  }
+
+  private static void assertSameMoments(Node<String> expected, Node<String> actual) {
+    double scale = Math.max(1, expected.qxx + expected.qyy) * 1e-9;
+    Assert.assertEquals(expected.qxx, actual.qxx, scale);
+    Assert.assertEquals(expected.qxy, actual.qxy, scale);
+    Assert.assertEquals(expected.qyy, actual.qyy, scale);
+    if (!expected.isLeaf() && !actual.isLeaf()) {
+      assertSameMoments(expected.NW, actual.NW);
+      assertSameMoments(expected.NE, actual.NE);
+      assertSameMoments(expected.SW, actual.SW);
+      assertSameMoments(expected.SE, actual.SE);
+    }
+  }
+
+  /**
+   * test that the leaf index finds the leaf of every element after a rebuild and after edits, and
+   * that visitors get the same forces as without the index, also when they hold another instance of
+   * their element
+   */
+  @Test
+  public void testLeafIndex() {
+    for (int leafCapacity : new int[] {1, 8}) {
+      List<Point> locations = new ArrayList<>();
+      List<String> elements = randomElements(2000, new Random(10), locations);
+      for (int i = 100; i < locations.size(); i += 100) {
+        // put some elements at the same location as another element
+        locations.set(i, locations.get(i - 1));
+      }
+      Map<String, Point> current = new LinkedHashMap<>();
+      for (int i = 0; i < elements.size(); i++) {
+        current.put(elements.get(i), locations.get(i));
+      }
+      BarnesHutQuadTree<String> indexedTree =
+          BarnesHutQuadTree.<String>builder()
+              .bounds(500, 500)
+              .leafCapacity(leafCapacity)
+              .leafIndex(true)
+              .build();
+      BarnesHutQuadTree<String> plainTree =
+          BarnesHutQuadTree.<String>builder().bounds(500, 500).leafCapacity(leafCapacity).build();
+      indexedTree.rebuild(elements, current::get);
+      plainTree.rebuild(elements, current::get);
+      assertLeafIndex(indexedTree, plainTree, current);
+
+      Random random = new Random(11);
+      for (int i = 0; i < 200; i++) {
+        String element = elements.get(random.nextInt(elements.size()));
+        if (i % 4 == 0) {
+          indexedTree.remove(element);
+          plainTree.remove(element);
+          current.remove(element);
+        } else {
+          Point location =
+              i % 10 == 1
+                  // onto the location of another element
+                  ? locations.get(random.nextInt(locations.size()))
+                  : Point.of(random.nextDouble() * 500, random.nextDouble() * 500);
+          indexedTree.insert(element, location);
+          plainTree.insert(element, location);
+          current.put(element, location);
+        }
+      }
+      assertLeafIndex(indexedTree, plainTree, current);
+    }
+  }
+
+  static void assertLeafIndex(
+      BarnesHutQuadTree<String> indexedTree,
+      BarnesHutQuadTree<String> plainTree,
+      Map<String, Point> locations) {
+    for (Map.Entry<String, Point> entry : locations.entrySet()) {
+      String element = entry.getKey();
+      Node<String> leaf = indexedTree.getLeaf(element);
+      Assert.assertTrue(leaf.isLeaf());
+      boolean held = leaf.bodyCount == 0 && leaf.forceObject.getElement() == element;
+      for (int i = 0; i < leaf.bodyCount; i++) {
+        held |= leaf.bodies[i].getElement() == element;
+      }
+      Assert.assertTrue(held);
+
+      Repulsion indexed = new Repulsion(element, entry.getValue());
+      indexedTree.applyForcesTo(indexed);
+      Repulsion plain = new Repulsion(element, entry.getValue());
+      plainTree.applyForcesTo(plain);
+      Repulsion copy = new Repulsion(new String(element), entry.getValue());
+      indexedTree.applyForcesTo(copy);
+      Assert.assertEquals(plain.fx, indexed.fx, 0);
+      Assert.assertEquals(plain.fy, indexed.fy, 0);
+      Assert.assertEquals(plain.fx, copy.fx, 0);
+      Assert.assertEquals(plain.fy, copy.fy, 0);
+    }
+    Assert.assertNull(indexedTree.getLeaf("not in the tree"));
+  }
+
+  /** @return the sorted elements of each leaf, in traversal order */
+  /** test that the statistics describe the tree and count the traversals without changing them */
+  @Test
+  public void testTraversalStats() {
+    Assert.assertNull(tree.getStats());
+    Map<String, Point> small = new LinkedHashMap<>();
+    small.put("A", Point.of(200, 100));
+    small.put("B", Point.of(100, 200));
+    small.put("C", Point.of(100, 100));
+    small.put("D", Point.of(500, 100));
+    BarnesHutQuadTree<String> smallTree =
+        BarnesHutQuadTree.<String>builder().bounds(500, 500).stats(true).build();
+    smallTree.rebuild(small.keySet(), small::get);
+    TraversalStats smallStats = smallTree.getStats();
+    Assert.assertEquals(1, smallStats.getRebuilds());
+    Assert.assertEquals(9, smallStats.getNodeCount());
+    Assert.assertEquals(4, smallStats.getLeafCount());
+    Assert.assertEquals(2, smallStats.getMaxDepth());
+    Assert.assertEquals(1.75, smallStats.getAverageDepth(), 0);
+    Assert.assertEquals(1, smallStats.getAverageLeafOccupancy(), 0);
+
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(2000, new Random(16), locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    for (int leafCapacity : new int[] {1, 8}) {
+      for (boolean leafIndex : new boolean[] {false, true}) {
+        BarnesHutQuadTree<String> plain =
+            BarnesHutQuadTree.<String>builder()
+                .bounds(500, 500)
+                .leafCapacity(leafCapacity)
+                .leafIndex(leafIndex)
+                .build();
+        BarnesHutQuadTree<String> counted =
+            BarnesHutQuadTree.<String>builder()
+                .bounds(500, 500)
+                .leafCapacity(leafCapacity)
+                .leafIndex(leafIndex)
+                .stats(true)
+                .build();
+        plain.rebuild(elements, location);
+        counted.rebuild(elements, location);
+        TraversalStats stats = counted.getStats();
+        Assert.assertTrue(stats.getRebuildNanos() > 0);
+        Assert.assertEquals(countNodes(counted.getRoot()), stats.getNodeCount());
+        Assert.assertEquals(
+            elements.size(), stats.getAverageLeafOccupancy() * stats.getLeafCount(), 1e-9);
+        Assert.assertTrue(stats.getMaxLeafOccupancy() > 1);
+        Assert.assertTrue(stats.getAverageDepth() <= stats.getMaxDepth());
+
+        long visits = 0;
+        for (String element : elements) {
+          Repulsion expected = new Repulsion(element, location.apply(element));
+          Repulsion actual = new Repulsion(element, location.apply(element));
+          plain.applyForcesTo(expected);
+          counted.applyForcesTo(actual);
+          Assert.assertEquals(expected.visits, actual.visits);
+          Assert.assertEquals(expected.fx, actual.fx, 0);
+          Assert.assertEquals(expected.fy, actual.fy, 0);
+          visits += actual.visits;
+        }
+        Assert.assertEquals(elements.size(), stats.getTraversals());
+        Assert.assertEquals(visits, stats.getApproximations() + stats.getLeafInteractions());
+        Assert.assertTrue(stats.getApproximations() > 0);
+        Assert.assertTrue(stats.getNodesVisited() > stats.getApproximations());
+        Assert.assertTrue(stats.getMaxNodesVisited() >= stats.getAverageNodesVisited());
+
+        // a parallel pass counts the same traversals
+        long nodesVisited = stats.getNodesVisited();
+        stats.reset();
+        Assert.assertEquals(0, stats.getTraversals());
+        counted.applyForcesToAll(elements, location, Repulsion::new);
+        Assert.assertEquals(elements.size(), stats.getTraversals());
+        Assert.assertEquals(nodesVisited, stats.getNodesVisited());
+        Assert.assertEquals(visits, stats.getApproximations() + stats.getLeafInteractions());
+
+        // a grouped pass counts one traversal of its group's interactions per visitor
+        stats.reset();
+        List<Repulsion> grouped = new ArrayList<>();
+        for (String element : elements) {
+          grouped.add(new Repulsion(element, location.apply(element)));
+        }
+        counted.applyForcesToGroups(grouped);
+        long groupedVisits = grouped.stream().mapToLong(r -> r.visits).sum();
+        Assert.assertEquals(elements.size(), stats.getTraversals());
+        Assert.assertEquals(groupedVisits, stats.getApproximations() + stats.getLeafInteractions());
+        Assert.assertTrue(stats.getApproximations() > 0);
+        Assert.assertTrue(stats.getLeafInteractions() > 0);
+      }
+    }
+  }
+
+  /** test that a theta set on the tree is used by its traversals and by later rebuilds */
+  @Test
+  public void testSetTheta() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(1000, new Random(18), locations);
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    BarnesHutQuadTree<String> built =
+        BarnesHutQuadTree.<String>builder().bounds(500, 500).theta(0.8).build();
+    built.rebuild(elements, location);
+    BarnesHutQuadTree<String> changed =
+        BarnesHutQuadTree.<String>builder().bounds(500, 500).build();
+    changed.rebuild(elements, location);
+    Assert.assertEquals(Node.DEFAULT_THETA, changed.getTheta(), 0);
+    changed.setTheta(0.8);
+    Assert.assertEquals(0.8, changed.getTheta(), 0);
+    for (int pass = 0; pass < 2; pass++) {
+      for (String element : elements) {
+        Repulsion expected = new Repulsion(element, location.apply(element));
+        Repulsion actual = new Repulsion(element, location.apply(element));
+        built.applyForcesTo(expected);
+        changed.applyForcesTo(actual);
+        Assert.assertEquals(expected.visits, actual.visits);
+        Assert.assertEquals(expected.fx, actual.fx, 0);
+        Assert.assertEquals(expected.fy, actual.fy, 0);
+      }
+      changed.rebuild(elements, location);
+    }
+  }
+
+  /**
+   * test that a rebuild from primitive arrays gives the same summaries as a rebuild from elements,
+   * and the same kernel forces as the flat tree
+   */
+  @Test
+  public void testPrimitiveRebuild() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(2000, new Random(9), locations);
+    int n = elements.size();
+    double[] xs = new double[n];
+    double[] ys = new double[n];
+    double[] masses = new double[n];
+    for (int i = 0; i < n; i++) {
+      xs[i] = locations.get(i).x;
+      ys[i] = locations.get(i).y;
+      masses[i] = 1 + i % 3;
+    }
+    try {
+      tree.applyForcesTo(0, (x, y, mass) -> {});
+      Assert.fail("forces from a tree that was not rebuilt from arrays");
+    } catch (IllegalStateException expected) {
+    }
+    BarnesHutQuadTree<String> objectTree =
+        BarnesHutQuadTree.<String>builder().bounds(500, 500).build();
+    objectTree.rebuild(
+        elements,
+        e -> masses[Integer.parseInt(e.substring(1))],
+        e -> locations.get(Integer.parseInt(e.substring(1))));
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    tree.rebuild(xs, ys, masses, n);
+    Assert.assertNull(tree.getRoot().getForceObject());
+    for (int i = 0; i < n; i += 7) {
+      Repulsion expected = new Repulsion(elements.get(i), locations.get(i));
+      objectTree.applyForcesTo(expected);
+      double[] actual = new double[2];
+      int index = i;
+      tree.applyForcesTo(
+          i,
+          (x, y, mass) -> {
+            double dx = xs[index] - x;
+            double dy = ys[index] - y;
+            double distanceSquared = dx * dx + dy * dy;
+            actual[0] += mass * dx / distanceSquared;
+            actual[1] += mass * dy / distanceSquared;
+          });
+      Assert.assertEquals(expected.fx, actual[0], 1e-9 * Math.abs(expected.fx) + 1e-9);
+      Assert.assertEquals(expected.fy, actual[1], 1e-9 * Math.abs(expected.fy) + 1e-9);
+    }
+
+    ForceKernel kernel = ForceKernel.repulsion(100);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, n);
+    double[] fx = new double[n];
+    double[] fy = new double[n];
+    double[] expectedX = new double[n];
+    double[] expectedY = new double[n];
+    tree.applyForces(kernel, fx, fy);
+    flat.applyForces(kernel, expectedX, expectedY);
+    Assert.assertArrayEquals(expectedX, fx, 0);
+    Assert.assertArrayEquals(expectedY, fy, 0);
+
+    // a rebuild from elements empties the primitive frame
+    tree.rebuild(elements, e -> locations.get(Integer.parseInt(e.substring(1))));
+    tree.applyForcesTo(0, kernel, fx, fy);
+    Assert.assertEquals(0, fx[0], 0);
+    Assert.assertEquals(n, tree.getRoot().getForceObject().mass, 0);
+  }
+
+  /** test that the range and nearest queries find the same elements as a scan of every element */
+  @Test
+  public void testQueries() {
+    Random random = new Random(11);
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = randomElements(2000, random, locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    for (int leafCapacity : new int[] {1, 8}) {
+      BarnesHutQuadTree<String> tree =
+          BarnesHutQuadTree.<String>builder().bounds(500, 500).leafCapacity(leafCapacity).build();
+      tree.rebuild(elements, location);
+      for (int q = 0; q < 20; q++) {
+        Point center = Point.of(random.nextDouble() * 500, random.nextDouble() * 500);
+        Rectangle area = new Rectangle(center.x, center.y, 80, 40);
+        Circle circle = new Circle(center, 60);
+        Set<String> inArea = new HashSet<>();
+        Set<String> inCircle = new HashSet<>();
+        List<Double> distances = new ArrayList<>();
+        for (String element : elements) {
+          Point p = location.apply(element);
+          if (p.inside(area)) {
+            inArea.add(element);
+          }
+          if (p.inside(circle)) {
+            inCircle.add(element);
+          }
+          distances.add(p.distanceSquared(center));
+        }
+        distances.sort(null);
+
+        Set<String> found = new HashSet<>();
+        tree.query(
+            area,
+            (element, p) -> {
+              Assert.assertEquals(location.apply(element), p);
+              Assert.assertTrue(found.add(element));
+            });
+        Assert.assertEquals(inArea, found);
+        found.clear();
+        tree.query(circle, (element, p) -> Assert.assertTrue(found.add(element)));
+        Assert.assertEquals(inCircle, found);
+
+        List<Double> nearest = new ArrayList<>();
+        tree.nearest(center, 10, (element, p) -> nearest.add(p.distanceSquared(center)));
+        Assert.assertEquals(distances.subList(0, 10), nearest);
+      }
+      List<String> all = new ArrayList<>();
+      tree.nearest(Point.ORIGIN, elements.size() + 1, (element, p) -> all.add(element));
+      Assert.assertEquals(elements.size(), new HashSet<>(all).size());
+    }
+  }
+
+  static List<List<String>> leaves(Node<String> node, List<List<String>> leaves) {
+    if (node.isLeaf()) {
+      List<String> leaf = new ArrayList<>();
+      for (int i = 0; i < node.bodyCount; i++) {
+        leaf.add(node.bodies[i].getElement());
+      }
+      leaf.sort(null);
+      leaves.add(leaf);
+      return leaves;
+    }
+    leaves(node.NW, leaves);
+    leaves(node.NE, leaves);
+    leaves(node.SW, leaves);
+    leaves(node.SE, leaves);
+    return leaves;
+  }
+
+  static int countNodes(Node<String> node) {
+    if (node == null) {
+      return 0;
+    }
+    return 1
+        + countNodes(node.NW)
+        + countNodes(node.NE)
+        + countNodes(node.SW)
+        + countNodes(node.SE);
+  }
+
+  static void assertSameTree(Node<String> expected, Node<String> actual) {
+    Assert.assertEquals(expected.getArea().toString(), actual.getArea().toString());
+    Assert.assertEquals(expected.isLeaf(), actual.isLeaf());
+    if (expected.forceObject == null) {
+      Assert.assertNull(actual.forceObject);
+      return;
+    }
+    if (expected.isLeaf()) {
+      Assert.assertEquals(expected.forceObject, actual.forceObject);
+      Assert.assertEquals(expected.forceObject.mass, actual.forceObject.mass, 0);
+      return;
+    }
+    Assert.assertEquals(expected.forceObject.mass, actual.forceObject.mass, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.x, actual.forceObject.p.x, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.y, actual.forceObject.p.y, 1e-9);
+    assertSameTree(expected.NW, actual.NW);
+    assertSameTree(expected.NE, actual.NE);
+    assertSameTree(expected.SW, actual.SW);
+    assertSameTree(expected.SE, actual.SE);
+  }
+
+  /** assert that the trees have the same nodes with the same mass and center of mass */
+  static void assertSameSummaries(Node<String> expected, Node<String> actual) {
+    Assert.assertEquals(expected.getArea().toString(), actual.getArea().toString());
+    Assert.assertEquals(expected.isLeaf(), actual.isLeaf());
+    if (expected.forceObject == null) {
+      Assert.assertNull(actual.forceObject);
+      return;
+    }
+    Assert.assertEquals(expected.forceObject.mass, actual.forceObject.mass, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.x, actual.forceObject.p.x, 1e-9);
+    Assert.assertEquals(expected.forceObject.p.y, actual.forceObject.p.y, 1e-9);
+    if (!expected.isLeaf()) {
+      assertSameSummaries(expected.NW, actual.NW);
+      assertSameSummaries(expected.NE, actual.NE);
+      assertSameSummaries(expected.SW, actual.SW);
+      assertSameSummaries(expected.SE, actual.SE);
+    }
+  }
 }
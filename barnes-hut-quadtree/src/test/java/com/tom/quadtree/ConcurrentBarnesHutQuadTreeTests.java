@@ -0,0 +1,124 @@
+package com.tom.quadtree;
+
+import com.tom.quadtree.BarnesHutQuadTreeTests.Repulsion;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that threads inserting into the concurrent tree at once build the same tree as inserting
+ * into a {@link BarnesHutQuadTree} one at a time
+ *
+ * @author Tom Nelson
+ */
+public class ConcurrentBarnesHutQuadTreeTests {
+
+  /** test that the forces of a tree built by racing threads match the forces of a locked tree */
+  @Test
+  public void testConcurrentInsert() throws Exception {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = BarnesHutQuadTreeTests.randomElements(20000, new Random(1), locations);
+    for (int i = 100; i < locations.size(); i += 100) {
+      // put some elements at the same location as another element
+      locations.set(i, locations.get(i - 1));
+    }
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    for (int leafCapacity : new int[] {1, 8}) {
+      ConcurrentBarnesHutQuadTree<String> tree =
+          ConcurrentBarnesHutQuadTree.<String>builder()
+              .bounds(500, 500)
+              .leafCapacity(leafCapacity)
+              .build();
+      int threads = 8;
+      CountDownLatch start = new CountDownLatch(1);
+      AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> producers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int first = t;
+        Thread producer =
+            new Thread(
+                () -> {
+                  try {
+                    start.await();
+                    for (int i = first; i < elements.size(); i += threads) {
+                      tree.insert(elements.get(i), locations.get(i));
+                    }
+                  } catch (Throwable e) {
+                    failure.set(e);
+                  }
+                });
+        producer.start();
+        producers.add(producer);
+      }
+      start.countDown();
+      for (Thread producer : producers) {
+        producer.join();
+      }
+      Assert.assertNull(failure.get());
+      Assert.assertEquals(elements.size(), tree.size());
+
+      BarnesHutQuadTree<String> lockedTree =
+          BarnesHutQuadTree.<String>builder().bounds(500, 500).leafCapacity(8).build();
+      lockedTree.rebuild(elements, location);
+      for (int i = 0; i < elements.size(); i += 97) {
+        Repulsion actual = new Repulsion(elements.get(i), locations.get(i));
+        tree.applyForcesTo(actual);
+        if (leafCapacity == 8) {
+          Repulsion expected = new Repulsion(elements.get(i), locations.get(i));
+          lockedTree.applyForcesTo(expected);
+          Assert.assertEquals(expected.fx, actual.fx, 1e-9 * Math.abs(expected.fx) + 1e-9);
+          Assert.assertEquals(expected.fy, actual.fy, 1e-9 * Math.abs(expected.fy) + 1e-9);
+          Assert.assertEquals(expected.visits, actual.visits);
+        }
+      }
+    }
+  }
+
+  /** test parallel rebuilds, theta 0 against direct sums, and inserts outside of the bounds */
+  @Test
+  public void testRebuild() {
+    List<Point> locations = new ArrayList<>();
+    List<String> elements = BarnesHutQuadTreeTests.randomElements(2000, new Random(2), locations);
+    Function<String, Point> location = e -> locations.get(Integer.parseInt(e.substring(1)));
+    ConcurrentBarnesHutQuadTree<String> tree =
+        ConcurrentBarnesHutQuadTree.<String>builder()
+            .bounds(500, 500)
+            .theta(0)
+            .leafCapacity(4)
+            .pool(new ForkJoinPool(4))
+            .build();
+    for (int frame = 0; frame < 2; frame++) {
+      tree.rebuild(elements, location);
+      Assert.assertEquals(elements.size(), tree.size());
+      List<Repulsion> visitors = new ArrayList<>();
+      for (int i = 0; i < elements.size(); i++) {
+        visitors.add(new Repulsion(elements.get(i), locations.get(i)));
+      }
+      tree.applyForcesToAll(visitors);
+      for (int i = 0; i < elements.size(); i += 101) {
+        Repulsion expected = new Repulsion(elements.get(i), locations.get(i));
+        for (int j = 0; j < elements.size(); j++) {
+          if (j != i) {
+            expected.addForceFrom(new ForceObject<>(elements.get(j), locations.get(j)));
+          }
+        }
+        Assert.assertEquals(expected.fx, visitors.get(i).fx, 1e-9 * Math.abs(expected.fx) + 1e-9);
+        Assert.assertEquals(expected.fy, visitors.get(i).fy, 1e-9 * Math.abs(expected.fy) + 1e-9);
+      }
+    }
+    try {
+      tree.insert("outside", Point.of(600, 100));
+      Assert.fail("inserted outside of the bounds");
+    } catch (IllegalArgumentException expected) {
+      Assert.assertEquals(elements.size(), tree.size());
+    }
+    tree.clear();
+    Assert.assertEquals(0, tree.size());
+  }
+}
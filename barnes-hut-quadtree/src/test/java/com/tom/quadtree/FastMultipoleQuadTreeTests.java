@@ -0,0 +1,108 @@
+package com.tom.quadtree;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that the FastMultipoleQuadTree computes the same forces as a direct sum over all pairs of
+ * bodies, within the error of its expansions
+ *
+ * @author Tom Nelson
+ */
+public class FastMultipoleQuadTreeTests {
+
+  private static final int COUNT = 1000;
+
+  private double[] xs = new double[COUNT];
+  private double[] ys = new double[COUNT];
+  private double[] masses = new double[COUNT];
+  private double[] directX = new double[COUNT];
+  private double[] directY = new double[COUNT];
+
+  private void randomBodies(long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < COUNT; i++) {
+      if (i > 0 && i % 50 == 0) {
+        // put some bodies at the same location as another body
+        xs[i] = xs[i - 1];
+        ys[i] = ys[i - 1];
+      } else if (i % 3 == 0) {
+        // and a cluster
+        xs[i] = 100 + random.nextGaussian() * 5;
+        ys[i] = 100 + random.nextGaussian() * 5;
+      } else {
+        xs[i] = random.nextDouble() * 500;
+        ys[i] = random.nextDouble() * 500;
+      }
+      masses[i] = 1 + random.nextInt(3);
+    }
+    for (int i = 0; i < COUNT; i++) {
+      directX[i] = 0;
+      directY[i] = 0;
+      for (int j = 0; j < COUNT; j++) {
+        double dx = xs[i] - xs[j];
+        double dy = ys[i] - ys[j];
+        double distanceSquared = dx * dx + dy * dy;
+        if (distanceSquared > 0) {
+          directX[i] += masses[j] * dx / distanceSquared;
+          directY[i] += masses[j] * dy / distanceSquared;
+        }
+      }
+    }
+  }
+
+  /** @return the largest error of the forces relative to the direct sum */
+  private double maxRelativeError(FastMultipoleQuadTree tree) {
+    double max = 0;
+    for (int i = 0; i < COUNT; i++) {
+      double ex = tree.getForceX(i) - directX[i];
+      double ey = tree.getForceY(i) - directY[i];
+      double norm = Math.sqrt(directX[i] * directX[i] + directY[i] * directY[i]);
+      max = Math.max(max, Math.sqrt(ex * ex + ey * ey) / norm);
+    }
+    return max;
+  }
+
+  private FastMultipoleQuadTree evaluate(double theta, int order) {
+    FastMultipoleQuadTree tree =
+        FastMultipoleQuadTree.builder().bounds(500, 500).theta(theta).order(order).build();
+    tree.rebuild(xs, ys, masses, COUNT);
+    tree.evaluate();
+    return tree;
+  }
+
+  /** test that with theta 0 every pair of leaves interacts directly */
+  @Test
+  public void testDirectInteractions() {
+    randomBodies(3);
+    Assert.assertEquals(0, maxRelativeError(evaluate(0, 4)), 1e-9);
+  }
+
+  /** test that the error is small and falls as the order grows */
+  @Test
+  public void testErrorFallsWithOrder() {
+    randomBodies(5);
+    double low = maxRelativeError(evaluate(0.5, 4));
+    double high = maxRelativeError(evaluate(0.5, 16));
+    Assert.assertTrue(low < 0.05);
+    Assert.assertTrue(high < 1e-5);
+    Assert.assertTrue(high < low);
+  }
+
+  /** test that a rebuild with other bodies forgets the earlier ones and keeps the storage */
+  @Test
+  public void testRebuildReusesStorage() {
+    randomBodies(7);
+    FastMultipoleQuadTree tree = evaluate(0.5, 8);
+    double[] storage = tree.multipoleRe;
+
+    tree.rebuild(new double[] {100, 400}, new double[] {100, 100}, new double[] {1, 2}, 2);
+    tree.evaluate();
+    Assert.assertSame(storage, tree.multipoleRe);
+    Assert.assertEquals(2, tree.getBodyCount());
+    Assert.assertEquals(-2.0 / 300, tree.getForceX(0), 1e-12);
+    Assert.assertEquals(1.0 / 300, tree.getForceX(1), 1e-12);
+    Assert.assertEquals(0, tree.getForceY(0), 1e-12);
+  }
+}
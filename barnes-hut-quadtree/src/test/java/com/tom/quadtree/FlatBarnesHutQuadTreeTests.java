@@ -0,0 +1,338 @@
+package com.tom.quadtree;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that the FlatBarnesHutQuadTree visits the same mass summaries, in the same order, as the
+ * BarnesHutQuadTree built from the same bodies
+ *
+ * @author Tom Nelson
+ */
+public class FlatBarnesHutQuadTreeTests {
+
+  private static final int COUNT = 500;
+
+  private double[] xs = new double[COUNT];
+  private double[] ys = new double[COUNT];
+  private double[] masses = new double[COUNT];
+
+  private void randomBodies(long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < COUNT; i++) {
+      if (i > 0 && i % 50 == 0) {
+        // put some bodies at the same location as another body
+        xs[i] = xs[i - 1];
+        ys[i] = ys[i - 1];
+      } else {
+        xs[i] = random.nextDouble() * 500;
+        ys[i] = random.nextDouble() * 500;
+      }
+      masses[i] = 1 + random.nextInt(3);
+    }
+  }
+
+  private static List<Double> visits(BarnesHutQuadTree<Integer> tree, int i, Point p, double mass) {
+    List<Double> visits = new ArrayList<>();
+    tree.applyForcesTo(
+        new ForceObject(i, p, mass) {
+          @Override
+          protected void addForceFrom(ForceObject other) {
+            visits.add(other.p.x);
+            visits.add(other.p.y);
+            visits.add(other.mass);
+          }
+        });
+    return visits;
+  }
+
+  private static List<Double> visits(FlatBarnesHutQuadTree tree, int i) {
+    List<Double> visits = new ArrayList<>();
+    tree.applyForcesTo(
+        i,
+        (x, y, mass) -> {
+          visits.add(x);
+          visits.add(y);
+          visits.add(mass);
+        });
+    return visits;
+  }
+
+  @Test
+  public void testSameVisitsAsBarnesHutQuadTree() {
+    randomBodies(42);
+    Map<Integer, Point> locations = new HashMap<>();
+    Map<Integer, Double> massMap = new HashMap<>();
+    List<Integer> elements = new ArrayList<>();
+    for (int i = 0; i < COUNT; i++) {
+      elements.add(i);
+      locations.put(i, Point.of(xs[i], ys[i]));
+      massMap.put(i, masses[i]);
+    }
+    BarnesHutQuadTree<Integer> tree = BarnesHutQuadTree.builder().bounds(500, 500).build();
+    tree.rebuild(elements, massMap::get, locations::get);
+
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, COUNT);
+
+    Assert.assertEquals(
+        tree.getRoot().getForceObject().mass, flat.mass[FlatBarnesHutQuadTree.ROOT], 0);
+    for (int i = 0; i < COUNT; i++) {
+      Assert.assertEquals(visits(tree, i, locations.get(i), masses[i]), visits(flat, i));
+    }
+  }
+
+  /** test that a rebuild with fewer bodies reuses the storage and forgets the earlier bodies */
+  @Test
+  public void testRebuildReusesStorage() {
+    randomBodies(7);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, COUNT);
+    double[] storage = flat.centerX;
+
+    flat.rebuild(new double[] {100, 400}, new double[] {100, 400}, 2);
+    Assert.assertSame(storage, flat.centerX);
+    Assert.assertEquals(2, flat.getBodyCount());
+    Assert.assertEquals(5, flat.getCellCount());
+    Assert.assertEquals(2, flat.mass[FlatBarnesHutQuadTree.ROOT], 0);
+  }
+
+  /**
+   * test that many bodies at the same location, with masses that do not divide evenly, stay merged
+   * in one cell that keeps their exact location
+   */
+  @Test
+  public void testSameLocationKeepsLocation() {
+    double[] xs = new double[101];
+    double[] ys = new double[101];
+    double[] masses = new double[101];
+    double mass = 0;
+    for (int i = 0; i < 100; i++) {
+      xs[i] = 0.1;
+      ys[i] = 0.7;
+      masses[i] = 1 + i % 3;
+      mass += masses[i];
+    }
+    xs[100] = 400;
+    ys[100] = 400;
+    masses[100] = 1;
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, 101);
+    Assert.assertEquals(5, flat.getCellCount());
+    Assert.assertEquals(Arrays.asList(0.1, 0.7, mass), visits(flat, 100));
+  }
+
+  /** test that a body with no location is left out of the tree and out of the root bounds */
+  @Test
+  public void testBodyWithNoLocation() {
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(new double[] {10, 20, Double.NaN}, new double[] {5, 5, 5}, 3);
+    Rectangle bounds = flat.getBounds();
+    Assert.assertEquals(0, bounds.x, 0);
+    Assert.assertEquals(0, bounds.y, 0);
+    Assert.assertEquals(500, bounds.width, 0);
+    Assert.assertEquals(500, bounds.height, 0);
+    Assert.assertEquals(2, flat.mass[FlatBarnesHutQuadTree.ROOT], 0);
+    Assert.assertEquals(Arrays.asList(20.0, 5.0, 1.0), visits(flat, 0));
+  }
+
+  /** test that the fused kernels give the forces of a visitor with the same force law */
+  @Test
+  public void testForceKernels() {
+    randomBodies(13);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, COUNT);
+    double[] fx = new double[COUNT];
+    double[] fy = new double[COUNT];
+    ForceKernel[] kernels = {
+      ForceKernel.repulsion(2),
+      ForceKernel.gravity(3, 1),
+      ForceKernel.attraction(0.01),
+      ForceKernel.builder().repulsion(2).gravity(3, 1).attraction(0.01).build()
+    };
+    for (ForceKernel kernel : kernels) {
+      flat.applyForces(kernel, fx, fy);
+      for (int i = 0; i < COUNT; i++) {
+        int index = i;
+        double[] expected = new double[2];
+        flat.applyForcesTo(
+            index,
+            (x, y, mass) -> {
+              double dx = xs[index] - x;
+              double dy = ys[index] - y;
+              double scale = kernel.scale(dx * dx + dy * dy, mass);
+              expected[0] += dx * scale;
+              expected[1] += dy * scale;
+            });
+        Assert.assertEquals(expected[0], fx[i], 0);
+        Assert.assertEquals(expected[1], fy[i], 0);
+      }
+    }
+
+    // the summaries are exact for the linear attraction
+    flat.applyForces(kernels[2], fx, fy);
+    for (int i = 0; i < COUNT; i++) {
+      double ex = 0;
+      double ey = 0;
+      for (int j = 0; j < COUNT; j++) {
+        ex -= 0.01 * masses[j] * (xs[i] - xs[j]);
+        ey -= 0.01 * masses[j] * (ys[i] - ys[j]);
+      }
+      Assert.assertEquals(ex, fx[i], 1e-9 * Math.abs(ex) + 1e-9);
+      Assert.assertEquals(ey, fy[i], 1e-9 * Math.abs(ey) + 1e-9);
+    }
+  }
+
+  /**
+   * test that the scalar batch kernel gives the forces of the fused kernels, and that the vector
+   * kernel, when the JVM can load it, gives the forces of the scalar kernel
+   */
+  @Test
+  public void testBatchKernels() {
+    randomBodies(17);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, COUNT);
+    double[] fx = new double[COUNT];
+    double[] fy = new double[COUNT];
+    double[] batchX = new double[COUNT];
+    double[] batchY = new double[COUNT];
+    ForceKernel[] kernels = {
+      ForceKernel.repulsion(2),
+      ForceKernel.gravity(3, 1),
+      ForceKernel.attraction(0.01),
+      ForceKernel.builder().repulsion(2).gravity(3, 1).attraction(0.01).build()
+    };
+    BatchKernel vector = BatchKernel.vector();
+    for (ForceKernel kernel : kernels) {
+      flat.applyForces(kernel, fx, fy);
+      flat.applyForces(kernel, BatchKernel.scalar(), batchX, batchY);
+      Assert.assertArrayEquals(fx, batchX, 0);
+      Assert.assertArrayEquals(fy, batchY, 0);
+      if (vector != null) {
+        flat.applyForces(kernel, vector, batchX, batchY);
+        for (int i = 0; i < COUNT; i++) {
+          double norm = Math.sqrt(fx[i] * fx[i] + fy[i] * fy[i]);
+          Assert.assertEquals(fx[i], batchX[i], 1e-12 * norm);
+          Assert.assertEquals(fy[i], batchY[i], 1e-12 * norm);
+        }
+      }
+    }
+    if (vector == null) {
+      return;
+    }
+    // batches of every length, so that some sources are left over after the last full vector
+    Random random = new Random(19);
+    double[] sourceX = new double[40];
+    double[] sourceY = new double[40];
+    double[] sourceMass = new double[40];
+    for (int i = 0; i < 40; i++) {
+      sourceX[i] = random.nextDouble() * 10;
+      sourceY[i] = random.nextDouble() * 10;
+      sourceMass[i] = 1 + random.nextDouble();
+    }
+    // a source at the location of the body
+    sourceX[5] = 5;
+    sourceY[5] = 5;
+    for (ForceKernel kernel : kernels) {
+      for (int count = 0; count <= 40; count++) {
+        double[] expected = {1, -1};
+        double[] actual = {1, -1};
+        BatchKernel.scalar()
+            .accumulate(kernel, 5, 5, sourceX, sourceY, sourceMass, count, expected);
+        vector.accumulate(kernel, 5, 5, sourceX, sourceY, sourceMass, count, actual);
+        Assert.assertEquals(expected[0], actual[0], 1e-12 * Math.abs(expected[0]));
+        Assert.assertEquals(expected[1], actual[1], 1e-12 * Math.abs(expected[1]));
+      }
+    }
+  }
+
+  /** test that a controller finds the theta that meets an error bound or a time budget */
+  @Test
+  public void testThetaController() {
+    randomBodies(23);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, COUNT);
+    ForceKernel kernel = ForceKernel.repulsion(1);
+
+    // a theta set on the tree gives the forces of a tree built with it
+    FlatBarnesHutQuadTree built =
+        FlatBarnesHutQuadTree.builder().bounds(500, 500).theta(0.9).build();
+    built.rebuild(xs, ys, masses, COUNT);
+    flat.setTheta(0.9);
+    Assert.assertEquals(0.9, flat.getTheta(), 0);
+    Assert.assertEquals(built.sampleError(kernel, COUNT), flat.sampleError(kernel, COUNT), 0);
+
+    double previous = Double.MAX_VALUE;
+    for (double bound : new double[] {0.02, 0.005}) {
+      ThetaController controller =
+          ThetaController.builder().errorBound(bound).initialTheta(1.2).build();
+      for (int frame = 0; frame < 30; frame++) {
+        flat.setTheta(controller.getTheta());
+        controller.update(flat.sampleError(kernel, 100));
+      }
+      flat.setTheta(controller.getTheta());
+      Assert.assertTrue(flat.sampleError(kernel, 100) < bound * 1.5);
+      Assert.assertTrue(controller.getTheta() < previous);
+      previous = controller.getTheta();
+    }
+    // with theta 0 the forces are the direct sums
+    flat.setTheta(0);
+    Assert.assertEquals(0, flat.sampleError(kernel, 100), 1e-12);
+
+    // a force pass that costs 1 / theta^2 ms meets a 4 ms budget at theta 0.5
+    ThetaController controller =
+        ThetaController.builder().timeBudget(4_000_000).initialTheta(1).build();
+    for (int frame = 0; frame < 40; frame++) {
+      double theta = controller.getTheta();
+      controller.update(1_000_000 / (theta * theta));
+    }
+    Assert.assertEquals(0.5, controller.getTheta(), 0.05);
+    // and theta stays in its range when the budget cannot be met
+    for (int frame = 0; frame < 40; frame++) {
+      controller.update(1e12);
+    }
+    Assert.assertEquals(ThetaController.DEFAULT_MAX_THETA, controller.getTheta(), 0);
+  }
+
+  /** the bytes allocated by the current thread while the runnable runs */
+  static long allocatedBytes(Runnable runnable) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+    runnable.run();
+    return threads.getThreadAllocatedBytes(id) - before;
+  }
+
+  /** test that rebuilds and force visits allocate nothing once the storage has grown */
+  @Test
+  public void testSteadyStateDoesNotAllocate() {
+    randomBodies(11);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    FlatBarnesHutQuadTree.ForceVisitor visitor = (x, y, mass) -> {};
+    ForceKernel kernel = ForceKernel.builder().repulsion(1).gravity(1, 1).build();
+    double[] fx = new double[COUNT];
+    double[] fy = new double[COUNT];
+    Runnable frame =
+        () -> {
+          flat.rebuild(xs, ys, masses, COUNT);
+          flat.applyForces(kernel, fx, fy);
+          flat.applyForces(kernel, BatchKernel.scalar(), fx, fy);
+          for (int i = 0; i < COUNT; i++) {
+            flat.applyForcesTo(i, visitor);
+          }
+        };
+    for (int i = 0; i < 10; i++) {
+      frame.run();
+    }
+    long overhead = allocatedBytes(() -> {});
+    Assert.assertEquals(overhead, allocatedBytes(frame));
+  }
+}
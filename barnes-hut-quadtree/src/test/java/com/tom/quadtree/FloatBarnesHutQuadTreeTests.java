@@ -0,0 +1,126 @@
+package com.tom.quadtree;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test that the FloatBarnesHutQuadTree builds the same tree as the FlatBarnesHutQuadTree, with
+ * forces that differ only by the rounding of its storage
+ *
+ * @author Tom Nelson
+ */
+public class FloatBarnesHutQuadTreeTests {
+
+  private static final int COUNT = 5000;
+
+  private double[] xs = new double[COUNT];
+  private double[] ys = new double[COUNT];
+  private double[] masses = new double[COUNT];
+
+  private void randomBodies(long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < COUNT; i++) {
+      if (i > 0 && i % 50 == 0) {
+        // put some bodies at the same location as another body
+        xs[i] = xs[i - 1];
+        ys[i] = ys[i - 1];
+      } else {
+        xs[i] = random.nextDouble() * 500;
+        ys[i] = random.nextDouble() * 500;
+      }
+      masses[i] = 1 + random.nextInt(3);
+    }
+  }
+
+  /** test that the forces of every kernel match the double precision tree */
+  @Test
+  public void testSameForcesAsFlatTree() {
+    randomBodies(42);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    FloatBarnesHutQuadTree tree = FloatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, masses, COUNT);
+    tree.rebuild(xs, ys, masses, COUNT);
+    Assert.assertEquals(flat.getCellCount(), tree.getCellCount());
+    Assert.assertEquals(flat.getBounds().toString(), tree.getBounds().toString());
+
+    double[] expectedX = new double[COUNT];
+    double[] expectedY = new double[COUNT];
+    double[] fx = new double[COUNT];
+    double[] fy = new double[COUNT];
+    for (ForceKernel kernel :
+        new ForceKernel[] {
+          ForceKernel.repulsion(100), ForceKernel.gravity(1, 1), ForceKernel.attraction(0.01)
+        }) {
+      flat.applyForces(kernel, expectedX, expectedY);
+      tree.applyForces(kernel, fx, fy);
+      double error = 0;
+      double norm = 0;
+      for (int i = 0; i < COUNT; i++) {
+        double ex = fx[i] - expectedX[i];
+        double ey = fy[i] - expectedY[i];
+        error += ex * ex + ey * ey;
+        norm += expectedX[i] * expectedX[i] + expectedY[i] * expectedY[i];
+      }
+      // the locations are rounded by about 3e-5 at 500, which close bodies feel the most
+      Assert.assertTrue(kernel + " error " + Math.sqrt(error / norm), error < 1e-8 * norm);
+    }
+
+    // the visitor sees the summaries of the flat tree, rounded
+    for (int i = 0; i < COUNT; i += 101) {
+      double[] expected = new double[3];
+      double[] actual = new double[3];
+      flat.applyForcesTo(
+          i,
+          (x, y, mass) -> {
+            expected[0] += x * mass;
+            expected[1] += y * mass;
+            expected[2] += mass;
+          });
+      tree.applyForcesTo(
+          i,
+          (x, y, mass) -> {
+            actual[0] += x * mass;
+            actual[1] += y * mass;
+            actual[2] += mass;
+          });
+      for (int a = 0; a < 3; a++) {
+        Assert.assertEquals(expected[a], actual[a], 1e-6 * Math.abs(expected[a]));
+      }
+    }
+  }
+
+  /** test that bodies closer than float precision are merged instead of split without end */
+  @Test
+  public void testBodiesCloserThanFloatPrecision() {
+    double[] xs = {100, 100 + 1e-9, Math.nextUp(100f), 300, 300};
+    double[] ys = {100, 100, 100, 300, 300 + 1e-9};
+    FloatBarnesHutQuadTree tree = FloatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    tree.rebuild(xs, ys, xs.length);
+    Assert.assertEquals(xs.length, tree.getBodyCount());
+    // bodies 0 and 1 round to one location, and so do 3 and 4. body 2 is one float away
+    double[] seen = new double[1];
+    tree.applyForcesTo(2, (x, y, mass) -> seen[0] += mass);
+    Assert.assertEquals(4, seen[0], 0);
+    // a merged leaf is visited as one aggregate, as in Node
+    seen[0] = 0;
+    tree.applyForcesTo(3, (x, y, mass) -> seen[0] += mass);
+    Assert.assertEquals(5, seen[0], 0);
+  }
+
+  /** test that a body with no location is left out of the tree and out of the root bounds */
+  @Test
+  public void testBodyWithNoLocation() {
+    FloatBarnesHutQuadTree tree = FloatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    tree.rebuild(new double[] {10, 20, Double.NaN}, new double[] {5, 5, 5}, 3);
+    Rectangle bounds = tree.getBounds();
+    Assert.assertEquals(0, bounds.x, 0);
+    Assert.assertEquals(0, bounds.y, 0);
+    Assert.assertEquals(500, bounds.width, 0);
+    Assert.assertEquals(500, bounds.height, 0);
+    Assert.assertEquals(2, tree.mass[FloatBarnesHutQuadTree.ROOT], 0);
+    double[] seen = new double[1];
+    tree.applyForcesTo(0, (x, y, mass) -> seen[0] += mass);
+    Assert.assertEquals(1, seen[0], 0);
+  }
+}
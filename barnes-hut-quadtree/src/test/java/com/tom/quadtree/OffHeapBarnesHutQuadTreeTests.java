@@ -0,0 +1,193 @@
+package com.tom.quadtree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test that the OffHeapBarnesHutQuadTree builds the same tree as the FlatBarnesHutQuadTree, across
+ * several pages of storage, that a snapshot maps back to the same tree, and that a closed tree can
+ * not be used
+ *
+ * @author Tom Nelson
+ */
+public class OffHeapBarnesHutQuadTreeTests {
+
+  // enough bodies for more than one page of bodies and of cells
+  private static final int COUNT = 3 * OffHeapBarnesHutQuadTree.PAGE_SIZE;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private double[] xs = new double[COUNT];
+  private double[] ys = new double[COUNT];
+  private double[] masses = new double[COUNT];
+
+  private void randomBodies(long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < COUNT; i++) {
+      if (i > 0 && i % 50 == 0) {
+        // put some bodies at the same location as another body
+        xs[i] = xs[i - 1];
+        ys[i] = ys[i - 1];
+      } else {
+        xs[i] = random.nextDouble() * 500;
+        ys[i] = random.nextDouble() * 500;
+      }
+      masses[i] = 1 + random.nextInt(3);
+    }
+  }
+
+  @Test
+  public void testSameTreeAsFlatTree() {
+    randomBodies(42);
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(400, 400).build();
+    try (OffHeapBarnesHutQuadTree tree =
+        OffHeapBarnesHutQuadTree.builder().bounds(400, 400).build()) {
+      // rebuild twice, so that the second rebuild reuses the pages of the first
+      for (int pass = 0; pass < 2; pass++) {
+        flat.rebuild(xs, ys, masses, COUNT - pass);
+        tree.rebuild(xs, ys, masses, COUNT - pass);
+        Assert.assertEquals(flat.getCellCount(), tree.getCellCount());
+        Assert.assertEquals(flat.getBodyCount(), tree.getBodyCount());
+        Assert.assertEquals(flat.getBounds().toString(), tree.getBounds().toString());
+      }
+      long bytes = tree.getStorageBytes();
+      Assert.assertTrue(bytes >= (long) tree.getCellCount() * 64);
+
+      double[] expectedX = new double[COUNT];
+      double[] expectedY = new double[COUNT];
+      double[] fx = new double[COUNT];
+      double[] fy = new double[COUNT];
+      ForceKernel kernel = ForceKernel.gravity(1, 1);
+      flat.applyForces(kernel, expectedX, expectedY);
+      tree.applyForces(kernel, fx, fy);
+      Assert.assertArrayEquals(expectedX, fx, 0);
+      Assert.assertArrayEquals(expectedY, fy, 0);
+
+      for (int i = 0; i < tree.getBodyCount(); i += 97) {
+        List<Double> expected = new ArrayList<>();
+        List<Double> actual = new ArrayList<>();
+        flat.applyForcesTo(
+            i,
+            (x, y, mass) -> {
+              expected.add(x);
+              expected.add(y);
+              expected.add(mass);
+            });
+        tree.applyForcesTo(
+            i,
+            (x, y, mass) -> {
+              actual.add(x);
+              actual.add(y);
+              actual.add(mass);
+            });
+        Assert.assertEquals(expected, actual);
+      }
+
+      tree.clear();
+      Assert.assertEquals(0, tree.getCellCount());
+      Assert.assertEquals(bytes, tree.getStorageBytes());
+    }
+  }
+
+  /** test that a mapped snapshot gives the same forces as the tree that wrote it */
+  @Test
+  public void testSnapshot() throws IOException {
+    randomBodies(7);
+    Path file = folder.newFile("tree.bin").toPath();
+    try (OffHeapBarnesHutQuadTree tree =
+        OffHeapBarnesHutQuadTree.builder().bounds(500, 500).theta(0.7).build()) {
+      tree.rebuild(xs, ys, masses, COUNT);
+      tree.write(file);
+      try (OffHeapBarnesHutQuadTree mapped = OffHeapBarnesHutQuadTree.map(file)) {
+        Assert.assertTrue(mapped.isMapped());
+        Assert.assertEquals(tree.getCellCount(), mapped.getCellCount());
+        Assert.assertEquals(tree.getBodyCount(), mapped.getBodyCount());
+        Assert.assertEquals(tree.getTheta(), mapped.getTheta(), 0);
+        Assert.assertEquals(tree.getBounds().x, mapped.getBounds().x, 0);
+        Assert.assertEquals(tree.getBounds().maxY, mapped.getBounds().maxY, 0);
+        double[][] expected = new double[2][COUNT];
+        double[][] actual = new double[2][COUNT];
+        ForceKernel kernel = ForceKernel.repulsion(1);
+        tree.applyForces(kernel, expected[0], expected[1]);
+        mapped.applyForces(kernel, actual[0], actual[1]);
+        for (int i = 0; i < 2; i++) {
+          Assert.assertArrayEquals(expected[i], actual[i], 0);
+        }
+        try {
+          mapped.rebuild(xs, ys, COUNT);
+          Assert.fail("a mapped tree was rebuilt");
+        } catch (IllegalStateException e) {
+          Assert.assertEquals(tree.getCellCount(), mapped.getCellCount());
+        }
+      }
+    }
+
+    Files.write(file, new byte[] {1, 2, 3});
+    try {
+      OffHeapBarnesHutQuadTree.map(file);
+      Assert.fail("mapped a file that is not a snapshot");
+    } catch (IOException expected) {
+      Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("snapshot"));
+    }
+  }
+
+  @Test
+  public void testClose() {
+    OffHeapBarnesHutQuadTree tree = OffHeapBarnesHutQuadTree.builder().bounds(500, 500).build();
+    tree.rebuild(new double[] {1, 2}, new double[] {1, 2}, 2);
+    Assert.assertTrue(tree.getStorageBytes() > 0);
+    tree.close();
+    tree.close();
+    Assert.assertEquals(0, tree.getStorageBytes());
+    Assert.assertEquals(0, tree.getBodyCount());
+    try {
+      tree.rebuild(new double[] {1}, new double[] {1}, 1);
+      Assert.fail("a closed tree was rebuilt");
+    } catch (IllegalStateException expected) {
+      Assert.assertEquals(0, tree.getStorageBytes());
+    }
+    double[] fx = {1, 1};
+    double[] fy = {1, 1};
+    try {
+      tree.applyForcesTo(0, ForceKernel.repulsion(1), fx, fy);
+      Assert.fail("a closed tree was traversed");
+    } catch (IllegalStateException expected) {
+      Assert.assertEquals(1, fx[0], 0);
+    }
+    try {
+      tree.applyForcesTo(0, (x, y, mass) -> Assert.fail("visited a closed tree"));
+      Assert.fail("a closed tree was traversed");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  /** test that a body with no location is left out of the tree and out of the root bounds */
+  @Test
+  public void testBodyWithNoLocation() {
+    double[] xs = {10, 20, Double.NaN};
+    double[] ys = {5, 5, 5};
+    FlatBarnesHutQuadTree flat = FlatBarnesHutQuadTree.builder().bounds(500, 500).build();
+    flat.rebuild(xs, ys, 3);
+    try (OffHeapBarnesHutQuadTree tree =
+        OffHeapBarnesHutQuadTree.builder().bounds(500, 500).build()) {
+      tree.rebuild(xs, ys, 3);
+      Rectangle bounds = tree.getBounds();
+      Assert.assertEquals(0, bounds.x, 0);
+      Assert.assertEquals(0, bounds.y, 0);
+      Assert.assertEquals(500, bounds.width, 0);
+      Assert.assertEquals(500, bounds.height, 0);
+      Assert.assertEquals(flat.getCellCount(), tree.getCellCount());
+      double[] seen = new double[1];
+      tree.applyForcesTo(0, (x, y, mass) -> seen[0] += mass);
+      Assert.assertEquals(1, seen[0], 0);
+    }
+  }
+}